@@ -0,0 +1,27 @@
+/**
+ * Tracks, per route, which reliable packets the server has received, so that
+ * retransmissions are played only once and every reliable packet can be
+ * acknowledged with the state of the last 64 (see WireFormat for the
+ * acknowledgement format). Not thread-safe; used by the dispatch thread only.
+ */
+public class AckWindow extends SequenceWindow {
+	/**
+	 * @param numRoutes the number of routes.
+	 */
+	public AckWindow(int numRoutes) {
+		super(numRoutes);
+	}
+
+	/**
+	 * Records the arrival of a reliable packet.
+	 *
+	 * @param route    the route of the packet's source.
+	 * @param sequence the packet's sequence number.
+	 * @return true if the packet is new, false if it was already received or
+	 *         is too old to tell.
+	 */
+	public boolean receive(int route, int sequence) {
+		final int order = record(route, sequence);
+		return order == NEWEST || order == REORDERED;
+	}
+}
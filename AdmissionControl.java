@@ -0,0 +1,278 @@
+import java.util.*;
+import javax.sound.midi.*;
+
+/**
+ * Decides which events of which clients the server plays, so that one client
+ * sending in a tight loop cannot starve the others. Used by the dispatch
+ * thread only, per event and before playout, and allocates nothing.
+ *
+ * Every event is first checked to be a channel message with 7-bit data bytes;
+ * anything else is rejected as INVALID. Each route (one client) then has a
+ * token bucket of setSourceLimit() events per second, and all routes share a
+ * bucket of setGlobalLimit() events per second; an event that finds either
+ * bucket empty is rejected as RATE or OVERLOAD. Load is shed in order:
+ * note-offs for a pitch the route holds (and all-notes-off while it holds
+ * any) always pass, spending what tokens are left; note-ons for a pitch the
+ * route already holds are rejected as DUPLICATE as soon as a bucket is down
+ * to half, before anything else is. Note-offs for pitches the route does not
+ * hold stop nothing, so they are limited like any other event.
+ *
+ * The buckets hold credit in nanoseconds, one interval of 1/rate per event,
+ * in primitive arrays indexed by route. A route given to a new client starts
+ * with the burst only if no other client from the same address was given one
+ * lately: the fresh credit of an address refills at the client rate, so a
+ * client cannot earn a burst each time it sends from a new port.
+ */
+public class AdmissionControl {
+	public static final int ADMITTED = -1;
+	public static final int INVALID = 0;
+	public static final int DUPLICATE = 1;
+	public static final int RATE = 2;
+	public static final int OVERLOAD = 3;
+	public static final int NUM_REASONS = 4;
+	private static final String[] REASON_NAMES = { "invalid", "duplicate", "rate", "overload" };
+	private static final int ALL_SOUND_OFF = 120;
+	private static final int ALL_NOTES_OFF = 123;
+	private static final int WORDS_PER_ROUTE = NoteStateSet.NUM_PITCHES / Long.SIZE;
+	// Addresses remembered for their fresh credit; forgotten all at once
+	// beyond this.
+	private static final int MAX_ADDRESSES = 4096;
+
+	private final int _numRoutes;
+	// Per route: the credit, when it was last refilled, the pitches held, and
+	// the events rejected for each reason since the route was last reset.
+	private final long[] _credit;
+	private final long[] _refilledNanos;
+	private final long[] _held;
+	private final long[] _rejected;
+	// Per address (a source key without its port): when a route was last
+	// started for it.
+	private LongIntHashMap _addressIndex = new LongIntHashMap(MAX_ADDRESSES);
+	private final long[] _addressResetNanos = new long[MAX_ADDRESSES];
+	private int _addressCount;
+	private long _intervalNanos; // 0 when sources are not limited
+	private long _burstNanos;
+	private long _globalCredit;
+	private long _globalRefilledNanos;
+	private long _globalIntervalNanos; // 0 when the total is not limited
+	private long _globalBurstNanos;
+	private volatile long _rejectedCount;
+
+	/**
+	 * Creates an admission control that only rejects invalid events until
+	 * limits are set.
+	 *
+	 * @param numRoutes the number of routes.
+	 */
+	public AdmissionControl(int numRoutes) {
+		_numRoutes = numRoutes;
+		_credit = new long[numRoutes];
+		_refilledNanos = new long[numRoutes];
+		_held = new long[numRoutes * WORDS_PER_ROUTE];
+		_rejected = new long[numRoutes * NUM_REASONS];
+	}
+
+	/**
+	 * Limits the events each client may send.
+	 *
+	 * @param eventsPerSecond the sustained rate, or 0 for no limit.
+	 * @param burst           the events a client may send at once after a
+	 *                        pause.
+	 */
+	public void setSourceLimit(long eventsPerSecond, long burst) {
+		_intervalNanos = eventsPerSecond > 0 ? Math.max(1, 1_000_000_000L / eventsPerSecond) : 0;
+		_burstNanos = _intervalNanos * Math.max(1, burst);
+		Arrays.fill(_credit, _burstNanos);
+	}
+
+	/**
+	 * Limits the events of all clients together.
+	 *
+	 * @param eventsPerSecond the sustained rate, or 0 for no limit.
+	 * @param burst           the events that may arrive at once after a pause.
+	 */
+	public void setGlobalLimit(long eventsPerSecond, long burst) {
+		_globalIntervalNanos = eventsPerSecond > 0 ? Math.max(1, 1_000_000_000L / eventsPerSecond) : 0;
+		_globalBurstNanos = _globalIntervalNanos * Math.max(1, burst);
+		_globalCredit = _globalBurstNanos;
+	}
+
+	/**
+	 * Starts a route afresh for a new client: no held notes, no rejections,
+	 * and a bucket holding the credit the client's address has earned since
+	 * a route was last started for it, up to the burst.
+	 *
+	 * @param route  the route.
+	 * @param source the client's source key (see ChannelAllocator).
+	 * @param now    the current System.nanoTime().
+	 */
+	public void reset(int route, long source, long now) {
+		final long address = source >>> 16;
+		int index = _addressIndex.get(address);
+		if (index < 0) {
+			if (_addressCount == MAX_ADDRESSES) {
+				_addressIndex = new LongIntHashMap(MAX_ADDRESSES);
+				_addressCount = 0;
+			}
+			index = _addressCount++;
+			_addressIndex.put(address, index);
+			_credit[route] = _burstNanos;
+		} else {
+			_credit[route] = Math.min(_burstNanos, Math.max(0, now - _addressResetNanos[index]));
+		}
+		_addressResetNanos[index] = now;
+		_refilledNanos[route] = now;
+		for (int i = 0; i < WORDS_PER_ROUTE; i++) {
+			_held[route * WORDS_PER_ROUTE + i] = 0;
+		}
+		for (int i = 0; i < NUM_REASONS; i++) {
+			_rejected[route * NUM_REASONS + i] = 0;
+		}
+	}
+
+	/**
+	 * Decides whether to play an event.
+	 *
+	 * @param route   the route of the event's client.
+	 * @param command the MIDI command.
+	 * @param data1   the first data byte.
+	 * @param data2   the second data byte.
+	 * @param now     when the event arrived, in System.nanoTime().
+	 * @return ADMITTED, or the reason the event is rejected.
+	 */
+	public int admit(int route, int command, int data1, int data2, long now) {
+		if (command < ShortMessage.NOTE_OFF || command > ShortMessage.PITCH_BEND || (command & 0x0F) != 0
+				|| (data1 & ~0x7F) != 0 || (data2 & ~0x7F) != 0) {
+			return reject(route, INVALID);
+		}
+		refill(route, now);
+		final int word = route * WORDS_PER_ROUTE + data1 / Long.SIZE;
+		final long bit = 1L << data1;
+		final boolean noteOff = command == ShortMessage.NOTE_OFF || command == ShortMessage.NOTE_ON && data2 == 0;
+		if (noteOff && (_held[word] & bit) != 0) {
+			_held[word] &= ~bit;
+			spend(route);
+			return ADMITTED;
+		}
+		if (command == ShortMessage.CONTROL_CHANGE && (data1 == ALL_NOTES_OFF || data1 == ALL_SOUND_OFF)
+				&& holdsNotes(route)) {
+			for (int i = 0; i < WORDS_PER_ROUTE; i++) {
+				_held[route * WORDS_PER_ROUTE + i] = 0;
+			}
+			spend(route);
+			return ADMITTED;
+		}
+		final boolean duplicate = !noteOff && command == ShortMessage.NOTE_ON && (_held[word] & bit) != 0;
+		if (_globalIntervalNanos > 0
+				&& _globalCredit < _globalIntervalNanos + (duplicate ? _globalBurstNanos / 2 : 0)) {
+			return reject(route, duplicate ? DUPLICATE : OVERLOAD);
+		}
+		if (_intervalNanos > 0 && _credit[route] < _intervalNanos + (duplicate ? _burstNanos / 2 : 0)) {
+			return reject(route, duplicate ? DUPLICATE : RATE);
+		}
+		if (command == ShortMessage.NOTE_ON && !noteOff) {
+			_held[word] |= bit;
+		}
+		spend(route);
+		return ADMITTED;
+	}
+
+	/**
+	 * Returns whether a route's client holds notes: note-ons admitted whose
+	 * note-off has not arrived yet.
+	 *
+	 * @param route the route.
+	 * @return true if some pitch is held.
+	 */
+	public boolean holdsNotes(int route) {
+		for (int i = 0; i < WORDS_PER_ROUTE; i++) {
+			if (_held[route * WORDS_PER_ROUTE + i] != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the credit earned since the last refill, up to the burst.
+	 */
+	private void refill(int route, long now) {
+		if (_intervalNanos > 0) {
+			_credit[route] = Math.min(_burstNanos, _credit[route] + Math.max(0, now - _refilledNanos[route]));
+			_refilledNanos[route] = now;
+		}
+		if (_globalIntervalNanos > 0) {
+			_globalCredit = Math.min(_globalBurstNanos, _globalCredit + Math.max(0, now - _globalRefilledNanos));
+			_globalRefilledNanos = now;
+		}
+	}
+
+	/**
+	 * Spends the credit of one event, never below zero.
+	 */
+	private void spend(int route) {
+		_credit[route] = Math.max(0, _credit[route] - _intervalNanos);
+		_globalCredit = Math.max(0, _globalCredit - _globalIntervalNanos);
+	}
+
+	private int reject(int route, int reason) {
+		_rejected[route * NUM_REASONS + reason]++;
+		_rejectedCount++;
+		return reason;
+	}
+
+	/**
+	 * Returns the number of events of a route's client rejected for a reason.
+	 * Read from another thread, the count may be slightly behind.
+	 *
+	 * @param route  the route.
+	 * @param reason INVALID, DUPLICATE, RATE or OVERLOAD.
+	 * @return the rejected count since the route was assigned.
+	 */
+	public long getRejectedCount(int route, int reason) {
+		return _rejected[route * NUM_REASONS + reason];
+	}
+
+	/**
+	 * Returns the number of events of a route's client rejected for any
+	 * reason.
+	 *
+	 * @param route the route.
+	 * @return the rejected count since the route was assigned.
+	 */
+	public long getRejectedCount(int route) {
+		long count = 0;
+		for (int reason = 0; reason < NUM_REASONS; reason++) {
+			count += _rejected[route * NUM_REASONS + reason];
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of events rejected, of all clients ever.
+	 *
+	 * @return the rejected count.
+	 */
+	public long getRejectedCount() {
+		return _rejectedCount;
+	}
+
+	/**
+	 * Returns the name of a reason, as used in logs and reports.
+	 *
+	 * @param reason INVALID, DUPLICATE, RATE or OVERLOAD.
+	 * @return the name.
+	 */
+	public static String getReasonName(int reason) {
+		return REASON_NAMES[reason];
+	}
+
+	/**
+	 * Returns the number of routes.
+	 *
+	 * @return the route count.
+	 */
+	public int getRouteCount() {
+		return _numRoutes;
+	}
+}
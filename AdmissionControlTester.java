@@ -0,0 +1,129 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import javax.sound.midi.*;
+
+/**
+ * Contains a set of unit tests for the AdmissionControl class.
+ */
+class AdmissionControlTester {
+	private static final long MS = 1_000_000L;
+	private static final long START = 1_000 * MS;
+
+	// The source key of an IPv4 client, as ChannelAllocator.sourceKey().
+	private static long key(long address, int port) {
+		return address << 16 | port;
+	}
+
+	// A client at 10.0.0.(route + 1), port 5000.
+	private static long source(int route) {
+		return key(0x0A000001L + route, 5000);
+	}
+
+	private static int noteOn(AdmissionControl admission, int route, int pitch, long now) {
+		return admission.admit(route, ShortMessage.NOTE_ON, pitch, 93, now);
+	}
+
+	@Test
+	void testInvalidEventsAreRejected() {
+		final AdmissionControl admission = new AdmissionControl(16);
+		admission.reset(0, source(0), START);
+		assertEquals(AdmissionControl.INVALID, admission.admit(0, ShortMessage.NOTE_ON, 128, 93, START));
+		assertEquals(AdmissionControl.INVALID, admission.admit(0, ShortMessage.NOTE_ON, 60, -1, START));
+		assertEquals(AdmissionControl.INVALID, admission.admit(0, 0x40, 60, 93, START));
+		assertEquals(AdmissionControl.INVALID, admission.admit(0, 0xF8, 0, 0, START));
+		assertEquals(AdmissionControl.INVALID, admission.admit(0, ShortMessage.NOTE_ON | 3, 60, 93, START));
+		assertEquals(AdmissionControl.ADMITTED, admission.admit(0, ShortMessage.PITCH_BEND, 0, 64, START));
+		// Without limits, a flood of note-ons all pass.
+		for (int i = 0; i < 10_000; i++) {
+			assertEquals(AdmissionControl.ADMITTED, noteOn(admission, 0, 60, START));
+		}
+		assertEquals(5, admission.getRejectedCount(0, AdmissionControl.INVALID));
+		assertEquals(5, admission.getRejectedCount());
+	}
+
+	@Test
+	void testFloodingSourceIsLimitedAndOthersPlay() {
+		final AdmissionControl admission = new AdmissionControl(16);
+		admission.setSourceLimit(1000, 10);
+		admission.reset(0, source(0), START);
+		admission.reset(1, source(1), START);
+		assertEquals(AdmissionControl.ADMITTED, noteOn(admission, 0, 40, START));
+		assertEquals(AdmissionControl.ADMITTED, noteOn(admission, 0, 41, START));
+		int admitted = 0;
+		// 100 ms of a volume change every 10 us: the rest of the burst, then
+		// one per ms.
+		for (long t = 0; t < 100 * MS; t += MS / 100) {
+			if (admission.admit(0, ShortMessage.CONTROL_CHANGE, 7, 100, START + t) == AdmissionControl.ADMITTED) {
+				admitted++;
+			}
+		}
+		assertEquals(8 + 100, admitted, 2);
+		assertEquals(10_000 - admitted, admission.getRejectedCount(0, AdmissionControl.RATE));
+		assertEquals(AdmissionControl.ADMITTED, noteOn(admission, 1, 60, START + 100 * MS), "others are unaffected");
+		// Still within the flood's last millisecond.
+		final long end = START + 100 * MS - MS / 100;
+		assertEquals(AdmissionControl.RATE, admission.admit(0, ShortMessage.NOTE_OFF, 50, 0, end),
+				"a note-off for a pitch not held is limited");
+		assertEquals(AdmissionControl.ADMITTED,
+				admission.admit(0, ShortMessage.NOTE_OFF, 40, 0, end), "held notes are released");
+		assertEquals(AdmissionControl.ADMITTED,
+				admission.admit(0, ShortMessage.CONTROL_CHANGE, 123, 0, end), "41 is held");
+		assertFalse(admission.holdsNotes(0));
+		assertEquals(AdmissionControl.RATE,
+				admission.admit(0, ShortMessage.CONTROL_CHANGE, 123, 0, end), "nothing is held");
+
+		admission.reset(0, source(0), START + 200 * MS);
+		assertEquals(0, admission.getRejectedCount(0));
+		assertEquals(AdmissionControl.ADMITTED, noteOn(admission, 0, 60, START + 200 * MS), "a new client");
+	}
+
+	@Test
+	void testDuplicateNoteOnsAreShedFirst() {
+		final AdmissionControl admission = new AdmissionControl(16);
+		admission.setSourceLimit(1000, 10);
+		admission.reset(0, source(0), START);
+		assertEquals(AdmissionControl.ADMITTED, noteOn(admission, 0, 60, START));
+		assertEquals(AdmissionControl.ADMITTED, noteOn(admission, 0, 60, START), "a full bucket admits a retrigger");
+		for (int pitch = 61; pitch < 65; pitch++) {
+			assertEquals(AdmissionControl.ADMITTED, noteOn(admission, 0, pitch, START));
+		}
+		// Down to half: new notes still play, repeated ones do not.
+		assertEquals(AdmissionControl.DUPLICATE, noteOn(admission, 0, 60, START));
+		assertEquals(AdmissionControl.ADMITTED, noteOn(admission, 0, 65, START));
+		assertEquals(AdmissionControl.ADMITTED, admission.admit(0, ShortMessage.NOTE_ON, 60, 0, START));
+		assertEquals(AdmissionControl.ADMITTED, noteOn(admission, 0, 60, START), "released, so not a duplicate");
+
+		final AdmissionControl global = new AdmissionControl(16);
+		global.setGlobalLimit(1000, 4);
+		for (int route = 0; route < 4; route++) {
+			global.reset(route, source(route), START);
+			assertEquals(AdmissionControl.ADMITTED, noteOn(global, route, 60, START));
+		}
+		assertEquals(AdmissionControl.OVERLOAD, noteOn(global, 5, 60, START));
+		assertEquals(AdmissionControl.OVERLOAD, global.admit(5, ShortMessage.NOTE_OFF, 60, 0, START));
+		assertEquals(AdmissionControl.ADMITTED, global.admit(3, ShortMessage.NOTE_OFF, 60, 0, START));
+		assertEquals(AdmissionControl.ADMITTED, noteOn(global, 5, 60, START + MS), "the cap refills");
+	}
+	@Test
+	void testNewPortsDoNotEarnNewBursts() {
+		final AdmissionControl admission = new AdmissionControl(16);
+		admission.setSourceLimit(1000, 10);
+		admission.reset(0, key(0x0A000001L, 5000), START);
+		for (int pitch = 0; pitch < 10; pitch++) {
+			assertEquals(AdmissionControl.ADMITTED, noteOn(admission, 0, pitch, START));
+		}
+		assertEquals(AdmissionControl.RATE, noteOn(admission, 0, 10, START));
+		// The same address from another port starts with nothing left.
+		admission.reset(1, key(0x0A000001L, 5001), START);
+		assertEquals(AdmissionControl.RATE, noteOn(admission, 1, 60, START));
+		// Its fresh credit refills at the client rate.
+		admission.reset(2, key(0x0A000001L, 5002), START + 3 * MS);
+		for (int pitch = 0; pitch < 3; pitch++) {
+			assertEquals(AdmissionControl.ADMITTED, noteOn(admission, 2, pitch, START + 3 * MS));
+		}
+		assertEquals(AdmissionControl.RATE, noteOn(admission, 2, 3, START + 3 * MS));
+		// Other addresses are unaffected.
+		admission.reset(3, key(0x0A000002L, 5000), START + 3 * MS);
+		assertEquals(AdmissionControl.ADMITTED, noteOn(admission, 3, 60, START + 3 * MS));
+	}
+}
@@ -2,56 +2,147 @@ import javax.swing.*;
 import java.awt.event.*;
 import java.awt.*;
 import java.io.*;
+import java.lang.management.*;
+import java.net.*;
 import javax.sound.midi.*;
 import java.util.*;
+import java.util.concurrent.*;
 
-// DO NOT MODIFY THIS CLASS
 /**
  * Implements a "band" application with a piano keyboard that can play different
  * musical instruments, either locally or over the network.
+ *
+ * Options: "--monitor" also plays locally what is sent to a server;
+ * "--stream" sends to servers over TCP rather than UDP, for networks that
+ * lose or block datagrams (the server must run with "--stream").
  */
 public class Band {
+	private static final int NETWORK_QUEUE_CAPACITY = 256;
+	// The time from launching the JVM to showing the window.
+	private static final EventLog.Event STARTUP = new EventLog.Event("startup", EventLog.Level.INFO, "millis");
+
 	public static void main(String[] args) {
-		// Create the local MIDI receiver
-		final Receiver localReceiver;
-		try {
-			localReceiver = MidiSystem.getReceiver();
-		} catch (MidiUnavailableException mue) {
-			mue.printStackTrace();
-			return;
-		}
+		// Create the local MIDI receiver. Opening the synthesizer takes hundreds
+		// of milliseconds on a cold start, so it opens while the window shows.
+		// The control panel lists the instruments of the same synthesizer, so
+		// its soundbank is loaded once.
+		final SynthesizerOpener synthesizer = new SynthesizerOpener();
+		final Receiver localReceiver = new DeferredReceiver(synthesizer);
 
 		// Create the JFrame that constitutes the Band program
 		final JFrame frame = new JFrame("Band");
 		frame.setResizable(false);
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-		final ControlPanel controlPanel = new ControlPanel(localReceiver);
-		final Piano piano = new Piano(localReceiver);
+		// The piano and control panel always send to the router, which forwards
+		// to the local synthesizer or a server (or, with --monitor, both).
+		final RoutingReceiver router = new RoutingReceiver(localReceiver);
+		final boolean monitor = Arrays.asList(args).contains("--monitor");
+		final boolean stream = Arrays.asList(args).contains("--stream");
+		final ControlPanel controlPanel = new ControlPanel(router, synthesizer);
+		final Piano piano = new Piano(router);
+		// Light up the keys played by the other band members, if the server
+		// republishes them (Server --broadcast).
+		final RemoteNoteListener remoteNotes = listenToRemoteNotes(piano);
+		final EndpointPool endpoints = new EndpointPool(EndpointPool.DEFAULT_CAPACITY, host -> {
+			// Sends from its own thread so the EDT never blocks on the socket.
+			final NetworkReceiver networkReceiver = new NetworkReceiver(NETWORK_QUEUE_CAPACITY,
+					EventQueue.OverflowPolicy.COALESCE);
+			try {
+				networkReceiver.setAddress(host);
+				// Timestamped packets let a server in playout mode smooth out network jitter.
+				networkReceiver.setProtocol(WireFormat.VERSION_2, 0);
+				networkReceiver.setTimestamps(true);
+				if (stream) {
+					networkReceiver.setStream(true);
+				} else {
+					// Lost note-offs would leave notes stuck on the server.
+					networkReceiver.setReliable(true);
+				}
+				// The server republishes our own notes too; they already show as played.
+				if (remoteNotes != null) {
+					remoteNotes.addOwnClient(networkReceiver.getLocalAddress());
+				}
+			} catch (IOException ioe) {
+				networkReceiver.close();
+				throw ioe;
+			}
+			return networkReceiver;
+		});
+		// Resolving a host and opening a socket happen here rather than on the
+		// EDT; one thread applies the switches in the order they were asked for.
+		final ExecutorService switcher = Executors.newSingleThreadExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "receiver-switcher");
+			thread.setDaemon(true);
+			return thread;
+		});
 		frame.setLayout(new BorderLayout());
 		frame.add(piano, BorderLayout.CENTER);
 		frame.add(controlPanel, BorderLayout.SOUTH);
-		// Add a listener to radio button that selects the local vs. remote receiver.
+		// Whether the router sends to a server; used by the switcher thread only.
+		final boolean[] routedRemote = { false };
+		// Add a listener to the radio buttons that select the local vs. remote receiver.
 		controlPanel.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				if (controlPanel.isRemote()) {
+				final boolean remote = controlPanel.isRemote();
+				final String host = controlPanel.getIPAddress();
+				switcher.execute(() -> {
+					if (!remote) {
+						router.setTargets(localReceiver);
+						routedRemote[0] = false;
+						return;
+					}
 					try {
-						// Construct a new receiver given the currently entered IP.
-						final NetworkReceiver networkReceiver = new NetworkReceiver();
-						networkReceiver.setAddress(controlPanel.getIPAddress());
-						controlPanel.setReceiver(networkReceiver);
-						piano.setReceiver(networkReceiver);
+						final NetworkReceiver endpoint = endpoints.get(host);
+						if (monitor) {
+							router.setTargets(localReceiver, endpoint);
+						} else {
+							router.setTargets(endpoint);
+						}
+						routedRemote[0] = true;
 					} catch (IOException ioe) {
-						ioe.printStackTrace();
+						System.out.println("Could not send to " + host + ": " + ioe.getMessage());
+						// The router still sends where it did; show that.
+						final boolean previous = routedRemote[0];
+						SwingUtilities.invokeLater(() -> controlPanel.setRemote(previous));
 					}
-				} else {
-					// Use the local MIDI receiver instead.
-					controlPanel.setReceiver(localReceiver);
-					piano.setReceiver(localReceiver);
+				});
+			}
+		});
+		// Close the sockets to the servers, and the remote notes' group, on exit.
+		frame.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent e) {
+				endpoints.close();
+				if (remoteNotes != null) {
+					remoteNotes.close();
 				}
 			}
 		});
+		// The client's latency stages and log level are available over JMX (e.g. JConsole).
+		LatencyMetrics.registerMBeans();
+		EventLog.registerMBean();
 		frame.pack();
 		frame.setVisible(true);
 		piano.requestFocus();
+		EventLog.log(STARTUP, ManagementFactory.getRuntimeMXBean().getUptime(), 0, 0);
+	}
+
+	/**
+	 * Starts listening to the notes a server republishes into the piano's
+	 * remote notes.
+	 *
+	 * @param piano the piano to show the notes on.
+	 * @return the listener, or null if the group cannot be joined.
+	 */
+	private static RemoteNoteListener listenToRemoteNotes(Piano piano) {
+		try {
+			final RemoteNoteListener listener = new RemoteNoteListener(
+					InetAddress.getByName(NoteBroadcaster.DEFAULT_GROUP), piano.getRemoteNotes());
+			listener.start();
+			return listener;
+		} catch (IOException ioe) {
+			System.out.println("Not showing remote notes: " + ioe.getMessage());
+			return null;
+		}
 	}
 }
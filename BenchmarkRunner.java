@@ -0,0 +1,120 @@
+import java.lang.management.*;
+
+/**
+ * Runs micro-benchmarks and reports, for each, the mean time and the mean
+ * number of bytes allocated per operation (what JMH's GC profiler reports as
+ * gc.alloc.rate.norm). JMH itself cannot be used because its generated code
+ * cannot refer to classes in the default package.
+ *
+ * Each benchmark declares an allocation budget in bytes per operation. Unlike
+ * timings, allocation counts barely vary between runs and machines, so
+ * exceeding the budget is reported as a failure. A benchmark may also declare
+ * a time budget, for the few paths whose cost is a requirement; it should
+ * leave a wide margin for slower machines.
+ */
+public class BenchmarkRunner {
+	public static final int DEFAULT_WARMUP_ITERATIONS = 5;
+	public static final int DEFAULT_MEASURED_ITERATIONS = 10;
+
+	/**
+	 * The code under measurement.
+	 */
+	public interface Body {
+		/**
+		 * Performs the measured operation a number of times.
+		 *
+		 * @param ops the number of operations to perform.
+		 * @return any value derived from the results, so that the JIT cannot
+		 *         discard the work.
+		 */
+		long run(int ops);
+	}
+
+	private final com.sun.management.ThreadMXBean _threads = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+	private final int _warmupIterations;
+	private final int _measuredIterations;
+	private long _sink;
+	private int _failureCount;
+
+	public BenchmarkRunner() {
+		this(DEFAULT_WARMUP_ITERATIONS, DEFAULT_MEASURED_ITERATIONS);
+	}
+
+	/**
+	 * @param warmupIterations   the iterations run before measuring.
+	 * @param measuredIterations the iterations measured.
+	 */
+	public BenchmarkRunner(int warmupIterations, int measuredIterations) {
+		_warmupIterations = warmupIterations;
+		_measuredIterations = measuredIterations;
+		System.out.printf("%-32s %12s %10s %10s%n", "benchmark", "ns/op", "B/op", "budget");
+	}
+
+	/**
+	 * Measures one benchmark and prints its results.
+	 *
+	 * @param name           the name of the benchmark.
+	 * @param opsPerIteration the operations performed by one run of the body.
+	 * @param maxBytesPerOp  the allocation budget.
+	 * @param body           the code to measure.
+	 * @return the mean bytes allocated per operation.
+	 */
+	public double run(String name, int opsPerIteration, double maxBytesPerOp, Body body) {
+		return run(name, opsPerIteration, maxBytesPerOp, Double.POSITIVE_INFINITY, body);
+	}
+
+	/**
+	 * Measures one benchmark with a time budget and prints its results.
+	 *
+	 * @param name           the name of the benchmark.
+	 * @param opsPerIteration the operations performed by one run of the body.
+	 * @param maxBytesPerOp  the allocation budget.
+	 * @param maxNanosPerOp  the time budget.
+	 * @param body           the code to measure.
+	 * @return the mean bytes allocated per operation.
+	 */
+	public double run(String name, int opsPerIteration, double maxBytesPerOp, double maxNanosPerOp, Body body) {
+		for (int i = 0; i < _warmupIterations; i++) {
+			_sink += body.run(opsPerIteration);
+		}
+		final long threadId = Thread.currentThread().getId();
+		final long startBytes = _threads.getThreadAllocatedBytes(threadId);
+		final long startNanos = System.nanoTime();
+		for (int i = 0; i < _measuredIterations; i++) {
+			_sink += body.run(opsPerIteration);
+		}
+		final long nanos = System.nanoTime() - startNanos;
+		final long bytes = _threads.getThreadAllocatedBytes(threadId) - startBytes;
+		final double ops = (double) opsPerIteration * _measuredIterations;
+		final double bytesPerOp = bytes / ops;
+		final boolean failed = bytesPerOp > maxBytesPerOp;
+		final boolean slow = nanos / ops > maxNanosPerOp;
+		if (failed || slow) {
+			_failureCount++;
+		}
+		System.out.printf("%-32s %12.1f %10.1f %10.1f%s%s%n", name, nanos / ops, bytesPerOp, maxBytesPerOp,
+				failed ? "  OVER BUDGET" : "",
+				slow ? String.format("  SLOWER THAN %.0f ns", maxNanosPerOp) : "");
+		return bytesPerOp;
+	}
+
+	/**
+	 * Returns the number of benchmarks that exceeded their allocation or time
+	 * budget.
+	 *
+	 * @return the failure count.
+	 */
+	public int getFailureCount() {
+		return _failureCount;
+	}
+
+	/**
+	 * Returns a value accumulated from every benchmark's results.
+	 *
+	 * @return the sink.
+	 */
+	public long getSink() {
+		return _sink;
+	}
+}
@@ -0,0 +1,294 @@
+import java.net.*;
+import java.util.*;
+
+/**
+ * Assigns each client (address, port) its own route: one of the 16 MIDI
+ * channels of the primary synthesizer or, if configured, of an overflow
+ * synthesizer. Clients are identified by a packed long key and looked up in a
+ * primitive hash map, so the per-packet path allocates nothing.
+ *
+ * Routes of clients that have been silent for longer than the idle timeout are
+ * freed by evictIdle(). When every route is taken, a new client reuses the
+ * route of the least recently heard client.
+ */
+public class ChannelAllocator {
+	public static final int NUM_CHANNELS = 16;
+	/** Set in the result of allocate() when the route was just (re)assigned. */
+	public static final int FRESH = 0x100;
+	public static final int ROUTE_MASK = 0xFF;
+	private static final long NO_SOURCE = -1;
+	private static final long IPV6_FLAG = 1L << 48;
+	private static final Ipv6Addresses IPV6_ADDRESSES = new Ipv6Addresses();
+
+	private final LongIntHashMap _routeBySource;
+	private final long[] _sourceByRoute;
+	private final long[] _lastSeenNanos;
+	private final long _idleTimeoutNanos;
+	private volatile long _reassignedCount;
+
+	/**
+	 * @param numReceivers     the number of synthesizers to spread clients over
+	 *                         (1 without overflow, 2 with).
+	 * @param idleTimeoutNanos how long a client may stay silent before its
+	 *                         route is freed.
+	 */
+	public ChannelAllocator(int numReceivers, long idleTimeoutNanos) {
+		final int numRoutes = numReceivers * NUM_CHANNELS;
+		_routeBySource = new LongIntHashMap(numRoutes);
+		_sourceByRoute = new long[numRoutes];
+		_lastSeenNanos = new long[numRoutes];
+		_idleTimeoutNanos = idleTimeoutNanos;
+		Arrays.fill(_sourceByRoute, NO_SOURCE);
+	}
+
+	/**
+	 * Packs a client's address and port into a key. IPv4 addresses are packed
+	 * exactly (Inet4Address.hashCode() is the address itself), without
+	 * allocating; IPv6 addresses do not fit, so they are numbered in the order
+	 * they are first seen (see Ipv6Addresses) and their number is packed
+	 * instead, flagged in bit 48. Either way, distinct clients get distinct
+	 * keys.
+	 *
+	 * @param address the client address.
+	 * @param port    the client port.
+	 * @return the non-negative source key.
+	 */
+	public static long sourceKey(InetAddress address, int port) {
+		if (address instanceof Inet4Address) {
+			return (address.hashCode() & 0xFFFFFFFFL) << 16 | port & 0xFFFF;
+		}
+		final byte[] bytes = address.getAddress();
+		long high = 0;
+		long low = 0;
+		for (int i = 0; i < Long.BYTES; i++) {
+			high = high << 8 | bytes[i] & 0xFF;
+			low = low << 8 | bytes[Long.BYTES + i] & 0xFF;
+		}
+		return sourceKey(high, low, port);
+	}
+
+	/**
+	 * Packs a client's IPv6 address, given as two longs, and port into a key.
+	 *
+	 * @param high the first 8 bytes of the address, big-endian.
+	 * @param low  the last 8 bytes of the address, big-endian.
+	 * @param port the client port.
+	 * @return the non-negative source key, as sourceKey(InetAddress, int).
+	 */
+	public static long sourceKey(long high, long low, int port) {
+		return IPV6_FLAG | (IPV6_ADDRESSES.number(high, low) & 0xFFFFFFFFL) << 16 | port & 0xFFFF;
+	}
+
+	/**
+	 * Appends a source key in readable form: a.b.c.d:port for IPv4 clients,
+	 * and [address]:port for IPv6 clients.
+	 *
+	 * @param out    the builder to append to.
+	 * @param source the source key.
+	 * @return the builder.
+	 */
+	public static StringBuilder formatSource(StringBuilder out, long source) {
+		final long address = source >>> 16 & 0xFFFFFFFFL;
+		if ((source & IPV6_FLAG) != 0) {
+			out.append('[').append(getAddress(source).getHostAddress()).append(']');
+		} else {
+			out.append(address >>> 24).append('.').append(address >>> 16 & 0xFF).append('.')
+					.append(address >>> 8 & 0xFF).append('.').append(address & 0xFF);
+		}
+		return out.append(':').append(source & 0xFFFF);
+	}
+
+	/**
+	 * Returns the address of a client from its source key.
+	 *
+	 * @param source the source key.
+	 * @return the client's address.
+	 */
+	public static InetAddress getAddress(long source) {
+		final long address = source >>> 16 & 0xFFFFFFFFL;
+		final byte[] bytes;
+		if ((source & IPV6_FLAG) != 0) {
+			bytes = IPV6_ADDRESSES.bytes((int) address);
+		} else {
+			bytes = new byte[] { (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8),
+					(byte) address };
+		}
+		try {
+			return InetAddress.getByAddress(bytes);
+		} catch (UnknownHostException uhe) {
+			throw new IllegalStateException(uhe); // 4 or 16 bytes is always an address
+		}
+	}
+
+	/**
+	 * Numbers the IPv6 addresses of clients, so that their source keys are
+	 * exact. Shared by every thread making source keys, so synchronized; the
+	 * lookup of a known address allocates nothing. Numbers are never
+	 * reused, so the table grows with the distinct addresses seen, by 20
+	 * bytes each.
+	 */
+	private static final class Ipv6Addresses {
+		private long[] _high = new long[16];
+		private long[] _low = new long[16];
+		private int[] _table = new int[32]; // number + 1 by hash, or 0
+		private int _count;
+
+		/**
+		 * Returns the number of an address, numbering it if it is new.
+		 */
+		synchronized int number(long high, long low) {
+			final int mask = _table.length - 1;
+			int i = hash(high, low) & mask;
+			for (; _table[i] != 0; i = i + 1 & mask) {
+				final int number = _table[i] - 1;
+				if (_high[number] == high && _low[number] == low) {
+					return number;
+				}
+			}
+			if (_count == _high.length) {
+				_high = Arrays.copyOf(_high, 2 * _count);
+				_low = Arrays.copyOf(_low, 2 * _count);
+				_table = new int[4 * _count];
+				for (int number = 0; number < _count; number++) {
+					int j = hash(_high[number], _low[number]) & _table.length - 1;
+					while (_table[j] != 0) {
+						j = j + 1 & _table.length - 1;
+					}
+					_table[j] = number + 1;
+				}
+				return number(high, low);
+			}
+			_high[_count] = high;
+			_low[_count] = low;
+			_table[i] = _count + 1;
+			return _count++;
+		}
+
+		private static int hash(long high, long low) {
+			final long h = (high * 31 + low) * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ h >>> 32);
+		}
+
+		/**
+		 * Returns the bytes of a numbered address.
+		 */
+		synchronized byte[] bytes(int number) {
+			final byte[] bytes = new byte[2 * Long.BYTES];
+			for (int i = 0; i < Long.BYTES; i++) {
+				bytes[i] = (byte) (_high[number] >>> 56 - 8 * i);
+				bytes[Long.BYTES + i] = (byte) (_low[number] >>> 56 - 8 * i);
+			}
+			return bytes;
+		}
+	}
+
+	/**
+	 * Returns the route of the specified client, assigning one if needed.
+	 *
+	 * @param source the client's source key.
+	 * @param now    the current System.nanoTime().
+	 * @return the route (receiver * 16 + channel), or'ed with FRESH if the route
+	 *         was just assigned to this client.
+	 */
+	public int allocate(long source, long now) {
+		int route = _routeBySource.get(source);
+		if (route >= 0) {
+			_lastSeenNanos[route] = now;
+			return route;
+		}
+		route = freeOrLeastRecentRoute();
+		if (_sourceByRoute[route] != NO_SOURCE) {
+			_routeBySource.remove(_sourceByRoute[route]);
+			_reassignedCount++;
+		}
+		_sourceByRoute[route] = source;
+		_lastSeenNanos[route] = now;
+		_routeBySource.put(source, route);
+		return route | FRESH;
+	}
+
+	/**
+	 * Returns the route of the specified client, without assigning one or
+	 * counting the client as seen.
+	 *
+	 * @param source the client's source key.
+	 * @return the route, or -1 if the client has none (any more).
+	 */
+	public int getRoute(long source) {
+		return _routeBySource.get(source);
+	}
+
+	/**
+	 * Returns the lowest free route, or the least recently used one if all are
+	 * taken. Scans the routes, but only runs when a new client appears.
+	 */
+	private int freeOrLeastRecentRoute() {
+		int oldest = 0;
+		for (int route = 0; route < _sourceByRoute.length; route++) {
+			if (_sourceByRoute[route] == NO_SOURCE) {
+				return route;
+			}
+			if (_lastSeenNanos[route] - _lastSeenNanos[oldest] < 0) {
+				oldest = route;
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * Frees the routes of clients that have been silent for longer than the
+	 * idle timeout.
+	 *
+	 * @param now the current System.nanoTime().
+	 * @return a bit mask of the freed routes.
+	 */
+	public long evictIdle(long now) {
+		long evicted = 0;
+		for (int route = 0; route < _sourceByRoute.length; route++) {
+			if (_sourceByRoute[route] != NO_SOURCE && now - _lastSeenNanos[route] > _idleTimeoutNanos) {
+				_routeBySource.remove(_sourceByRoute[route]);
+				_sourceByRoute[route] = NO_SOURCE;
+				evicted |= 1L << route;
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Returns the client currently assigned a route.
+	 *
+	 * @param route the route.
+	 * @return the client's source key, or -1 if the route is free.
+	 */
+	public long getSource(int route) {
+		return _sourceByRoute[route];
+	}
+
+	/**
+	 * Returns the number of routes currently assigned to a client.
+	 *
+	 * @return the active route count.
+	 */
+	public int getActiveCount() {
+		return _routeBySource.size();
+	}
+
+	/**
+	 * Returns the number of times a route was taken from a client that had not
+	 * gone idle, because every route was taken when a new client arrived.
+	 *
+	 * @return the reassigned count.
+	 */
+	public long getReassignedCount() {
+		return _reassignedCount;
+	}
+
+	/**
+	 * Returns the total number of routes.
+	 *
+	 * @return the route count.
+	 */
+	public int getRouteCount() {
+		return _sourceByRoute.length;
+	}
+}
@@ -0,0 +1,88 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import java.net.*;
+import java.nio.*;
+
+/**
+ * Contains a set of unit tests for the ChannelAllocator class.
+ */
+class ChannelAllocatorTester {
+	private static final long TIMEOUT = 1000;
+
+	@Test
+	void testIpv4SourceKeysAreExact() throws Exception {
+		final long key = ChannelAllocator.sourceKey(InetAddress.getByName("192.168.1.20"), 50000);
+		assertEquals(0xC0A80114L << 16 | 50000, key);
+		assertEquals("192.168.1.20:50000", ChannelAllocator.formatSource(new StringBuilder(), key).toString());
+		assertNotEquals(key, ChannelAllocator.sourceKey(InetAddress.getByName("192.168.1.20"), 50001));
+	}
+
+	@Test
+	void testIpv6SourceKeysDoNotCollide() throws Exception {
+		// The hash code of an IPv6 address sums its four ints, so swapping two
+		// of them collides.
+		final InetAddress a = InetAddress.getByName("2001:db8:0:1::5");
+		final InetAddress b = InetAddress.getByName("0:1:2001:db8::5");
+		assertEquals(a.hashCode(), b.hashCode());
+		final long keyA = ChannelAllocator.sourceKey(a, 40000);
+		final long keyB = ChannelAllocator.sourceKey(b, 40000);
+		assertNotEquals(keyA, keyB);
+		assertEquals(keyA, ChannelAllocator.sourceKey(InetAddress.getByName("2001:db8:0:1:0:0:0:5"), 40000));
+		assertTrue(keyA >= 0 && keyB >= 0);
+		assertEquals("[2001:db8:0:1:0:0:0:5]:40000",
+				ChannelAllocator.formatSource(new StringBuilder(), keyA).toString());
+
+		// A forwarded frame names the client by the same key.
+		final ByteBuffer frame = ByteBuffer.allocate(WireFormat.MAX_FORWARD_HEADER_SIZE);
+		WireFormat.putForwardHeader(frame, 0, b, 40000);
+		assertTrue(WireFormat.isForwarded(frame));
+		assertEquals(keyB, WireFormat.forwardedSourceKey(frame));
+		WireFormat.putForwardHeader(frame, 0, InetAddress.getByName("10.0.0.1"), 40000);
+		assertEquals(ChannelAllocator.sourceKey(InetAddress.getByName("10.0.0.1"), 40000),
+				WireFormat.forwardedSourceKey(frame));
+
+		// Many addresses, past the growth of the table.
+		final long[] keys = new long[1000];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = ChannelAllocator.sourceKey(InetAddress.getByName("2001:db8::" + Integer.toHexString(i)), 1);
+			for (int j = 0; j < i; j++) {
+				assertNotEquals(keys[j], keys[i]);
+			}
+		}
+		assertEquals(keys[7], ChannelAllocator.sourceKey(InetAddress.getByName("2001:db8::7"), 1));
+	}
+
+	@Test
+	void testRoutesAreAssignedAndKept() {
+		final ChannelAllocator allocator = new ChannelAllocator(1, TIMEOUT);
+		for (int source = 0; source < ChannelAllocator.NUM_CHANNELS; source++) {
+			assertEquals(source | ChannelAllocator.FRESH, allocator.allocate(100 + source, 0));
+		}
+		assertEquals(3, allocator.allocate(103, 10), "a known client keeps its route");
+		assertEquals(103, allocator.getSource(3));
+		assertEquals(ChannelAllocator.NUM_CHANNELS, allocator.getActiveCount());
+
+		// All taken: the least recently heard client loses its route.
+		assertEquals(0 | ChannelAllocator.FRESH, allocator.allocate(200, 20));
+		assertEquals(200, allocator.getSource(0));
+		assertEquals(1 | ChannelAllocator.FRESH, allocator.allocate(100, 30), "the old client comes back");
+		assertEquals(ChannelAllocator.NUM_CHANNELS, allocator.getActiveCount());
+		assertEquals(2, allocator.getReassignedCount());
+	}
+
+	@Test
+	void testIdleRoutesAreFreed() {
+		final ChannelAllocator allocator = new ChannelAllocator(2, TIMEOUT);
+		assertEquals(2 * ChannelAllocator.NUM_CHANNELS, allocator.getRouteCount());
+		assertEquals(0 | ChannelAllocator.FRESH, allocator.allocate(1, 0));
+		assertEquals(1 | ChannelAllocator.FRESH, allocator.allocate(2, 0));
+		assertEquals(2 | ChannelAllocator.FRESH, allocator.allocate(3, 0));
+		allocator.allocate(2, TIMEOUT);
+		assertEquals(0, allocator.evictIdle(TIMEOUT));
+		assertEquals(0b101, allocator.evictIdle(TIMEOUT + 1));
+		assertEquals(-1, allocator.getSource(0));
+		assertEquals(1, allocator.getActiveCount());
+		assertEquals(0 | ChannelAllocator.FRESH, allocator.allocate(3, TIMEOUT + 2), "the lowest free route");
+		assertEquals(0, allocator.getReassignedCount(), "idle routes are not taken from anyone");
+	}
+}
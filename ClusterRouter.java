@@ -0,0 +1,432 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Spreads a band over several server nodes. The router listens where clients
+ * send (Server.PORT by default) and forwards each datagram, wrapped in a
+ * forwarded frame naming the client (see WireFormat), to the node that a
+ * ConsistentHashRing assigns to the client's address and port. Each node is a
+ * Server started with "--router", which plays the clients it is given on its
+ * own synthesizers and sends its acknowledgements back through the router.
+ *
+ * Nodes join by sending heartbeats to the router's control port
+ * (DEFAULT_CONTROL_PORT), apart from the port clients send to, and leave by
+ * saying so or by falling silent for longer than the node timeout; nodes given
+ * on the command line stay for good. Heartbeats that arrive on the client port
+ * are dropped, so a client cannot join as a node; the control port should be
+ * reachable from the nodes' network only. When nodes come and go, only the
+ * clients whose position on the ring changes owner move, and a client that
+ * moves starts afresh on its new node. Nodes and the router must be on a
+ * network clients cannot forge frames or heartbeats on.
+ *
+ * Forwarding is done by one thread in place: the datagram is received into a
+ * direct buffer just past room for the header, so the header is written in
+ * front of it and the frame goes out without copying or allocating.
+ *
+ * Options: "--port P" listens for clients on port P; "--control-port P"
+ * listens for heartbeats on port P; "--node HOST:PORT" (repeatable) adds a
+ * node for good; "--node-timeout MS" drops a node that has not sent a
+ * heartbeat for MS milliseconds (DEFAULT_NODE_TIMEOUT_MS).
+ *
+ * Run with, e.g. three processes on one machine:
+ * java Server --port 4601 --router 127.0.0.1:4569
+ * java Server --port 4602 --router 127.0.0.1:4569
+ * java ClusterRouter
+ */
+public class ClusterRouter {
+	// Server.PORT + 1 is the NoteBroadcaster's.
+	public static final int DEFAULT_CONTROL_PORT = Server.PORT + 2;
+	public static final long DEFAULT_NODE_TIMEOUT_MS = 4 * ServerEngine.HEARTBEAT_INTERVAL_MS;
+	// Clients remembered for routing acknowledgements back; forgotten all at
+	// once beyond this, until they send again.
+	private static final int MAX_CLIENTS = 4096;
+	private static final long STATS_INTERVAL_MS = 5000;
+	private static final EventLog.Event NODE_JOINED = new EventLog.Event("nodeJoined", EventLog.Level.INFO,
+			(line, node, nodes, unused) -> ChannelAllocator.formatSource(line.append(" node="), node)
+					.append(" nodes=").append(nodes));
+	private static final EventLog.Event NODE_LEFT = new EventLog.Event("nodeLeft", EventLog.Level.INFO,
+			(line, node, nodes, unused) -> ChannelAllocator.formatSource(line.append(" node="), node)
+					.append(" nodes=").append(nodes));
+	private static final EventLog.Event RECEIVE_FAILED = new EventLog.Event("routerReceiveFailed",
+			EventLog.Level.WARN);
+
+	private final DatagramChannel _channel;
+	private final DatagramChannel _controlChannel;
+	private final ByteBuffer _buffer = ByteBuffer
+			.allocateDirect(WireFormat.MAX_FORWARD_HEADER_SIZE + WireFormat.MAX_PACKET_SIZE);
+	private final long _nodeTimeoutNanos;
+	private volatile ConsistentHashRing _ring = ConsistentHashRing.EMPTY;
+	// When each node that joined by heartbeat was last heard from.
+	private final Map<InetSocketAddress, Long> _lastHeard = new ConcurrentHashMap<>();
+	// The clients seen, for returning acknowledgements; receive thread only.
+	private LongIntHashMap _clientIndex = new LongIntHashMap(MAX_CLIENTS);
+	private final InetSocketAddress[] _clients = new InetSocketAddress[MAX_CLIENTS];
+	private int _clientCount;
+	private Thread _receiveThread;
+	private Thread _controlThread;
+	private Thread _sweepThread;
+	private volatile boolean _running = true;
+	private volatile long _forwardedCount;
+	private volatile long _returnedCount;
+	// Each counter is written by one thread only: volatile increments are not
+	// atomic, so the receive and control threads keep their own.
+	private volatile long _droppedCount;
+	private volatile long _controlDroppedCount;
+
+	/**
+	 * @param port          the UDP port to listen for clients on, or 0 for
+	 *                      any.
+	 * @param controlPort   the UDP port to listen for heartbeats on, or 0 for
+	 *                      any.
+	 * @param nodeTimeoutMs how long a node that joined by heartbeat may stay
+	 *                      silent before it is dropped.
+	 */
+	public ClusterRouter(int port, int controlPort, long nodeTimeoutMs) throws IOException {
+		_channel = DatagramChannel.open();
+		_controlChannel = DatagramChannel.open();
+		try {
+			_channel.bind(new InetSocketAddress(port));
+			_controlChannel.bind(new InetSocketAddress(controlPort));
+		} catch (IOException ioe) {
+			_channel.close();
+			_controlChannel.close();
+			throw ioe;
+		}
+		_nodeTimeoutNanos = nodeTimeoutMs * 1_000_000;
+	}
+
+	/**
+	 * Parses a "host:port" address.
+	 *
+	 * @param hostAndPort the address.
+	 * @return the resolved address.
+	 */
+	public static InetSocketAddress parseAddress(String hostAndPort) throws UnknownHostException {
+		final int colon = hostAndPort.lastIndexOf(':');
+		if (colon < 0) {
+			throw new IllegalArgumentException("Expected HOST:PORT: " + hostAndPort);
+		}
+		return new InetSocketAddress(InetAddress.getByName(hostAndPort.substring(0, colon)),
+				Integer.parseInt(hostAndPort.substring(colon + 1)));
+	}
+
+	/**
+	 * Adds a node for good; it is not dropped for want of heartbeats.
+	 *
+	 * @param node the address the node listens on.
+	 */
+	public synchronized void addNode(InetSocketAddress node) {
+		_lastHeard.remove(node);
+		join(node);
+	}
+
+	/**
+	 * Removes a node; its clients move to the other nodes.
+	 *
+	 * @param node the address the node listens on.
+	 */
+	public synchronized void removeNode(InetSocketAddress node) {
+		_lastHeard.remove(node);
+		final ConsistentHashRing ring = _ring.withoutNode(node);
+		if (ring != _ring) {
+			_ring = ring;
+			EventLog.log(NODE_LEFT, ChannelAllocator.sourceKey(node.getAddress(), node.getPort()), ring.size(), 0);
+		}
+	}
+
+	private void join(InetSocketAddress node) {
+		final ConsistentHashRing ring = _ring.withNode(node);
+		if (ring != _ring) {
+			_ring = ring;
+			EventLog.log(NODE_JOINED, ChannelAllocator.sourceKey(node.getAddress(), node.getPort()), ring.size(), 0);
+		}
+	}
+
+	/**
+	 * Records a heartbeat from a node, adding it if it is new.
+	 */
+	private synchronized void heartbeat(InetSocketAddress node, boolean leaving) {
+		if (leaving) {
+			removeNode(node);
+			return;
+		}
+		if (_ring.contains(node) && !_lastHeard.containsKey(node)) {
+			// Added for good.
+			return;
+		}
+		_lastHeard.put(node, System.nanoTime());
+		join(node);
+	}
+
+	/**
+	 * Drops the nodes that joined by heartbeat and have fallen silent.
+	 */
+	synchronized void sweep(long now) {
+		for (Map.Entry<InetSocketAddress, Long> entry : _lastHeard.entrySet()) {
+			if (now - entry.getValue() > _nodeTimeoutNanos) {
+				removeNode(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Returns the current ring of nodes.
+	 *
+	 * @return the ring.
+	 */
+	public ConsistentHashRing getRing() {
+		return _ring;
+	}
+
+	/**
+	 * Returns the UDP port the router listens for clients on.
+	 *
+	 * @return the port.
+	 */
+	public int getPort() {
+		return _channel.socket().getLocalPort();
+	}
+
+	/**
+	 * Returns the UDP port the router listens for heartbeats on, which is the
+	 * one nodes are given (Server --router).
+	 *
+	 * @return the port.
+	 */
+	public int getControlPort() {
+		return _controlChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Starts the receive threads, and the thread that drops silent nodes.
+	 */
+	public void start() {
+		_receiveThread = new Thread(this::receiveLoop, "cluster-router");
+		_receiveThread.start();
+		_controlThread = new Thread(this::controlLoop, "cluster-router-control");
+		_controlThread.setDaemon(true);
+		_controlThread.start();
+		_sweepThread = new Thread(() -> {
+			while (_running) {
+				try {
+					Thread.sleep(ServerEngine.HEARTBEAT_INTERVAL_MS);
+				} catch (InterruptedException ie) {
+					return;
+				}
+				sweep(System.nanoTime());
+			}
+		}, "cluster-router-sweep");
+		_sweepThread.setDaemon(true);
+		_sweepThread.start();
+	}
+
+	/**
+	 * Stops the router and closes its channels.
+	 */
+	public void close() {
+		_running = false;
+		if (_sweepThread != null) {
+			_sweepThread.interrupt();
+		}
+		try {
+			_channel.close();
+			_controlChannel.close();
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns whether a receive failed because the channel was closed, which
+	 * ends its loop; any other failure is logged, and the loop goes on.
+	 */
+	private boolean isClosed(DatagramChannel channel) {
+		if (!_running || !channel.isOpen()) {
+			return true;
+		}
+		EventLog.log(RECEIVE_FAILED, 0, 0, 0);
+		return false;
+	}
+
+	/**
+	 * Receives heartbeats from nodes on the control port until the router is
+	 * closed.
+	 */
+	private void controlLoop() {
+		final ByteBuffer buffer = ByteBuffer.allocate(WireFormat.MAX_PACKET_SIZE);
+		while (_running) {
+			final InetSocketAddress sender;
+			buffer.clear();
+			try {
+				sender = (InetSocketAddress) _controlChannel.receive(buffer);
+			} catch (IOException ioe) {
+				if (isClosed(_controlChannel)) {
+					return;
+				}
+				continue;
+			}
+			buffer.flip();
+			if (WireFormat.isHeartbeat(buffer)) {
+				heartbeat(sender, WireFormat.isLeaving(buffer));
+			} else {
+				_controlDroppedCount++;
+			}
+		}
+	}
+
+	/**
+	 * Receives datagrams on the client port until the router is closed:
+	 * acknowledgements to return from nodes, and datagrams to forward from
+	 * clients. Heartbeats are dropped; nodes send them to the control port.
+	 */
+	private void receiveLoop() {
+		while (_running) {
+			final InetSocketAddress sender;
+			_buffer.clear();
+			_buffer.position(WireFormat.MAX_FORWARD_HEADER_SIZE);
+			try {
+				sender = (InetSocketAddress) _channel.receive(_buffer);
+			} catch (IOException ioe) {
+				if (isClosed(_channel)) {
+					return;
+				}
+				continue;
+			}
+			_buffer.limit(_buffer.position());
+			_buffer.position(WireFormat.MAX_FORWARD_HEADER_SIZE);
+			try {
+				if (WireFormat.isHeartbeat(_buffer)) {
+					_droppedCount++;
+				} else if (WireFormat.isForwarded(_buffer) && _ring.contains(sender)) {
+					returnToClient(_buffer);
+				} else {
+					forward(_buffer, sender);
+				}
+			} catch (IOException ioe) {
+				_droppedCount++;
+			}
+		}
+	}
+
+	/**
+	 * Forwards a client's datagram to its node.
+	 *
+	 * @param b      the buffer holding the datagram, with at least
+	 *               MAX_FORWARD_HEADER_SIZE bytes free before its position.
+	 * @param client the client's address.
+	 */
+	void forward(ByteBuffer b, InetSocketAddress client) throws IOException {
+		final InetAddress address = client.getAddress();
+		final InetSocketAddress node = _ring.nodeFor(ChannelAllocator.sourceKey(address, client.getPort()));
+		if (node == null) {
+			_droppedCount++;
+			return;
+		}
+		final int start = b.position() - WireFormat.forwardHeaderSize(address);
+		WireFormat.putForwardHeader(b, start, address, client.getPort());
+		b.position(start);
+		final long source = WireFormat.forwardedSourceKey(b);
+		if (_clientIndex.get(source) < 0) {
+			if (_clientCount == MAX_CLIENTS) {
+				_clientIndex = new LongIntHashMap(MAX_CLIENTS);
+				_clientCount = 0;
+			}
+			_clientIndex.put(source, _clientCount);
+			_clients[_clientCount++] = client;
+		}
+		_channel.send(b, node);
+		_forwardedCount++;
+	}
+
+	/**
+	 * Passes a datagram from a node on to the client named in its forwarded
+	 * frame header.
+	 *
+	 * @param b the buffer holding the forwarded frame.
+	 */
+	private void returnToClient(ByteBuffer b) throws IOException {
+		final int index = _clientIndex.get(WireFormat.forwardedSourceKey(b));
+		if (index < 0) {
+			_droppedCount++;
+			return;
+		}
+		b.position(b.position() + WireFormat.forwardHeaderSize(b));
+		_channel.send(b, _clients[index]);
+		_returnedCount++;
+	}
+
+	/**
+	 * Returns the number of client datagrams forwarded to nodes.
+	 *
+	 * @return the forwarded count.
+	 */
+	public long getForwardedCount() {
+		return _forwardedCount;
+	}
+
+	/**
+	 * Returns the number of datagrams returned from nodes to clients.
+	 *
+	 * @return the returned count.
+	 */
+	public long getReturnedCount() {
+		return _returnedCount;
+	}
+
+	/**
+	 * Returns the number of datagrams dropped, for want of a node or of a
+	 * client to return to, because sending failed, or because they came to
+	 * the wrong port (heartbeats to the client port, anything else to the
+	 * control port).
+	 *
+	 * @return the dropped count.
+	 */
+	public long getDroppedCount() {
+		return _droppedCount + _controlDroppedCount;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = Server.PORT;
+		int controlPort = DEFAULT_CONTROL_PORT;
+		long nodeTimeoutMs = DEFAULT_NODE_TIMEOUT_MS;
+		final List<InetSocketAddress> nodes = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--port") && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--control-port") && i + 1 < args.length) {
+				controlPort = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--node") && i + 1 < args.length) {
+				nodes.add(parseAddress(args[++i]));
+			} else if (args[i].equals("--node-timeout") && i + 1 < args.length) {
+				nodeTimeoutMs = Long.parseLong(args[++i]);
+			}
+		}
+		final ClusterRouter router = new ClusterRouter(port, controlPort, nodeTimeoutMs);
+		for (InetSocketAddress node : nodes) {
+			router.addNode(node);
+		}
+		router.start();
+		EventLog.registerMBean();
+		System.out.println("Routing on port " + router.getPort() + ", heartbeats on port " + router.getControlPort()
+				+ "...");
+		long lastForwarded = 0;
+		while (true) {
+			try {
+				Thread.sleep(STATS_INTERVAL_MS);
+			} catch (InterruptedException ie) {
+				router.close();
+				return;
+			}
+			final long forwarded = router.getForwardedCount();
+			if (forwarded != lastForwarded) {
+				System.out.println("nodes=" + router.getRing().size() + " forwarded=" + forwarded + " returned="
+						+ router.getReturnedCount() + " dropped=" + router.getDroppedCount());
+				lastForwarded = forwarded;
+			}
+		}
+	}
+}
@@ -0,0 +1,147 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import java.net.*;
+import java.nio.*;
+import javax.sound.midi.*;
+
+/**
+ * Contains a set of unit tests for the ConsistentHashRing and ClusterRouter
+ * classes.
+ */
+class ClusterRouterTester {
+	private static final int TIMEOUT_MS = 2000;
+	private static final int NUM_KEYS = 20_000;
+
+	private static InetSocketAddress node(int port) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+	}
+
+	@Test
+	void testJoinAndLeaveMoveFewClients() throws Exception {
+		ConsistentHashRing ring = ConsistentHashRing.EMPTY;
+		assertNull(ring.nodeFor(1));
+		for (int port = 5001; port <= 5004; port++) {
+			ring = ring.withNode(node(port));
+		}
+		final ConsistentHashRing grown = ring.withNode(node(5005));
+		final InetAddress client = InetAddress.getByName("10.0.0.1");
+		final int[] perNode = new int[6];
+		int moved = 0;
+		for (int i = 0; i < NUM_KEYS; i++) {
+			final long key = ChannelAllocator.sourceKey(client, i);
+			final InetSocketAddress before = ring.nodeFor(key);
+			final InetSocketAddress after = grown.nodeFor(key);
+			perNode[after.getPort() - 5000]++;
+			if (!after.equals(before)) {
+				assertEquals(node(5005), after, "clients only move to the new node");
+				moved++;
+			}
+			assertEquals(before, grown.withoutNode(node(5005)).nodeFor(key), "leaving restores the old owner");
+		}
+		// About a fifth each, within what 128 points per node allow.
+		assertEquals(NUM_KEYS / 5, moved, NUM_KEYS / 10);
+		for (int n = 1; n <= 5; n++) {
+			assertEquals(NUM_KEYS / 5, perNode[n], NUM_KEYS / 10);
+		}
+		assertSame(grown, grown.withNode(node(5005)));
+	}
+
+	@Test
+	void testClientsAreSpreadAndAcknowledgedThroughRouter() throws Exception {
+		final ClusterRouter router = new ClusterRouter(0, 0, ClusterRouter.DEFAULT_NODE_TIMEOUT_MS);
+		router.start();
+		final InetSocketAddress routerAddress = node(router.getPort());
+		final InetSocketAddress controlAddress = node(router.getControlPort());
+		final LoadGenerator.CountingReceiver[] sinks = new LoadGenerator.CountingReceiver[2];
+		final ServerEngine[] engines = new ServerEngine[2];
+		final DatagramSocket[] clients = new DatagramSocket[8];
+		try {
+			for (int i = 0; i < engines.length; i++) {
+				sinks[i] = new LoadGenerator.CountingReceiver();
+				engines[i] = new ServerEngine(0, sinks[i], ServerEngine.DEFAULT_RING_CAPACITY);
+				engines[i].setRouter(controlAddress);
+				engines[i].start();
+			}
+			final long deadline = System.nanoTime() + TIMEOUT_MS * 1_000_000L;
+			while (router.getRing().size() < engines.length && System.nanoTime() < deadline) {
+				Thread.sleep(1);
+			}
+			assertEquals(engines.length, router.getRing().size(), "nodes join by heartbeat");
+
+			final int[] expected = new int[engines.length];
+			final ByteBuffer b = ByteBuffer.allocate(WireFormat.MAX_PACKET_SIZE);
+			final DatagramPacket reply = new DatagramPacket(new byte[WireFormat.MAX_PACKET_SIZE],
+					WireFormat.MAX_PACKET_SIZE);
+			for (int c = 0; c < clients.length; c++) {
+				clients[c] = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+				clients[c].setSoTimeout(TIMEOUT_MS);
+				final InetSocketAddress owner = router.getRing().nodeFor(
+						ChannelAllocator.sourceKey(InetAddress.getLoopbackAddress(), clients[c].getLocalPort()));
+				expected[owner.getPort() == engines[0].getPort() ? 0 : 1]++;
+				WireFormat.beginV2(b, 7, 0);
+				WireFormat.appendV2(b, ShortMessage.NOTE_OFF, 60, 0, -1);
+				WireFormat.finishV2(b, 1);
+				WireFormat.setReliable(b);
+				clients[c].send(new DatagramPacket(b.array(), b.limit(), routerAddress));
+				reply.setLength(WireFormat.MAX_PACKET_SIZE);
+				clients[c].receive(reply);
+				assertEquals(routerAddress, reply.getSocketAddress(), "acknowledged by way of the router");
+				final ByteBuffer ack = ByteBuffer.wrap(reply.getData(), 0, reply.getLength());
+				assertTrue(WireFormat.isAck(ack));
+				assertTrue(WireFormat.acknowledges(WireFormat.ackSequence(ack), WireFormat.ackBitmap(ack), 7));
+			}
+			for (int i = 0; i < engines.length; i++) {
+				while (sinks[i].getNoteOffCount() < expected[i] && System.nanoTime() < deadline) {
+					Thread.sleep(1);
+				}
+				assertEquals(expected[i], sinks[i].getNoteOffCount(), "each client plays on its own node");
+				assertEquals(expected[i], engines[i].getActiveSourceCount());
+			}
+			assertEquals(clients.length, router.getForwardedCount());
+			assertEquals(clients.length, router.getReturnedCount());
+
+			engines[1].close();
+			while (router.getRing().size() > 1 && System.nanoTime() < deadline) {
+				Thread.sleep(1);
+			}
+			assertEquals(1, router.getRing().size(), "a closing node leaves at once");
+		} finally {
+			for (DatagramSocket client : clients) {
+				if (client != null) {
+					client.close();
+				}
+			}
+			for (ServerEngine engine : engines) {
+				if (engine != null) {
+					engine.close();
+				}
+			}
+			router.close();
+		}
+	}
+
+	@Test
+	void testClientsCannotJoinAsNodes() throws Exception {
+		final ClusterRouter router = new ClusterRouter(0, 0, ClusterRouter.DEFAULT_NODE_TIMEOUT_MS);
+		router.start();
+		try (DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+			final ByteBuffer heartbeat = ByteBuffer.allocate(WireFormat.HEARTBEAT_PACKET_SIZE);
+			WireFormat.writeHeartbeat(heartbeat, false);
+			client.send(new DatagramPacket(heartbeat.array(), heartbeat.remaining(), node(router.getPort())));
+			final long deadline = System.nanoTime() + TIMEOUT_MS * 1_000_000L;
+			while (router.getDroppedCount() == 0 && System.nanoTime() < deadline) {
+				Thread.sleep(1);
+			}
+			assertEquals(1, router.getDroppedCount(), "a heartbeat to the client port is dropped");
+			assertEquals(0, router.getRing().size());
+
+			client.send(new DatagramPacket(heartbeat.array(), heartbeat.remaining(), node(router.getControlPort())));
+			while (router.getRing().size() == 0 && System.nanoTime() < deadline) {
+				Thread.sleep(1);
+			}
+			assertTrue(router.getRing().contains(node(client.getLocalPort())), "nodes join on the control port");
+		} finally {
+			router.close();
+		}
+	}
+}
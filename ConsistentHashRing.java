@@ -0,0 +1,147 @@
+import java.net.*;
+import java.util.*;
+
+/**
+ * Maps clients to the server nodes of a cluster by consistent hashing. Each
+ * node is placed at VIRTUAL_NODES pseudo-random points of a 64-bit ring,
+ * derived from its address alone; a client goes to the node at the first
+ * point at or after the hash of its source key. Adding a node therefore only
+ * moves the clients that land on the new node's points (about 1/n of them),
+ * and removing one only moves the clients it had.
+ *
+ * A ring is immutable: withNode() and withoutNode() return a new ring, so a
+ * router can swap rings atomically while looking clients up without locks.
+ * Lookups allocate nothing.
+ */
+public class ConsistentHashRing {
+	public static final int VIRTUAL_NODES = 128;
+	public static final ConsistentHashRing EMPTY = new ConsistentHashRing(new InetSocketAddress[0]);
+
+	private final InetSocketAddress[] _nodes;
+	// The points of the ring in increasing order, and the node of each point.
+	private final long[] _points;
+	private final int[] _owners;
+
+	private ConsistentHashRing(InetSocketAddress[] nodes) {
+		_nodes = nodes;
+		final int count = nodes.length * VIRTUAL_NODES;
+		final long[][] points = new long[count][];
+		for (int node = 0; node < nodes.length; node++) {
+			final long key = ChannelAllocator.sourceKey(nodes[node].getAddress(), nodes[node].getPort());
+			for (int i = 0; i < VIRTUAL_NODES; i++) {
+				points[node * VIRTUAL_NODES + i] = new long[] { mix(key * VIRTUAL_NODES + i), node };
+			}
+		}
+		Arrays.sort(points, (a, b) -> Long.compare(a[0], b[0]));
+		_points = new long[count];
+		_owners = new int[count];
+		for (int i = 0; i < count; i++) {
+			_points[i] = points[i][0];
+			_owners[i] = (int) points[i][1];
+		}
+	}
+
+	/**
+	 * Scrambles a key over the whole ring (the finalizer of SplitMix64).
+	 */
+	static long mix(long key) {
+		long h = key + 0x9E3779B97F4A7C15L;
+		h = (h ^ h >>> 30) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ h >>> 27) * 0x94D049BB133111EBL;
+		return h ^ h >>> 31;
+	}
+
+	/**
+	 * Returns a ring with a node added.
+	 *
+	 * @param node the address of the node.
+	 * @return the new ring, or this ring if it already has the node.
+	 */
+	public ConsistentHashRing withNode(InetSocketAddress node) {
+		if (contains(node)) {
+			return this;
+		}
+		final InetSocketAddress[] nodes = Arrays.copyOf(_nodes, _nodes.length + 1);
+		nodes[_nodes.length] = node;
+		return new ConsistentHashRing(nodes);
+	}
+
+	/**
+	 * Returns a ring with a node removed.
+	 *
+	 * @param node the address of the node.
+	 * @return the new ring, or this ring if it does not have the node.
+	 */
+	public ConsistentHashRing withoutNode(InetSocketAddress node) {
+		if (!contains(node)) {
+			return this;
+		}
+		final InetSocketAddress[] nodes = new InetSocketAddress[_nodes.length - 1];
+		int count = 0;
+		for (InetSocketAddress n : _nodes) {
+			if (!n.equals(node)) {
+				nodes[count++] = n;
+			}
+		}
+		return new ConsistentHashRing(nodes);
+	}
+
+	/**
+	 * Returns whether the ring has a node.
+	 *
+	 * @param node the address of the node.
+	 * @return true if the node is on the ring.
+	 */
+	public boolean contains(InetSocketAddress node) {
+		for (InetSocketAddress n : _nodes) {
+			if (n.equals(node)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of nodes.
+	 *
+	 * @return the node count.
+	 */
+	public int size() {
+		return _nodes.length;
+	}
+
+	/**
+	 * Returns the nodes, in the order they joined.
+	 *
+	 * @return a copy of the nodes.
+	 */
+	public InetSocketAddress[] getNodes() {
+		return _nodes.clone();
+	}
+
+	/**
+	 * Returns the node that serves a client.
+	 *
+	 * @param source the source key of the client (see
+	 *               ChannelAllocator.sourceKey()).
+	 * @return the node, or null if the ring is empty.
+	 */
+	public InetSocketAddress nodeFor(long source) {
+		if (_points.length == 0) {
+			return null;
+		}
+		final long hash = mix(source);
+		int low = 0;
+		int high = _points.length;
+		// The first point at or after the hash, wrapping around to the first.
+		while (low < high) {
+			final int middle = low + high >>> 1;
+			if (_points[middle] < hash) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return _nodes[_owners[low == _points.length ? 0 : low]];
+	}
+}
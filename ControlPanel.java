@@ -1,3 +1,4 @@
+import java.io.*;
 import java.util.*;
 import java.awt.*;
 import java.awt.event.*;
@@ -12,8 +13,12 @@ import javax.sound.midi.*;
  */
 public class ControlPanel extends JPanel {
 	private JTextField _ipTextField = null;
+	private JRadioButton _localButton = null;
 	private JRadioButton _remoteButton = null;
 	Receiver _receiver;
+	private final JComboBox<String> _comboBox;
+	private InstrumentCatalog _instruments;
+	private boolean _updatingInstruments;
 
 	/**
 	 * Returns the IP address currently entered in the text box.
@@ -24,10 +29,11 @@ public class ControlPanel extends JPanel {
 	}
 
 	/**
-	 * Adds the specified ActionListener to the radio button.
+	 * Adds the specified ActionListener to the radio buttons.
 	 * @param listener the ActionListener to add.
 	 */
 	public void addActionListener (ActionListener listener) {
+		_localButton.addActionListener(listener);
 		_remoteButton.addActionListener(listener);
 	}
 
@@ -40,6 +46,16 @@ public class ControlPanel extends JPanel {
 		return _remoteButton.isSelected();
 	}
 
+	/**
+	 * Selects the radio button of the local or the remote receiver, without
+	 * notifying the ActionListeners; e.g. to show that a switch failed. Must
+	 * be called on the Swing event thread.
+	 * @param remote whether the remote receiver is selected.
+	 */
+	public void setRemote (boolean remote) {
+		(remote ? _remoteButton : _localButton).setSelected(true);
+	}
+
 	/**
 	 * Sets the local receiver to the specified value.
 	 * @param the local receiver 
@@ -48,46 +64,83 @@ public class ControlPanel extends JPanel {
 		_receiver = receiver;
 	}
 
+	/**
+	 * Shows the instruments in the combo box, keeping the selected one if it
+	 * is still available. Must be called on the Swing event thread.
+	 * @param catalog the instruments.
+	 */
+	void setInstruments (InstrumentCatalog catalog) {
+		final Object selected = _comboBox.getSelectedItem();
+		_instruments = catalog;
+		// Replacing the model is not a user's choice of instrument.
+		_updatingInstruments = true;
+		_comboBox.setModel(new DefaultComboBoxModel<>(catalog.getNames()));
+		if (selected != null) {
+			_comboBox.setSelectedItem(selected);
+		}
+		_updatingInstruments = false;
+	}
+
+	/**
+	 * Returns the instruments shown in the combo box.
+	 * @return the instruments, or null if none are known yet.
+	 */
+	InstrumentCatalog getInstruments () {
+		return _instruments;
+	}
+
+	/**
+	 * Shows the cached instruments right away, if any, and discovers the
+	 * synthesizer's instruments in the background; loading the soundbank
+	 * on the event thread held up the window on a cold start.
+	 * @param the local receiver.
+	 * @param synthesizer opens the synthesizer whose instruments are listed.
+	 */
+	public ControlPanel (Receiver receiver, SynthesizerOpener synthesizer) {
+		this(receiver, InstrumentCatalog.getDefaultCacheFile(), synthesizer);
+	}
+
 	/**
 	 * @param the local receiver.
+	 * @param cacheFile the instrument cache.
+	 * @param synthesizer opens the synthesizer whose instruments are listed.
 	 */
-	public ControlPanel (Receiver receiver) {
+	ControlPanel (Receiver receiver, File cacheFile, SynthesizerOpener synthesizer) {
 		_receiver = receiver;
 
-		final Instrument[] instruments;
-		final Map<String, Patch> patches = new HashMap<>();
-		try {
-			instruments = MidiSystem.getSynthesizer().getAvailableInstruments();
-		} catch (MidiUnavailableException mue) {
-			return;
+		_comboBox = new JComboBox<>();
+		final InstrumentCatalog cached = InstrumentCatalog.readCache(cacheFile);
+		if (cached != null) {
+			setInstruments(cached);
 		}
-		final String[] strings = new String[instruments.length];
-		for (int i = 0; i < strings.length; i++) {
-			strings[i] = instruments[i].getName();
-			patches.put(strings[i], instruments[i].getPatch());
-		}
-		final JComboBox comboBox = new JComboBox(strings);
-		comboBox.addActionListener(new ActionListener() {
+		_comboBox.addActionListener(new ActionListener() {
 			public void actionPerformed (ActionEvent e) {
-				final Patch patch = patches.get((String) comboBox.getSelectedItem());
-				try {
-					final ShortMessage myMsg = new ShortMessage();
-					myMsg.setMessage(ShortMessage.PROGRAM_CHANGE, patch.getBank(), patch.getProgram(), 0);
-					_receiver.send(myMsg, -1);
-				} catch (InvalidMidiDataException imde) {
+				final int index = _comboBox.getSelectedIndex();
+				if (_updatingInstruments || index < 0) {
+					return;
+				}
+				final Patch patch = _instruments.getPatch(index);
+				// Shared and immutable; null if the patch cannot be selected this way.
+				final ShortMessage myMsg = MidiMessages.cached(ShortMessage.PROGRAM_CHANGE, patch.getBank(),
+						patch.getProgram(), 0);
+				if (myMsg == null) {
 					System.out.println("Could not change instrument!");
+					return;
 				}
+				_receiver.send(myMsg, -1);
 			}
 		});
+		InstrumentCatalog.discoverInBackground(cached, cacheFile, synthesizer,
+				catalog -> SwingUtilities.invokeLater(() -> setInstruments(catalog)));
 		final ButtonGroup buttonGroup = new ButtonGroup();
-		final JRadioButton localButton = new JRadioButton("Local");
-		localButton.setSelected(true);
+		_localButton = new JRadioButton("Local");
+		_localButton.setSelected(true);
 		_remoteButton = new JRadioButton("Remote: ");
 		_ipTextField = new JTextField("255.255.255.255");
-		buttonGroup.add(localButton);
+		buttonGroup.add(_localButton);
 		buttonGroup.add(_remoteButton);
-		add(comboBox);
-		add(localButton);
+		add(_comboBox);
+		add(_localButton);
 		add(_remoteButton);
 		add(_ipTextField);
 	}
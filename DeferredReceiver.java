@@ -0,0 +1,151 @@
+import javax.sound.midi.*;
+
+/**
+ * A receiver that can be used right away while the real one is opened on a
+ * background thread. Opening the default synthesizer (MidiSystem.getReceiver())
+ * takes hundreds of milliseconds on a cold start; with this receiver, the
+ * window shows in the meantime. Notes and other messages sent before the real
+ * receiver is open are dropped and counted: a note played in the first instants
+ * is lost, rather than played late. Program changes are kept instead, the
+ * latest per channel, and sent as soon as the real receiver opens, so that an
+ * instrument chosen early is the one that plays.
+ */
+public class DeferredReceiver implements Receiver {
+	private static final int NUM_CHANNELS = 16;
+	private static final EventLog.Event RECEIVER_OPENED = new EventLog.Event("receiverOpened", EventLog.Level.INFO,
+			"millis");
+
+	/**
+	 * Opens the real receiver.
+	 */
+	public interface Opener {
+		/**
+		 * Opens the receiver; may block.
+		 *
+		 * @return the open receiver.
+		 */
+		Receiver open() throws MidiUnavailableException;
+	}
+
+	// The latest program change per channel, until the real receiver opens;
+	// guarded by itself.
+	private final MidiMessage[] _programs = new MidiMessage[NUM_CHANNELS];
+	private volatile Receiver _target;
+	private volatile boolean _closed;
+	private volatile MidiUnavailableException _failure;
+	private volatile long _droppedCount;
+	private final Thread _thread;
+
+	/**
+	 * Starts opening the receiver on a daemon thread.
+	 *
+	 * @param opener opens the real receiver, e.g. MidiSystem::getReceiver.
+	 */
+	public DeferredReceiver(Opener opener) {
+		_thread = new Thread(() -> {
+			final long start = System.nanoTime();
+			final Receiver target;
+			try {
+				target = opener.open();
+			} catch (MidiUnavailableException mue) {
+				_failure = mue;
+				System.out.println("No local synthesizer: " + mue.getMessage());
+				return;
+			}
+			EventLog.log(RECEIVER_OPENED, (System.nanoTime() - start) / 1_000_000, 0, 0);
+			synchronized (_programs) {
+				for (int i = 0; i < _programs.length; i++) {
+					if (_programs[i] != null) {
+						target.send(_programs[i], -1);
+						_programs[i] = null;
+					}
+				}
+				_target = target;
+			}
+			if (_closed) {
+				target.close();
+			}
+		}, "receiver-opener");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	@Override
+	/**
+	 * Forwards the message to the real receiver. If that is not open yet,
+	 * keeps the message if it is a program change, or drops it.
+	 */
+	public void send(MidiMessage message, long timeStamp) {
+		if (_closed) {
+			_droppedCount++;
+			return;
+		}
+		Receiver target = _target;
+		if (target == null) {
+			synchronized (_programs) {
+				target = _target;
+				if (target == null) {
+					if (message instanceof ShortMessage
+							&& ((ShortMessage) message).getCommand() == ShortMessage.PROGRAM_CHANGE) {
+						_programs[((ShortMessage) message).getChannel()] = message;
+					} else {
+						_droppedCount++;
+					}
+					return;
+				}
+			}
+		}
+		target.send(message, timeStamp);
+	}
+
+	@Override
+	/**
+	 * Closes the real receiver, now or as soon as it is open.
+	 */
+	public void close() {
+		_closed = true;
+		final Receiver target = _target;
+		if (target != null) {
+			target.close();
+		}
+	}
+
+	/**
+	 * Waits for the real receiver to be opened, or to fail to open.
+	 *
+	 * @param millis the longest time to wait.
+	 * @return whether the real receiver is open.
+	 */
+	public boolean awaitOpen(long millis) throws InterruptedException {
+		_thread.join(millis);
+		return isOpen();
+	}
+
+	/**
+	 * Returns whether messages are being forwarded to the real receiver.
+	 *
+	 * @return whether the real receiver is open.
+	 */
+	public boolean isOpen() {
+		return _target != null && !_closed;
+	}
+
+	/**
+	 * Returns why the real receiver could not be opened.
+	 *
+	 * @return the failure, or null if it opened or is still opening.
+	 */
+	public MidiUnavailableException getFailure() {
+		return _failure;
+	}
+
+	/**
+	 * Returns the number of messages dropped because the real receiver was
+	 * not open; program changes kept for it are not counted.
+	 *
+	 * @return the dropped count.
+	 */
+	public long getDroppedCount() {
+		return _droppedCount;
+	}
+}
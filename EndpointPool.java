@@ -0,0 +1,96 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Keeps the NetworkReceivers the band has sent to, one per server address,
+ * so that switching back and forth between servers (or between local and
+ * remote) reuses a socket whose address is already resolved, instead of
+ * opening a socket and looking up the host every time. The least recently
+ * used endpoint is closed when the pool is full.
+ */
+public class EndpointPool {
+	public static final int DEFAULT_CAPACITY = 4;
+
+	/**
+	 * Creates the endpoint for a server.
+	 */
+	public interface Factory {
+		/**
+		 * Opens a receiver sending to a server, resolving its address.
+		 *
+		 * @param host the server's host name or IP address.
+		 * @return the configured receiver.
+		 */
+		NetworkReceiver create(String host) throws IOException;
+	}
+
+	private final Factory _factory;
+	private final Map<String, NetworkReceiver> _endpoints;
+	private long _createdCount;
+
+	/**
+	 * @param capacity the number of endpoints kept open; at least 2, so that
+	 *                 the endpoint in use is never the one closed.
+	 * @param factory  creates the endpoints.
+	 */
+	public EndpointPool(int capacity, Factory factory) {
+		if (capacity < 2) {
+			throw new IllegalArgumentException("Capacity must be at least 2: " + capacity);
+		}
+		_factory = factory;
+		_endpoints = new LinkedHashMap<String, NetworkReceiver>(capacity * 2, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, NetworkReceiver> eldest) {
+				if (size() <= capacity) {
+					return false;
+				}
+				eldest.getValue().close();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns the endpoint for a server, creating it on first use.
+	 *
+	 * @param host the server's host name or IP address.
+	 * @return the endpoint, owned by the pool.
+	 */
+	public synchronized NetworkReceiver get(String host) throws IOException {
+		NetworkReceiver endpoint = _endpoints.get(host);
+		if (endpoint == null) {
+			endpoint = _factory.create(host);
+			_createdCount++;
+			_endpoints.put(host, endpoint);
+		}
+		return endpoint;
+	}
+
+	/**
+	 * Returns the number of endpoints open.
+	 *
+	 * @return the size of the pool.
+	 */
+	public synchronized int size() {
+		return _endpoints.size();
+	}
+
+	/**
+	 * Returns the number of endpoints created, including ones since closed.
+	 *
+	 * @return the created count.
+	 */
+	public synchronized long getCreatedCount() {
+		return _createdCount;
+	}
+
+	/**
+	 * Closes every endpoint.
+	 */
+	public synchronized void close() {
+		for (NetworkReceiver endpoint : _endpoints.values()) {
+			endpoint.close();
+		}
+		_endpoints.clear();
+	}
+}
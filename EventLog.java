@@ -0,0 +1,343 @@
+import java.io.*;
+import java.lang.management.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import javax.management.*;
+
+/**
+ * Implements a leveled, asynchronous event log that is cheap enough to leave
+ * on in the server's hot path. Logging an event copies its arguments (up to
+ * three longs) into a preallocated ring of records and returns; it never
+ * allocates, formats or blocks. A background thread formats the records as
+ * lines and writes them out. When the ring is full, events are dropped and
+ * counted rather than slowing the caller.
+ *
+ * Each kind of event is declared once as an Event with a level and,
+ * optionally, a sampling rate; events below the current level, or skipped by
+ * sampling, cost a couple of field reads. The level and sampling rates can be
+ * set at startup with the system properties "band.log.level" and
+ * "band.log.sample.NAME", or at runtime through setLevel(), setSampling() or
+ * JMX (band:type=EventLog).
+ *
+ * Lines look like:
+ * 2026-10-17T09:15:30.123456Z INFO channelAssigned source=10.0.0.7:53122 route=3
+ */
+public class EventLog implements EventLogMBean {
+	public static final int DEFAULT_CAPACITY = 4096;
+	private static final long IDLE_PARK_NANOS = 10_000_000;
+
+	/**
+	 * The severity of an event.
+	 */
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	/**
+	 * Renders the arguments of an event.
+	 */
+	public interface ArgsFormatter {
+		/**
+		 * Appends the arguments to a line.
+		 *
+		 * @param line the line being built.
+		 * @param a    the first argument.
+		 * @param b    the second argument.
+		 * @param c    the third argument.
+		 */
+		void format(StringBuilder line, long a, long b, long c);
+	}
+
+	/**
+	 * Declares a kind of event. Events are meant to be static constants.
+	 */
+	public static class Event {
+		private final String _name;
+		private final Level _level;
+		private final ArgsFormatter _formatter;
+		private volatile int _sampling;
+		// Racy on purpose: a lost increment only shifts which event is sampled.
+		private int _skipped;
+
+		/**
+		 * Declares an event whose arguments are written as name=value pairs.
+		 *
+		 * @param name     the name of the event.
+		 * @param level    the level of the event.
+		 * @param argNames the names of the (up to three) arguments.
+		 */
+		public Event(String name, Level level, String... argNames) {
+			this(name, level, (line, a, b, c) -> {
+				final long[] args = { a, b, c };
+				for (int i = 0; i < argNames.length; i++) {
+					line.append(' ').append(argNames[i]).append('=').append(args[i]);
+				}
+			});
+		}
+
+		/**
+		 * Declares an event with its own argument formatting.
+		 *
+		 * @param name      the name of the event.
+		 * @param level     the level of the event.
+		 * @param formatter renders the arguments.
+		 */
+		public Event(String name, Level level, ArgsFormatter formatter) {
+			_name = name;
+			_level = level;
+			_formatter = formatter;
+			_sampling = Integer.getInteger("band.log.sample." + name, 1);
+			EVENTS.put(name, this);
+		}
+
+		/**
+		 * Returns the name of the event.
+		 *
+		 * @return the name.
+		 */
+		public String getName() {
+			return _name;
+		}
+
+		/**
+		 * Logs only one in every oneIn occurrences of this event.
+		 *
+		 * @param oneIn the sampling rate; 1 logs every occurrence.
+		 */
+		public void setSampling(int oneIn) {
+			_sampling = Math.max(1, oneIn);
+		}
+
+		/**
+		 * Returns whether this occurrence passes sampling.
+		 */
+		private boolean sample() {
+			final int sampling = _sampling;
+			if (sampling == 1) {
+				return true;
+			}
+			if (++_skipped < sampling) {
+				return false;
+			}
+			_skipped = 0;
+			return true;
+		}
+	}
+
+	private static final Map<String, Event> EVENTS = new ConcurrentHashMap<>();
+	private static final EventLog DEFAULT = new EventLog(DEFAULT_CAPACITY, System.out);
+
+	private final int _mask;
+	private final Event[] _events;
+	private final long[] _nanos;
+	private final long[] _a;
+	private final long[] _b;
+	private final long[] _c;
+	// Slot i holds a complete record for position p once _published[i] == p + 1.
+	private final AtomicLongArray _published;
+	private final AtomicLong _head = new AtomicLong();
+	private final AtomicLong _tail = new AtomicLong();
+	private final AtomicLong _dropCount = new AtomicLong();
+	private final PrintStream _out;
+	private final StringBuilder _line = new StringBuilder();
+	// Maps System.nanoTime() to wall-clock time for the printed timestamps.
+	private final long _epochNanosAtStart = System.currentTimeMillis() * 1_000_000;
+	private final long _nanoTimeAtStart = System.nanoTime();
+	private volatile Level _level = Level.valueOf(System.getProperty("band.log.level", Level.INFO.name()));
+	private volatile long _writtenCount;
+	private Thread _flusher;
+
+	/**
+	 * @param capacity the number of records the ring holds, rounded up to a
+	 *                 power of two.
+	 * @param out      the stream to write lines to.
+	 */
+	public EventLog(int capacity, PrintStream out) {
+		final int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+		_mask = size - 1;
+		_events = new Event[size];
+		_nanos = new long[size];
+		_a = new long[size];
+		_b = new long[size];
+		_c = new long[size];
+		_published = new AtomicLongArray(size);
+		_out = out;
+	}
+
+	/**
+	 * Logs an event to the default log, which writes to standard output.
+	 *
+	 * @param event the event.
+	 * @param a     the first argument.
+	 * @param b     the second argument.
+	 * @param c     the third argument.
+	 */
+	public static void log(Event event, long a, long b, long c) {
+		DEFAULT.append(event, a, b, c);
+	}
+
+	/**
+	 * Returns the default log.
+	 *
+	 * @return the log.
+	 */
+	public static EventLog getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns whether an event of this level would be logged.
+	 *
+	 * @param event the event.
+	 * @return true if the event's level is enabled.
+	 */
+	public boolean isEnabled(Event event) {
+		return event._level.compareTo(_level) >= 0;
+	}
+
+	/**
+	 * Records an event, unless its level is disabled, sampling skips it or the
+	 * ring is full. Safe to call from any thread.
+	 *
+	 * @param event the event.
+	 * @param a     the first argument.
+	 * @param b     the second argument.
+	 * @param c     the third argument.
+	 */
+	public void append(Event event, long a, long b, long c) {
+		if (!isEnabled(event) || !event.sample()) {
+			return;
+		}
+		long position;
+		do {
+			position = _tail.get();
+			if (position - _head.get() > _mask) {
+				_dropCount.incrementAndGet();
+				return;
+			}
+		} while (!_tail.compareAndSet(position, position + 1));
+		final int index = (int) position & _mask;
+		_events[index] = event;
+		_nanos[index] = System.nanoTime();
+		_a[index] = a;
+		_b[index] = b;
+		_c[index] = c;
+		_published.lazySet(index, position + 1);
+		if (_flusher == null) {
+			startFlusher();
+		}
+	}
+
+	/**
+	 * Starts the background thread that writes the records, and makes sure
+	 * what is left in the ring is written when the JVM exits.
+	 */
+	private synchronized void startFlusher() {
+		if (_flusher != null) {
+			return;
+		}
+		final Thread flusher = new Thread(this::flushLoop, "event-log-flush");
+		flusher.setDaemon(true);
+		flusher.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "event-log-shutdown"));
+		_flusher = flusher;
+	}
+
+	/**
+	 * Writes records as they arrive, parking briefly while the ring is empty.
+	 */
+	private void flushLoop() {
+		while (true) {
+			if (flush() == 0) {
+				LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Writes every record published so far.
+	 *
+	 * @return the number of records written.
+	 */
+	public synchronized int flush() {
+		int written = 0;
+		long head = _head.get();
+		while (true) {
+			final int index = (int) head & _mask;
+			if (_published.get(index) != head + 1) {
+				break;
+			}
+			final Event event = _events[index];
+			_line.setLength(0);
+			_line.append(Instant.EPOCH.plusNanos(_epochNanosAtStart + _nanos[index] - _nanoTimeAtStart));
+			_line.append(' ').append(event._level).append(' ').append(event._name);
+			event._formatter.format(_line, _a[index], _b[index], _c[index]);
+			_events[index] = null;
+			_head.lazySet(++head);
+			_out.println(_line);
+			written++;
+		}
+		if (written > 0) {
+			_out.flush();
+			_writtenCount += written;
+		}
+		return written;
+	}
+
+	@Override
+	public String getLevel() {
+		return _level.name();
+	}
+
+	@Override
+	public void setLevel(String level) {
+		_level = Level.valueOf(level.toUpperCase());
+	}
+
+	/**
+	 * Sets the lowest level logged.
+	 *
+	 * @param level the level.
+	 */
+	public void setLevel(Level level) {
+		_level = level;
+	}
+
+	@Override
+	public void setSampling(String eventName, int oneIn) {
+		final Event event = EVENTS.get(eventName);
+		if (event == null) {
+			throw new IllegalArgumentException("Unknown event: " + eventName);
+		}
+		event.setSampling(oneIn);
+	}
+
+	@Override
+	public long getDropCount() {
+		return _dropCount.get();
+	}
+
+	@Override
+	public long getWrittenCount() {
+		return _writtenCount;
+	}
+
+	/**
+	 * Registers the default log with the platform MBean server as
+	 * band:type=EventLog. Registering twice has no effect.
+	 */
+	public static synchronized void registerMBean() {
+		try {
+			final ObjectName name = new ObjectName(LatencyMetrics.DOMAIN + ":type=EventLog");
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(name)) {
+				server.registerMBean(DEFAULT, name);
+			}
+		} catch (JMException jme) {
+			jme.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/**
+ * Exposes the EventLog's level and sampling through JMX.
+ */
+public interface EventLogMBean {
+	/**
+	 * Returns the lowest level logged.
+	 *
+	 * @return DEBUG, INFO, WARN, ERROR or OFF.
+	 */
+	String getLevel();
+
+	/**
+	 * Sets the lowest level logged.
+	 *
+	 * @param level DEBUG, INFO, WARN, ERROR or OFF.
+	 */
+	void setLevel(String level);
+
+	/**
+	 * Logs only one in every oneIn occurrences of an event.
+	 *
+	 * @param eventName the name of the event.
+	 * @param oneIn     the sampling rate; 1 logs every occurrence.
+	 */
+	void setSampling(String eventName, int oneIn);
+
+	/**
+	 * Returns the number of events dropped because the ring was full.
+	 *
+	 * @return the drop count.
+	 */
+	long getDropCount();
+
+	/**
+	 * Returns the number of events written.
+	 *
+	 * @return the written count.
+	 */
+	long getWrittenCount();
+}
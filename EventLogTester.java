@@ -0,0 +1,66 @@
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Contains a set of unit tests for the EventLog class.
+ */
+class EventLogTester {
+	private static final EventLog.Event NOTE = new EventLog.Event("testNote", EventLog.Level.DEBUG, "pitch");
+	private static final EventLog.Event WARNING = new EventLog.Event("testWarning", EventLog.Level.WARN, "a", "b");
+
+	private ByteArrayOutputStream _bytes;
+	private EventLog _log;
+
+	@BeforeEach
+	void setup() {
+		_bytes = new ByteArrayOutputStream();
+		_log = new EventLog(8, new PrintStream(_bytes, true));
+		NOTE.setSampling(1);
+	}
+
+	private String[] lines() {
+		final String text = _bytes.toString();
+		return text.isEmpty() ? new String[0] : text.split(System.lineSeparator());
+	}
+
+	@Test
+	void testLevelFiltering() {
+		_log.setLevel(EventLog.Level.INFO);
+		_log.append(NOTE, 60, 0, 0);
+		_log.append(WARNING, 1, 2, 0);
+		_log.flush();
+		final String[] lines = lines();
+		assertEquals(1, lines.length);
+		assertTrue(lines[0].endsWith(" WARN testWarning a=1 b=2"), lines[0]);
+
+		_log.setLevel("debug");
+		_log.append(NOTE, 60, 0, 0);
+		_log.flush();
+		assertTrue(lines()[1].endsWith(" DEBUG testNote pitch=60"), lines()[1]);
+	}
+
+	@Test
+	void testSampling() {
+		_log.setLevel(EventLog.Level.DEBUG);
+		NOTE.setSampling(4);
+		for (int i = 0; i < 8; i++) {
+			_log.append(NOTE, i, 0, 0);
+		}
+		_log.flush();
+		assertEquals(2, lines().length);
+	}
+
+	@Test
+	void testDropsWhenFull() {
+		// The flusher thread may drain the ring meanwhile, so only the total
+		// of written and dropped events is known.
+		_log.setLevel(EventLog.Level.DEBUG);
+		for (int i = 0; i < 100; i++) {
+			_log.append(NOTE, i, 0, 0);
+		}
+		_log.flush();
+		assertEquals(100, lines().length + _log.getDropCount());
+		assertTrue(lines().length >= 8);
+	}
+}
@@ -0,0 +1,255 @@
+import java.util.concurrent.atomic.*;
+import javax.sound.midi.*;
+
+/**
+ * Implements a bounded, lock-free single-producer/single-consumer queue of MIDI
+ * short messages packed into ints, each stamped with the System.nanoTime() at
+ * which it was offered. The producer never blocks: when the queue is full the
+ * OverflowPolicy decides what is lost.
+ */
+public class EventQueue {
+	/**
+	 * Decides what to give up when an event is offered to a full queue.
+	 */
+	public enum OverflowPolicy {
+		/** Discard the oldest queued event to make room for the new one. */
+		DROP_OLDEST,
+		/**
+		 * Never lose a note-off whose note-on was queued. The last quarter of
+		 * the queue is kept for note-offs: once the rest is full, a new note-on
+		 * is discarded together with its matching note-off, so that the pair
+		 * costs no queue space, and any other new event is discarded. A note-off
+		 * that finds the whole queue full evicts the oldest event unless that is
+		 * a note-off too, in which case it is discarded itself.
+		 */
+		COALESCE
+	}
+
+	private static final int NUM_CHANNELS = 16;
+	private static final int NUM_PITCHES = 128;
+
+	private final int[] _events;
+	private final long[] _nanos;
+	private final int _mask;
+	private final OverflowPolicy _policy;
+	private final int _noteOffReserve; // slots only note-offs may take, with COALESCE
+	// The consumer advances _head with a CAS so that the producer can also
+	// advance it when dropping the oldest event.
+	private final AtomicLong _head = new AtomicLong();
+	private final AtomicLong _tail = new AtomicLong();
+	private final AtomicLong _dropCount = new AtomicLong();
+	private final AtomicLong _coalescedCount = new AtomicLong();
+	// Producer-only: notes whose note-on was discarded, by channel and pitch.
+	private final long[] _suppressed = new long[NUM_CHANNELS * NUM_PITCHES / Long.SIZE];
+	private long _polledNanos; // consumer-only
+
+	/**
+	 * @param capacity the maximum number of queued events, rounded up to a power
+	 *                 of two.
+	 * @param policy   what to do when the queue is full.
+	 */
+	public EventQueue(int capacity, OverflowPolicy policy) {
+		final int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+		_events = new int[size];
+		_nanos = new long[size];
+		_mask = size - 1;
+		_policy = policy;
+		_noteOffReserve = policy == OverflowPolicy.COALESCE ? Math.max(1, size / 4) : 0;
+	}
+
+	/**
+	 * Packs a MIDI short message into a non-negative int.
+	 *
+	 * @param status the status byte (command | channel).
+	 * @param data1  the first data byte.
+	 * @param data2  the second data byte.
+	 * @return the packed event.
+	 */
+	public static int pack(int status, int data1, int data2) {
+		return (status & 0xFF) << 16 | (data1 & 0xFF) << 8 | (data2 & 0xFF);
+	}
+
+	/**
+	 * Returns the status byte of a packed event.
+	 *
+	 * @param event the packed event.
+	 * @return the status byte.
+	 */
+	public static int status(int event) {
+		return event >>> 16;
+	}
+
+	/**
+	 * Returns the first data byte of a packed event.
+	 *
+	 * @param event the packed event.
+	 * @return the first data byte.
+	 */
+	public static int data1(int event) {
+		return (event >>> 8) & 0xFF;
+	}
+
+	/**
+	 * Returns the second data byte of a packed event.
+	 *
+	 * @param event the packed event.
+	 * @return the second data byte.
+	 */
+	public static int data2(int event) {
+		return event & 0xFF;
+	}
+
+	/**
+	 * Adds an event to the queue. Must only be called by the producer thread.
+	 *
+	 * @param event the packed event.
+	 * @param nanos the System.nanoTime() at which the event occurred.
+	 * @return whether the event was queued.
+	 */
+	public boolean offer(int event, long nanos) {
+		final int status = status(event);
+		final int command = status & 0xF0;
+		final boolean noteOn = command == ShortMessage.NOTE_ON && data2(event) > 0;
+		final boolean noteOff = isNoteOff(event);
+		final int note = (status & 0x0F) * NUM_PITCHES + data1(event);
+		if (_policy == OverflowPolicy.COALESCE && noteOff && isSuppressed(note)) {
+			// The matching note-on never left; drop the pair.
+			setSuppressed(note, false);
+			_coalescedCount.lazySet(_coalescedCount.get() + 1);
+			return false;
+		}
+
+		final long tail = _tail.get();
+		final long head = _head.get();
+		if (!noteOff && tail - head >= _events.length - _noteOffReserve) {
+			if (_policy == OverflowPolicy.COALESCE) {
+				if (noteOn) {
+					setSuppressed(note, true);
+				}
+				_dropCount.lazySet(_dropCount.get() + 1);
+				return false;
+			}
+			evictOldest(head);
+		} else if (tail - head >= _events.length) {
+			// Unless the consumer just took it, the oldest event is still in its slot.
+			if (_policy == OverflowPolicy.COALESCE && isNoteOff(_events[(int) head & _mask]) && _head.get() == head) {
+				_dropCount.lazySet(_dropCount.get() + 1);
+				return false;
+			}
+			evictOldest(head);
+		}
+		if (noteOn && _policy == OverflowPolicy.COALESCE) {
+			setSuppressed(note, false);
+		}
+		final int index = (int) tail & _mask;
+		_events[index] = event;
+		_nanos[index] = nanos;
+		_tail.lazySet(tail + 1);
+		return true;
+	}
+
+	/**
+	 * Discards the oldest event to make room for a new one.
+	 *
+	 * @param head the head read by the producer.
+	 */
+	private void evictOldest(long head) {
+		// If the CAS fails the consumer just took the oldest event, which also
+		// makes room.
+		if (_head.compareAndSet(head, head + 1)) {
+			_dropCount.lazySet(_dropCount.get() + 1);
+		}
+	}
+
+	/**
+	 * Returns whether a packed event is a note-off, or a note-on of velocity
+	 * 0.
+	 *
+	 * @param event the packed event.
+	 * @return true for a note-off.
+	 */
+	public static boolean isNoteOff(int event) {
+		final int command = status(event) & 0xF0;
+		return command == ShortMessage.NOTE_OFF || command == ShortMessage.NOTE_ON && data2(event) == 0;
+	}
+
+	/**
+	 * Removes the oldest event from the queue. Must only be called by the
+	 * consumer thread.
+	 *
+	 * @return the packed event, or -1 if the queue is empty.
+	 */
+	public int poll() {
+		while (true) {
+			final long head = _head.get();
+			if (head >= _tail.get()) {
+				return -1;
+			}
+			final int index = (int) head & _mask;
+			final int event = _events[index];
+			final long nanos = _nanos[index];
+			// Fails only if the producer dropped this event meanwhile.
+			if (_head.compareAndSet(head, head + 1)) {
+				_polledNanos = nanos;
+				return event;
+			}
+		}
+	}
+
+	/**
+	 * Returns the time stamp of the event most recently returned by poll().
+	 *
+	 * @return the System.nanoTime() at which the event occurred.
+	 */
+	public long getPolledNanos() {
+		return _polledNanos;
+	}
+
+	/**
+	 * Returns whether the queue is empty.
+	 *
+	 * @return true if there is no event to poll.
+	 */
+	public boolean isEmpty() {
+		return _head.get() >= _tail.get();
+	}
+
+	/**
+	 * Returns the number of queued events.
+	 *
+	 * @return the queue depth.
+	 */
+	public int size() {
+		return (int) Math.max(0, _tail.get() - _head.get());
+	}
+
+	/**
+	 * Returns the number of events lost because the queue was full.
+	 *
+	 * @return the drop count.
+	 */
+	public long getDropCount() {
+		return _dropCount.get();
+	}
+
+	/**
+	 * Returns the number of note-offs discarded together with their note-on.
+	 *
+	 * @return the coalesced count.
+	 */
+	public long getCoalescedCount() {
+		return _coalescedCount.get();
+	}
+
+	private boolean isSuppressed(int note) {
+		return (_suppressed[note >>> 6] & 1L << note) != 0;
+	}
+
+	private void setSuppressed(int note, boolean suppressed) {
+		if (suppressed) {
+			_suppressed[note >>> 6] |= 1L << note;
+		} else {
+			_suppressed[note >>> 6] &= ~(1L << note);
+		}
+	}
+}
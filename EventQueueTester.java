@@ -0,0 +1,151 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import javax.sound.midi.*;
+
+/**
+ * Contains a set of unit tests for the EventQueue class.
+ */
+class EventQueueTester {
+	private static final int NOTE_ON_60 = EventQueue.pack(ShortMessage.NOTE_ON, 60, 93);
+	private static final int NOTE_OFF_60 = EventQueue.pack(ShortMessage.NOTE_OFF, 60, 0);
+
+	private static int noteOn(int pitch) {
+		return EventQueue.pack(ShortMessage.NOTE_ON, pitch, 93);
+	}
+
+	private static int noteOff(int pitch) {
+		return EventQueue.pack(ShortMessage.NOTE_OFF, pitch, 0);
+	}
+
+	private static int volume(int value) {
+		return EventQueue.pack(ShortMessage.CONTROL_CHANGE, 7, value);
+	}
+
+	@Test
+	void testPackedEvents() {
+		final int event = EventQueue.pack(ShortMessage.NOTE_ON | 15, 127, 0);
+		assertTrue(event >= 0);
+		assertEquals(ShortMessage.NOTE_ON | 15, EventQueue.status(event));
+		assertEquals(127, EventQueue.data1(event));
+		assertEquals(0, EventQueue.data2(event));
+		assertTrue(EventQueue.isNoteOff(event), "velocity 0");
+		assertTrue(EventQueue.isNoteOff(NOTE_OFF_60));
+		assertFalse(EventQueue.isNoteOff(NOTE_ON_60));
+		assertFalse(EventQueue.isNoteOff(volume(0)));
+	}
+
+	@Test
+	void testEventsAndTimesInOrder() {
+		final EventQueue queue = new EventQueue(4, EventQueue.OverflowPolicy.DROP_OLDEST);
+		assertTrue(queue.isEmpty());
+		assertEquals(-1, queue.poll());
+		for (int i = 0; i < 10; i++) {
+			assertTrue(queue.offer(noteOn(i), 1000 + i));
+			assertTrue(queue.offer(noteOff(i), 2000 + i));
+			assertEquals(2, queue.size());
+			assertEquals(noteOn(i), queue.poll());
+			assertEquals(1000 + i, queue.getPolledNanos());
+			assertEquals(noteOff(i), queue.poll());
+			assertEquals(2000 + i, queue.getPolledNanos());
+		}
+		assertTrue(queue.isEmpty());
+		assertEquals(0, queue.getDropCount());
+	}
+
+	@Test
+	void testDropOldestEvictsWhateverIsOldest() {
+		final EventQueue queue = new EventQueue(4, EventQueue.OverflowPolicy.DROP_OLDEST);
+		assertTrue(queue.offer(NOTE_OFF_60, 0));
+		for (int i = 0; i < 4; i++) {
+			assertTrue(queue.offer(volume(i), 0));
+		}
+		assertEquals(1, queue.getDropCount());
+		assertEquals(4, queue.size());
+		for (int i = 0; i < 4; i++) {
+			assertEquals(volume(i), queue.poll());
+		}
+		assertEquals(0, queue.getCoalescedCount());
+	}
+
+	@Test
+	void testCoalesceDropsNoteOnWithItsNoteOff() {
+		final EventQueue queue = new EventQueue(8, EventQueue.OverflowPolicy.COALESCE);
+		// Fills everything but the two slots kept for note-offs.
+		for (int i = 0; i < 6; i++) {
+			assertTrue(queue.offer(noteOn(i), 0));
+		}
+		assertFalse(queue.offer(NOTE_ON_60, 0));
+		assertEquals(1, queue.getDropCount());
+		assertFalse(queue.offer(NOTE_OFF_60, 0), "its note-on never left");
+		assertEquals(1, queue.getCoalescedCount());
+		assertEquals(6, queue.size());
+
+		// Once there is room, the same note plays again.
+		assertEquals(noteOn(0), queue.poll());
+		assertTrue(queue.offer(NOTE_ON_60, 0));
+		assertTrue(queue.offer(NOTE_OFF_60, 0));
+		assertEquals(1, queue.getCoalescedCount());
+	}
+
+	@Test
+	void testCoalesceNeverEvictsNoteOffs() {
+		final EventQueue queue = new EventQueue(8, EventQueue.OverflowPolicy.COALESCE);
+		for (int i = 0; i < 6; i++) {
+			assertTrue(queue.offer(noteOn(i), 0));
+		}
+		// Other events are refused rather than pushing anything out.
+		assertFalse(queue.offer(volume(100), 0));
+		assertEquals(1, queue.getDropCount());
+
+		// Note-offs take the reserve, then push out the oldest note-ons.
+		for (int i = 0; i < 6; i++) {
+			assertTrue(queue.offer(noteOff(i), 0));
+		}
+		assertEquals(8, queue.size());
+		assertEquals(5, queue.getDropCount());
+		for (int i = 4; i < 6; i++) {
+			assertEquals(noteOn(i), queue.poll());
+		}
+		for (int i = 0; i < 6; i++) {
+			assertEquals(noteOff(i), queue.poll());
+		}
+
+		// A queue full of note-offs keeps them, and refuses the new one.
+		for (int i = 0; i < 8; i++) {
+			assertTrue(queue.offer(noteOff(i), 0));
+		}
+		assertFalse(queue.offer(noteOff(8), 0));
+		for (int i = 0; i < 8; i++) {
+			assertEquals(noteOff(i), queue.poll());
+		}
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	void testProducerAndConsumerThreads() throws Exception {
+		final EventQueue queue = new EventQueue(16, EventQueue.OverflowPolicy.DROP_OLDEST);
+		final int count = 100_000;
+		final Thread producer = new Thread(() -> {
+			for (int i = 0; i < count; i++) {
+				queue.offer(EventQueue.pack(ShortMessage.NOTE_ON, i & 0x7F, i >> 7 & 0x7F), i);
+			}
+		});
+		producer.start();
+		// Events may be dropped, but those polled stay in order.
+		long last = -1;
+		long polled = 0;
+		while (producer.isAlive() || !queue.isEmpty()) {
+			final int event = queue.poll();
+			if (event < 0) {
+				continue;
+			}
+			final long nanos = queue.getPolledNanos();
+			assertTrue(nanos > last);
+			assertEquals(nanos & 0x7F, EventQueue.data1(event));
+			last = nanos;
+			polled++;
+		}
+		producer.join();
+		assertEquals(count, polled + queue.getDropCount());
+	}
+}
@@ -0,0 +1,254 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import javax.sound.midi.*;
+
+/**
+ * Lists the instruments the synthesizer can play, by name and patch.
+ * Discovering them means loading the synthesizer's soundbank, which is slow on
+ * a cold start, so discover() is meant to run off the Swing event thread (see
+ * discoverInBackground(), which shares the soundbank with the local receiver
+ * through a SynthesizerOpener). The last list discovered is cached on disk,
+ * so that later launches can show it right away.
+ *
+ * The cache is a text file: a header line, then one "bank TAB program TAB
+ * name" line per instrument. Its location defaults to ~/.band/instruments.txt
+ * and can be set with the system property "band.instruments.cache".
+ */
+public class InstrumentCatalog {
+	private static final String CACHE_HEADER = "band-instruments 1";
+	private static final EventLog.Event INSTRUMENTS_DISCOVERED = new EventLog.Event("instrumentsDiscovered",
+			EventLog.Level.INFO, "count", "millis");
+
+	private final String[] _names;
+	private final Patch[] _patches;
+
+	/**
+	 * Receives the outcome of discoverInBackground().
+	 */
+	public interface Listener {
+		/**
+		 * Called, on the discovery thread, when the instruments discovered
+		 * differ from the ones already known.
+		 *
+		 * @param catalog the discovered instruments.
+		 */
+		void instrumentsChanged(InstrumentCatalog catalog);
+	}
+
+	/**
+	 * @param names   the names of the instruments.
+	 * @param patches the patches of the instruments, in the same order.
+	 */
+	public InstrumentCatalog(String[] names, Patch[] patches) {
+		if (names.length != patches.length) {
+			throw new IllegalArgumentException(names.length + " names for " + patches.length + " patches");
+		}
+		_names = names.clone();
+		_patches = patches.clone();
+	}
+
+	/**
+	 * Loads the default synthesizer's soundbank and lists its instruments.
+	 * Blocks for as long as that takes.
+	 *
+	 * @return the instruments.
+	 */
+	public static InstrumentCatalog discover() throws MidiUnavailableException {
+		return discover(MidiSystem.getSynthesizer());
+	}
+
+	/**
+	 * Lists the instruments of a synthesizer. Blocks while its soundbank
+	 * loads, unless it is already open.
+	 *
+	 * @param synthesizer the synthesizer.
+	 * @return the instruments.
+	 */
+	public static InstrumentCatalog discover(Synthesizer synthesizer) {
+		final Instrument[] instruments = synthesizer.getAvailableInstruments();
+		final String[] names = new String[instruments.length];
+		final Patch[] patches = new Patch[instruments.length];
+		for (int i = 0; i < instruments.length; i++) {
+			names[i] = instruments[i].getName();
+			patches[i] = instruments[i].getPatch();
+		}
+		return new InstrumentCatalog(names, patches);
+	}
+
+	/**
+	 * Discovers the instruments on a daemon thread and, if they differ from
+	 * the known ones, updates the cache and notifies the listener. If the
+	 * synthesizer is unavailable, the known instruments are kept.
+	 *
+	 * @param known       the instruments already shown (e.g. from the cache),
+	 *                    or null.
+	 * @param cacheFile   the cache to update, or null.
+	 * @param synthesizer opens the synthesizer, sharing its soundbank with
+	 *                    the receiver that plays through it.
+	 * @param listener    the listener to notify.
+	 * @return the discovery thread, already started.
+	 */
+	public static Thread discoverInBackground(InstrumentCatalog known, File cacheFile, SynthesizerOpener synthesizer,
+			Listener listener) {
+		final Thread thread = new Thread(() -> {
+			final long start = System.nanoTime();
+			final InstrumentCatalog catalog;
+			try {
+				catalog = discover(synthesizer.getSynthesizer());
+			} catch (MidiUnavailableException mue) {
+				System.out.println("Could not list instruments: " + mue.getMessage());
+				return;
+			}
+			EventLog.log(INSTRUMENTS_DISCOVERED, catalog.size(), (System.nanoTime() - start) / 1_000_000, 0);
+			if (catalog.equals(known)) {
+				return;
+			}
+			if (cacheFile != null) {
+				try {
+					catalog.writeCache(cacheFile);
+				} catch (IOException ioe) {
+					System.out.println("Could not cache instruments: " + ioe.getMessage());
+				}
+			}
+			listener.instrumentsChanged(catalog);
+		}, "instrument-discovery");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Returns the cache file to use.
+	 *
+	 * @return the file named by "band.instruments.cache", or
+	 *         ~/.band/instruments.txt.
+	 */
+	public static File getDefaultCacheFile() {
+		final String path = System.getProperty("band.instruments.cache");
+		if (path != null) {
+			return new File(path);
+		}
+		return new File(new File(System.getProperty("user.home"), ".band"), "instruments.txt");
+	}
+
+	/**
+	 * Reads the instruments cached by writeCache().
+	 *
+	 * @param file the cache.
+	 * @return the instruments, or null if the file is missing or invalid.
+	 */
+	public static InstrumentCatalog readCache(File file) {
+		final List<String> lines;
+		try {
+			lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		} catch (IOException ioe) {
+			return null;
+		}
+		if (lines.isEmpty() || !lines.get(0).equals(CACHE_HEADER)) {
+			return null;
+		}
+		final int count = lines.size() - 1;
+		final String[] names = new String[count];
+		final Patch[] patches = new Patch[count];
+		for (int i = 0; i < count; i++) {
+			final String[] fields = lines.get(i + 1).split("\t", 3);
+			if (fields.length != 3) {
+				return null;
+			}
+			try {
+				patches[i] = new Patch(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]));
+			} catch (NumberFormatException nfe) {
+				return null;
+			}
+			names[i] = fields[2];
+		}
+		return new InstrumentCatalog(names, patches);
+	}
+
+	/**
+	 * Writes the instruments to a cache file, replacing it atomically so that
+	 * a concurrent launch never reads half a list.
+	 *
+	 * @param file the cache.
+	 */
+	public void writeCache(File file) throws IOException {
+		final File directory = file.getAbsoluteFile().getParentFile();
+		Files.createDirectories(directory.toPath());
+		final StringBuilder text = new StringBuilder(CACHE_HEADER).append('\n');
+		for (int i = 0; i < _names.length; i++) {
+			text.append(_patches[i].getBank()).append('\t').append(_patches[i].getProgram()).append('\t')
+					.append(_names[i].replace('\t', ' ').replace('\n', ' ')).append('\n');
+		}
+		final Path temporary = Files.createTempFile(directory.toPath(), file.getName(), ".tmp");
+		try {
+			Files.write(temporary, text.toString().getBytes(StandardCharsets.UTF_8));
+			Files.move(temporary, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	/**
+	 * Returns the number of instruments.
+	 *
+	 * @return the number of instruments.
+	 */
+	public int size() {
+		return _names.length;
+	}
+
+	/**
+	 * Returns the names of the instruments, e.g. for a combo box.
+	 *
+	 * @return a copy of the names.
+	 */
+	public String[] getNames() {
+		return _names.clone();
+	}
+
+	/**
+	 * Returns the name of an instrument.
+	 *
+	 * @param index the index of the instrument.
+	 * @return the name.
+	 */
+	public String getName(int index) {
+		return _names[index];
+	}
+
+	/**
+	 * Returns the patch that selects an instrument.
+	 *
+	 * @param index the index of the instrument.
+	 * @return the patch.
+	 */
+	public Patch getPatch(int index) {
+		return _patches[index];
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof InstrumentCatalog)) {
+			return false;
+		}
+		final InstrumentCatalog catalog = (InstrumentCatalog) other;
+		if (!Arrays.equals(_names, catalog._names)) {
+			return false;
+		}
+		for (int i = 0; i < _patches.length; i++) {
+			if (_patches[i].getBank() != catalog._patches[i].getBank()
+					|| _patches[i].getProgram() != catalog._patches[i].getProgram()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(_names);
+	}
+}
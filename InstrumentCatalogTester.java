@@ -0,0 +1,97 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.sound.midi.*;
+
+/**
+ * Contains a set of unit tests for the InstrumentCatalog and DeferredReceiver
+ * classes.
+ */
+class InstrumentCatalogTester {
+	@TempDir
+	Path _directory;
+
+	@Test
+	void testCacheRoundTrip() throws IOException {
+		final InstrumentCatalog catalog = new InstrumentCatalog(new String[] { "Piano 1", "Strings" },
+				new Patch[] { new Patch(0, 0), new Patch(128, 48) });
+		final File file = _directory.resolve("cache").resolve("instruments.txt").toFile();
+		assertNull(InstrumentCatalog.readCache(file));
+		catalog.writeCache(file);
+		final InstrumentCatalog cached = InstrumentCatalog.readCache(file);
+		assertEquals(catalog, cached);
+		assertEquals("Strings", cached.getName(1));
+		assertEquals(128, cached.getPatch(1).getBank());
+		assertEquals(48, cached.getPatch(1).getProgram());
+	}
+
+	@Test
+	void testInvalidCacheIsIgnored() throws IOException {
+		final File file = _directory.resolve("instruments.txt").toFile();
+		Files.writeString(file.toPath(), "band-instruments 1\nnot a patch\n");
+		assertNull(InstrumentCatalog.readCache(file));
+		Files.writeString(file.toPath(), "band-instruments 0\n0\t0\tPiano\n");
+		assertNull(InstrumentCatalog.readCache(file));
+	}
+
+	@Test
+	void testDeferredReceiverForwardsOnceOpen() throws Exception {
+		final CountDownLatch opening = new CountDownLatch(1);
+		final TestReceiver target = new TestReceiver();
+		final DeferredReceiver receiver = new DeferredReceiver(() -> {
+			try {
+				opening.await();
+			} catch (InterruptedException ie) {
+				throw new MidiUnavailableException("interrupted");
+			}
+			return target;
+		});
+		receiver.send(MidiMessages.note(true, 0, 60), -1);
+		assertFalse(receiver.isOpen());
+		assertEquals(1, receiver.getDroppedCount());
+		opening.countDown();
+		assertTrue(receiver.awaitOpen(5_000));
+		receiver.send(MidiMessages.note(true, 0, 62), -1);
+		assertEquals(0, target.getKeyOnCount(60));
+		assertEquals(1, target.getKeyOnCount(62));
+		assertNull(receiver.getFailure());
+	}
+
+	@Test
+	void testDeferredReceiverKeepsTheLatestPrograms() throws Exception {
+		final CountDownLatch opening = new CountDownLatch(1);
+		final List<String> sent = new ArrayList<>();
+		final DeferredReceiver receiver = new DeferredReceiver(() -> {
+			try {
+				opening.await();
+			} catch (InterruptedException ie) {
+				throw new MidiUnavailableException("interrupted");
+			}
+			return new Receiver() {
+				@Override
+				public void send(MidiMessage message, long timeStamp) {
+					final ShortMessage shortMessage = (ShortMessage) message;
+					sent.add(shortMessage.getCommand() + "/" + shortMessage.getChannel() + "/"
+							+ shortMessage.getData1());
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		});
+		receiver.send(MidiMessages.programChange(0, 5), -1);
+		receiver.send(MidiMessages.programChange(1, 3), -1);
+		receiver.send(MidiMessages.programChange(0, 7), -1);
+		receiver.send(MidiMessages.note(true, 0, 60), -1);
+		assertEquals(1, receiver.getDroppedCount(), "only the note is dropped");
+		opening.countDown();
+		assertTrue(receiver.awaitOpen(5_000));
+		receiver.send(MidiMessages.note(true, 0, 62), -1);
+		assertEquals(List.of("192/0/7", "192/1/3", "144/0/62"), sent);
+	}
+}
@@ -0,0 +1,218 @@
+import java.util.*;
+
+/**
+ * Decides when the server plays the packets of each route so that network
+ * jitter does not turn into rhythmic jitter. Packets must carry the sender's
+ * timestamp (WireFormat.FLAG_TIMESTAMP).
+ *
+ * Each packet is played at its sender timestamp plus a per-route offset, so
+ * that packets keep the spacing their sender played them with. The offset is
+ * the smallest transit time seen (arrival time minus sender timestamp, which
+ * also absorbs the difference between the two clocks) plus a target delay of
+ * JITTER_MULTIPLIER times the mean variation of the transit time, computed as
+ * RTP does (RFC 3550) and kept between the route's minimum and the buffer's
+ * maximum delay.
+ *
+ * To avoid audible tempo changes, the offset is only recomputed at the start
+ * of a phrase, after REBASE_GAP_NANOS of silence from the sender while it
+ * holds no notes; a note held through the gap would otherwise end earlier or
+ * later than it was played. Within a phrase the offset only ever grows: a
+ * packet arriving after its playout time is played on arrival and pushes the
+ * rest of the phrase back with it.
+ *
+ * The buffer also drops duplicated packets, recognized by their sequence
+ * numbers within a SequenceWindow of the last 64 packets of the route.
+ *
+ * All state is kept in arrays indexed by route. Not thread-safe; used by the
+ * dispatch thread only.
+ */
+public class JitterBuffer {
+	public static final long DUPLICATE = Long.MIN_VALUE;
+	public static final int JITTER_MULTIPLIER = 4;
+	public static final long REBASE_GAP_NANOS = 200_000_000;
+
+	private final long _defaultMinDelayNanos;
+	private final long _maxDelayNanos;
+	private final LongIntHashMap _minDelayMicrosBySource = new LongIntHashMap(16);
+	private final boolean[] _started;
+	private final SequenceWindow _sequences;
+	private final int[] _lastSenderMicros;
+	private final long[] _senderNanos; // sender clock of the newest packet, unwrapped
+	private final long[] _lastTransitNanos;
+	private final long[] _phraseMinTransitNanos;
+	private final long[] _offsetNanos; // playout time minus sender time
+	private final long[] _jitterNanos;
+	private final long[] _minDelayNanos;
+	private final long[] _delayNanos;
+	private long _duplicateCount;
+	private long _reorderedCount;
+	private long _lateCount;
+
+	/**
+	 * @param numRoutes     the number of routes.
+	 * @param minDelayNanos the smallest target delay, unless set per source.
+	 * @param maxDelayNanos the largest target delay.
+	 */
+	public JitterBuffer(int numRoutes, long minDelayNanos, long maxDelayNanos) {
+		_defaultMinDelayNanos = minDelayNanos;
+		_maxDelayNanos = Math.max(minDelayNanos, maxDelayNanos);
+		_started = new boolean[numRoutes];
+		_sequences = new SequenceWindow(numRoutes);
+		_lastSenderMicros = new int[numRoutes];
+		_senderNanos = new long[numRoutes];
+		_lastTransitNanos = new long[numRoutes];
+		_phraseMinTransitNanos = new long[numRoutes];
+		_offsetNanos = new long[numRoutes];
+		_jitterNanos = new long[numRoutes];
+		_minDelayNanos = new long[numRoutes];
+		_delayNanos = new long[numRoutes];
+		Arrays.fill(_minDelayNanos, minDelayNanos);
+		Arrays.fill(_delayNanos, minDelayNanos);
+	}
+
+	/**
+	 * Sets the smallest target delay of one client, for instance one on a
+	 * known bad link. Takes effect the next time the client is given a route.
+	 *
+	 * @param source        the client's source key.
+	 * @param minDelayNanos the smallest target delay.
+	 */
+	public void setMinDelay(long source, long minDelayNanos) {
+		_minDelayMicrosBySource.put(source, (int) Math.min(Integer.MAX_VALUE, minDelayNanos / 1000));
+	}
+
+	/**
+	 * Forgets the state of a route, which has just been given to a client.
+	 *
+	 * @param route  the route.
+	 * @param source the source key of the client now on the route.
+	 */
+	public void reset(int route, long source) {
+		_started[route] = false;
+		_sequences.reset(route);
+		final int minDelayMicros = _minDelayMicrosBySource.get(source);
+		_minDelayNanos[route] = minDelayMicros >= 0 ? minDelayMicros * 1000L : _defaultMinDelayNanos;
+		_delayNanos[route] = _minDelayNanos[route];
+		_jitterNanos[route] = 0;
+	}
+
+	/**
+	 * Accepts a packet and returns when its first event should be played.
+	 *
+	 * @param route        the route of the packet's source.
+	 * @param sequence     the packet's sequence number.
+	 * @param senderMicros the packet's sender timestamp.
+	 * @param arrivalNanos the System.nanoTime() at which the packet arrived.
+	 * @param holdingNotes whether the route's client holds notes from the
+	 *                     packets before this one, so that no new phrase may
+	 *                     start.
+	 * @return the System.nanoTime() at which to play the packet, or DUPLICATE
+	 *         if it was already received (or is too old to tell).
+	 */
+	public long accept(int route, int sequence, int senderMicros, long arrivalNanos, boolean holdingNotes) {
+		final int order = _sequences.record(route, sequence);
+		if (!_started[route]) {
+			_started[route] = true;
+			_lastSenderMicros[route] = senderMicros;
+			_senderNanos[route] = 0;
+			_lastTransitNanos[route] = arrivalNanos;
+			_phraseMinTransitNanos[route] = arrivalNanos;
+			_offsetNanos[route] = arrivalNanos + _delayNanos[route];
+			return _offsetNanos[route];
+		}
+		if (order == SequenceWindow.SEEN || order == SequenceWindow.TOO_OLD) {
+			_duplicateCount++;
+			return DUPLICATE;
+		}
+		final boolean newest = order == SequenceWindow.NEWEST;
+		if (!newest) {
+			_reorderedCount++;
+		}
+
+		// The int difference unwraps the sender's 32-bit microsecond clock.
+		final long senderNanos = _senderNanos[route] + (senderMicros - _lastSenderMicros[route]) * 1000L;
+		final long transit = arrivalNanos - senderNanos;
+		if (newest) {
+			final long variation = Math.abs(transit - _lastTransitNanos[route]);
+			_jitterNanos[route] += (variation - _jitterNanos[route]) / 16;
+			_delayNanos[route] = Math.max(_minDelayNanos[route],
+					Math.min(_maxDelayNanos, JITTER_MULTIPLIER * _jitterNanos[route]));
+			if (senderNanos - _senderNanos[route] > REBASE_GAP_NANOS && !holdingNotes) {
+				// A new phrase: adopt the delay for the current jitter.
+				_offsetNanos[route] = Math.min(_phraseMinTransitNanos[route], transit) + _delayNanos[route];
+				_phraseMinTransitNanos[route] = transit;
+			}
+			_lastSenderMicros[route] = senderMicros;
+			_senderNanos[route] = senderNanos;
+			_lastTransitNanos[route] = transit;
+		}
+		_phraseMinTransitNanos[route] = Math.min(_phraseMinTransitNanos[route], transit);
+		final long play = senderNanos + _offsetNanos[route];
+		if (play - arrivalNanos < 0) {
+			_lateCount++;
+			if (newest) {
+				_offsetNanos[route] += arrivalNanos - play;
+			}
+			return arrivalNanos;
+		}
+		return play;
+	}
+
+	/**
+	 * Returns whether a route's client has sent a timestamped packet since it
+	 * was given the route.
+	 *
+	 * @param route the route.
+	 * @return true once the route is played out.
+	 */
+	public boolean isStarted(int route) {
+		return _started[route];
+	}
+
+	/**
+	 * Returns the current target delay of a route, the depth of its buffer.
+	 *
+	 * @param route the route.
+	 * @return the delay in nanoseconds.
+	 */
+	public long getDelayNanos(int route) {
+		return _delayNanos[route];
+	}
+
+	/**
+	 * Returns the current jitter estimate of a route.
+	 *
+	 * @param route the route.
+	 * @return the mean transit time variation in nanoseconds.
+	 */
+	public long getJitterNanos(int route) {
+		return _jitterNanos[route];
+	}
+
+	/**
+	 * Returns the number of duplicated (or hopelessly late) packets dropped.
+	 *
+	 * @return the duplicate count.
+	 */
+	public long getDuplicateCount() {
+		return _duplicateCount;
+	}
+
+	/**
+	 * Returns the number of packets that arrived after their playout time.
+	 *
+	 * @return the late count.
+	 */
+	public long getLateCount() {
+		return _lateCount;
+	}
+
+	/**
+	 * Returns the number of packets that arrived after a later one.
+	 *
+	 * @return the reordered count.
+	 */
+	public long getReorderedCount() {
+		return _reorderedCount;
+	}
+}
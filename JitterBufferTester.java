@@ -0,0 +1,97 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Contains a set of unit tests for the JitterBuffer and PlayoutScheduler
+ * classes.
+ */
+class JitterBufferTester {
+	private static final long MS = 1_000_000;
+	private static final long MIN_DELAY = 20 * MS;
+	private static final long MAX_DELAY = 100 * MS;
+	private static final int ROUTE = 3;
+
+	private JitterBuffer _buffer;
+
+	@BeforeEach
+	void setup() {
+		_buffer = new JitterBuffer(16, MIN_DELAY, MAX_DELAY);
+		_buffer.reset(ROUTE, 1);
+	}
+
+	@Test
+	void testJitterDoesNotChangeSpacing() {
+		// Packets sent 10 ms apart and delayed by 5 to 15 ms in transit play
+		// exactly 10 ms apart.
+		final long arrivalBase = 1_000 * MS;
+		final long[] transit = { 5 * MS, 15 * MS, 6 * MS, 12 * MS, 5 * MS };
+		long previous = 0;
+		for (int i = 0; i < transit.length; i++) {
+			final long play = _buffer.accept(ROUTE, i, i * 10_000, arrivalBase + i * 10 * MS + transit[i], false);
+			if (i > 0) {
+				assertEquals(10 * MS, play - previous, "packet " + i);
+			}
+			assertTrue(play >= arrivalBase + i * 10 * MS + transit[i], "played before arrival");
+			previous = play;
+		}
+	}
+
+	@Test
+	void testDuplicatesAndReordering() {
+		final long now = 1_000 * MS;
+		final long first = _buffer.accept(ROUTE, 7, 0, now, false);
+		final long third = _buffer.accept(ROUTE, 9, 2_000, now + 2 * MS, false);
+		final long second = _buffer.accept(ROUTE, 8, 1_000, now + 3 * MS, false);
+		assertTrue(first < second && second < third, "reordered packet keeps its place");
+		assertEquals(1, _buffer.getReorderedCount());
+		assertEquals(JitterBuffer.DUPLICATE, _buffer.accept(ROUTE, 8, 1_000, now + 4 * MS, false));
+		assertEquals(JitterBuffer.DUPLICATE, _buffer.accept(ROUTE, 9, 2_000, now + 4 * MS, false));
+		assertEquals(2, _buffer.getDuplicateCount());
+	}
+
+	@Test
+	void testSenderClockWraps() {
+		final long now = 1_000 * MS;
+		final long before = _buffer.accept(ROUTE, 0, Integer.MAX_VALUE - 999, now, false);
+		final long after = _buffer.accept(ROUTE, 1, Integer.MIN_VALUE + 1000, now + 2 * MS, false);
+		assertEquals(2 * MS, after - before);
+	}
+
+	@Test
+	void testPerSourceMinimumDelay() {
+		_buffer.setMinDelay(2, 50 * MS);
+		_buffer.reset(ROUTE, 2);
+		assertEquals(50 * MS, _buffer.getDelayNanos(ROUTE));
+		assertEquals(1_050 * MS, _buffer.accept(ROUTE, 0, 0, 1_000 * MS, false));
+	}
+
+	@Test
+	void testNoNewPhraseWhileNotesAreHeld() {
+		// Two packets 300 ms apart, the second 45 ms faster in transit: a new
+		// phrase plays it sooner, unless a note is held through the gap.
+		_buffer.reset(ROUTE + 1, 1);
+		final long now = 1_000 * MS;
+		final long gap = 300 * MS;
+		final long held = _buffer.accept(ROUTE, 0, 0, now + 50 * MS, true);
+		assertEquals(gap, _buffer.accept(ROUTE, 1, 300_000, now + gap + 5 * MS, true) - held,
+				"the held note keeps its length");
+		final long free = _buffer.accept(ROUTE + 1, 0, 0, now + 50 * MS, false);
+		assertEquals(gap - 45 * MS, _buffer.accept(ROUTE + 1, 1, 300_000, now + gap + 5 * MS, false) - free);
+	}
+
+	@Test
+	void testSchedulerReleasesInTimeThenArrivalOrder() {
+		final PlayoutScheduler scheduler = new PlayoutScheduler(2);
+		final StringBuilder played = new StringBuilder();
+		scheduler.schedule(30, 0, 3);
+		scheduler.schedule(10, 0, 1);
+		scheduler.schedule(20, 1, 2);
+		scheduler.schedule(10, 0, 4);
+		scheduler.schedule(40, 1, 5);
+		assertEquals(10, scheduler.nextTime());
+		assertEquals(2, scheduler.removeRoute(1)); // events 2 and 5
+		assertEquals(3, scheduler.releaseDue(30, (route, event) -> played.append(event)));
+		assertEquals("143", played.toString());
+		assertEquals(Long.MAX_VALUE, scheduler.nextTime());
+	}
+}
@@ -0,0 +1,79 @@
+import java.awt.*;
+import java.awt.image.*;
+import java.util.*;
+
+/**
+ * Caches pre-rendered images of keys in their up and down states, so that
+ * painting a key is a single image blit instead of filling and stroking its
+ * polygon. Keys of the same shape and color share their images; a keyboard
+ * only has a handful of distinct shapes, whatever its size.
+ *
+ * The images are opaque, because blitting an opaque image is several times
+ * cheaper than compositing a translucent one. The notches of a white key's
+ * image are filled black; the black keys sitting in them are painted after the
+ * white keys and cover them.
+ */
+public class KeyImages {
+	public static final Color DOWN_COLOR = Color.GRAY;
+	public static final Color REMOTE_COLOR = new Color(0x70, 0xA0, 0xE0);
+
+	private static final Map<String, BufferedImage[]> _cache = new HashMap<>();
+
+	private KeyImages() {
+	}
+
+	/**
+	 * Returns the up, down and remotely played images of a key, rendering them
+	 * on first use.
+	 * The images are (width + 1) x (height + 1) pixels to hold the outline,
+	 * and are meant to be drawn at the key's bounds.
+	 *
+	 * @param polygon the key's polygon.
+	 * @param color   the key's color when up.
+	 * @return the up image at index 0, the down image at index 1 and the
+	 *         remote image at index 2.
+	 */
+	public static synchronized BufferedImage[] get(Polygon polygon, Color color) {
+		final String shape = shapeOf(polygon, color);
+		BufferedImage[] images = _cache.get(shape);
+		if (images == null) {
+			images = new BufferedImage[] { render(polygon, color), render(polygon, DOWN_COLOR),
+					render(polygon, REMOTE_COLOR) };
+			_cache.put(shape, images);
+		}
+		return images;
+	}
+
+	/**
+	 * Describes the polygon relative to its bounds, so that keys differing
+	 * only by position share a description.
+	 */
+	private static String shapeOf(Polygon polygon, Color color) {
+		final Rectangle bounds = polygon.getBounds();
+		final StringBuilder shape = new StringBuilder().append(color.getRGB());
+		for (int i = 0; i < polygon.npoints; i++) {
+			shape.append(' ').append(polygon.xpoints[i] - bounds.x).append(',').append(polygon.ypoints[i] - bounds.y);
+		}
+		return shape.toString();
+	}
+
+	/**
+	 * Renders the key exactly as filling and stroking its polygon would, on a
+	 * black background.
+	 */
+	private static BufferedImage render(Polygon polygon, Color fill) {
+		final Rectangle bounds = polygon.getBounds();
+		final BufferedImage image = new BufferedImage(bounds.width + 1, bounds.height + 1,
+				BufferedImage.TYPE_INT_RGB);
+		final Graphics g = image.getGraphics();
+		g.setColor(Color.BLACK);
+		g.fillRect(0, 0, image.getWidth(), image.getHeight());
+		g.translate(-bounds.x, -bounds.y);
+		g.setColor(fill);
+		g.fillPolygon(polygon);
+		g.setColor(Color.BLACK); // If the color is white, we need to still outline it in black.
+		g.drawPolygon(polygon);
+		g.dispose();
+		return image;
+	}
+}
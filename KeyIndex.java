@@ -0,0 +1,99 @@
+import java.util.*;
+
+/**
+ * Finds the key under a point of the piano in constant time, without
+ * iterating over the keys or allocating.
+ *
+ * The index relies on the geometry fixed by the Piano constants: white keys
+ * occupy consecutive columns of WHITE_KEY_WIDTH pixels, manuals are stacked
+ * rows of WHITE_KEY_HEIGHT pixels, and a black key is centered on the boundary
+ * between two white columns and covers the top BLACK_KEY_HEIGHT pixels of its
+ * manual. A point is looked up by computing its manual, its white column and,
+ * in the black-key band, its nearest boundary.
+ */
+public class KeyIndex {
+	private final int _numWhiteKeys;
+	private final int _numManuals;
+	private final Key[] _whiteKeys; // by manual, then white column
+	private final Key[] _blackKeys; // by manual, then boundary (left edge of white column), or null
+	private final int _size;
+
+	/**
+	 * @param layout the layout the keys were made from.
+	 * @param keys   the keys of the piano, as made by the layout.
+	 */
+	public KeyIndex(KeyboardLayout layout, List<Key> keys) {
+		_numWhiteKeys = layout.getNumWhiteKeys();
+		_numManuals = layout.getNumManuals();
+		_size = keys.size();
+		_whiteKeys = new Key[_numManuals * _numWhiteKeys];
+		_blackKeys = new Key[_numManuals * (_numWhiteKeys + 1)];
+		int i = 0;
+		for (int manual = 0; manual < _numManuals; manual++) {
+			int column = 0;
+			for (int pitch = layout.getLowPitch(); pitch <= layout.getHighPitch(); pitch++) {
+				final Key key = keys.get(i++);
+				if (isBlack(pitch)) {
+					// A black key sits on the boundary to the right of the last white key.
+					_blackKeys[manual * (_numWhiteKeys + 1) + column] = key;
+				} else {
+					_whiteKeys[manual * _numWhiteKeys + column++] = key;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the specified pitch is played on a black key.
+	 *
+	 * @param pitch the MIDI pitch.
+	 * @return true for C#, D#, F#, G# and A#.
+	 */
+	public static boolean isBlack(int pitch) {
+		switch (pitch % Piano.NUM_KEYS_PER_OCTAVE) {
+		case 1:
+		case 3:
+		case 6:
+		case 8:
+		case 10:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the key containing the specified point, as Polygon.contains()
+	 * would decide it.
+	 *
+	 * @param x the x-coordinate relative to the piano.
+	 * @param y the y-coordinate relative to the piano.
+	 * @return the key, or null if the point is outside the keyboard.
+	 */
+	public Key keyAt(int x, int y) {
+		if (x < 0 || y < Piano.TOP || x >= _numWhiteKeys * Piano.WHITE_KEY_WIDTH) {
+			return null;
+		}
+		final int manual = (y - Piano.TOP) / Piano.WHITE_KEY_HEIGHT;
+		if (manual >= _numManuals) {
+			return null;
+		}
+		if (y - Piano.TOP - manual * Piano.WHITE_KEY_HEIGHT < Piano.BLACK_KEY_HEIGHT) {
+			final int boundary = (x + Piano.BLACK_KEY_WIDTH / 2) / Piano.WHITE_KEY_WIDTH;
+			final Key black = _blackKeys[manual * (_numWhiteKeys + 1) + boundary];
+			if (black != null && x - boundary * Piano.WHITE_KEY_WIDTH < Piano.BLACK_KEY_WIDTH / 2) {
+				return black;
+			}
+		}
+		return _whiteKeys[manual * _numWhiteKeys + x / Piano.WHITE_KEY_WIDTH];
+	}
+
+	/**
+	 * Returns the number of keys the index was built from.
+	 *
+	 * @return the key count.
+	 */
+	public int size() {
+		return _size;
+	}
+}
@@ -0,0 +1,86 @@
+import static org.junit.jupiter.api.Assertions.*;
+import java.awt.event.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Contains a set of unit tests for the KeyIndex class.
+ */
+class KeyIndexTester {
+	private static final int MARGIN = 5;
+
+	private TestReceiver _receiver;
+	private Piano _piano;
+	private KeyIndex _index;
+
+	@BeforeEach
+	void setup() {
+		_receiver = new TestReceiver();
+		_piano = new Piano(_receiver);
+		_index = new KeyIndex(_piano.getKeyboardLayout(), _piano.getKeys());
+	}
+
+	/**
+	 * Returns the key whose polygon contains the point, failing if more than
+	 * one does.
+	 */
+	private Key polygonKeyAt(Piano piano, int x, int y) {
+		Key found = null;
+		for (Key key : piano.getKeys()) {
+			if (key.getPolygon().contains(x, y)) {
+				assertNull(found, "overlapping keys at " + x + "," + y);
+				found = key;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Checks every pixel of the piano, plus a margin on every side, against
+	 * the key polygons.
+	 */
+	private void assertMatchesPolygons(Piano piano, KeyIndex index) {
+		final KeyboardLayout layout = piano.getKeyboardLayout();
+		for (int y = Piano.TOP - MARGIN; y < Piano.TOP + layout.getHeight() + MARGIN; y++) {
+			for (int x = -MARGIN; x < layout.getWidth() + MARGIN; x++) {
+				assertSame(polygonKeyAt(piano, x, y), index.keyAt(x, y), "at " + x + "," + y);
+			}
+		}
+	}
+
+	@Test
+	void testMatchesPolygonsPixelForPixel() {
+		assertMatchesPolygons(_piano, _index);
+	}
+
+	@Test
+	void testMatchesPolygonsOnTwoManuals88Keys() {
+		// Starts on A and ends on C, so the end keys have no outer notch.
+		final Piano piano = new Piano(_receiver, KeyboardLayout.piano88(2));
+		assertEquals(176, piano.getKeys().size());
+		assertMatchesPolygons(piano, new KeyIndex(piano.getKeyboardLayout(), piano.getKeys()));
+	}
+
+	@Test
+	void testBlackKeyBand() {
+		// Just left and right of the first white-key boundary, inside the black band.
+		final int boundary = Piano.WHITE_KEY_WIDTH;
+		assertEquals(Piano.START_PITCH + 1, _index.keyAt(boundary - 1, Piano.TOP + 1).getPitch());
+		assertEquals(Piano.START_PITCH + 1, _index.keyAt(boundary, Piano.TOP + 1).getPitch());
+		// Below the black band the point belongs to the white keys.
+		assertEquals(Piano.START_PITCH, _index.keyAt(boundary - 1, Piano.BLACK_KEY_HEIGHT).getPitch());
+		// E and F have no black key between them.
+		final int eToF = 3 * Piano.WHITE_KEY_WIDTH;
+		assertEquals(Piano.START_PITCH + 5, _index.keyAt(eToF, Piano.TOP + 1).getPitch());
+	}
+
+	@Test
+	void testDragAcrossBoundaryPlaysOneKey() {
+		// Dragging onto the black key must not also play the white key beneath it.
+		final PianoMouseListener listener = _piano.getMouseListener();
+		listener.mouseDragged(new MouseEvent(_piano, 0, 0, 0, Piano.WHITE_KEY_WIDTH, 1, 0, false));
+
+		assertTrue(_receiver.isKeyOn(Piano.START_PITCH + 1));
+		assertEquals(0, _receiver.getKeyOnCount(Piano.START_PITCH));
+		assertEquals(0, _receiver.getKeyOnCount(Piano.START_PITCH + 2));
+	}
+}
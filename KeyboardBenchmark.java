@@ -0,0 +1,84 @@
+import java.awt.*;
+import java.awt.image.*;
+import java.util.*;
+
+/**
+ * Measures the per-event cost of hit-testing and of repainting one key on
+ * keyboards of 36, 88 and 176 (two manuals of 88) keys. The linear polygon
+ * scan the mouse listener used to do is measured alongside for comparison.
+ *
+ * Run with: java -Djava.awt.headless=true KeyboardBenchmark
+ */
+public class KeyboardBenchmark {
+	private static final int NUM_POINTS = 4096;
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int MEASURED_ROUNDS = 10;
+	private static final int EVENTS_PER_ROUND = 200_000;
+	private static final int PAINTS_PER_ROUND = 2_000;
+
+	private static int _sink; // keeps results alive
+
+	public static void main(String[] args) {
+		final KeyboardLayout[] layouts = { KeyboardLayout.DEFAULT, KeyboardLayout.piano88(1),
+				KeyboardLayout.piano88(2) };
+		System.out.printf("%5s %14s %14s %14s%n", "keys", "index ns/ev", "scan ns/ev", "paint ns/ev");
+		for (KeyboardLayout layout : layouts) {
+			final Piano piano = new Piano(new TestReceiver(), layout);
+			final KeyIndex index = new KeyIndex(layout, piano.getKeys());
+			final Random random = new Random(42);
+			final int[] xs = new int[NUM_POINTS];
+			final int[] ys = new int[NUM_POINTS];
+			for (int i = 0; i < NUM_POINTS; i++) {
+				xs[i] = random.nextInt(layout.getWidth());
+				ys[i] = random.nextInt(layout.getHeight());
+			}
+			final double indexNanos = measure(EVENTS_PER_ROUND, () -> {
+				for (int i = 0; i < EVENTS_PER_ROUND; i++) {
+					final Key key = index.keyAt(xs[i % NUM_POINTS], ys[i % NUM_POINTS]);
+					_sink += key == null ? 0 : key.getPitch();
+				}
+			});
+			final double scanNanos = measure(EVENTS_PER_ROUND, () -> {
+				for (int i = 0; i < EVENTS_PER_ROUND; i++) {
+					for (Key key : piano.getKeys()) {
+						if (key.getPolygon().contains(xs[i % NUM_POINTS], ys[i % NUM_POINTS])) {
+							_sink += key.getPitch();
+							break;
+						}
+					}
+				}
+			});
+			final BufferedImage image = new BufferedImage(layout.getWidth() + 1, layout.getHeight() + 1,
+					BufferedImage.TYPE_INT_RGB);
+			final Graphics2D g = image.createGraphics();
+			final java.util.List<Key> keys = piano.getKeys();
+			final double paintNanos = measure(PAINTS_PER_ROUND, () -> {
+				for (int i = 0; i < PAINTS_PER_ROUND; i++) {
+					final Rectangle bounds = keys.get(i % keys.size()).getPolygon().getBounds();
+					g.setClip(bounds.x, bounds.y, bounds.width + 1, bounds.height + 1);
+					piano.paint(g);
+				}
+			});
+			g.dispose();
+			System.out.printf("%5d %14.1f %14.1f %14.1f%n", keys.size(), indexNanos, scanNanos, paintNanos);
+		}
+	}
+
+	/**
+	 * Runs the body for warm-up and measured rounds.
+	 *
+	 * @param events the number of events one run of the body handles.
+	 * @param body   the code to time.
+	 * @return the mean nanoseconds per event over the measured rounds.
+	 */
+	private static double measure(int events, Runnable body) {
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			body.run();
+		}
+		final long start = System.nanoTime();
+		for (int i = 0; i < MEASURED_ROUNDS; i++) {
+			body.run();
+		}
+		return (double) (System.nanoTime() - start) / ((long) MEASURED_ROUNDS * events);
+	}
+}
@@ -0,0 +1,260 @@
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Describes the keys of a piano: a contiguous pitch range, repeated on one or
+ * more manuals stacked from top to bottom. Key shapes follow the Piano
+ * geometry constants; a white key is notched only on the sides where a black
+ * key of the range actually sits, so ranges may start and end on any white
+ * key (an 88-key piano runs from A0 to C8).
+ *
+ * The keys of manual m are listed after those of manual m - 1, in increasing
+ * pitch order, and play on MIDI channel m.
+ */
+public class KeyboardLayout {
+	public static final int PIANO_88_LOW_PITCH = 21;
+	public static final int PIANO_88_HIGH_PITCH = 108;
+	/** The 36-key, three-octave layout the piano has always had. */
+	public static final KeyboardLayout DEFAULT = new KeyboardLayout(Piano.START_PITCH,
+			Piano.START_PITCH + Piano.NUM_OCTAVES * Piano.NUM_KEYS_PER_OCTAVE - 1, 1);
+
+	private final int _lowPitch;
+	private final int _highPitch;
+	private final int _numManuals;
+	private final int _numWhiteKeys;
+	private final int[] _keyIndexByColumn;
+
+	/**
+	 * @param lowPitch   the pitch of the leftmost key; must be a white key.
+	 * @param highPitch  the pitch of the rightmost key; must be a white key.
+	 * @param numManuals the number of stacked manuals.
+	 */
+	public KeyboardLayout(int lowPitch, int highPitch, int numManuals) {
+		if (lowPitch < 0 || highPitch > 127 || lowPitch > highPitch) {
+			throw new IllegalArgumentException("Invalid pitch range: " + lowPitch + "-" + highPitch);
+		}
+		if (KeyIndex.isBlack(lowPitch) || KeyIndex.isBlack(highPitch)) {
+			throw new IllegalArgumentException("The range must start and end on white keys");
+		}
+		if (numManuals < 1 || numManuals > 16) {
+			throw new IllegalArgumentException("Invalid number of manuals: " + numManuals);
+		}
+		_lowPitch = lowPitch;
+		_highPitch = highPitch;
+		_numManuals = numManuals;
+		int numWhiteKeys = 0;
+		for (int pitch = lowPitch; pitch <= highPitch; pitch++) {
+			if (!KeyIndex.isBlack(pitch)) {
+				numWhiteKeys++;
+			}
+		}
+		_numWhiteKeys = numWhiteKeys;
+		_keyIndexByColumn = new int[numWhiteKeys];
+		for (int pitch = lowPitch, column = 0; pitch <= highPitch; pitch++) {
+			if (!KeyIndex.isBlack(pitch)) {
+				_keyIndexByColumn[column++] = pitch - lowPitch;
+			}
+		}
+	}
+
+	/**
+	 * Returns the layout of a standard 88-key piano with the specified number
+	 * of manuals.
+	 *
+	 * @param numManuals the number of stacked manuals.
+	 * @return the layout.
+	 */
+	public static KeyboardLayout piano88(int numManuals) {
+		return new KeyboardLayout(PIANO_88_LOW_PITCH, PIANO_88_HIGH_PITCH, numManuals);
+	}
+
+	/**
+	 * Returns the pitch of the leftmost key.
+	 *
+	 * @return the lowest pitch.
+	 */
+	public int getLowPitch() {
+		return _lowPitch;
+	}
+
+	/**
+	 * Returns the pitch of the rightmost key.
+	 *
+	 * @return the highest pitch.
+	 */
+	public int getHighPitch() {
+		return _highPitch;
+	}
+
+	/**
+	 * Returns the number of stacked manuals.
+	 *
+	 * @return the manual count.
+	 */
+	public int getNumManuals() {
+		return _numManuals;
+	}
+
+	/**
+	 * Returns the number of white keys on one manual.
+	 *
+	 * @return the white key count.
+	 */
+	public int getNumWhiteKeys() {
+		return _numWhiteKeys;
+	}
+
+	/**
+	 * Returns the number of keys on one manual.
+	 *
+	 * @return the key count.
+	 */
+	public int getKeysPerManual() {
+		return _highPitch - _lowPitch + 1;
+	}
+
+	/**
+	 * Returns the number of keys on all manuals.
+	 *
+	 * @return the key count.
+	 */
+	public int getNumKeys() {
+		return getKeysPerManual() * _numManuals;
+	}
+
+	/**
+	 * Returns the width of the keyboard in pixels.
+	 *
+	 * @return the width.
+	 */
+	public int getWidth() {
+		return _numWhiteKeys * Piano.WHITE_KEY_WIDTH;
+	}
+
+	/**
+	 * Returns the height of all manuals together in pixels.
+	 *
+	 * @return the height.
+	 */
+	public int getHeight() {
+		return _numManuals * Piano.WHITE_KEY_HEIGHT;
+	}
+
+	/**
+	 * Returns the y-coordinate of the top edge of a manual.
+	 *
+	 * @param manual the manual number (starting at 0).
+	 * @return the top edge.
+	 */
+	public int getManualTop(int manual) {
+		return Piano.TOP + manual * Piano.WHITE_KEY_HEIGHT;
+	}
+
+	/**
+	 * Returns whether the specified pitch belongs to the layout.
+	 *
+	 * @param pitch the MIDI pitch.
+	 * @return true if the pitch is in range.
+	 */
+	public boolean contains(int pitch) {
+		return pitch >= _lowPitch && pitch <= _highPitch;
+	}
+
+	/**
+	 * Returns the position within its manual of the white key in a column.
+	 *
+	 * @param column the white column (starting at 0).
+	 * @return the key's index among the keys of one manual.
+	 */
+	public int getKeyIndex(int column) {
+		return _keyIndexByColumn[column];
+	}
+
+	/**
+	 * Instantiates the keys of every manual with their polygons and pitches.
+	 *
+	 * @param piano the piano the keys belong to.
+	 * @return the keys, manual by manual in increasing pitch order.
+	 */
+	public List<Key> makeKeys(Piano piano) {
+		final List<Key> keys = new ArrayList<>(getNumKeys());
+		for (int manual = 0; manual < _numManuals; manual++) {
+			final int top = getManualTop(manual);
+			int column = 0;
+			for (int pitch = _lowPitch; pitch <= _highPitch; pitch++) {
+				final int leftX = column * Piano.WHITE_KEY_WIDTH;
+				if (KeyIndex.isBlack(pitch)) {
+					keys.add(makeBlackKey(leftX - Piano.BLACK_KEY_WIDTH / 2, top, pitch, manual, piano));
+				} else {
+					keys.add(makeWhiteKey(leftX, top, pitch, manual, piano));
+					column++;
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Creates a key for the piano
+	 *
+	 * @param lowerLeftX the x-coordinate of the bottom-left corner of the key
+	 * @param lowerWidth the width of the key at the bottom edge
+	 * @param upperLeftX the x-coordinate of the top-left corner of the key
+	 * @param upperWidth the width of the key at the top edge
+	 * @param top        the y-coordinate of the top edge of the key
+	 * @param height     the height of the key
+	 * @param color      the color of the key
+	 * @param pitch      the pitch of the key
+	 * @param channel    the MIDI channel the key plays on
+	 * @param piano      the piano the key belongs to
+	 * @return the key
+	 */
+	private static Key makeKey(int lowerLeftX, int lowerWidth, int upperLeftX, int upperWidth, int top, int height,
+			Color color, int pitch, int channel, Piano piano) {
+		/*-
+		 * Example Key: left white key
+		 * upperLeftX -> ____					|
+		 *				 |  |					|
+		 *				 |  |___ <- upperRightX |
+		 *				 |	   |				|
+		 *				 |	   |				|
+		 * lowerLeftX -> |_____| <- lowerRightX | <- height
+		 */
+
+		// Drawing from upper left to right and then down, left, up again.
+		final int[] xPoints = { upperLeftX, upperLeftX + upperWidth, upperLeftX + upperWidth, lowerLeftX + lowerWidth,
+				lowerLeftX + lowerWidth, lowerLeftX, lowerLeftX, upperLeftX, upperLeftX };
+
+		// If it's a black key, the height is the same as the black key height, so we
+		// can use this as a common abstraction
+		final int notch = top + Piano.BLACK_KEY_HEIGHT;
+		final int bottom = top + height;
+		final int[] yPoints = { top, top, notch, notch, bottom, bottom, notch, notch, top };
+
+		final Polygon polygon = new Polygon(xPoints, yPoints, xPoints.length);
+		return new Key(polygon, color, pitch, channel, piano);
+	}
+
+	/**
+	 * Creates a black key whose upper-left corner is at (leftX, top).
+	 */
+	private static Key makeBlackKey(int leftX, int top, int pitch, int channel, Piano piano) {
+		return makeKey(leftX, Piano.BLACK_KEY_WIDTH, leftX, Piano.BLACK_KEY_WIDTH, top, Piano.BLACK_KEY_HEIGHT,
+				Color.BLACK, pitch, channel, piano);
+	}
+
+	/**
+	 * Creates a white key whose lower-left corner is at (leftX, top +
+	 * WHITE_KEY_HEIGHT), notched for the black keys of the range on either side.
+	 */
+	private Key makeWhiteKey(int leftX, int top, int pitch, int channel, Piano piano) {
+		final boolean leftNotch = contains(pitch - 1) && KeyIndex.isBlack(pitch - 1);
+		final boolean rightNotch = contains(pitch + 1) && KeyIndex.isBlack(pitch + 1);
+		final int upperLeftX = leftX + (leftNotch ? Piano.BLACK_KEY_WIDTH / 2 : 0);
+		final int upperWidth = Piano.WHITE_KEY_WIDTH - (leftNotch ? Piano.BLACK_KEY_WIDTH / 2 : 0)
+				- (rightNotch ? Piano.BLACK_KEY_WIDTH / 2 : 0);
+		return makeKey(leftX, Piano.WHITE_KEY_WIDTH, upperLeftX, upperWidth, top, Piano.WHITE_KEY_HEIGHT,
+				Color.WHITE, pitch, channel, piano);
+	}
+}
@@ -0,0 +1,146 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * Implements a lock-free latency histogram in the style of HdrHistogram:
+ * values are counted in buckets whose width grows with the value, so that
+ * every recorded value is known to within 1/SUB_BUCKETS (about 3%) from
+ * nanoseconds up to centuries, in a fixed array of counters. Recording is a
+ * single atomic increment and never allocates, so any number of threads may
+ * record while another reads percentiles.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int NUM_INDEXES = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final String _name;
+	private final AtomicLongArray _counts = new AtomicLongArray(NUM_INDEXES);
+	private final AtomicLong _max = new AtomicLong();
+
+	/**
+	 * @param name the name of the measured stage.
+	 */
+	public LatencyHistogram(String name) {
+		_name = name;
+	}
+
+	/**
+	 * Returns the name of the measured stage.
+	 *
+	 * @return the name.
+	 */
+	public String getName() {
+		return _name;
+	}
+
+	/**
+	 * Returns the counter index of a value: values below SUB_BUCKETS have one
+	 * counter each, and every power of two above is split into SUB_BUCKETS
+	 * counters.
+	 */
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int bucket = exponent - SUB_BUCKET_BITS + 1;
+		final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+		return bucket * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Returns the largest value counted at an index.
+	 */
+	private static long highestValueAt(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		final int bucket = index / SUB_BUCKETS;
+		final long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (bucket - 1);
+		return lowest + (1L << (bucket - 1)) - 1;
+	}
+
+	/**
+	 * Records one latency.
+	 *
+	 * @param nanos the latency in nanoseconds; negative values count as 0.
+	 */
+	public void record(long nanos) {
+		final long value = Math.max(0, nanos);
+		_counts.getAndIncrement(indexOf(value));
+		long max = _max.get();
+		while (value > max && !_max.compareAndSet(max, value)) {
+			max = _max.get();
+		}
+	}
+
+	/**
+	 * Returns the value below or at which the specified percentage of the
+	 * recorded values fall, to within the histogram's precision.
+	 *
+	 * @param percentile the percentile, between 0 and 100.
+	 * @return the value in nanoseconds, or 0 if nothing was recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		final long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < NUM_INDEXES; i++) {
+			seen += _counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValueAt(i), _max.get());
+			}
+		}
+		return _max.get();
+	}
+
+	@Override
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < NUM_INDEXES; i++) {
+			count += _counts.get(i);
+		}
+		return count;
+	}
+
+	@Override
+	public double getP50Micros() {
+		return getValueAtPercentile(50) / 1000.0;
+	}
+
+	@Override
+	public double getP99Micros() {
+		return getValueAtPercentile(99) / 1000.0;
+	}
+
+	@Override
+	public double getP999Micros() {
+		return getValueAtPercentile(99.9) / 1000.0;
+	}
+
+	@Override
+	public double getMaxMicros() {
+		return _max.get() / 1000.0;
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < NUM_INDEXES; i++) {
+			_counts.set(i, 0);
+		}
+		_max.set(0);
+	}
+
+	/**
+	 * Returns a one-line summary of the percentiles in microseconds.
+	 *
+	 * @return the summary.
+	 */
+	public String toString() {
+		return String.format("%s count=%d p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", _name, getCount(),
+				getP50Micros(), getP99Micros(), getP999Micros(), getMaxMicros());
+	}
+}
@@ -0,0 +1,44 @@
+/**
+ * Exposes a LatencyHistogram through JMX. Percentiles are in microseconds.
+ */
+public interface LatencyHistogramMBean {
+	/**
+	 * Returns the number of recorded latencies.
+	 *
+	 * @return the count.
+	 */
+	long getCount();
+
+	/**
+	 * Returns the median latency.
+	 *
+	 * @return the 50th percentile in microseconds.
+	 */
+	double getP50Micros();
+
+	/**
+	 * Returns the 99th percentile latency.
+	 *
+	 * @return the 99th percentile in microseconds.
+	 */
+	double getP99Micros();
+
+	/**
+	 * Returns the 99.9th percentile latency.
+	 *
+	 * @return the 99.9th percentile in microseconds.
+	 */
+	double getP999Micros();
+
+	/**
+	 * Returns the largest recorded latency.
+	 *
+	 * @return the maximum in microseconds.
+	 */
+	double getMaxMicros();
+
+	/**
+	 * Forgets every recorded latency.
+	 */
+	void reset();
+}
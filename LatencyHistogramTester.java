@@ -0,0 +1,47 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Contains a set of unit tests for the LatencyHistogram class.
+ */
+class LatencyHistogramTester {
+	private LatencyHistogram _histogram;
+
+	@BeforeEach
+	void setup() {
+		_histogram = new LatencyHistogram("test");
+	}
+
+	@Test
+	void testPercentilesWithinPrecision() {
+		// 1..100000 us: every percentile must be within the 1/32 bucket width.
+		for (long micros = 1; micros <= 100_000; micros++) {
+			_histogram.record(micros * 1000);
+		}
+		assertEquals(100_000, _histogram.getCount());
+		assertEquals(50_000, _histogram.getP50Micros(), 50_000 / 32.0);
+		assertEquals(99_000, _histogram.getP99Micros(), 99_000 / 32.0);
+		assertEquals(99_900, _histogram.getP999Micros(), 99_900 / 32.0);
+		assertEquals(100_000, _histogram.getMaxMicros());
+	}
+
+	@Test
+	void testSmallValuesAreExact() {
+		for (int i = 0; i < 10; i++) {
+			_histogram.record(i);
+		}
+		_histogram.record(-5); // counts as 0
+		assertEquals(0, _histogram.getValueAtPercentile(0));
+		assertEquals(4, _histogram.getValueAtPercentile(50));
+		assertEquals(9, _histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	void testReset() {
+		_histogram.record(1_000_000);
+		_histogram.reset();
+		assertEquals(0, _histogram.getCount());
+		assertEquals(0, _histogram.getValueAtPercentile(99));
+		assertEquals(0, _histogram.getMaxMicros());
+	}
+}
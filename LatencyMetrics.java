@@ -0,0 +1,75 @@
+import java.io.*;
+import java.lang.management.*;
+import javax.management.*;
+
+/**
+ * Holds the latency histograms of each stage a note goes through. Band
+ * records the client stages and Server the server stages; since the two run
+ * on different clocks, there is no end-to-end histogram, but the stages of one
+ * process add up to its share of the delay.
+ *
+ * Client stages:
+ * INPUT - from the operating system's mouse event to PianoMouseListener
+ * (millisecond resolution);
+ * KEY_PLAY - Key.play building the message and handing it to the receiver;
+ * NETWORK_SEND - from NetworkReceiver.send() to the datagram carrying the
+ * message being handed to the socket, including queueing and batching.
+ *
+ * Server stages:
+ * SERVER_QUEUE - from a packet's receipt to its dispatch;
+ * SYNTH_SEND - building one event's message and the MIDI Receiver.send()
+ * call that plays it;
+ * SERVER_TOTAL - from a packet's receipt to the last of its events being sent
+ * to the synthesizer (or scheduled, in playout mode);
+ * PLAYOUT_WAIT - in playout mode, how long a packet waits in the jitter buffer
+ * after being dispatched.
+ */
+public class LatencyMetrics {
+	public static final String DOMAIN = "band";
+
+	public static final LatencyHistogram INPUT = new LatencyHistogram("input");
+	public static final LatencyHistogram KEY_PLAY = new LatencyHistogram("keyPlay");
+	public static final LatencyHistogram NETWORK_SEND = new LatencyHistogram("networkSend");
+	public static final LatencyHistogram SERVER_QUEUE = new LatencyHistogram("serverQueue");
+	public static final LatencyHistogram SYNTH_SEND = new LatencyHistogram("synthSend");
+	public static final LatencyHistogram SERVER_TOTAL = new LatencyHistogram("serverTotal");
+	public static final LatencyHistogram PLAYOUT_WAIT = new LatencyHistogram("playoutWait");
+
+	private static final LatencyHistogram[] ALL = { INPUT, KEY_PLAY, NETWORK_SEND, SERVER_QUEUE, SYNTH_SEND,
+			SERVER_TOTAL, PLAYOUT_WAIT };
+
+	private LatencyMetrics() {
+	}
+
+	/**
+	 * Registers every histogram with the platform MBean server, as
+	 * band:type=Latency,stage=NAME, so that they can be watched with JConsole
+	 * or any JMX client. Registering twice has no effect.
+	 */
+	public static synchronized void registerMBeans() {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (LatencyHistogram histogram : ALL) {
+			try {
+				final ObjectName name = new ObjectName(DOMAIN + ":type=Latency,stage=" + histogram.getName());
+				if (!server.isRegistered(name)) {
+					server.registerMBean(histogram, name);
+				}
+			} catch (JMException jme) {
+				jme.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Prints one line per stage that recorded anything.
+	 *
+	 * @param out the stream to print to.
+	 */
+	public static void dump(PrintStream out) {
+		for (LatencyHistogram histogram : ALL) {
+			if (histogram.getCount() > 0) {
+				out.println("latency " + histogram);
+			}
+		}
+	}
+}
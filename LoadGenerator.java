@@ -0,0 +1,338 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import javax.sound.midi.*;
+
+/**
+ * Simulates a band of many clients to capacity-plan the server, without Swing
+ * or sound hardware. Each player has its own NetworkReceiver, and therefore
+ * its own source port, and plays a note pattern on its own (virtual, when
+ * available) thread.
+ *
+ * By default the generator also runs a ServerEngine in the same process,
+ * playing into a counting receiver, and reports the delivered rate, the loss
+ * and the server's latency stages. With "--server HOST" it drives a remote
+ * server instead and only reports what it sent.
+ *
+ * The server has a route per channel (16 without overflow). Players beyond
+ * that take routes from each other, which the server silences with All Notes
+ * Off; the report counts these reassignments apart from the loss, so that a
+ * band too large for the server is not mistaken for a lossy network.
+ *
+ * Options:
+ * "--players N" (default ChannelAllocator.NUM_CHANNELS, one per route);
+ * "--seconds S" (default 10);
+ * "--pattern chord|trill|pedal|mixed" (default mixed);
+ * "--interval MS" between pattern steps (default 100);
+ * "--protocol 1|2" and "--window US" select the wire format;
+ * "--playout MS" sends timestamped version 2 packets and runs the in-process
+ * server in playout mode with that minimum delay;
+ * "--reliable" sends version 2 packets and delivers note-offs and pedal
+ * releases reliably;
+ * "--stream" sends over TCP connections instead of datagrams, and has the
+ * in-process server accept them;
+ * "--server HOST" drives an external server.
+ *
+ * Run with: java LoadGenerator --players 200 --seconds 30
+ */
+public class LoadGenerator {
+	private static final int VELOCITY = 93;
+	private static final int SUSTAIN = 64;
+	private static final long REPORT_INTERVAL_MS = 1000;
+
+	/**
+	 * The note patterns a player can follow.
+	 */
+	public enum Pattern {
+		/** Three-note chords on a rising root, released before the next one. */
+		CHORD,
+		/** Two neighbouring notes alternating, each released before the next. */
+		TRILL,
+		/** An arpeggio held by the sustain pedal, released all at once. */
+		PEDAL
+	}
+
+	/**
+	 * Counts the messages played, like TestReceiver but cheaply enough for the
+	 * dispatch thread of a loaded server.
+	 */
+	public static class CountingReceiver implements Receiver {
+		private volatile long _noteOnCount;
+		private volatile long _noteOffCount;
+		private volatile long _otherCount;
+
+		@Override
+		public void send(MidiMessage midiMessage, long timeStamp) {
+			final ShortMessage message = (ShortMessage) midiMessage;
+			if (message.getCommand() == ShortMessage.NOTE_ON) {
+				_noteOnCount++;
+			} else if (message.getCommand() == ShortMessage.NOTE_OFF) {
+				_noteOffCount++;
+			} else {
+				_otherCount++;
+			}
+		}
+
+		@Override
+		public void close() {
+		}
+
+		/**
+		 * Returns the number of note-on messages played.
+		 *
+		 * @return the count.
+		 */
+		public long getNoteOnCount() {
+			return _noteOnCount;
+		}
+
+		/**
+		 * Returns the number of note-off messages played.
+		 *
+		 * @return the count.
+		 */
+		public long getNoteOffCount() {
+			return _noteOffCount;
+		}
+
+		/**
+		 * Returns the number of other messages played, such as pedal changes and
+		 * the All Notes Off sent when a channel changes hands.
+		 *
+		 * @return the count.
+		 */
+		public long getOtherCount() {
+			return _otherCount;
+		}
+	}
+
+	/**
+	 * Plays one pattern over its own NetworkReceiver until stopped.
+	 */
+	static class Player implements Runnable {
+		private final NetworkReceiver _receiver;
+		private final Pattern _pattern;
+		private final long _intervalNanos;
+		private final int _root;
+		private final ShortMessage _message = new ShortMessage();
+		private volatile boolean _running = true;
+		private volatile long _sentCount;
+
+		Player(NetworkReceiver receiver, Pattern pattern, long intervalNanos, int root) {
+			_receiver = receiver;
+			_pattern = pattern;
+			_intervalNanos = intervalNanos;
+			_root = root;
+		}
+
+		@Override
+		public void run() {
+			long next = System.nanoTime();
+			for (int step = 0; _running; step++) {
+				switch (_pattern) {
+				case CHORD:
+					final int root = _root + step % 12;
+					send(ShortMessage.NOTE_ON, root, VELOCITY);
+					send(ShortMessage.NOTE_ON, root + 4, VELOCITY);
+					send(ShortMessage.NOTE_ON, root + 7, VELOCITY);
+					next = pause(next);
+					send(ShortMessage.NOTE_OFF, root, 0);
+					send(ShortMessage.NOTE_OFF, root + 4, 0);
+					send(ShortMessage.NOTE_OFF, root + 7, 0);
+					break;
+				case TRILL:
+					final int pitch = _root + step % 2;
+					send(ShortMessage.NOTE_ON, pitch, VELOCITY);
+					next = pause(next);
+					send(ShortMessage.NOTE_OFF, pitch, 0);
+					break;
+				case PEDAL:
+					send(ShortMessage.CONTROL_CHANGE, SUSTAIN, 127);
+					for (int i = 0; i < 8 && _running; i++) {
+						send(ShortMessage.NOTE_ON, _root + i * 2, VELOCITY);
+						next = pause(next);
+					}
+					send(ShortMessage.CONTROL_CHANGE, SUSTAIN, 0);
+					for (int i = 0; i < 8; i++) {
+						send(ShortMessage.NOTE_OFF, _root + i * 2, 0);
+					}
+					break;
+				}
+			}
+			_receiver.close();
+		}
+
+		/**
+		 * Sends one message on channel 0 (the server assigns the real channel).
+		 */
+		private void send(int command, int data1, int data2) {
+			try {
+				_message.setMessage(command, 0, data1, data2);
+			} catch (InvalidMidiDataException imde) {
+				return;
+			}
+			_receiver.send(_message, -1);
+			_sentCount++;
+		}
+
+		/**
+		 * Waits for the next step on a fixed schedule, so that slow sends do not
+		 * lower the rate.
+		 */
+		private long pause(long last) {
+			final long next = last + _intervalNanos;
+			final long wait = next - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			return next;
+		}
+
+		void stop() {
+			_running = false;
+		}
+
+		long getSentCount() {
+			return _sentCount;
+		}
+
+		NetworkReceiver getReceiver() {
+			return _receiver;
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int numPlayers = ChannelAllocator.NUM_CHANNELS;
+		long seconds = 10;
+		String patternName = "mixed";
+		long intervalMs = 100;
+		int protocol = WireFormat.VERSION_1;
+		int windowMicros = 0;
+		String server = null;
+		long playoutMs = -1;
+		boolean reliable = false;
+		boolean stream = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--players") && i + 1 < args.length) {
+				numPlayers = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--seconds") && i + 1 < args.length) {
+				seconds = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--pattern") && i + 1 < args.length) {
+				patternName = args[++i];
+			} else if (args[i].equals("--interval") && i + 1 < args.length) {
+				intervalMs = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--protocol") && i + 1 < args.length) {
+				protocol = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--window") && i + 1 < args.length) {
+				windowMicros = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--server") && i + 1 < args.length) {
+				server = args[++i];
+			} else if (args[i].equals("--playout") && i + 1 < args.length) {
+				playoutMs = Long.parseLong(args[++i]);
+				protocol = WireFormat.VERSION_2;
+			} else if (args[i].equals("--stream")) {
+				stream = true;
+			} else if (args[i].equals("--reliable")) {
+				reliable = true;
+				protocol = WireFormat.VERSION_2;
+			}
+		}
+
+		final CountingReceiver sink = new CountingReceiver();
+		ServerEngine engine = null;
+		if (server == null) {
+			engine = new ServerEngine(Server.PORT, sink, ServerEngine.DEFAULT_RING_CAPACITY);
+			if (playoutMs >= 0) {
+				engine.setPlayout(playoutMs * 1_000_000, Server.DEFAULT_MAX_PLAYOUT_MS * 1_000_000);
+			}
+			if (stream) {
+				engine.openStreams(Server.PORT);
+			}
+			engine.start();
+			server = "127.0.0.1";
+		}
+
+		final Pattern[] patterns = Pattern.values();
+		final Player[] players = new Player[numPlayers];
+		for (int i = 0; i < numPlayers; i++) {
+			final NetworkReceiver receiver = new NetworkReceiver();
+			receiver.setAddress(server);
+			receiver.setProtocol(protocol, windowMicros);
+			receiver.setTimestamps(playoutMs >= 0);
+			receiver.setReliable(reliable);
+			receiver.setStream(stream);
+			final Pattern pattern = patternName.equals("mixed") ? patterns[i % patterns.length]
+					: Pattern.valueOf(patternName.toUpperCase());
+			players[i] = new Player(receiver, pattern, intervalMs * 1_000_000, 36 + i % 48);
+		}
+		System.out.println(numPlayers + " players on " + (VirtualThreads.isAvailable() ? "virtual" : "platform")
+				+ " threads for " + seconds + " s");
+		final Thread[] threads = new Thread[numPlayers];
+		for (int i = 0; i < numPlayers; i++) {
+			threads[i] = VirtualThreads.start("player-" + i, players[i]);
+		}
+
+		long lastSent = 0;
+		final long start = System.nanoTime();
+		for (long elapsed = 0; elapsed < seconds * 1000; elapsed += REPORT_INTERVAL_MS) {
+			Thread.sleep(REPORT_INTERVAL_MS);
+			final long sent = sentCount(players);
+			System.out.println("sent/s=" + (sent - lastSent) + (engine == null ? ""
+					: " queue=" + engine.getQueueDepth() + " dropped=" + engine.getDropCount()));
+			lastSent = sent;
+		}
+		for (Player player : players) {
+			player.stop();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		final double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+		final long sent = sentCount(players);
+		System.out.printf("sent=%d (%.0f/s)%n", sent, sent / elapsedSeconds);
+		if (reliable) {
+			long retransmits = 0;
+			long givenUp = 0;
+			for (Player player : players) {
+				retransmits += player.getReceiver().getRetransmitCount();
+				givenUp += player.getReceiver().getGivenUpCount();
+			}
+			System.out.println("retransmits=" + retransmits + " givenUp=" + givenUp);
+		}
+		if (engine != null) {
+			// Let the server drain what is still in flight.
+			Thread.sleep(REPORT_INTERVAL_MS);
+			final long delivered = engine.getDispatchedCount();
+			// Rejected events arrived; they are reported apart from the loss.
+			final long lost = sent - delivered - engine.getRejectedCount();
+			System.out.printf("delivered=%d (%.0f/s) lost=%d (%.2f%%) ringDrops=%d invalid=%d rejected=%d%n",
+					delivered, delivered / elapsedSeconds, lost, 100.0 * lost / Math.max(1, sent),
+					engine.getDropCount(), engine.getInvalidCount(), engine.getRejectedCount());
+			System.out.println("reassigned=" + engine.getReassignedCount() + " (routes=" + engine.getRouteCount()
+					+ ", players=" + numPlayers + ")");
+			if (playoutMs >= 0) {
+				System.out.println("late=" + engine.getLateCount() + " duplicates=" + engine.getDuplicateCount()
+						+ " maxDelayMs=" + engine.getMaxPlayoutDelayNanos() / 1_000_000.0);
+			}
+			if (reliable) {
+				System.out.println("retransmitted=" + engine.getRetransmittedCount());
+			}
+			System.out.println("noteOn=" + sink.getNoteOnCount() + " noteOff=" + sink.getNoteOffCount()
+					+ " other=" + sink.getOtherCount());
+			LatencyMetrics.dump(System.out);
+			engine.close();
+		}
+	}
+
+	/**
+	 * Returns the messages sent by every player so far.
+	 */
+	private static long sentCount(Player[] players) {
+		long sent = 0;
+		for (Player player : players) {
+			sent += player.getSentCount();
+		}
+		return sent;
+	}
+}
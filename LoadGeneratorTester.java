@@ -0,0 +1,87 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import java.util.function.*;
+
+/**
+ * Contains a set of unit tests for the LoadGenerator's players, playing into
+ * an in-process ServerEngine. The players send over streams, so that every
+ * message they send arrives however loaded the test machine is.
+ */
+class LoadGeneratorTester {
+	private static final int TIMEOUT_MS = 2000;
+	private static final long INTERVAL_NANOS = 2_000_000;
+	private static final long PLAY_MS = 100;
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		final long deadline = System.nanoTime() + TIMEOUT_MS * 1_000_000L;
+		while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Plays every pattern in turn with the specified number of players for a
+	 * short while, and returns the number of messages they sent.
+	 */
+	private static long play(ServerEngine engine, int numPlayers) throws Exception {
+		final LoadGenerator.Pattern[] patterns = LoadGenerator.Pattern.values();
+		final LoadGenerator.Player[] players = new LoadGenerator.Player[numPlayers];
+		final Thread[] threads = new Thread[numPlayers];
+		for (int i = 0; i < numPlayers; i++) {
+			final NetworkReceiver receiver = new NetworkReceiver();
+			receiver.setAddress("127.0.0.1");
+			receiver.setPort(engine.getStreamPort());
+			receiver.setProtocol(WireFormat.VERSION_2, 0);
+			receiver.setStream(true);
+			players[i] = new LoadGenerator.Player(receiver, patterns[i % patterns.length], INTERVAL_NANOS, 36 + i);
+			threads[i] = new Thread(players[i], "player-" + i);
+			threads[i].start();
+		}
+		Thread.sleep(PLAY_MS);
+		long sent = 0;
+		for (int i = 0; i < numPlayers; i++) {
+			players[i].stop();
+			threads[i].join();
+			sent += players[i].getSentCount();
+		}
+		return sent;
+	}
+
+	@Test
+	void testDefaultBandFitsTheRoutes() throws Exception {
+		final LoadGenerator.CountingReceiver sink = new LoadGenerator.CountingReceiver();
+		final ServerEngine engine = new ServerEngine(0, sink, ServerEngine.DEFAULT_RING_CAPACITY);
+		engine.openStreams(0);
+		engine.start();
+		try {
+			final long sent = play(engine, ChannelAllocator.NUM_CHANNELS);
+			await(() -> engine.getDispatchedCount() == sent);
+			assertEquals(ChannelAllocator.NUM_CHANNELS, engine.getRouteCount());
+			assertEquals(ChannelAllocator.NUM_CHANNELS, engine.getActiveSourceCount());
+			assertEquals(0, engine.getReassignedCount());
+			// Readers wait for a full ring rather than drop.
+			assertEquals(sent, engine.getDispatchedCount(), "nothing is lost");
+			assertEquals(0, engine.getDropCount());
+			assertTrue(sink.getNoteOffCount() >= sink.getNoteOnCount(), "every pattern releases its notes");
+		} finally {
+			engine.close();
+		}
+	}
+
+	@Test
+	void testLargerBandIsReportedAsReassigned() throws Exception {
+		final LoadGenerator.CountingReceiver sink = new LoadGenerator.CountingReceiver();
+		final ServerEngine engine = new ServerEngine(0, sink, ServerEngine.DEFAULT_RING_CAPACITY);
+		engine.openStreams(0);
+		engine.start();
+		try {
+			final long sent = play(engine, 2 * ChannelAllocator.NUM_CHANNELS);
+			await(() -> engine.getDispatchedCount() == sent);
+			assertTrue(engine.getReassignedCount() > 0, "players took routes from each other");
+			// Reassignment silences notes, but loses no events.
+			assertEquals(sent, engine.getDispatchedCount());
+		} finally {
+			engine.close();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+import java.util.*;
+
+/**
+ * Implements an open-addressing hash map from non-negative long keys to int
+ * values. Lookups, updates and removals allocate nothing; the tables are only
+ * reallocated when the map grows past its load factor.
+ */
+public class LongIntHashMap {
+	private static final long EMPTY = -1;
+
+	private long[] _keys;
+	private int[] _values;
+	private int _mask;
+	private int _size;
+
+	/**
+	 * @param expectedSize the number of entries to size the tables for.
+	 */
+	public LongIntHashMap(int expectedSize) {
+		allocate(Integer.highestOneBit(Math.max(4, expectedSize * 2) * 2 - 1));
+	}
+
+	private void allocate(int capacity) {
+		_keys = new long[capacity];
+		_values = new int[capacity];
+		_mask = capacity - 1;
+		Arrays.fill(_keys, EMPTY);
+	}
+
+	/**
+	 * Spreads the key bits so that keys differing only in their high bits (e.g.
+	 * packed addresses) land in different buckets.
+	 */
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ h >>> 32);
+	}
+
+	/**
+	 * Returns the value mapped to the key.
+	 *
+	 * @param key the key, which must not be negative.
+	 * @return the value, or -1 if the key is not mapped.
+	 */
+	public int get(long key) {
+		for (int i = hash(key) & _mask;; i = i + 1 & _mask) {
+			final long k = _keys[i];
+			if (k == key) {
+				return _values[i];
+			}
+			if (k == EMPTY) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Maps the key to the value, replacing any previous mapping.
+	 *
+	 * @param key   the key, which must not be negative.
+	 * @param value the value.
+	 */
+	public void put(long key, int value) {
+		if (key < 0) {
+			throw new IllegalArgumentException("Negative key: " + key);
+		}
+		int i = hash(key) & _mask;
+		while (_keys[i] != EMPTY && _keys[i] != key) {
+			i = i + 1 & _mask;
+		}
+		if (_keys[i] == EMPTY) {
+			if (2 * (_size + 1) > _keys.length) {
+				grow();
+				put(key, value);
+				return;
+			}
+			_keys[i] = key;
+			_size++;
+		}
+		_values[i] = value;
+	}
+
+	/**
+	 * Removes the mapping of the key, if any. Uses backward-shift deletion so
+	 * no tombstones accumulate.
+	 *
+	 * @param key the key to remove.
+	 * @return the removed value, or -1 if the key was not mapped.
+	 */
+	public int remove(long key) {
+		int i = hash(key) & _mask;
+		while (_keys[i] != key) {
+			if (_keys[i] == EMPTY) {
+				return -1;
+			}
+			i = i + 1 & _mask;
+		}
+		final int value = _values[i];
+		// Shift later members of the probe chain back into the hole.
+		int hole = i;
+		for (int j = hole + 1 & _mask; _keys[j] != EMPTY; j = j + 1 & _mask) {
+			final int home = hash(_keys[j]) & _mask;
+			if ((j - home & _mask) >= (j - hole & _mask)) {
+				_keys[hole] = _keys[j];
+				_values[hole] = _values[j];
+				hole = j;
+			}
+		}
+		_keys[hole] = EMPTY;
+		_size--;
+		return value;
+	}
+
+	/**
+	 * Returns the number of mapped keys.
+	 *
+	 * @return the size.
+	 */
+	public int size() {
+		return _size;
+	}
+
+	private void grow() {
+		final long[] keys = _keys;
+		final int[] values = _values;
+		allocate(keys.length * 2);
+		_size = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				put(keys[i], values[i]);
+			}
+		}
+	}
+}
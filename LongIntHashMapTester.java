@@ -0,0 +1,49 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import java.util.*;
+
+/**
+ * Contains a set of unit tests for the LongIntHashMap class.
+ */
+class LongIntHashMapTester {
+	@Test
+	void testPutGetRemove() {
+		final LongIntHashMap map = new LongIntHashMap(4);
+		assertEquals(-1, map.get(0));
+		map.put(0, 10);
+		map.put(Long.MAX_VALUE, 20);
+		assertEquals(10, map.get(0));
+		assertEquals(20, map.get(Long.MAX_VALUE));
+		map.put(0, 11);
+		assertEquals(11, map.get(0));
+		assertEquals(2, map.size());
+		assertEquals(11, map.remove(0));
+		assertEquals(-1, map.remove(0));
+		assertEquals(-1, map.get(0));
+		assertEquals(1, map.size());
+		assertThrows(IllegalArgumentException.class, () -> map.put(-1, 0));
+	}
+
+	@Test
+	void testMatchesHashMapUnderRandomOperations() {
+		final LongIntHashMap map = new LongIntHashMap(2);
+		final Map<Long, Integer> expected = new HashMap<>();
+		final Random random = new Random(42);
+		for (int i = 0; i < 100_000; i++) {
+			// Few distinct keys, so that probe chains form and are shifted back
+			// on removal; high bits only, like packed addresses.
+			final long key = (long) random.nextInt(300) << 40;
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.getOrDefault(key, -1), map.remove(key));
+				expected.remove(key);
+			} else {
+				map.put(key, i);
+				expected.put(key, i);
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for (long key = 0; key < 300; key++) {
+			assertEquals(expected.getOrDefault(key << 40, -1), map.get(key << 40));
+		}
+	}
+}
@@ -0,0 +1,190 @@
+import javax.sound.midi.*;
+
+/**
+ * Serves the MIDI messages the band sends, without allocating on the note
+ * path. Note-ons and note-offs at DEFAULT_VELOCITY, the only velocity a Key
+ * plays, and program changes are pre-built once in flat tables, as immutable
+ * messages that any number of threads and receivers may hold on to. Other
+ * messages come from a Pool of mutable messages, which a single thread reuses
+ * once the receiver is done with them.
+ */
+public class MidiMessages {
+	public static final int DEFAULT_VELOCITY = 93;
+	private static final int NUM_CHANNELS = 16;
+	private static final int NUM_VALUES = 128;
+
+	// Index: (channel * NUM_VALUES + pitch) * 2 + (1 for note-on).
+	private static final ShortMessage[] NOTES = new ShortMessage[NUM_CHANNELS * NUM_VALUES * 2];
+	// Index: channel * NUM_VALUES + program.
+	private static final ShortMessage[] PROGRAM_CHANGES = new ShortMessage[NUM_CHANNELS * NUM_VALUES];
+
+	static {
+		for (int channel = 0; channel < NUM_CHANNELS; channel++) {
+			for (int value = 0; value < NUM_VALUES; value++) {
+				final int index = channel * NUM_VALUES + value;
+				NOTES[index * 2] = immutable(ShortMessage.NOTE_OFF, channel, value, DEFAULT_VELOCITY);
+				NOTES[index * 2 + 1] = immutable(ShortMessage.NOTE_ON, channel, value, DEFAULT_VELOCITY);
+				PROGRAM_CHANGES[index] = immutable(ShortMessage.PROGRAM_CHANGE, channel, value, 0);
+			}
+		}
+	}
+
+	/**
+	 * A ShortMessage whose content cannot change once built. Its clone() is
+	 * an ordinary, mutable ShortMessage.
+	 */
+	private static class ImmutableShortMessage extends ShortMessage {
+		ImmutableShortMessage(byte[] data) {
+			// Unlike the other constructors, this one does not call setMessage().
+			super(data);
+		}
+
+		@Override
+		public void setMessage(int status) {
+			throw new UnsupportedOperationException("Immutable message");
+		}
+
+		@Override
+		public void setMessage(int status, int data1, int data2) {
+			throw new UnsupportedOperationException("Immutable message");
+		}
+
+		@Override
+		public void setMessage(int command, int channel, int data1, int data2) {
+			throw new UnsupportedOperationException("Immutable message");
+		}
+
+		@Override
+		protected void setMessage(byte[] data, int length) {
+			throw new UnsupportedOperationException("Immutable message");
+		}
+	}
+
+	/**
+	 * Builds an immutable message, of the length its command calls for.
+	 */
+	private static ShortMessage immutable(int command, int channel, int data1, int data2) {
+		try {
+			return new ImmutableShortMessage(new ShortMessage(command, channel, data1, data2).getMessage());
+		} catch (InvalidMidiDataException imde) {
+			throw new IllegalArgumentException(imde);
+		}
+	}
+
+	/**
+	 * Returns the immutable note-on or note-off message at DEFAULT_VELOCITY.
+	 *
+	 * @param isOn    whether to return the note-on (or the note-off).
+	 * @param channel the MIDI channel, between 0 and 15.
+	 * @param pitch   the pitch, between 0 and 127.
+	 * @return the shared message.
+	 */
+	public static ShortMessage note(boolean isOn, int channel, int pitch) {
+		return NOTES[(channel * NUM_VALUES + pitch) * 2 + (isOn ? 1 : 0)];
+	}
+
+	/**
+	 * Returns the immutable program change message.
+	 *
+	 * @param channel the MIDI channel, between 0 and 15.
+	 * @param program the program, between 0 and 127.
+	 * @return the shared message.
+	 */
+	public static ShortMessage programChange(int channel, int program) {
+		return PROGRAM_CHANGES[channel * NUM_VALUES + program];
+	}
+
+	/**
+	 * Returns the pre-built immutable message with the specified content, if
+	 * there is one.
+	 *
+	 * @param command the MIDI command.
+	 * @param channel the MIDI channel.
+	 * @param data1   the first data byte.
+	 * @param data2   the second data byte.
+	 * @return the shared message, or null if it must be built.
+	 */
+	public static ShortMessage cached(int command, int channel, int data1, int data2) {
+		if (channel < 0 || channel >= NUM_CHANNELS || data1 < 0 || data1 >= NUM_VALUES) {
+			return null;
+		}
+		switch (command) {
+		case ShortMessage.NOTE_ON:
+		case ShortMessage.NOTE_OFF:
+			return data2 == DEFAULT_VELOCITY ? note(command == ShortMessage.NOTE_ON, channel, data1) : null;
+		case ShortMessage.PROGRAM_CHANGE:
+			return data2 == 0 ? programChange(channel, data1) : null;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Lends mutable messages for the messages that are not pre-built. A pool
+	 * belongs to a single thread, which must only release a message once the
+	 * receiver it was sent to is done with it (for messages sent with
+	 * timestamp -1, when send() returns).
+	 */
+	public static class Pool {
+		private final ShortMessage[] _free;
+		private int _freeCount;
+		private long _createdCount;
+
+		/**
+		 * @param capacity the number of released messages kept for reuse.
+		 */
+		public Pool(int capacity) {
+			_free = new ShortMessage[capacity];
+		}
+
+		/**
+		 * Lends a message holding the specified content.
+		 *
+		 * @param command the MIDI command.
+		 * @param channel the MIDI channel.
+		 * @param data1   the first data byte.
+		 * @param data2   the second data byte.
+		 * @return the message, to be given back with release().
+		 * @throws InvalidMidiDataException if the content is not a valid
+		 *                                  message; nothing is lent then.
+		 */
+		public ShortMessage acquire(int command, int channel, int data1, int data2)
+				throws InvalidMidiDataException {
+			final ShortMessage message;
+			if (_freeCount > 0) {
+				message = _free[--_freeCount];
+				_free[_freeCount] = null;
+			} else {
+				message = new ShortMessage();
+				_createdCount++;
+			}
+			try {
+				message.setMessage(command, channel, data1, data2);
+			} catch (InvalidMidiDataException imde) {
+				release(message);
+				throw imde;
+			}
+			return message;
+		}
+
+		/**
+		 * Gives back a message lent by acquire().
+		 *
+		 * @param message the message.
+		 */
+		public void release(ShortMessage message) {
+			if (_freeCount < _free.length) {
+				_free[_freeCount++] = message;
+			}
+		}
+
+		/**
+		 * Returns the number of messages the pool had to create.
+		 *
+		 * @return the created count.
+		 */
+		public long getCreatedCount() {
+			return _createdCount;
+		}
+	}
+}
@@ -0,0 +1,45 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import javax.sound.midi.*;
+
+/**
+ * Contains a set of unit tests for the MidiMessages class.
+ */
+class MidiMessagesTester {
+	@Test
+	void testNotesArePrebuilt() {
+		final ShortMessage on = MidiMessages.note(true, 3, 60);
+		assertEquals(ShortMessage.NOTE_ON, on.getCommand());
+		assertEquals(3, on.getChannel());
+		assertEquals(60, on.getData1());
+		assertEquals(MidiMessages.DEFAULT_VELOCITY, on.getData2());
+		assertSame(on, MidiMessages.note(true, 3, 60));
+		assertSame(on, MidiMessages.cached(ShortMessage.NOTE_ON, 3, 60, MidiMessages.DEFAULT_VELOCITY));
+		assertEquals(ShortMessage.NOTE_OFF, MidiMessages.note(false, 15, 127).getCommand());
+		assertNull(MidiMessages.cached(ShortMessage.NOTE_ON, 3, 60, 0));
+		assertNull(MidiMessages.cached(ShortMessage.PROGRAM_CHANGE, 128, 0, 0));
+	}
+
+	@Test
+	void testPrebuiltMessagesAreImmutable() throws InvalidMidiDataException {
+		final ShortMessage programChange = MidiMessages.programChange(0, 5);
+		assertEquals(2, programChange.getLength());
+		assertThrows(UnsupportedOperationException.class,
+				() -> programChange.setMessage(ShortMessage.PROGRAM_CHANGE, 0, 6, 0));
+		final ShortMessage copy = (ShortMessage) programChange.clone();
+		copy.setMessage(ShortMessage.PROGRAM_CHANGE, 0, 6, 0);
+		assertEquals(5, programChange.getData1());
+	}
+
+	@Test
+	void testPoolReusesMessages() throws InvalidMidiDataException {
+		final MidiMessages.Pool pool = new MidiMessages.Pool(2);
+		final ShortMessage first = pool.acquire(ShortMessage.CONTROL_CHANGE, 1, 64, 127);
+		assertEquals(64, first.getData1());
+		pool.release(first);
+		assertSame(first, pool.acquire(ShortMessage.NOTE_ON, 1, 60, 40));
+		assertEquals(40, first.getData2());
+		assertThrows(InvalidMidiDataException.class, () -> pool.acquire(ShortMessage.NOTE_ON, 16, 60, 40));
+		assertEquals(2, pool.getCreatedCount());
+	}
+}
@@ -1,28 +1,250 @@
 import javax.sound.midi.*;
 import java.io.*;
+import java.lang.invoke.*;
 import java.nio.*;
 import java.net.*;
+import java.util.concurrent.locks.*;
 
-// DO NOT MODIFY THIS CLASS.
 /**
  * Implements a network-based MIDI receiver that
  * can be accessed remotely.
+ *
+ * By default every message is sent right away as a version 1 packet. After
+ * setProtocol(WireFormat.VERSION_2, windowMicros), messages are packed into
+ * version 2 packets instead: the first message of a batch opens a window of
+ * windowMicros, and everything sent before the window closes (up to
+ * WireFormat.MAX_EVENTS) leaves in the same datagram.
+ *
+ * A receiver created with a queue capacity sends asynchronously: send() only
+ * packs the message into a lock-free EventQueue, and a dedicated sender thread
+ * encodes and transmits it. In that mode send() never blocks or allocates, so
+ * it is safe to call from the Swing event thread, but it must only be called
+ * from one thread at a time.
+ *
+ * After setReliable(true), version 2 packets holding a state change (see
+ * isStateChange()) ask the server for an acknowledgement, and are sent again,
+ * with an exponential backoff, until it arrives or MAX_RETRANSMITS is reached.
+ * Note-ons stay best-effort: they are never held back or retransmitted on
+ * their own. A dedicated thread reads the acknowledgements and retransmits.
+ *
+ * After setStream(true), packets go over a TCP connection to the server's
+ * StreamServer instead, each behind its length (see WireFormat), with Nagle's
+ * algorithm off so that every packet leaves at once. This gets through
+ * networks that lose or block datagrams; the connection delivers every
+ * packet, so none is sent as reliable or retransmitted.
  */
 public class NetworkReceiver implements Receiver {
+	public static final int MAX_WINDOW_MICROS = 2000;
+	private static final long CLOSE_TIMEOUT_MS = 100;
+	// Bounds the wait of the idle sender thread in case a wake-up is missed.
+	private static final long IDLE_PARK_NANOS = 1_000_000;
+	public static final int MAX_RETRANSMITS = 5;
+	public static final long RETRANSMIT_NANOS = 20_000_000;
+	private static final int MAX_UNACKNOWLEDGED = 32;
+	private static final int ACK_POLL_MS = 5;
+	private static final int SUSTAIN = 64;
+	private static final int ALL_SOUND_OFF = 120;
+	private static final int ALL_NOTES_OFF = 123;
 
 	private final DatagramSocket _socket;
 	private InetAddress _address;
+	private int _port = Server.PORT;
+	private final ByteBuffer _buffer = ByteBuffer.allocate(WireFormat.MAX_PACKET_SIZE);
+	private final DatagramPacket _packet = new DatagramPacket(_buffer.array(), 0);
+	private int _protocol = WireFormat.VERSION_1;
+	private boolean _timestamps;
+	private long _windowNanos;
+	private int _sequence;
+	private int _batchCount;
+	private long _batchDeadline;
+	private long _lastEventNanos;
+	private long _batchStartNanos;
+	private Thread _flusher;
+	private final EventQueue _queue;
+	private final Thread _sender;
+	private volatile boolean _senderParked;
+	private volatile boolean _closed;
+	private volatile long _sendErrorCount;
+	private boolean _reliable;
+	private boolean _batchReliable;
+	private int _batchSequence;
+	private Thread _acknowledgementReader;
+	// Reliable packets waiting for their acknowledgement, in slots that are
+	// free when their length is 0.
+	private byte[][] _unacknowledged;
+	private int[] _unacknowledgedLengths;
+	private int[] _unacknowledgedSequences;
+	private long[] _retransmitDeadlines;
+	private int[] _retransmitTries;
+	private DatagramPacket _retransmitPacket;
+	private volatile long _retransmitCount;
+	private volatile long _givenUpCount;
+	private Socket _stream; // null unless sending over a stream
+	private OutputStream _streamOut;
+	private final byte[] _frame = new byte[WireFormat.STREAM_LENGTH_SIZE + WireFormat.MAX_PACKET_SIZE];
 
 	/**
 	 * Sets the remote adress to the specified string.
-	 * @param addressStr the remote adress 
+	 * @param addressStr the remote adress
 	 */
 	public void setAddress (String addressStr) throws UnknownHostException {
 		_address = InetAddress.getByName(addressStr);
 	}
 
+	/**
+	 * Sets the remote port, Server.PORT unless set.
+	 * @param port the remote port
+	 */
+	public void setPort (int port) {
+		_port = port;
+	}
+
+	/**
+	 * Returns the address and port the server sees this receiver's packets
+	 * come from, e.g. to recognize its notes when the server republishes
+	 * them. Call after setAddress() and setStream().
+	 * @return the local address of the socket or stream.
+	 */
+	public synchronized InetSocketAddress getLocalAddress () throws SocketException {
+		if (_stream != null) {
+			return (InetSocketAddress) _stream.getLocalSocketAddress();
+		}
+		// The datagram socket is not connected, so ask the routing table which
+		// local address reaches the server.
+		try (DatagramSocket probe = new DatagramSocket()) {
+			probe.connect(_address, _port);
+			return new InetSocketAddress(probe.getLocalAddress(), _socket.getLocalPort());
+		}
+	}
+
 	public NetworkReceiver () throws SocketException {
 		_socket = new DatagramSocket();
+		_queue = null;
+		_sender = null;
+	}
+
+	/**
+	 * Creates an asynchronous receiver whose messages are sent by a dedicated
+	 * thread.
+	 * @param capacity the number of messages that may wait to be sent.
+	 * @param policy what to give up when more messages are waiting.
+	 */
+	public NetworkReceiver (int capacity, EventQueue.OverflowPolicy policy) throws SocketException {
+		_socket = new DatagramSocket();
+		_queue = new EventQueue(capacity, policy);
+		_sender = new Thread(this::sendLoop, "network-receiver-send");
+		_sender.setDaemon(true);
+		_sender.start();
+	}
+
+	/**
+	 * Selects the wire format. With version 2, messages sent within
+	 * windowMicros of the first message of a batch share one datagram; a
+	 * window of 0 sends each message in its own version 2 packet.
+	 * @param version the wire format version (WireFormat.VERSION_1 or VERSION_2).
+	 * @param windowMicros the coalescing window, between 0 and MAX_WINDOW_MICROS.
+	 */
+	public synchronized void setProtocol (int version, int windowMicros) {
+		if (version != WireFormat.VERSION_1 && version != WireFormat.VERSION_2) {
+			throw new IllegalArgumentException("Unknown protocol version: " + version);
+		}
+		if (windowMicros < 0 || windowMicros > MAX_WINDOW_MICROS) {
+			throw new IllegalArgumentException("Window must be between 0 and " + MAX_WINDOW_MICROS + " us");
+		}
+		flush();
+		_protocol = version;
+		_windowNanos = windowMicros * 1000L;
+		if (_windowNanos > 0 && _flusher == null && _sender == null) {
+			_flusher = new Thread(this::flushLoop, "network-receiver-flush");
+			_flusher.setDaemon(true);
+			_flusher.start();
+		}
+	}
+
+	/**
+	 * Stamps version 2 packets with the time their first message was sent, so
+	 * that a server in playout mode can play the messages at a steady delay
+	 * despite network jitter.
+	 * @param timestamps whether to stamp packets.
+	 */
+	public synchronized void setTimestamps (boolean timestamps) {
+		flush();
+		_timestamps = timestamps;
+	}
+
+	/**
+	 * Asks the server to acknowledge version 2 packets holding state changes,
+	 * and retransmits them until it does. Has no effect on version 1 packets.
+	 * @param reliable whether to deliver state changes reliably.
+	 */
+	public synchronized void setReliable (boolean reliable) throws SocketException {
+		flush();
+		_reliable = reliable;
+		if (reliable && _acknowledgementReader == null) {
+			_unacknowledged = new byte[MAX_UNACKNOWLEDGED][WireFormat.MAX_PACKET_SIZE];
+			_unacknowledgedLengths = new int[MAX_UNACKNOWLEDGED];
+			_unacknowledgedSequences = new int[MAX_UNACKNOWLEDGED];
+			_retransmitDeadlines = new long[MAX_UNACKNOWLEDGED];
+			_retransmitTries = new int[MAX_UNACKNOWLEDGED];
+			_retransmitPacket = new DatagramPacket(new byte[0], 0);
+			_socket.setSoTimeout(ACK_POLL_MS);
+			_acknowledgementReader = new Thread(this::acknowledgementLoop, "network-receiver-ack");
+			_acknowledgementReader.setDaemon(true);
+			_acknowledgementReader.start();
+		}
+	}
+
+	/**
+	 * Sends packets over a TCP connection to the server's StreamServer rather
+	 * than as datagrams. The connection is made here, to the address and port
+	 * set with setAddress() and setPort(); if it breaks, sending fails (and is
+	 * counted) until setStream(true) is called again.
+	 * @param stream whether to send over a stream.
+	 */
+	public synchronized void setStream (boolean stream) throws IOException {
+		flush();
+		closeStream();
+		if (stream) {
+			final Socket socket = new Socket(_address, _port);
+			socket.setTcpNoDelay(true);
+			_stream = socket;
+			_streamOut = socket.getOutputStream();
+		}
+	}
+
+	private void closeStream () {
+		if (_stream != null) {
+			try {
+				_stream.close();
+			} catch (IOException ioe) {
+				// Nothing left to send.
+			}
+			_stream = null;
+			_streamOut = null;
+		}
+	}
+
+	/**
+	 * Returns whether losing a message would leave the server in the wrong
+	 * state for good: note-offs, program changes, sustain pedal releases and
+	 * all-notes-off. A lost note-on only loses one note.
+	 * @param status the MIDI status byte.
+	 * @param data1 the first data byte.
+	 * @param data2 the second data byte.
+	 * @return true if the message should be delivered reliably.
+	 */
+	public static boolean isStateChange (int status, int data1, int data2) {
+		switch (status & 0xF0) {
+		case ShortMessage.NOTE_OFF:
+		case ShortMessage.PROGRAM_CHANGE:
+			return true;
+		case ShortMessage.NOTE_ON:
+			return data2 == 0;
+		case ShortMessage.CONTROL_CHANGE:
+			return data1 == SUSTAIN && data2 < 64 || data1 == ALL_SOUND_OFF || data1 == ALL_NOTES_OFF;
+		default:
+			return false;
+		}
 	}
 
 	@Override
@@ -30,6 +252,23 @@ public class NetworkReceiver implements Receiver {
 	 * Closes the receiver and its associated network socket.
 	 */
 	public void close () {
+		if (_sender != null) {
+			_closed = true;
+			LockSupport.unpark(_sender);
+			try {
+				_sender.join(CLOSE_TIMEOUT_MS);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			flush();
+			closeStream();
+			_closed = true;
+		}
+		if (_flusher != null) {
+			LockSupport.unpark(_flusher);
+		}
 		_socket.close();
 	}
 
@@ -41,17 +280,319 @@ public class NetworkReceiver implements Receiver {
 	 */
 	public void send (MidiMessage midiMessage, long timeStamp) {
 		final ShortMessage message = (ShortMessage) midiMessage;
+		final long now = System.nanoTime();
+		if (_queue == null) {
+			encode(message.getStatus(), message.getData1(), message.getData2(), now);
+			return;
+		}
+		_queue.offer(EventQueue.pack(message.getStatus(), message.getData1(), message.getData2()), now);
+		// The sender sets _senderParked before it checks the queue one last
+		// time, and this thread queues before it reads _senderParked, so at
+		// least one of them sees the other. The queue publishes with a
+		// lazySet, which a later read may overtake, hence the fence.
+		VarHandle.fullFence();
+		if (_senderParked) {
+			LockSupport.unpark(_sender);
+		}
+	}
+
+	/**
+	 * Encodes one message in the selected wire format and transmits it, or adds
+	 * it to the pending batch.
+	 * @param status the MIDI status byte.
+	 * @param data1 the first data byte.
+	 * @param data2 the second data byte.
+	 * @param now the System.nanoTime() at which the message was sent.
+	 */
+	private synchronized void encode (int status, int data1, int data2, long now) {
+		if (_protocol == WireFormat.VERSION_1) {
+			WireFormat.writeV1(_buffer, status & 0xF0, status & 0x0F, data1, data2);
+			transmit(now);
+			return;
+		}
+		final boolean deltas = _windowNanos > 0;
+		if (_batchCount == 0) {
+			final int flags = (deltas ? WireFormat.FLAG_DELTAS : 0) | (_timestamps ? WireFormat.FLAG_TIMESTAMP : 0);
+			_batchSequence = _sequence++;
+			WireFormat.beginV2(_buffer, _batchSequence, flags, (int) (now / 1000));
+			_lastEventNanos = now;
+			_batchStartNanos = now;
+			_batchDeadline = now + _windowNanos;
+		}
+		final int deltaMicros = deltas ? (int) ((now - _lastEventNanos) / 1000) : -1;
+		WireFormat.appendV2(_buffer, status, data1, data2, deltaMicros);
+		if (_reliable && isStateChange(status, data1, data2)) {
+			_batchReliable = true;
+		}
+		_lastEventNanos = now;
+		_batchCount++;
+		if (!deltas || _batchCount == WireFormat.MAX_EVENTS) {
+			flush();
+		} else if (_batchCount == 1 && _flusher != null) {
+			LockSupport.unpark(_flusher);
+		}
+	}
+
+	/**
+	 * Sends the pending version 2 batch, if any.
+	 */
+	private synchronized void flush () {
+		if (_batchCount == 0) {
+			return;
+		}
+		WireFormat.finishV2(_buffer, _batchCount);
+		_batchCount = 0;
+		if (_batchReliable) {
+			_batchReliable = false;
+			if (_stream == null) {
+				WireFormat.setReliable(_buffer);
+				keepUntilAcknowledged();
+			}
+		}
+		transmit(_batchStartNanos);
+	}
+
+	/**
+	 * Copies the reliable packet held in the buffer into a free slot, giving
+	 * up on the oldest unacknowledged packet if there is none.
+	 */
+	private void keepUntilAcknowledged () {
+		int slot = -1;
+		for (int i = 0; i < MAX_UNACKNOWLEDGED; i++) {
+			if (_unacknowledgedLengths[i] == 0) {
+				slot = i;
+				break;
+			}
+			if (slot < 0 || _unacknowledgedSequences[i] - _unacknowledgedSequences[slot] < 0) {
+				slot = i;
+			}
+		}
+		if (_unacknowledgedLengths[slot] != 0) {
+			_givenUpCount++;
+		}
+		System.arraycopy(_buffer.array(), 0, _unacknowledged[slot], 0, _buffer.limit());
+		_unacknowledgedLengths[slot] = _buffer.limit();
+		_unacknowledgedSequences[slot] = _batchSequence;
+		_retransmitDeadlines[slot] = System.nanoTime() + RETRANSMIT_NANOS;
+		_retransmitTries[slot] = 0;
+	}
+
+	/**
+	 * Reads acknowledgements from the server and retransmits the reliable
+	 * packets whose acknowledgement is overdue, until the socket is closed.
+	 */
+	private void acknowledgementLoop () {
+		final ByteBuffer ack = ByteBuffer.allocate(WireFormat.ACK_PACKET_SIZE);
+		final DatagramPacket packet = new DatagramPacket(ack.array(), ack.capacity());
+		while (!_socket.isClosed()) {
+			try {
+				packet.setLength(ack.capacity());
+				_socket.receive(packet);
+				ack.clear();
+				ack.limit(packet.getLength());
+				if (packet.getAddress().equals(_address) && WireFormat.isAck(ack)) {
+					acknowledge(WireFormat.ackSequence(ack), WireFormat.ackBitmap(ack));
+				}
+			} catch (SocketTimeoutException ste) {
+				// Time to look for overdue packets.
+			} catch (IOException ioe) {
+				if (_socket.isClosed()) {
+					return;
+				}
+			}
+			retransmitOverdue(System.nanoTime());
+		}
+	}
+
+	/**
+	 * Forgets the reliable packets covered by an acknowledgement.
+	 * @param sequence the highest sequence number acknowledged.
+	 * @param bitmap the packets acknowledged, bit i for sequence - i.
+	 */
+	private synchronized void acknowledge (int sequence, long bitmap) {
+		for (int i = 0; i < MAX_UNACKNOWLEDGED; i++) {
+			if (_unacknowledgedLengths[i] != 0
+					&& WireFormat.acknowledges(sequence, bitmap, _unacknowledgedSequences[i])) {
+				_unacknowledgedLengths[i] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Sends again the reliable packets whose acknowledgement is overdue,
+	 * doubling their timeout each time, and gives up on those sent
+	 * MAX_RETRANSMITS times already.
+	 * @param now the current System.nanoTime().
+	 */
+	private synchronized void retransmitOverdue (long now) {
+		for (int i = 0; i < MAX_UNACKNOWLEDGED; i++) {
+			if (_unacknowledgedLengths[i] == 0 || now - _retransmitDeadlines[i] < 0) {
+				continue;
+			}
+			if (_retransmitTries[i] == MAX_RETRANSMITS) {
+				_unacknowledgedLengths[i] = 0;
+				_givenUpCount++;
+				continue;
+			}
+			_retransmitTries[i]++;
+			_retransmitDeadlines[i] = now + (RETRANSMIT_NANOS << _retransmitTries[i]);
+			try {
+				_retransmitPacket.setData(_unacknowledged[i], 0, _unacknowledgedLengths[i]);
+				_retransmitPacket.setAddress(_address);
+				_retransmitPacket.setPort(_port);
+				_socket.send(_retransmitPacket);
+				_retransmitCount++;
+			} catch (IOException ioe) {
+				_sendErrorCount++;
+			}
+		}
+	}
+
+	/**
+	 * Sends the packet held in the buffer to the server.
+	 * @param firstEventNanos the System.nanoTime() at which the oldest message
+	 * of the packet was sent.
+	 */
+	private void transmit (long firstEventNanos) {
 		try {
-			final int capacity = 4 * Integer.BYTES;
-			final ByteBuffer b = ByteBuffer.allocate(capacity);
-			b.putInt(message.getCommand());
-			b.putInt(message.getChannel());
-			b.putInt(message.getData1());
-			b.putInt(message.getData2());
-			final DatagramPacket packet = new DatagramPacket(b.array(), capacity, _address, Server.PORT);
-			_socket.send(packet);
+			if (_streamOut != null) {
+				// Length and packet in one write, so they leave in one segment.
+				final int length = _buffer.limit();
+				_frame[0] = (byte) (length >> 8);
+				_frame[1] = (byte) length;
+				System.arraycopy(_buffer.array(), 0, _frame, WireFormat.STREAM_LENGTH_SIZE, length);
+				_streamOut.write(_frame, 0, WireFormat.STREAM_LENGTH_SIZE + length);
+				LatencyMetrics.NETWORK_SEND.record(System.nanoTime() - firstEventNanos);
+				return;
+			}
+			_packet.setData(_buffer.array(), 0, _buffer.limit());
+			_packet.setAddress(_address);
+			_packet.setPort(_port);
+			_socket.send(_packet);
+			LatencyMetrics.NETWORK_SEND.record(System.nanoTime() - firstEventNanos);
 		} catch (IOException ioe) {
-			ioe.printStackTrace();
+			_sendErrorCount++;
+			if (_sender == null) {
+				ioe.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Drains the queue on the sender thread, closing each version 2 batch when
+	 * its window has elapsed. Parks while there is nothing to do.
+	 */
+	private void sendLoop () {
+		while (true) {
+			final int event = _queue.poll();
+			if (event >= 0) {
+				encode(EventQueue.status(event), EventQueue.data1(event), EventQueue.data2(event),
+						_queue.getPolledNanos());
+				continue;
+			}
+			if (_closed) {
+				return;
+			}
+			final long wait;
+			synchronized (this) {
+				wait = _batchCount > 0 ? _batchDeadline - System.nanoTime() : IDLE_PARK_NANOS;
+				if (wait <= 0) {
+					flush();
+					continue;
+				}
+			}
+			_senderParked = true;
+			if (_queue.isEmpty() && !_closed) {
+				LockSupport.parkNanos(this, Math.min(wait, IDLE_PARK_NANOS));
+			}
+			_senderParked = false;
+		}
+	}
+
+	/**
+	 * Returns the number of messages waiting for the sender thread.
+	 * @return the queue depth, or 0 for a synchronous receiver.
+	 */
+	public int getQueueDepth () {
+		return _queue == null ? 0 : _queue.size();
+	}
+
+	/**
+	 * Returns the number of messages given up because the queue was full,
+	 * including note-offs discarded together with their note-on.
+	 * @return the drop count, or 0 for a synchronous receiver.
+	 */
+	public long getDropCount () {
+		return _queue == null ? 0 : _queue.getDropCount() + _queue.getCoalescedCount();
+	}
+
+	/**
+	 * Returns the number of datagrams that could not be sent.
+	 * @return the send error count.
+	 */
+	public long getSendErrorCount () {
+		return _sendErrorCount;
+	}
+
+	/**
+	 * Returns the number of reliable packets sent again for lack of an
+	 * acknowledgement.
+	 * @return the retransmit count.
+	 */
+	public long getRetransmitCount () {
+		return _retransmitCount;
+	}
+
+	/**
+	 * Returns the number of reliable packets never acknowledged despite
+	 * MAX_RETRANSMITS retransmissions (or pushed out by newer ones).
+	 * @return the given up count.
+	 */
+	public long getGivenUpCount () {
+		return _givenUpCount;
+	}
+
+	/**
+	 * Returns the number of reliable packets waiting for their
+	 * acknowledgement.
+	 * @return the unacknowledged count.
+	 */
+	public synchronized int getUnacknowledgedCount () {
+		int count = 0;
+		for (int i = 0; _unacknowledgedLengths != null && i < MAX_UNACKNOWLEDGED; i++) {
+			if (_unacknowledgedLengths[i] != 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Sends each batch once its window has elapsed. Parks while there is no
+	 * pending batch; send() wakes it when a new batch opens.
+	 */
+	private void flushLoop () {
+		while (!_closed) {
+			final boolean pending;
+			final long deadline;
+			synchronized (this) {
+				pending = _batchCount > 0;
+				deadline = _batchDeadline;
+			}
+			if (!pending) {
+				LockSupport.park(this);
+				continue;
+			}
+			final long wait = deadline - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+			synchronized (this) {
+				if (_batchCount > 0 && System.nanoTime() - _batchDeadline >= 0) {
+					flush();
+				}
+			}
 		}
 	}
 }
@@ -0,0 +1,195 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import javax.sound.midi.*;
+
+/**
+ * Republishes the notes the server plays, merged from every client, to a
+ * multicast group so that the band members' pianos can show what the others
+ * play. The dispatcher hands it every event it plays (see
+ * PacketDispatcher.setBroadcaster()), with the route that plays it and the
+ * client that sent it, so that notes of clients on different receivers never
+ * mix even though they share channel numbers, and each band member can leave
+ * out its own notes.
+ *
+ * Notes are sent as WireFormat notes packets. The first note of a batch opens
+ * a window of WINDOW_MICROS, and every note published before the window
+ * closes (up to WireFormat.MAX_NOTES) leaves in the same datagram. Only
+ * note-on, note-off and All Notes Off messages are republished.
+ */
+public class NoteBroadcaster {
+	public static final String DEFAULT_GROUP = "239.255.45.67";
+	public static final int PORT = Server.PORT + 1;
+	public static final int WINDOW_MICROS = 2000;
+	private static final int ALL_NOTES_OFF = 123;
+
+	private final DatagramSocket _socket;
+	private final ByteBuffer _buffer = ByteBuffer.allocate(WireFormat.MAX_PACKET_SIZE);
+	private final DatagramPacket _packet = new DatagramPacket(_buffer.array(), 0);
+	private final Thread _flusher;
+	// The client key of the source of each route, worked out when the route
+	// changes hands rather than per note.
+	private final long[] _routeSources = new long[ChannelAllocator.ROUTE_MASK + 1];
+	private final long[] _routeClients = new long[ChannelAllocator.ROUTE_MASK + 1];
+	private int _sequence;
+	private int _batchCount;
+	private long _batchDeadline;
+	private long _lastEventNanos;
+	private volatile boolean _closed;
+	private volatile long _sendErrorCount;
+	private volatile long _publishedCount;
+
+	/**
+	 * @param group the multicast group (or single address) to publish to.
+	 */
+	public NoteBroadcaster(InetAddress group) throws IOException {
+		_socket = new MulticastSocket();
+		_packet.setAddress(group);
+		_packet.setPort(PORT);
+		Arrays.fill(_routeSources, -1);
+		_flusher = new Thread(this::flushLoop, "note-broadcaster-flush");
+		_flusher.setDaemon(true);
+		_flusher.start();
+	}
+
+	/**
+	 * Returns the key by which notes packets name a client. It is the
+	 * client's address and port for IPv4 clients, and the hash code of the
+	 * address and the port for IPv6 clients, which a band member can work out
+	 * for itself (see RemoteNoteListener.addOwnClient()).
+	 *
+	 * @param address the client's address.
+	 * @param port    the client's port.
+	 * @return the client key.
+	 */
+	public static long clientKey(InetAddress address, int port) {
+		final long ipv6 = address instanceof Inet4Address ? 0 : 1L << 48;
+		return ipv6 | (address.hashCode() & 0xFFFFFFFFL) << 16 | port & 0xFFFF;
+	}
+
+	/**
+	 * Queues an event played by the server for publishing, if it changes
+	 * which notes are on. Called on the dispatch thread.
+	 *
+	 * @param source the source key of the client that sent the event.
+	 * @param route  the route that played the event.
+	 * @param status the MIDI status byte (command | channel).
+	 * @param data1  the first data byte.
+	 * @param data2  the second data byte.
+	 */
+	public void publish(long source, int route, int status, int data1, int data2) {
+		final int command = status & 0xF0;
+		if (command != ShortMessage.NOTE_ON && command != ShortMessage.NOTE_OFF
+				&& (command != ShortMessage.CONTROL_CHANGE || data1 != ALL_NOTES_OFF)) {
+			return;
+		}
+		if (_routeSources[route] != source) {
+			_routeSources[route] = source;
+			_routeClients[route] = source < 0 ? -1
+					: clientKey(ChannelAllocator.getAddress(source), (int) source & 0xFFFF);
+		}
+		publish(route, status, data1, data2, _routeClients[route], System.nanoTime());
+	}
+
+	/**
+	 * Adds one note to the pending batch, sending the batch when it is full.
+	 */
+	private synchronized void publish(int route, int status, int data1, int data2, long client, long now) {
+		if (_closed) {
+			return;
+		}
+		if (_batchCount == 0) {
+			WireFormat.beginNotes(_buffer, _sequence++);
+			_lastEventNanos = now;
+			_batchDeadline = now + WINDOW_MICROS * 1000L;
+		}
+		WireFormat.appendNote(_buffer, route, status, data1, data2, (int) ((now - _lastEventNanos) / 1000),
+				client);
+		_lastEventNanos = now;
+		_batchCount++;
+		if (_batchCount == WireFormat.MAX_NOTES) {
+			flush();
+		} else if (_batchCount == 1) {
+			LockSupport.unpark(_flusher);
+		}
+	}
+
+	/**
+	 * Sends the pending batch, if any.
+	 */
+	private synchronized void flush() {
+		if (_batchCount == 0) {
+			return;
+		}
+		WireFormat.finishV2(_buffer, _batchCount);
+		_publishedCount += _batchCount;
+		_batchCount = 0;
+		try {
+			_packet.setData(_buffer.array(), 0, _buffer.limit());
+			_socket.send(_packet);
+		} catch (IOException ioe) {
+			_sendErrorCount++;
+		}
+	}
+
+	/**
+	 * Sends each batch once its window has elapsed. Parks while there is no
+	 * pending batch; publish() wakes it when a new batch opens.
+	 */
+	private void flushLoop() {
+		while (!_closed) {
+			final boolean pending;
+			final long deadline;
+			synchronized (this) {
+				pending = _batchCount > 0;
+				deadline = _batchDeadline;
+			}
+			if (!pending) {
+				LockSupport.park(this);
+				continue;
+			}
+			final long wait = deadline - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+			synchronized (this) {
+				if (_batchCount > 0 && System.nanoTime() - _batchDeadline >= 0) {
+					flush();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends the pending batch and closes the socket.
+	 */
+	public void close() {
+		synchronized (this) {
+			flush();
+			_closed = true;
+		}
+		LockSupport.unpark(_flusher);
+		_socket.close();
+	}
+
+	/**
+	 * Returns the number of note events published so far.
+	 *
+	 * @return the published count.
+	 */
+	public long getPublishedCount() {
+		return _publishedCount;
+	}
+
+	/**
+	 * Returns the number of datagrams that could not be sent.
+	 *
+	 * @return the send error count.
+	 */
+	public long getSendErrorCount() {
+		return _sendErrorCount;
+	}
+}
@@ -0,0 +1,261 @@
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import javax.sound.midi.*;
+
+/**
+ * Benchmarks the hot paths a note takes from the mouse to the synthesizer:
+ * hit-testing and mouse handling, computer-keyboard chords, Key.play,
+ * routing to several receivers, NetworkReceiver.send encoding, the server's
+ * PacketDispatcher from a received packet to the synthesizer's receiver,
+ * admission control under a flood, forwarding by the cluster router, session
+ * recording, and Piano.paint into an offscreen image.
+ * Exits with status 1 if a benchmark allocates more than its budget (or, for
+ * session recording, takes longer than RECORD_NANOS_BUDGET), so that
+ * regressions fail the build.
+ *
+ * Run with: mvn -P benchmark verify, or
+ * java -Djava.awt.headless=true NotePathBenchmark
+ */
+public class NotePathBenchmark {
+	private static final int NUM_POINTS = 4096;
+	private static final int EVENTS = 100_000;
+	private static final int PAINTS = 2_000;
+	private static final int NUM_SOURCES = 16;
+	// The dispatch stage must be able to record without falling behind.
+	private static final double RECORD_NANOS_BUDGET = 100;
+	private static final long RECORD_SEGMENT_SIZE = 8L << 20;
+
+	/**
+	 * Discards every message, so that only the sender's cost is measured.
+	 */
+	private static class NullReceiver implements Receiver {
+		private long _count;
+
+		@Override
+		public void send(MidiMessage message, long timeStamp) {
+			_count += message.getLength();
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		final BenchmarkRunner runner = new BenchmarkRunner();
+		final Piano piano = new Piano(new NullReceiver());
+		final KeyboardLayout layout = piano.getKeyboardLayout();
+		final Random random = new Random(42);
+		final int[] xs = new int[NUM_POINTS];
+		final int[] ys = new int[NUM_POINTS];
+		final MouseEvent[] drags = new MouseEvent[NUM_POINTS];
+		for (int i = 0; i < NUM_POINTS; i++) {
+			xs[i] = random.nextInt(layout.getWidth());
+			ys[i] = random.nextInt(layout.getHeight());
+			drags[i] = new MouseEvent(piano, MouseEvent.MOUSE_DRAGGED, 0, 0, xs[i], ys[i], 0, false);
+		}
+
+		final KeyIndex index = new KeyIndex(layout, piano.getKeys());
+		runner.run("KeyIndex.keyAt", EVENTS, 0, ops -> {
+			long sum = 0;
+			for (int i = 0; i < ops; i++) {
+				final Key key = index.keyAt(xs[i % NUM_POINTS], ys[i % NUM_POINTS]);
+				sum += key == null ? 0 : key.getPitch();
+			}
+			return sum;
+		});
+
+		final PianoMouseListener listener = piano.getMouseListener();
+		runner.run("PianoMouseListener.mouseDragged", EVENTS, 0, ops -> {
+			for (int i = 0; i < ops; i++) {
+				listener.mouseDragged(drags[i % NUM_POINTS]);
+			}
+			return 0;
+		});
+
+		// A C major triad pressed, auto-repeated once, and released.
+		final PianoKeyListener keyListener = piano.getKeyListener();
+		final int[] chord = { KeyEvent.VK_Z, KeyEvent.VK_C, KeyEvent.VK_B };
+		final KeyEvent[] presses = new KeyEvent[chord.length];
+		final KeyEvent[] releases = new KeyEvent[chord.length];
+		for (int i = 0; i < chord.length; i++) {
+			presses[i] = new KeyEvent(piano, KeyEvent.KEY_PRESSED, 0, 0, chord[i], KeyEvent.CHAR_UNDEFINED);
+			releases[i] = new KeyEvent(piano, KeyEvent.KEY_RELEASED, 0, 0, chord[i], KeyEvent.CHAR_UNDEFINED);
+		}
+		runner.run("PianoKeyListener chord", EVENTS / 10, 0, ops -> {
+			for (int i = 0; i < ops; i++) {
+				for (KeyEvent press : presses) {
+					keyListener.keyPressed(press);
+				}
+				for (KeyEvent press : presses) {
+					keyListener.keyPressed(press);
+				}
+				for (KeyEvent release : releases) {
+					keyListener.keyReleased(release);
+				}
+			}
+			return keyListener.getHeldCount();
+		});
+
+		final java.util.List<Key> keys = piano.getKeys();
+		runner.run("Key.play", EVENTS, 0, ops -> {
+			for (int i = 0; i < ops; i++) {
+				keys.get(i % keys.size()).play((i & 1) == 0);
+			}
+			return 0;
+		});
+
+		// Local monitoring plus a server, as with Band --monitor.
+		final RoutingReceiver router = new RoutingReceiver(new NullReceiver(), new NullReceiver());
+		runner.run("RoutingReceiver.send", EVENTS, 0, ops -> {
+			for (int i = 0; i < ops; i++) {
+				router.send(MidiMessages.note((i & 1) == 0, 0, 60 + (i >> 1) % 24), -1);
+			}
+			return router.getReleasedCount();
+		});
+
+		final ShortMessage[] notes = new ShortMessage[NUM_POINTS];
+		for (int i = 0; i < NUM_POINTS; i++) {
+			notes[i] = new ShortMessage(i % 2 == 0 ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF, 0,
+					layout.getLowPitch() + i % layout.getKeysPerManual(), 93);
+		}
+		// Unless a server is running locally, the datagrams are simply dropped.
+		// DatagramSocket.send allocates a few bytes per datagram in the JDK.
+		final NetworkReceiver v1 = new NetworkReceiver();
+		v1.setAddress("127.0.0.1");
+		runner.run("NetworkReceiver.send v1", EVENTS, 64, ops -> {
+			for (int i = 0; i < ops; i++) {
+				v1.send(notes[i % NUM_POINTS], -1);
+			}
+			return v1.getSendErrorCount();
+		});
+		v1.close();
+		final NetworkReceiver v2 = new NetworkReceiver();
+		v2.setAddress("127.0.0.1");
+		v2.setProtocol(WireFormat.VERSION_2, NetworkReceiver.MAX_WINDOW_MICROS);
+		runner.run("NetworkReceiver.send v2 batched", EVENTS, 2, ops -> {
+			for (int i = 0; i < ops; i++) {
+				v2.send(notes[i % NUM_POINTS], -1);
+			}
+			return v2.getSendErrorCount();
+		});
+		v2.close();
+
+		final ByteBuffer[] packets = new ByteBuffer[NUM_SOURCES];
+		final long[] sources = new long[NUM_SOURCES];
+		final PacketSlot[] slots = new PacketSlot[NUM_SOURCES];
+		for (int i = 0; i < NUM_SOURCES; i++) {
+			packets[i] = ByteBuffer.allocate(WireFormat.MAX_PACKET_SIZE);
+			WireFormat.beginV2(packets[i], i, WireFormat.FLAG_DELTAS);
+			for (int j = 0; j < 8; j++) {
+				WireFormat.appendV2(packets[i], ShortMessage.NOTE_ON, 60 + j, 93, 100);
+			}
+			WireFormat.finishV2(packets[i], 8);
+			final InetAddress address = InetAddress.getByName("10.0.0." + (i + 1));
+			sources[i] = ChannelAllocator.sourceKey(address, 40000 + i);
+			slots[i] = new PacketSlot(WireFormat.MAX_PACKET_SIZE, false);
+			slots[i].fill(packets[i].array(), 0, packets[i].limit(), address, 40000 + i, System.nanoTime());
+		}
+		// The dispatcher's own path, from a received slot to the receiver:
+		// validation, channel lookup, admission control and playing.
+		final LoadGenerator.CountingReceiver played = new LoadGenerator.CountingReceiver();
+		final PacketDispatcher dispatcher = new PacketDispatcher(new PacketRing[0], played);
+		runner.run("PacketDispatcher.dispatch", EVENTS, 0, ops -> {
+			for (int i = 0; i < ops; i++) {
+				dispatcher.dispatch(slots[i % NUM_SOURCES]);
+			}
+			return played.getNoteOnCount();
+		});
+
+		// Sixteen clients at the limits of Server --limit, one of them flooding.
+		final AdmissionControl admission = new AdmissionControl(ChannelAllocator.NUM_CHANNELS);
+		admission.setSourceLimit(Server.DEFAULT_SOURCE_RATE, Server.DEFAULT_SOURCE_BURST);
+		admission.setGlobalLimit(Server.DEFAULT_GLOBAL_RATE, Server.DEFAULT_GLOBAL_RATE / 10);
+		runner.run("AdmissionControl.admit", EVENTS, 0, ops -> {
+			final long now = System.nanoTime();
+			long sum = 0;
+			for (int i = 0; i < ops; i++) {
+				final int route = (i & 1) == 0 ? 0 : i % NUM_SOURCES;
+				sum += admission.admit(route, (i & 2) == 0 ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF,
+						60 + i % 24, 93, now + i * 1000L);
+			}
+			return sum + admission.getRejectedCount();
+		});
+
+		// Three nodes that are not listening, so the datagrams are dropped.
+		final ClusterRouter clusterRouter = new ClusterRouter(0, 0, ClusterRouter.DEFAULT_NODE_TIMEOUT_MS);
+		for (int i = 1; i <= 3; i++) {
+			clusterRouter.addNode(new InetSocketAddress(InetAddress.getLoopbackAddress(), 4600 + i));
+		}
+		final InetSocketAddress[] clients = new InetSocketAddress[NUM_SOURCES];
+		for (int i = 0; i < NUM_SOURCES; i++) {
+			clients[i] = new InetSocketAddress(InetAddress.getByName("10.0.0." + (i + 1)), 40000 + i);
+		}
+		final ByteBuffer frame = ByteBuffer
+				.allocateDirect(WireFormat.MAX_FORWARD_HEADER_SIZE + WireFormat.MAX_PACKET_SIZE);
+		runner.run("ClusterRouter.forward", EVENTS, 0, ops -> {
+			for (int i = 0; i < ops; i++) {
+				final ByteBuffer packet = packets[i % NUM_SOURCES];
+				frame.clear();
+				frame.put(WireFormat.MAX_FORWARD_HEADER_SIZE, packet.array(), 0, packet.limit());
+				frame.limit(WireFormat.MAX_FORWARD_HEADER_SIZE + packet.limit());
+				frame.position(WireFormat.MAX_FORWARD_HEADER_SIZE);
+				try {
+					clusterRouter.forward(frame, clients[i % NUM_SOURCES]);
+				} catch (java.io.IOException ioe) {
+					return -1;
+				}
+			}
+			return clusterRouter.getForwardedCount();
+		});
+		clusterRouter.close();
+
+		// Includes the cost of rolling to a new segment every 350,000 records,
+		// the only time recording allocates.
+		final java.io.File session = java.nio.file.Files.createTempDirectory("session").toFile();
+		final SessionRecorder recorder = new SessionRecorder(session, RECORD_SEGMENT_SIZE);
+		runner.run("SessionRecorder.record", EVENTS, 1, RECORD_NANOS_BUDGET, ops -> {
+			final long now = System.nanoTime();
+			for (int i = 0; i < ops; i++) {
+				recorder.record(now + i, sources[i % NUM_SOURCES], i % NUM_SOURCES, ShortMessage.NOTE_ON | i % 16,
+						60 + i % 24, 93);
+			}
+			return recorder.getRecordCount();
+		});
+		recorder.close();
+		for (int i = 0; i < recorder.getSegmentCount(); i++) {
+			SessionRecorder.segmentFile(session, i).delete();
+		}
+		session.delete();
+
+		final BufferedImage image = new BufferedImage(layout.getWidth() + 1, layout.getHeight() + 1,
+				BufferedImage.TYPE_INT_RGB);
+		final Graphics2D g = image.createGraphics();
+		runner.run("Piano.paint full", PAINTS / 10, 64, ops -> {
+			for (int i = 0; i < ops; i++) {
+				g.setClip(null);
+				piano.paint(g);
+			}
+			return 0;
+		});
+		runner.run("Piano.paint one key", PAINTS, 256, ops -> {
+			for (int i = 0; i < ops; i++) {
+				final Rectangle bounds = keys.get(i % keys.size()).getPolygon().getBounds();
+				g.setClip(bounds.x, bounds.y, bounds.width + 1, bounds.height + 1);
+				piano.paint(g);
+			}
+			return 0;
+		});
+		g.dispose();
+
+		System.out.println("sink=" + runner.getSink());
+		if (runner.getFailureCount() > 0) {
+			System.out.println(runner.getFailureCount() + " benchmark(s) over budget");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * Implements a lock-free set of sounding notes, one bit per channel and pitch.
+ * Any thread may turn notes on and off; alongside the notes, the set records
+ * which pitches changed so that a reader (typically the Swing event thread)
+ * can pick up every change since its last visit in one call, however many
+ * events arrived in between.
+ */
+public class NoteStateSet {
+	public static final int NUM_CHANNELS = 16;
+	public static final int NUM_PITCHES = 128;
+	private static final int WORDS_PER_CHANNEL = NUM_PITCHES / Long.SIZE;
+
+	private final AtomicLongArray _notes;
+	// The pitches changed since the last call to takeChanged(), on any channel.
+	private final AtomicLongArray _changed = new AtomicLongArray(WORDS_PER_CHANNEL);
+
+	/**
+	 * Creates an empty set of NUM_CHANNELS channels.
+	 */
+	public NoteStateSet() {
+		this(NUM_CHANNELS);
+	}
+
+	/**
+	 * Creates an empty set of the specified number of channels, e.g. one per
+	 * server route rather than per MIDI channel.
+	 *
+	 * @param numChannels the number of channels.
+	 */
+	public NoteStateSet(int numChannels) {
+		_notes = new AtomicLongArray(numChannels * WORDS_PER_CHANNEL);
+	}
+
+	/**
+	 * Turns a note on.
+	 *
+	 * @param channel the MIDI channel.
+	 * @param pitch   the pitch.
+	 */
+	public void noteOn(int channel, int pitch) {
+		final int word = channel * WORDS_PER_CHANNEL + pitch / Long.SIZE;
+		final long bit = 1L << pitch;
+		long notes;
+		do {
+			notes = _notes.get(word);
+			if ((notes & bit) != 0) {
+				return;
+			}
+		} while (!_notes.compareAndSet(word, notes, notes | bit));
+		markChanged(pitch / Long.SIZE, bit);
+	}
+
+	/**
+	 * Turns a note off.
+	 *
+	 * @param channel the MIDI channel.
+	 * @param pitch   the pitch.
+	 */
+	public void noteOff(int channel, int pitch) {
+		final int word = channel * WORDS_PER_CHANNEL + pitch / Long.SIZE;
+		final long bit = 1L << pitch;
+		long notes;
+		do {
+			notes = _notes.get(word);
+			if ((notes & bit) == 0) {
+				return;
+			}
+		} while (!_notes.compareAndSet(word, notes, notes & ~bit));
+		markChanged(pitch / Long.SIZE, bit);
+	}
+
+	/**
+	 * Turns off every note of a channel.
+	 *
+	 * @param channel the MIDI channel.
+	 */
+	public void allNotesOff(int channel) {
+		for (int i = 0; i < WORDS_PER_CHANNEL; i++) {
+			final long notes = _notes.getAndSet(channel * WORDS_PER_CHANNEL + i, 0);
+			if (notes != 0) {
+				markChanged(i, notes);
+			}
+		}
+	}
+
+	/**
+	 * Records that the pitches of a word changed.
+	 */
+	private void markChanged(int word, long bits) {
+		long changed;
+		do {
+			changed = _changed.get(word);
+			if ((changed & bits) == bits) {
+				return;
+			}
+		} while (!_changed.compareAndSet(word, changed, changed | bits));
+	}
+
+	/**
+	 * Returns whether a note is on.
+	 *
+	 * @param channel the MIDI channel.
+	 * @param pitch   the pitch.
+	 * @return true if the note is on.
+	 */
+	public boolean isOn(int channel, int pitch) {
+		return (_notes.get(channel * WORDS_PER_CHANNEL + pitch / Long.SIZE) & 1L << pitch) != 0;
+	}
+
+	/**
+	 * Returns whether a pitch is on in any channel.
+	 *
+	 * @param pitch the pitch.
+	 * @return true if some channel plays the pitch.
+	 */
+	public boolean isOn(int pitch) {
+		final long bit = 1L << pitch;
+		for (int word = pitch / Long.SIZE; word < _notes.length(); word += WORDS_PER_CHANNEL) {
+			if ((_notes.get(word) & bit) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the pitches whose state changed since the previous call, on any
+	 * channel, and clears them.
+	 *
+	 * @param changed an array of NUM_PITCHES / 64 words that receives one bit
+	 *                per changed pitch.
+	 * @return true if any pitch changed.
+	 */
+	public boolean takeChanged(long[] changed) {
+		boolean any = false;
+		for (int i = 0; i < WORDS_PER_CHANNEL; i++) {
+			// Cheap read first, so an idle set costs no writes.
+			changed[i] = _changed.get(i) == 0 ? 0 : _changed.getAndSet(i, 0);
+			any |= changed[i] != 0;
+		}
+		return any;
+	}
+}
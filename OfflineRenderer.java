@@ -0,0 +1,304 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.sound.midi.*;
+
+/**
+ * Renders a session recorded by the server (see SessionRecorder) to a 16-bit
+ * mono WAV file, faster than real time and without a sound card, using the
+ * WavetableSynth.
+ *
+ * The session is split into time segments of SEGMENT_SECONDS, which are
+ * rendered in parallel on a fork-join pool. Each segment's task renders the
+ * routes (one per client channel) one after another and mixes them in route
+ * order; since the synthesizer has no state, a segment comes out the same
+ * whichever thread renders it, so the file is bit-identical to a
+ * single-threaded render. Segments are rendered a window of a few per thread
+ * at a time and written out in order, so memory grows with the number of
+ * threads (two segment buffers per segment in the window) but not with the
+ * length of the session or the number of routes. Each route keeps a cursor
+ * into its notes, so the time spent finding a segment's notes grows with the
+ * notes rather than with notes times segments.
+ *
+ * Options: "--threads N" (default: one per processor), "--rate HZ" (default
+ * 44100).
+ *
+ * Run with: java OfflineRenderer SESSION_DIRECTORY OUT.wav [--threads 8]
+ */
+public class OfflineRenderer {
+	public static final int DEFAULT_SAMPLE_RATE = 44100;
+	public static final int SEGMENT_SECONDS = 10;
+	private static final int ALL_NOTES_OFF = 123;
+	private static final int WAV_HEADER_SIZE = 44;
+	// Segments rendered ahead of the one being written, per thread.
+	private static final int SEGMENTS_PER_THREAD = 2;
+
+	/**
+	 * A note of the session, in samples from the start of the session.
+	 */
+	private static class Note {
+		final int _program;
+		final int _pitch;
+		final int _velocity;
+		final long _on;
+		long _off;
+		// The end of the release of this note or any earlier one of its route.
+		long _audibleUntil;
+
+		Note(int program, int pitch, int velocity, long on) {
+			_program = program;
+			_pitch = pitch;
+			_velocity = velocity;
+			_on = on;
+		}
+	}
+
+	private final int _sampleRate;
+	private final WavetableSynth _synth;
+	// The notes of each route, by note-on.
+	private final List<List<Note>> _notes = new ArrayList<>();
+	private long _lengthSamples;
+
+	/**
+	 * Reads the notes of a session.
+	 *
+	 * @param reader     the session.
+	 * @param sampleRate the number of samples per second to render.
+	 */
+	public OfflineRenderer(SessionReader reader, int sampleRate) throws IOException {
+		_sampleRate = sampleRate;
+		_synth = new WavetableSynth(sampleRate);
+		final int numRoutes = ChannelAllocator.ROUTE_MASK + 1;
+		for (int route = 0; route < numRoutes; route++) {
+			_notes.add(new ArrayList<>());
+		}
+		final int[] programs = new int[numRoutes];
+		// The sounding note of each route and pitch.
+		final Note[] sounding = new Note[numRoutes * NoteStateSet.NUM_PITCHES];
+		final long[] firstNanos = { -1 };
+		final long[] lastSample = { 0 };
+		reader.read((nanos, source, route, status, data1, data2) -> {
+			if (firstNanos[0] < 0) {
+				firstNanos[0] = nanos;
+			}
+			final long sample = toSample(nanos - firstNanos[0]);
+			lastSample[0] = sample;
+			final int command = status & 0xF0;
+			final int base = route * NoteStateSet.NUM_PITCHES;
+			if (command == ShortMessage.NOTE_ON && data2 > 0) {
+				end(sounding, base + data1, sample);
+				final Note note = new Note(programs[route], data1, data2, sample);
+				sounding[base + data1] = note;
+				_notes.get(route).add(note);
+			} else if (command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF) {
+				end(sounding, base + data1, sample);
+			} else if (command == ShortMessage.PROGRAM_CHANGE) {
+				programs[route] = data1;
+			} else if (command == ShortMessage.CONTROL_CHANGE && data1 == ALL_NOTES_OFF) {
+				for (int pitch = 0; pitch < NoteStateSet.NUM_PITCHES; pitch++) {
+					end(sounding, base + pitch, sample);
+				}
+			}
+		});
+		// Notes still held when the recording stopped end with it.
+		for (int i = 0; i < sounding.length; i++) {
+			end(sounding, i, lastSample[0]);
+		}
+		_lengthSamples = lastSample[0] + _synth.getReleaseSamples();
+		for (List<Note> notes : _notes) {
+			long audibleUntil = 0;
+			for (Note note : notes) {
+				audibleUntil = Math.max(audibleUntil, note._off + _synth.getReleaseSamples());
+				note._audibleUntil = audibleUntil;
+			}
+		}
+	}
+
+	private static void end(Note[] sounding, int index, long sample) {
+		if (sounding[index] != null) {
+			sounding[index]._off = sample;
+			sounding[index] = null;
+		}
+	}
+
+	private long toSample(long nanos) {
+		return nanos / 1_000_000_000L * _sampleRate + nanos % 1_000_000_000L * _sampleRate / 1_000_000_000L;
+	}
+
+	/**
+	 * Returns the length of the rendering, up to the end of the last note's
+	 * release.
+	 *
+	 * @return the length in samples.
+	 */
+	public long getLengthSamples() {
+		return _lengthSamples;
+	}
+
+	/**
+	 * Returns the number of notes in the session.
+	 *
+	 * @return the note count.
+	 */
+	public int getNoteCount() {
+		int count = 0;
+		for (List<Note> notes : _notes) {
+			count += notes.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Renders one segment, mixing its routes in route order.
+	 *
+	 * @param froms  the first note of each route that may still sound in the
+	 *               segment, or -1 when the route is silent (see render()).
+	 * @param first  the first sample of the segment.
+	 * @param length the number of samples in the segment.
+	 * @return the mixed samples.
+	 */
+	private float[] renderSegment(int[] froms, long first, int length) {
+		final float[] mix = new float[length];
+		final float[] part = new float[length];
+		for (int route = 0; route < froms.length; route++) {
+			if (froms[route] < 0) {
+				continue;
+			}
+			Arrays.fill(part, 0f);
+			renderPart(_notes.get(route), froms[route], first, part);
+			for (int i = 0; i < length; i++) {
+				mix[i] += part[i];
+			}
+		}
+		return mix;
+	}
+
+	/**
+	 * Renders the notes of one route that sound within one segment, starting
+	 * from the first note that may still sound, into a cleared buffer.
+	 */
+	private void renderPart(List<Note> notes, int from, long first, float[] buffer) {
+		final long end = first + buffer.length;
+		for (int i = from; i < notes.size(); i++) {
+			final Note note = notes.get(i);
+			if (note._on >= end) {
+				break;
+			}
+			if (note._off + _synth.getReleaseSamples() > first) {
+				_synth.render(note._program, note._pitch, note._velocity, note._on, note._off, buffer, first);
+			}
+		}
+	}
+
+	/**
+	 * Writes the rendering as a WAV file.
+	 *
+	 * @param out     the stream to write to.
+	 * @param threads the number of threads to render with.
+	 */
+	public void render(OutputStream out, int threads) throws IOException {
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			render(out, pool, threads * SEGMENTS_PER_THREAD);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private void render(OutputStream out, ForkJoinPool pool, int window) throws IOException {
+		final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+		writeHeader(data);
+		final long segmentSamples = (long) SEGMENT_SECONDS * _sampleRate;
+		final int numSegments = (int) ((_lengthSamples + segmentSamples - 1) / segmentSamples);
+		final byte[] pcm = new byte[(int) segmentSamples * 2];
+		// The first note of each route that may sound in the next segment;
+		// notes whose release ended before a segment never sound again, so
+		// each route's notes are passed over once rather than once per segment.
+		final int[] cursors = new int[_notes.size()];
+		for (int start = 0; start < numSegments; start += window) {
+			final int count = Math.min(window, numSegments - start);
+			final List<ForkJoinTask<float[]>> segments = new ArrayList<>();
+			for (int segment = start; segment < start + count; segment++) {
+				final long first = segment * segmentSamples;
+				final int length = (int) Math.min(segmentSamples, _lengthSamples - first);
+				final int[] froms = new int[_notes.size()];
+				for (int route = 0; route < _notes.size(); route++) {
+					final List<Note> notes = _notes.get(route);
+					int from = cursors[route];
+					while (from < notes.size() && notes.get(from)._audibleUntil <= first) {
+						from++;
+					}
+					cursors[route] = from;
+					final boolean silent = from == notes.size() || notes.get(from)._on >= first + length;
+					froms[route] = silent ? -1 : from;
+				}
+				segments.add(pool.submit(() -> renderSegment(froms, first, length)));
+			}
+			for (ForkJoinTask<float[]> segment : segments) {
+				writeSamples(data, segment.join(), pcm);
+			}
+		}
+		data.flush();
+	}
+
+	/**
+	 * Converts mixed samples to 16-bit little-endian PCM, clipping, and
+	 * writes them.
+	 */
+	private static void writeSamples(DataOutputStream data, float[] mix, byte[] pcm) throws IOException {
+		for (int i = 0; i < mix.length; i++) {
+			final int value = (int) Math.round(Math.max(-1f, Math.min(1f, mix[i])) * 32767.0);
+			pcm[i * 2] = (byte) value;
+			pcm[i * 2 + 1] = (byte) (value >> 8);
+		}
+		data.write(pcm, 0, mix.length * 2);
+	}
+
+	/**
+	 * Writes the RIFF header of a 16-bit mono WAV file of the rendering's
+	 * length.
+	 */
+	private void writeHeader(DataOutputStream data) throws IOException {
+		final long dataSize = _lengthSamples * 2;
+		if (dataSize + WAV_HEADER_SIZE - 8 > 0xFFFFFFFFL) {
+			throw new IOException("Session too long for a WAV file: " + _lengthSamples + " samples");
+		}
+		data.writeBytes("RIFF");
+		data.writeInt(Integer.reverseBytes((int) (dataSize + WAV_HEADER_SIZE - 8)));
+		data.writeBytes("WAVEfmt ");
+		data.writeInt(Integer.reverseBytes(16));
+		data.writeShort(Short.reverseBytes((short) 1)); // PCM
+		data.writeShort(Short.reverseBytes((short) 1)); // mono
+		data.writeInt(Integer.reverseBytes(_sampleRate));
+		data.writeInt(Integer.reverseBytes(_sampleRate * 2));
+		data.writeShort(Short.reverseBytes((short) 2));
+		data.writeShort(Short.reverseBytes((short) 16));
+		data.writeBytes("data");
+		data.writeInt(Integer.reverseBytes((int) dataSize));
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: java OfflineRenderer DIRECTORY OUT.wav [--threads N] [--rate HZ]");
+			System.exit(2);
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		int sampleRate = DEFAULT_SAMPLE_RATE;
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("--threads") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--rate") && i + 1 < args.length) {
+				sampleRate = Integer.parseInt(args[++i]);
+			}
+		}
+		final long start = System.nanoTime();
+		final OfflineRenderer renderer = new OfflineRenderer(new SessionReader(new File(args[0])), sampleRate);
+		try (OutputStream out = new FileOutputStream(args[1])) {
+			renderer.render(out, threads);
+		}
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		final double audioSeconds = (double) renderer.getLengthSamples() / sampleRate;
+		System.out.printf("Rendered %d notes, %.1f s of audio, in %.1f s (%.1fx real time) on %d threads%n",
+				renderer.getNoteCount(), audioSeconds, seconds, audioSeconds / seconds, threads);
+	}
+}
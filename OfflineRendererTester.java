@@ -0,0 +1,106 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.*;
+import java.io.*;
+import java.nio.file.*;
+import javax.sound.midi.*;
+import javax.sound.sampled.*;
+
+/**
+ * Contains a set of unit tests for the OfflineRenderer and WavetableSynth
+ * classes.
+ */
+class OfflineRendererTester {
+	private static final long SECOND = 1_000_000_000L;
+	private static final int SAMPLE_RATE = 8000;
+	// Small, so that the session spans several files without mapping 64 MB each.
+	private static final long SEGMENT_SIZE = SessionRecorder.HEADER_SIZE + 16 * SessionRecorder.RECORD_SIZE;
+
+	@TempDir
+	Path _directory;
+
+	/**
+	 * Records 25 seconds on two routes, with notes held across the 10 second
+	 * segment boundaries and a silent gap from 12 to 18 seconds.
+	 */
+	private SessionReader recordSession() throws IOException {
+		final SessionRecorder recorder = new SessionRecorder(_directory.toFile(), SEGMENT_SIZE);
+		final long start = System.nanoTime();
+		recorder.record(start, 1, 3, ShortMessage.PROGRAM_CHANGE | 3, 16, 0);
+		for (int i = 0; i < 12; i++) {
+			recorder.record(start + i * SECOND, 1, 3, ShortMessage.NOTE_ON | 3, 60 + i, 93);
+			recorder.record(start + i * SECOND + 3 * SECOND / 2, 1, 3, ShortMessage.NOTE_OFF | 3, 60 + i, 0);
+			recorder.record(start + i * SECOND + SECOND / 2, 2, 17, ShortMessage.NOTE_ON | 1, 48 + i, 64);
+			recorder.record(start + i * SECOND + SECOND, 2, 17, ShortMessage.NOTE_OFF | 1, 48 + i, 0);
+		}
+		recorder.record(start + 18 * SECOND, 2, 17, ShortMessage.NOTE_ON | 1, 72, 127);
+		recorder.record(start + 25 * SECOND, 2, 17, ShortMessage.CONTROL_CHANGE | 1, 123, 0);
+		recorder.close();
+		return new SessionReader(_directory.toFile());
+	}
+
+	private byte[] render(OfflineRenderer renderer, int threads) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		renderer.render(out, threads);
+		return out.toByteArray();
+	}
+
+	@Test
+	void testParallelRenderIsBitIdentical() throws IOException {
+		final OfflineRenderer renderer = new OfflineRenderer(recordSession(), SAMPLE_RATE);
+		assertEquals(25, renderer.getNoteCount());
+		final byte[] single = render(renderer, 1);
+		assertArrayEquals(single, render(renderer, 4));
+		assertArrayEquals(single, render(renderer, 3));
+	}
+
+	@Test
+	void testRenderIsPlayableWav() throws Exception {
+		final OfflineRenderer renderer = new OfflineRenderer(recordSession(), SAMPLE_RATE);
+		final byte[] wav = render(renderer, 2);
+		final AudioInputStream stream = AudioSystem.getAudioInputStream(new ByteArrayInputStream(wav));
+		assertEquals(SAMPLE_RATE, (int) stream.getFormat().getSampleRate());
+		assertEquals(1, stream.getFormat().getChannels());
+		assertEquals(renderer.getLengthSamples(), stream.getFrameLength());
+		assertEquals(25 * SAMPLE_RATE + new WavetableSynth(SAMPLE_RATE).getReleaseSamples(),
+				renderer.getLengthSamples());
+		final byte[] pcm = stream.readAllBytes();
+		assertEquals(renderer.getLengthSamples() * 2, pcm.length);
+		assertTrue(peak(pcm, 5 * SAMPLE_RATE, 6 * SAMPLE_RATE) > 1000, "notes are audible");
+		assertEquals(0, peak(pcm, 13 * SAMPLE_RATE, 18 * SAMPLE_RATE), "the gap is silent");
+	}
+
+	@Test
+	void testLongNoteSoundsInEverySegment() throws Exception {
+		// A note held for 35 seconds, with shorter notes after it on the same
+		// route; passing them must not pass the long note.
+		final SessionRecorder recorder = new SessionRecorder(_directory.toFile(), SEGMENT_SIZE);
+		final long start = System.nanoTime();
+		recorder.record(start, 1, 3, ShortMessage.NOTE_ON, 60, 93);
+		for (int i = 1; i < 35; i += 2) {
+			recorder.record(start + i * SECOND, 1, 3, ShortMessage.NOTE_ON, 72, 93);
+			recorder.record(start + i * SECOND + SECOND / 10, 1, 3, ShortMessage.NOTE_OFF, 72, 0);
+		}
+		recorder.record(start + 35 * SECOND, 1, 3, ShortMessage.NOTE_OFF, 60, 0);
+		recorder.close();
+		final OfflineRenderer renderer = new OfflineRenderer(new SessionReader(_directory.toFile()), SAMPLE_RATE);
+		final byte[] wav = render(renderer, 2);
+		final byte[] pcm = AudioSystem.getAudioInputStream(new ByteArrayInputStream(wav)).readAllBytes();
+		for (int second = 0; second < 35; second += 2) {
+			assertTrue(peak(pcm, second * SAMPLE_RATE, second * SAMPLE_RATE + SAMPLE_RATE / 2) > 1000,
+					"sounding at " + second + " s");
+		}
+	}
+
+	/**
+	 * Returns the largest absolute sample between two sample positions.
+	 */
+	private static int peak(byte[] pcm, int from, int to) {
+		int peak = 0;
+		for (int i = from; i < to; i++) {
+			final short sample = (short) ((pcm[i * 2] & 0xFF) | pcm[i * 2 + 1] << 8);
+			peak = Math.max(peak, Math.abs(sample));
+		}
+		return peak;
+	}
+}
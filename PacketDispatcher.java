@@ -0,0 +1,908 @@
+import java.io.*;
+import java.lang.invoke.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import javax.sound.midi.*;
+
+/**
+ * Implements the dispatch stage of the server: it drains received packets from
+ * one PacketRing per receive thread, assigns each client its own MIDI channel
+ * through a ChannelAllocator and forwards the decoded events to the MIDI
+ * receiver (or, once its 16 channels are taken, to the overflow receiver). It
+ * runs on its own thread so that a busy synthesizer never holds up the threads
+ * reading the sockets.
+ *
+ * In playout mode (setPlayout()), events of timestamped packets are not played
+ * right away: a JitterBuffer decides when each packet should play, and a
+ * PlayoutScheduler releases its events at that time, keeping the spacing the
+ * sender played them with. Packets without timestamps still play right away.
+ * Outside playout mode every event plays as soon as it is decoded, and the
+ * deltas between the events of a batch are ignored (see WireFormat).
+ *
+ * Reliable packets (those holding note-offs and other state changes) are
+ * acknowledged through the AckSender once they are valid and accepted for
+ * playing, and played at most once however often they are retransmitted. A
+ * packet too old for the AckWindow to tell is dropped unacknowledged; one the
+ * AckWindow takes as new but the JitterBuffer no longer schedules plays right
+ * away. With setMaxNoteDuration(), a watchdog also releases notes held for
+ * longer than a maximum, in case their note-off was lost anyway.
+ *
+ * Before an event is scheduled or played, an AdmissionControl checks that it
+ * is valid and within its client's and the server's rate limits
+ * (setAdmissionLimits()), so that no client can flood the others out.
+ *
+ * With setRecorder(), every event played is also appended to a
+ * SessionRecorder, on the dispatch thread, at the cost of a few stores into a
+ * memory-mapped file. Recording may start mid-session: it then begins with
+ * the program each route was last set to, so that the session replays with
+ * the right instruments. With setBroadcaster(), the notes played are also
+ * republished to the band, by route and by client, so that a band member can
+ * tell the receivers apart and leave out its own notes.
+ */
+public class PacketDispatcher
+		implements Runnable, WireFormat.EventSink, PlayoutScheduler.Player, StuckNoteWatchdog.Releaser {
+	/**
+	 * Sends acknowledgements back to the clients.
+	 */
+	public interface AckSender {
+		/**
+		 * Sends one acknowledgement. Called on the dispatch thread only.
+		 *
+		 * @param ack     the acknowledgement, between position and limit.
+		 * @param address the client's address.
+		 * @param port    the client's port.
+		 */
+		void sendAck(ByteBuffer ack, InetAddress address, int port) throws IOException;
+	}
+
+	private static final int SPIN_TRIES = 100;
+	private static final int YIELD_TRIES = 100;
+	private static final long PARK_NANOS = 1_000_000;
+	// Packets taken from one ring before moving on to the next, so that a busy
+	// socket cannot starve the others.
+	private static final int BATCH_SIZE = 16;
+	public static final long DEFAULT_IDLE_TIMEOUT_NANOS = 60_000_000_000L;
+	private static final long SWEEP_INTERVAL_NANOS = 1_000_000_000L;
+	private static final int ALL_NOTES_OFF = 123;
+	private static final EventLog.Event PACKET = new EventLog.Event("packet", EventLog.Level.DEBUG,
+			(line, source, route, events) -> ChannelAllocator.formatSource(line.append(" source="), source)
+					.append(" route=").append(route).append(" events=").append(events));
+	private static final EventLog.Event ROUTE_ASSIGNED = new EventLog.Event("routeAssigned", EventLog.Level.INFO,
+			(line, source, route, unused) -> ChannelAllocator.formatSource(line.append(" source="), source)
+					.append(" route=").append(route));
+	private static final EventLog.Event ROUTES_RELEASED = new EventLog.Event("routesReleased", EventLog.Level.INFO,
+			(line, routes, unused1, unused2) -> line.append(" routes=0x").append(Long.toHexString(routes)));
+	// Logs the length of the whole datagram or frame, forward header included.
+	private static final EventLog.Event INVALID_PACKET = new EventLog.Event("invalidPacket", EventLog.Level.WARN,
+			"length");
+	private static final EventLog.Event DUPLICATE_PACKET = new EventLog.Event("duplicatePacket",
+			EventLog.Level.DEBUG, "route", "sequence");
+	private static final EventLog.Event STUCK_NOTE = new EventLog.Event("stuckNote", EventLog.Level.WARN, "route",
+			"pitch");
+	private static final EventLog.Event EVENTS_REJECTED = new EventLog.Event("eventsRejected",
+			EventLog.Level.WARN, (line, source, reason, count) -> ChannelAllocator
+					.formatSource(line.append(" source="), source).append(" reason=")
+					.append(AdmissionControl.getReasonName((int) reason)).append(" count=").append(count));
+	private static final EventLog.Event ACK_FAILED = new EventLog.Event("ackFailed", EventLog.Level.WARN, "route");
+	private static final int INITIAL_SCHEDULER_CAPACITY = 1024;
+	private static final int ALL_SOUND_OFF = 120;
+	private static final int MESSAGE_POOL_CAPACITY = 4;
+
+	private PacketRing[] _rings;
+	private Receiver[] _receivers;
+	private ChannelAllocator _allocator;
+	private long _idleTimeoutNanos = DEFAULT_IDLE_TIMEOUT_NANOS;
+	private long _lastSweepNanos = System.nanoTime();
+	// Lends the messages that are not pre-built by MidiMessages; the receiver
+	// consumes messages sent with timestamp -1 before send() returns.
+	private final MidiMessages.Pool _messages = new MidiMessages.Pool(MESSAGE_POOL_CAPACITY);
+	private volatile boolean _running = true;
+	private volatile boolean _parked;
+	private volatile Thread _thread;
+	private volatile long _dispatchedCount;
+	private volatile long _invalidCount;
+	private int _route; // route of the packet being decoded
+	private long _eventStartNanos; // when the current event started being played
+	private JitterBuffer _jitterBuffer; // null unless in playout mode
+	private long _minPlayoutDelayNanos;
+	private long _maxPlayoutDelayNanos;
+	private final PlayoutScheduler _scheduler = new PlayoutScheduler(INITIAL_SCHEDULER_CAPACITY);
+	private boolean _scheduling; // whether the events being decoded are scheduled
+	private long _playNanos; // when the next event being decoded is to be played
+	private AckSender _ackSender;
+	private AckWindow _ackWindow;
+	private final ByteBuffer _ackBuffer = ByteBuffer
+			.allocate(WireFormat.MAX_FORWARD_HEADER_SIZE + WireFormat.ACK_PACKET_SIZE);
+	private boolean _forwardingAllowed; // whether forwarded frames from a ClusterRouter are accepted
+	private int _forwardHeaderSize; // of the packet being decoded, 0 unless forwarded
+	private volatile long _retransmittedCount;
+	private StuckNoteWatchdog _watchdog; // null unless a maximum note duration is set
+	private long _maxNoteNanos;
+	private SessionRecorder _recorder; // null unless recording
+	private volatile SessionRecorder _nextRecorder; // set by setRecorder(), taken up by run()
+	// The last program played on each route, or -1 if none was.
+	private final int[] _programs = new int[ChannelAllocator.ROUTE_MASK + 1];
+	private NoteBroadcaster _broadcaster; // null unless broadcasting
+	private AdmissionControl _admission;
+	private long _sourceEventsPerSecond; // 0 when not limited
+	private long _sourceBurst;
+	private long _globalEventsPerSecond; // 0 when not limited
+	private long _globalBurst;
+	private long _receivedNanos; // when the packet being decoded arrived
+
+	/**
+	 * @param rings    the rings to drain. Packets of a single source must always
+	 *                 arrive through the same ring to keep their order.
+	 * @param receiver the MIDI receiver to forward events to.
+	 */
+	public PacketDispatcher(PacketRing[] rings, Receiver receiver) {
+		_rings = rings;
+		_receivers = new Receiver[] { receiver };
+		_allocator = new ChannelAllocator(1, _idleTimeoutNanos);
+		_ackWindow = new AckWindow(ChannelAllocator.NUM_CHANNELS);
+		_admission = new AdmissionControl(ChannelAllocator.NUM_CHANNELS);
+		Arrays.fill(_programs, -1);
+	}
+
+	/**
+	 * Sets the receiver that plays clients arriving once all 16 channels of the
+	 * primary receiver are taken. Must be called before the dispatcher runs.
+	 *
+	 * @param overflow the overflow receiver.
+	 */
+	public void setOverflowReceiver(Receiver overflow) {
+		_receivers = new Receiver[] { _receivers[0], overflow };
+		_allocator = new ChannelAllocator(_receivers.length, _idleTimeoutNanos);
+		_ackWindow = new AckWindow(_receivers.length * ChannelAllocator.NUM_CHANNELS);
+		setAdmissionLimits(_sourceEventsPerSecond, _sourceBurst, _globalEventsPerSecond, _globalBurst);
+		if (_jitterBuffer != null) {
+			setPlayout(_minPlayoutDelayNanos, _maxPlayoutDelayNanos);
+		}
+		if (_watchdog != null) {
+			setMaxNoteDuration(_maxNoteNanos);
+		}
+	}
+
+	/**
+	 * Adds a ring to drain, such as the one a StreamServer fills. Must be
+	 * called before the dispatcher runs.
+	 *
+	 * @param ring the ring.
+	 */
+	public void addRing(PacketRing ring) {
+		final PacketRing[] rings = Arrays.copyOf(_rings, _rings.length + 1);
+		rings[_rings.length] = ring;
+		_rings = rings;
+	}
+
+	/**
+	 * Sets how reliable packets are acknowledged. Without an AckSender they
+	 * are still deduplicated but never acknowledged. Must be called before
+	 * the dispatcher runs.
+	 *
+	 * @param ackSender the sender of acknowledgements.
+	 */
+	public void setAckSender(AckSender ackSender) {
+		_ackSender = ackSender;
+	}
+
+	/**
+	 * Accepts forwarded frames, as sent by a ClusterRouter, and attributes
+	 * their events to the client they name rather than to the router. Only
+	 * for a node whose port clients cannot reach directly, since anyone
+	 * could forge a frame. Must be called before the dispatcher runs.
+	 *
+	 * @param forwardingAllowed whether to accept forwarded frames.
+	 */
+	public void setForwardingAllowed(boolean forwardingAllowed) {
+		_forwardingAllowed = forwardingAllowed;
+	}
+
+	/**
+	 * Limits the events played per second, of each client and of all clients
+	 * together; see AdmissionControl. Without limits, only invalid events are
+	 * rejected. Must be called before the dispatcher runs.
+	 *
+	 * @param sourceEventsPerSecond the sustained rate of each client, or 0 for
+	 *                              no limit.
+	 * @param sourceBurst           the events a client may send at once.
+	 * @param globalEventsPerSecond the sustained rate of all clients, or 0 for
+	 *                              no limit.
+	 * @param globalBurst           the events that may arrive at once.
+	 */
+	public void setAdmissionLimits(long sourceEventsPerSecond, long sourceBurst, long globalEventsPerSecond,
+			long globalBurst) {
+		_sourceEventsPerSecond = sourceEventsPerSecond;
+		_sourceBurst = sourceBurst;
+		_globalEventsPerSecond = globalEventsPerSecond;
+		_globalBurst = globalBurst;
+		_admission = new AdmissionControl(_receivers.length * ChannelAllocator.NUM_CHANNELS);
+		_admission.setSourceLimit(sourceEventsPerSecond, sourceBurst);
+		_admission.setGlobalLimit(globalEventsPerSecond, globalBurst);
+	}
+
+	/**
+	 * Records every event played into a session, in place of the session
+	 * being recorded, if any. The dispatch thread takes up the recorder on its
+	 * next round, and closes the previous one, and the last one when it stops.
+	 * May be called from any thread, before or while the dispatcher runs.
+	 *
+	 * @param recorder the session recorder, or null to stop recording.
+	 */
+	public void setRecorder(SessionRecorder recorder) {
+		_nextRecorder = recorder;
+	}
+
+	/**
+	 * Switches to the recorder given to setRecorder(), and starts its session
+	 * with the program of each route.
+	 */
+	private void switchRecorder() {
+		closeRecorder(_recorder);
+		_recorder = _nextRecorder;
+		if (_recorder == null) {
+			return;
+		}
+		final long now = System.nanoTime();
+		for (int route = 0; route < _allocator.getRouteCount(); route++) {
+			if (_programs[route] >= 0) {
+				_recorder.record(now, _allocator.getSource(route), route,
+						ShortMessage.PROGRAM_CHANGE | route % ChannelAllocator.NUM_CHANNELS, _programs[route], 0);
+			}
+		}
+	}
+
+	private static void closeRecorder(SessionRecorder recorder) {
+		if (recorder == null) {
+			return;
+		}
+		try {
+			recorder.close();
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+
+	/**
+	 * Republishes the notes played to the band. The dispatcher does not close
+	 * the broadcaster. Must be called before the dispatcher runs.
+	 *
+	 * @param broadcaster the note broadcaster.
+	 */
+	public void setBroadcaster(NoteBroadcaster broadcaster) {
+		_broadcaster = broadcaster;
+	}
+
+	/**
+	 * Releases notes held for longer than the specified duration, as if their
+	 * note-off had arrived. Must be called before the dispatcher runs.
+	 *
+	 * @param maxNoteNanos the longest a note may be held, or 0 to never
+	 *                     release notes.
+	 */
+	public void setMaxNoteDuration(long maxNoteNanos) {
+		_maxNoteNanos = maxNoteNanos;
+		_watchdog = maxNoteNanos > 0
+				? new StuckNoteWatchdog(_receivers.length * ChannelAllocator.NUM_CHANNELS, maxNoteNanos)
+				: null;
+	}
+
+	/**
+	 * Turns on playout mode: events of timestamped packets are played at a
+	 * steady delay behind the sender, adapted per client to the jitter of its
+	 * link between minDelayNanos and maxDelayNanos. Must be called before the
+	 * dispatcher runs.
+	 *
+	 * @param minDelayNanos the smallest playout delay.
+	 * @param maxDelayNanos the largest playout delay.
+	 */
+	public void setPlayout(long minDelayNanos, long maxDelayNanos) {
+		_minPlayoutDelayNanos = minDelayNanos;
+		_maxPlayoutDelayNanos = maxDelayNanos;
+		_jitterBuffer = new JitterBuffer(_receivers.length * ChannelAllocator.NUM_CHANNELS, minDelayNanos,
+				maxDelayNanos);
+	}
+
+	/**
+	 * Sets the smallest playout delay of one client, overriding the one given
+	 * to setPlayout(). Must be called after setPlayout() and before the
+	 * dispatcher runs.
+	 *
+	 * @param source        the client's source key.
+	 * @param minDelayNanos the smallest playout delay.
+	 */
+	public void setPlayoutMinDelay(long source, long minDelayNanos) {
+		_jitterBuffer.setMinDelay(source, minDelayNanos);
+	}
+
+	/**
+	 * Sets how long a client may stay silent before its channel is freed. Must
+	 * be called before the dispatcher runs.
+	 *
+	 * @param idleTimeoutNanos the idle timeout in nanoseconds.
+	 */
+	public void setIdleTimeout(long idleTimeoutNanos) {
+		_idleTimeoutNanos = idleTimeoutNanos;
+		_allocator = new ChannelAllocator(_receivers.length, idleTimeoutNanos);
+	}
+
+	@Override
+	/**
+	 * Drains the rings round-robin until stop() is called.
+	 */
+	public void run() {
+		_thread = Thread.currentThread();
+		int idle = 0;
+		while (_running) {
+			if (_nextRecorder != _recorder) {
+				switchRecorder();
+			}
+			int drained = 0;
+			for (PacketRing ring : _rings) {
+				for (int i = 0; i < BATCH_SIZE; i++) {
+					final PacketSlot slot = ring.peek();
+					if (slot == null) {
+						break;
+					}
+					dispatch(slot);
+					ring.release();
+					drained++;
+				}
+			}
+			_eventStartNanos = System.nanoTime();
+			final int played = _scheduler.releaseDue(_eventStartNanos, this);
+			idle = drained + played == 0 ? idle(idle) : 0;
+			final long now = System.nanoTime();
+			if (now - _lastSweepNanos > SWEEP_INTERVAL_NANOS) {
+				_lastSweepNanos = now;
+				final long released = _allocator.evictIdle(now);
+				if (released != 0) {
+					EventLog.log(ROUTES_RELEASED, released, 0, 0);
+					releaseRoutes(released);
+				}
+				if (_watchdog != null) {
+					_watchdog.sweep(now, this);
+				}
+			}
+		}
+		closeRecorder(_recorder);
+		if (_nextRecorder != _recorder) {
+			closeRecorder(_nextRecorder);
+		}
+	}
+
+	/**
+	 * Silences the channels of routes that were taken from their clients.
+	 *
+	 * @param routes a bit mask of routes.
+	 */
+	private void releaseRoutes(long routes) {
+		while (routes != 0) {
+			final int route = Long.numberOfTrailingZeros(routes);
+			routes &= routes - 1;
+			allNotesOff(route);
+		}
+	}
+
+	/**
+	 * Silences the route of a client that has gone away (a stream client that
+	 * disconnected), right away: not through sequencing, playout or admission,
+	 * which are for the client's own packets. Its events still waiting for
+	 * their playout time are dropped, since they would sound after the
+	 * release. A client whose route was since given to another one has
+	 * nothing left to release.
+	 *
+	 * @param source the client's source key.
+	 */
+	private void releaseSource(long source) {
+		final int route = _allocator.getRoute(source);
+		if (route < 0) {
+			return;
+		}
+		if (_jitterBuffer != null) {
+			_scheduler.removeRoute(route);
+		}
+		allNotesOff(route);
+	}
+
+	/**
+	 * Turns off every note still sounding on a route, so that a client that
+	 * goes away cannot leave notes hanging for the next one.
+	 *
+	 * @param route the route to silence.
+	 */
+	private void allNotesOff(int route) {
+		final int channel = route % ChannelAllocator.NUM_CHANNELS;
+		final ShortMessage message;
+		try {
+			message = _messages.acquire(ShortMessage.CONTROL_CHANGE, channel, ALL_NOTES_OFF, 0);
+		} catch (InvalidMidiDataException imde) {
+			return;
+		}
+		_receivers[route / ChannelAllocator.NUM_CHANNELS].send(message, -1);
+		_messages.release(message);
+		if (_watchdog != null) {
+			_watchdog.clearRoute(route);
+		}
+		if (_recorder != null) {
+			_recorder.record(System.nanoTime(), _allocator.getSource(route), route,
+					ShortMessage.CONTROL_CHANGE | channel, ALL_NOTES_OFF, 0);
+		}
+		if (_broadcaster != null) {
+			_broadcaster.publish(_allocator.getSource(route), route, ShortMessage.CONTROL_CHANGE | channel,
+					ALL_NOTES_OFF, 0);
+		}
+	}
+
+	@Override
+	/**
+	 * Releases a note held for longer than the maximum note duration.
+	 */
+	public void release(int route, int pitch) {
+		EventLog.log(STUCK_NOTE, route, pitch, 0);
+		play(route, ShortMessage.NOTE_OFF, pitch, 0);
+	}
+
+	/**
+	 * Returns whether every ring is empty.
+	 *
+	 * @return true if there is nothing to dispatch.
+	 */
+	private boolean isEmpty() {
+		for (PacketRing ring : _rings) {
+			if (ring.size() > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Backs off progressively while the rings are empty: spin, then yield, then
+	 * park until signal() is called or the next scheduled event is due.
+	 *
+	 * @param idle the number of consecutive empty polls so far.
+	 * @return the updated count.
+	 */
+	private int idle(int idle) {
+		if (idle < SPIN_TRIES) {
+			Thread.onSpinWait();
+		} else if (idle < SPIN_TRIES + YIELD_TRIES) {
+			Thread.yield();
+		} else {
+			final long wait = Math.min(PARK_NANOS, _scheduler.nextTime() - System.nanoTime());
+			_parked = true;
+			if (isEmpty() && _running && wait > 0) {
+				LockSupport.parkNanos(this, wait);
+			}
+			_parked = false;
+		}
+		return idle + 1;
+	}
+
+	/**
+	 * Wakes the dispatch thread if it is parked waiting for packets. Called by
+	 * the producers after publishing.
+	 *
+	 * The dispatch thread sets _parked before it checks the rings one last
+	 * time, and the producer publishes before it reads _parked, so at least
+	 * one of them sees the other. The producer publishes with a lazySet,
+	 * which a later read may overtake, hence the fence.
+	 */
+	public void signal() {
+		VarHandle.fullFence();
+		if (_parked) {
+			LockSupport.unpark(_thread);
+		}
+	}
+
+	/**
+	 * Asks the dispatch loop to exit.
+	 */
+	public void stop() {
+		_running = false;
+		final Thread thread = _thread;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * Decodes a single packet, in either wire format version, and forwards its
+	 * events to the MIDI receiver. Called by run(); NotePathBenchmark calls it
+	 * directly to measure the dispatch path without a thread.
+	 *
+	 * @param slot the slot holding the packet.
+	 */
+	void dispatch(PacketSlot slot) {
+		if (_nextRecorder != _recorder) {
+			// Packets received after setRecorder() returns are recorded.
+			switchRecorder();
+		}
+		if (slot.isRelease()) {
+			releaseSource(ChannelAllocator.sourceKey(slot.getAddress(), slot.getPort()));
+			return;
+		}
+		_eventStartNanos = System.nanoTime();
+		LatencyMetrics.SERVER_QUEUE.record(_eventStartNanos - slot.getReceivedNanos());
+		final ByteBuffer byteBuffer = slot.getBuffer();
+		final long source;
+		if (_forwardingAllowed && WireFormat.isForwarded(byteBuffer)) {
+			// The client is named in the frame; the slot's source is the router.
+			source = WireFormat.forwardedSourceKey(byteBuffer);
+			_forwardHeaderSize = WireFormat.forwardHeaderSize(byteBuffer);
+			byteBuffer.position(byteBuffer.position() + _forwardHeaderSize);
+		} else {
+			// Determine unique channel for this (address,port) tuple
+			source = ChannelAllocator.sourceKey(slot.getAddress(), slot.getPort());
+			_forwardHeaderSize = 0;
+		}
+		// Checked before a route is assigned, so that junk from a new source
+		// cannot take the route of a client that plays.
+		if (WireFormat.validate(byteBuffer) < 0) {
+			_invalidCount++;
+			EventLog.log(INVALID_PACKET, byteBuffer.limit(), 0, 0);
+			return;
+		}
+		final int allocation = _allocator.allocate(source, slot.getReceivedNanos());
+		_route = allocation & ChannelAllocator.ROUTE_MASK;
+		if ((allocation & ChannelAllocator.FRESH) != 0) {
+			EventLog.log(ROUTE_ASSIGNED, source, _route, 0);
+			if (_jitterBuffer != null) {
+				_jitterBuffer.reset(_route, source);
+				_scheduler.removeRoute(_route);
+			}
+			_ackWindow.reset(_route);
+			_admission.reset(_route, source, slot.getReceivedNanos());
+			allNotesOff(_route);
+		}
+
+		// A reliable packet is acknowledged only once it is sure to be played,
+		// so that the sender retransmits anything dropped here.
+		final boolean reliable = WireFormat.version(byteBuffer) == WireFormat.VERSION_2
+				&& WireFormat.isReliable(byteBuffer);
+		if (reliable) {
+			final int sequence = WireFormat.sequence(byteBuffer);
+			final int order = _ackWindow.check(_route, sequence);
+			if (order == SequenceWindow.SEEN) {
+				// Acknowledged again: the first acknowledgement may have been lost.
+				acknowledge(slot);
+				_retransmittedCount++;
+				EventLog.log(DUPLICATE_PACKET, _route, sequence, 0);
+				return;
+			}
+			if (order == SequenceWindow.TOO_OLD) {
+				EventLog.log(DUPLICATE_PACKET, _route, sequence, 0);
+				return;
+			}
+		}
+
+		_scheduling = _jitterBuffer != null && WireFormat.version(byteBuffer) == WireFormat.VERSION_2
+				&& WireFormat.hasTimestamp(byteBuffer);
+		if (_scheduling) {
+			final int sequence = WireFormat.sequence(byteBuffer);
+			_playNanos = _jitterBuffer.accept(_route, sequence, WireFormat.timestamp(byteBuffer),
+					slot.getReceivedNanos(), _admission.holdsNotes(_route));
+			if (_playNanos == JitterBuffer.DUPLICATE) {
+				if (!reliable) {
+					EventLog.log(DUPLICATE_PACKET, _route, sequence, 0);
+					return;
+				}
+				// The AckWindow took it as new, so it has not been played yet:
+				// the jitter buffer's window has only moved past it. Play it
+				// right away rather than leave the sender retransmitting it.
+				_scheduling = false;
+			} else {
+				LatencyMetrics.PLAYOUT_WAIT.record(_playNanos - _eventStartNanos);
+			}
+		}
+
+		if (reliable) {
+			_ackWindow.receive(_route, WireFormat.sequence(byteBuffer));
+			acknowledge(slot);
+		}
+
+		_receivedNanos = slot.getReceivedNanos();
+		final int events = WireFormat.decode(byteBuffer, this);
+		if (events < 0) {
+			_invalidCount++;
+			EventLog.log(INVALID_PACKET, byteBuffer.limit(), 0, 0);
+			return;
+		}
+		LatencyMetrics.SERVER_TOTAL.record(_eventStartNanos - slot.getReceivedNanos());
+		EventLog.log(PACKET, source, _route, events);
+	}
+
+	/**
+	 * Acknowledges the reliable packets received so far from the source of a
+	 * packet. The acknowledgement of a forwarded packet goes back to the
+	 * router, behind the same forwarded frame header.
+	 *
+	 * @param slot the slot holding the packet.
+	 */
+	private void acknowledge(PacketSlot slot) {
+		if (_ackSender == null) {
+			return;
+		}
+		_ackBuffer.clear();
+		final ByteBuffer packet = slot.getBuffer();
+		for (int i = packet.position() - _forwardHeaderSize; i < packet.position(); i++) {
+			_ackBuffer.put(packet.get(i));
+		}
+		WireFormat.putAck(_ackBuffer, _ackWindow.getHighestSequence(_route), _ackWindow.getBitmap(_route));
+		_ackBuffer.flip();
+		try {
+			_ackSender.sendAck(_ackBuffer, slot.getAddress(), slot.getPort());
+		} catch (IOException ioe) {
+			EventLog.log(ACK_FAILED, _route, 0, 0);
+		}
+	}
+
+	@Override
+	/**
+	 * Plays one decoded event on the route of the packet's source. The
+	 * channel chosen by the sender is ignored since we overwrite it anyhow.
+	 */
+	public void onEvent(int command, int channelIgnored, int data1, int data2, int deltaMicros) {
+		final int verdict = _admission.admit(_route, command, data1, data2, _receivedNanos);
+		if (verdict != AdmissionControl.ADMITTED) {
+			if (verdict == AdmissionControl.INVALID) {
+				_invalidCount++;
+			}
+			final long rejected = _admission.getRejectedCount(_route, verdict);
+			// Logs the 1st, 2nd, 4th, 8th... rejection, so a flood cannot flood the log.
+			if ((rejected & rejected - 1) == 0) {
+				EventLog.log(EVENTS_REJECTED, _allocator.getSource(_route), verdict, rejected);
+			}
+			if (_scheduling) {
+				// Keeps the spacing of the events that follow.
+				_playNanos += deltaMicros * 1000L;
+			}
+			return;
+		}
+		if (_scheduling) {
+			_playNanos += deltaMicros * 1000L;
+			_scheduler.schedule(_playNanos, _route, EventQueue.pack(command, data1, data2));
+			return;
+		}
+		play(_route, command, data1, data2);
+	}
+
+	@Override
+	/**
+	 * Plays one event released by the playout scheduler.
+	 */
+	public void play(int route, int event) {
+		play(route, EventQueue.status(event), EventQueue.data1(event), EventQueue.data2(event));
+	}
+
+	/**
+	 * Plays one event on a route.
+	 *
+	 * @param route   the route.
+	 * @param command the MIDI command.
+	 * @param data1   the first data byte.
+	 * @param data2   the second data byte.
+	 */
+	private void play(int route, int command, int data1, int data2) {
+		final int channel = route % ChannelAllocator.NUM_CHANNELS;
+		ShortMessage message = MidiMessages.cached(command, channel, data1, data2);
+		final boolean pooled = message == null;
+		if (pooled) {
+			try {
+				message = _messages.acquire(command, channel, data1, data2);
+			} catch (InvalidMidiDataException imde) {
+				_invalidCount++;
+				return;
+			}
+		}
+		_receivers[route / ChannelAllocator.NUM_CHANNELS].send(message, -1);
+		if (pooled) {
+			_messages.release(message);
+		}
+		// One clock read per event: each event's end is the next one's start.
+		final long now = System.nanoTime();
+		if (_watchdog != null) {
+			track(route, command, data1, data2, now);
+		}
+		if (command == ShortMessage.PROGRAM_CHANGE) {
+			_programs[route] = data1;
+		}
+		if (_recorder != null) {
+			_recorder.record(now, _allocator.getSource(route), route, command | channel, data1, data2);
+		}
+		if (_broadcaster != null) {
+			_broadcaster.publish(_allocator.getSource(route), route, command | channel, data1, data2);
+		}
+		LatencyMetrics.SYNTH_SEND.record(now - _eventStartNanos);
+		_eventStartNanos = now;
+		_dispatchedCount++;
+	}
+
+	/**
+	 * Tells the watchdog about the notes started and stopped by an event.
+	 *
+	 * @param route   the route.
+	 * @param command the MIDI command.
+	 * @param data1   the first data byte.
+	 * @param data2   the second data byte.
+	 * @param now     the current System.nanoTime().
+	 */
+	private void track(int route, int command, int data1, int data2, long now) {
+		if (command == ShortMessage.NOTE_ON && data2 > 0) {
+			_watchdog.noteOn(route, data1, now);
+		} else if (command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF) {
+			_watchdog.noteOff(route, data1);
+		} else if (command == ShortMessage.CONTROL_CHANGE && (data1 == ALL_NOTES_OFF || data1 == ALL_SOUND_OFF)) {
+			_watchdog.clearRoute(route);
+		}
+	}
+
+	/**
+	 * Returns the number of events forwarded to the MIDI receiver.
+	 *
+	 * @return the dispatched count.
+	 */
+	public long getDispatchedCount() {
+		return _dispatchedCount;
+	}
+
+	/**
+	 * Returns the number of packets and events discarded because they could not
+	 * be decoded.
+	 *
+	 * @return the invalid count.
+	 */
+	public long getInvalidCount() {
+		return _invalidCount;
+	}
+
+	/**
+	 * Returns the number of events rejected by admission control, of all
+	 * clients ever.
+	 *
+	 * @return the rejected count.
+	 */
+	public long getRejectedCount() {
+		return _admission.getRejectedCount();
+	}
+
+	/**
+	 * Prints the events rejected from each client currently holding a route,
+	 * by reason. The counts may be slightly behind the dispatch thread.
+	 *
+	 * @param out the stream to print to.
+	 */
+	public void dumpRejections(PrintStream out) {
+		final AdmissionControl admission = _admission;
+		final StringBuilder line = new StringBuilder();
+		for (int route = 0; route < admission.getRouteCount(); route++) {
+			final long source = _allocator.getSource(route);
+			if (admission.getRejectedCount(route) == 0 || source < 0) {
+				continue;
+			}
+			line.setLength(0);
+			ChannelAllocator.formatSource(line.append("rejected source="), source).append(" route=").append(route);
+			for (int reason = 0; reason < AdmissionControl.NUM_REASONS; reason++) {
+				line.append(' ').append(AdmissionControl.getReasonName(reason)).append('=')
+						.append(admission.getRejectedCount(route, reason));
+			}
+			out.println(line);
+		}
+	}
+
+	/**
+	 * Prints the playout delay and jitter of each client currently holding a
+	 * route and sending timestamped packets. The values may be slightly behind
+	 * the dispatch thread.
+	 *
+	 * @param out the stream to print to.
+	 */
+	public void dumpPlayoutDelays(PrintStream out) {
+		final JitterBuffer jitterBuffer = _jitterBuffer;
+		if (jitterBuffer == null) {
+			return;
+		}
+		final StringBuilder line = new StringBuilder();
+		for (int route = 0; route < _allocator.getRouteCount(); route++) {
+			final long source = _allocator.getSource(route);
+			if (source < 0 || !jitterBuffer.isStarted(route)) {
+				continue;
+			}
+			line.setLength(0);
+			ChannelAllocator.formatSource(line.append("playout source="), source).append(" route=").append(route)
+					.append(" delayMs=").append(jitterBuffer.getDelayNanos(route) / 1_000_000.0)
+					.append(" jitterMs=").append(jitterBuffer.getJitterNanos(route) / 1_000_000.0);
+			out.println(line);
+		}
+	}
+
+	/**
+	 * Returns the number of events waiting for their playout time.
+	 *
+	 * @return the scheduled count.
+	 */
+	public int getScheduledCount() {
+		return _scheduler.size();
+	}
+
+	/**
+	 * Returns the number of timestamped packets that arrived after their
+	 * playout time, and so were played right away.
+	 *
+	 * @return the late count.
+	 */
+	public long getLateCount() {
+		return _jitterBuffer == null ? 0 : _jitterBuffer.getLateCount();
+	}
+
+	/**
+	 * Returns the number of duplicated packets dropped in playout mode.
+	 *
+	 * @return the duplicate count.
+	 */
+	public long getDuplicateCount() {
+		return _jitterBuffer == null ? 0 : _jitterBuffer.getDuplicateCount();
+	}
+
+	/**
+	 * Returns the number of reliable packets received again after their
+	 * acknowledgement was lost or late, and dropped.
+	 *
+	 * @return the retransmitted count.
+	 */
+	public long getRetransmittedCount() {
+		return _retransmittedCount;
+	}
+
+	/**
+	 * Returns the number of notes released by the watchdog because they were
+	 * held for longer than the maximum note duration.
+	 *
+	 * @return the stuck note count.
+	 */
+	public long getStuckNoteCount() {
+		return _watchdog == null ? 0 : _watchdog.getReleasedCount();
+	}
+
+	/**
+	 * Returns the current playout delay of a route, which adapts to the jitter
+	 * of its client's link.
+	 *
+	 * @param route the route.
+	 * @return the delay in nanoseconds, or 0 outside playout mode.
+	 */
+	public long getPlayoutDelayNanos(int route) {
+		return _jitterBuffer == null ? 0 : _jitterBuffer.getDelayNanos(route);
+	}
+
+	/**
+	 * Returns the number of routes of the dispatcher.
+	 *
+	 * @return the route count.
+	 */
+	public int getRouteCount() {
+		return _allocator.getRouteCount();
+	}
+
+	/**
+	 * Returns the number of routes taken from a client that had not gone idle
+	 * because a new client arrived while every route was taken.
+	 *
+	 * @return the reassigned count.
+	 */
+	public long getReassignedCount() {
+		return _allocator.getReassignedCount();
+	}
+
+	/**
+	 * Returns the number of channels currently assigned to a client.
+	 *
+	 * @return the active channel count.
+	 */
+	public int getActiveSourceCount() {
+		return _allocator.getActiveCount();
+	}
+}
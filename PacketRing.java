@@ -0,0 +1,114 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * Implements a bounded single-producer/single-consumer ring of preallocated
+ * PacketSlots. The producer claims a free slot, fills it and publishes it; the
+ * consumer peeks the oldest published slot, processes it and releases it.
+ * Neither side locks or allocates.
+ */
+public class PacketRing {
+	private final PacketSlot[] _slots;
+	private final int _mask;
+	private final AtomicLong _head = new AtomicLong(); // next slot to consume
+	private final AtomicLong _tail = new AtomicLong(); // next slot to publish
+	private final AtomicLong _dropCount = new AtomicLong();
+
+	/**
+	 * @param capacity the number of slots, rounded up to a power of two.
+	 * @param slotSize the maximum datagram size held by each slot.
+	 * @param direct   whether the slots use direct buffers.
+	 */
+	public PacketRing(int capacity, int slotSize, boolean direct) {
+		final int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+		_slots = new PacketSlot[size];
+		for (int i = 0; i < size; i++) {
+			_slots[i] = new PacketSlot(slotSize, direct);
+		}
+		_mask = size - 1;
+	}
+
+	/**
+	 * Returns the next free slot for the producer, or null if the ring is full.
+	 *
+	 * @return the slot to fill, or null.
+	 */
+	public PacketSlot claim() {
+		final long tail = _tail.get();
+		if (tail - _head.get() >= _slots.length) {
+			return null;
+		}
+		return _slots[(int) tail & _mask];
+	}
+
+	/**
+	 * Makes the most recently claimed slot visible to the consumer.
+	 */
+	public void publish() {
+		_tail.lazySet(_tail.get() + 1);
+	}
+
+	/**
+	 * Returns the oldest published slot for the consumer, or null if the ring
+	 * is empty. The slot stays owned by the consumer until release() is called.
+	 *
+	 * @return the slot to process, or null.
+	 */
+	public PacketSlot peek() {
+		final long head = _head.get();
+		if (head >= _tail.get()) {
+			return null;
+		}
+		return _slots[(int) head & _mask];
+	}
+
+	/**
+	 * Hands the most recently peeked slot back to the producer.
+	 */
+	public void release() {
+		_head.lazySet(_head.get() + 1);
+	}
+
+	/**
+	 * Records that the producer had to discard a packet because the ring was
+	 * full.
+	 */
+	public void recordDrop() {
+		_dropCount.lazySet(_dropCount.get() + 1);
+	}
+
+	/**
+	 * Returns the number of published slots not yet released.
+	 *
+	 * @return the queue depth.
+	 */
+	public int size() {
+		return (int) (_tail.get() - _head.get());
+	}
+
+	/**
+	 * Returns the number of slots in the ring.
+	 *
+	 * @return the capacity.
+	 */
+	public int capacity() {
+		return _slots.length;
+	}
+
+	/**
+	 * Returns the number of packets discarded because the ring was full.
+	 *
+	 * @return the drop count.
+	 */
+	public long getDropCount() {
+		return _dropCount.get();
+	}
+
+	/**
+	 * Returns the total number of packets published into the ring.
+	 *
+	 * @return the published count.
+	 */
+	public long getPublishedCount() {
+		return _tail.get();
+	}
+}
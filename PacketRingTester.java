@@ -0,0 +1,121 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import java.net.*;
+
+/**
+ * Contains a set of unit tests for the PacketRing class.
+ */
+class PacketRingTester {
+	private static final int SLOT_SIZE = 16;
+
+	/**
+	 * Claims a slot, writes a value into it and publishes it.
+	 */
+	private static void publish(PacketRing ring, int value) {
+		final PacketSlot slot = ring.claim();
+		assertNotNull(slot);
+		slot.fill(new byte[] { (byte) value }, 0, 1, InetAddress.getLoopbackAddress(), value, value);
+		ring.publish();
+	}
+
+	/**
+	 * Peeks the oldest slot, checks its value and releases it.
+	 */
+	private static void consume(PacketRing ring, int value) {
+		final PacketSlot slot = ring.peek();
+		assertNotNull(slot);
+		assertEquals((byte) value, slot.getBuffer().get(0));
+		assertEquals(value, slot.getPort());
+		ring.release();
+	}
+
+	@Test
+	void testCapacityIsRoundedUpToPowerOfTwo() {
+		assertEquals(2, new PacketRing(0, SLOT_SIZE, false).capacity());
+		assertEquals(8, new PacketRing(8, SLOT_SIZE, false).capacity());
+		assertEquals(16, new PacketRing(9, SLOT_SIZE, true).capacity());
+	}
+
+	@Test
+	void testSlotsWrapAroundInOrder() {
+		final PacketRing ring = new PacketRing(4, SLOT_SIZE, false);
+		assertNull(ring.peek());
+		// Many times around the ring, at every depth.
+		int published = 0;
+		int consumed = 0;
+		for (int round = 0; round < 100; round++) {
+			final int depth = round % ring.capacity() + 1;
+			while (published - consumed < depth) {
+				publish(ring, published++);
+			}
+			assertEquals(depth, ring.size());
+			while (consumed < published) {
+				consume(ring, consumed++);
+			}
+			assertNull(ring.peek());
+		}
+		assertEquals(published, ring.getPublishedCount());
+		assertEquals(0, ring.getDropCount());
+	}
+
+	@Test
+	void testFullRingRefusesClaimsAndCountsDrops() {
+		final PacketRing ring = new PacketRing(4, SLOT_SIZE, false);
+		for (int i = 0; i < 4; i++) {
+			publish(ring, i);
+		}
+		assertNull(ring.claim());
+		ring.recordDrop();
+		ring.recordDrop();
+		assertEquals(2, ring.getDropCount());
+		assertEquals(4, ring.size());
+
+		// A claimed slot is not visible until published.
+		consume(ring, 0);
+		final PacketSlot slot = ring.claim();
+		assertNotNull(slot);
+		assertSame(slot, ring.claim(), "the same slot until published");
+		consume(ring, 1);
+		consume(ring, 2);
+		consume(ring, 3);
+		assertNull(ring.peek());
+		assertEquals(4, ring.getPublishedCount());
+	}
+
+	@Test
+	void testProducerAndConsumerThreads() throws Exception {
+		final PacketRing ring = new PacketRing(8, SLOT_SIZE, true);
+		final int count = 100_000;
+		final Thread producer = new Thread(() -> {
+			final byte[] data = new byte[4];
+			for (int i = 0; i < count;) {
+				final PacketSlot slot = ring.claim();
+				if (slot == null) {
+					Thread.yield();
+					continue;
+				}
+				data[0] = (byte) (i >> 24);
+				data[1] = (byte) (i >> 16);
+				data[2] = (byte) (i >> 8);
+				data[3] = (byte) i;
+				slot.fill(data, 0, data.length, null, 0, 0);
+				ring.publish();
+				i++;
+			}
+		});
+		producer.start();
+		for (int i = 0; i < count;) {
+			final PacketSlot slot = ring.peek();
+			if (slot == null) {
+				Thread.yield();
+				continue;
+			}
+			assertEquals(i, slot.getBuffer().getInt(0));
+			ring.release();
+			i++;
+		}
+		producer.join();
+		assertEquals(0, ring.size());
+		assertEquals(count, ring.getPublishedCount());
+	}
+}
@@ -0,0 +1,151 @@
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Holds one received datagram together with its source and arrival time.
+ * Slots are allocated once by a PacketRing and then reused for every packet
+ * that passes through the ring, so receiving allocates nothing.
+ */
+public class PacketSlot {
+	private final ByteBuffer _buffer;
+	private final DatagramPacket _packet;
+	private InetAddress _address;
+	private int _port;
+	private long _receivedNanos;
+	private boolean _release; // holds no packet, but a client's departure
+
+	/**
+	 * @param capacity the maximum size of a datagram held by this slot.
+	 * @param direct   whether to back the slot with a direct buffer (for NIO
+	 *                 channels) instead of a heap array (for DatagramSocket).
+	 */
+	public PacketSlot(int capacity, boolean direct) {
+		if (direct) {
+			_buffer = ByteBuffer.allocateDirect(capacity);
+			_packet = null;
+		} else {
+			final byte[] array = new byte[capacity];
+			_buffer = ByteBuffer.wrap(array);
+			_packet = new DatagramPacket(array, capacity);
+		}
+	}
+
+	/**
+	 * Returns the buffer holding the datagram payload.
+	 *
+	 * @return the payload buffer.
+	 */
+	public ByteBuffer getBuffer() {
+		return _buffer;
+	}
+
+	/**
+	 * Receives the next datagram from the specified socket into this slot,
+	 * blocking until one arrives.
+	 *
+	 * @param socket the socket to receive from.
+	 */
+	public void receive(DatagramSocket socket) throws java.io.IOException {
+		_packet.setLength(_buffer.capacity());
+		socket.receive(_packet);
+		_buffer.clear();
+		_buffer.limit(_packet.getLength());
+		_address = _packet.getAddress();
+		_port = _packet.getPort();
+		_receivedNanos = System.nanoTime();
+		_release = false;
+	}
+
+	/**
+	 * Receives the next datagram from the specified channel into this slot,
+	 * blocking until one arrives.
+	 *
+	 * @param channel the blocking channel to receive from.
+	 */
+	public void receive(DatagramChannel channel) throws java.io.IOException {
+		_buffer.clear();
+		final InetSocketAddress source = (InetSocketAddress) channel.receive(_buffer);
+		_buffer.flip();
+		_address = source.getAddress();
+		_port = source.getPort();
+		_receivedNanos = System.nanoTime();
+		_release = false;
+	}
+
+	/**
+	 * Fills this slot with a packet read from a stream rather than received as
+	 * a datagram.
+	 *
+	 * @param data          the array holding the packet.
+	 * @param offset        the offset of the packet in the array.
+	 * @param length        the length of the packet.
+	 * @param address       the address of the client.
+	 * @param port          the port of the client.
+	 * @param receivedNanos the System.nanoTime() at which the packet arrived.
+	 */
+	public void fill(byte[] data, int offset, int length, InetAddress address, int port, long receivedNanos) {
+		_buffer.clear();
+		_buffer.put(data, offset, length);
+		_buffer.flip();
+		_address = address;
+		_port = port;
+		_receivedNanos = receivedNanos;
+		_release = false;
+	}
+
+	/**
+	 * Fills this slot with the departure of a stream client rather than a
+	 * packet, so that the dispatcher releases the client's notes after
+	 * playing the packets it sent before leaving.
+	 *
+	 * @param address       the address of the client.
+	 * @param port          the port of the client.
+	 * @param receivedNanos the System.nanoTime() at which the client left.
+	 */
+	public void fillRelease(InetAddress address, int port, long receivedNanos) {
+		_buffer.clear();
+		_buffer.limit(0);
+		_address = address;
+		_port = port;
+		_receivedNanos = receivedNanos;
+		_release = true;
+	}
+
+	/**
+	 * Returns whether this slot holds a client's departure (see
+	 * fillRelease()) rather than a packet.
+	 *
+	 * @return whether the client's notes are to be released.
+	 */
+	public boolean isRelease() {
+		return _release;
+	}
+
+	/**
+	 * Returns the address of the client that sent the datagram.
+	 *
+	 * @return the source address.
+	 */
+	public InetAddress getAddress() {
+		return _address;
+	}
+
+	/**
+	 * Returns the port of the client that sent the datagram.
+	 *
+	 * @return the source port.
+	 */
+	public int getPort() {
+		return _port;
+	}
+
+	/**
+	 * Returns the System.nanoTime() at which the datagram arrived.
+	 *
+	 * @return the arrival time in nanoseconds.
+	 */
+	public long getReceivedNanos() {
+		return _receivedNanos;
+	}
+}
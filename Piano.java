@@ -5,7 +5,8 @@ import java.awt.event.*;
 import javax.sound.midi.*;
 
 /**
- * Implements a simulated piano with 36 keys.
+ * Implements a simulated piano. By default it has 36 keys; other pitch ranges
+ * and stacked manuals are described by a KeyboardLayout.
  */
 public class Piano extends JPanel {
 	// DO NOT MODIFY THESE CONSTANTS
@@ -22,10 +23,19 @@ public class Piano extends JPanel {
 	public static int WIDTH = NUM_WHITE_KEYS * WHITE_KEY_WIDTH;
 	public static int HEIGHT = WHITE_KEY_HEIGHT;
 	public static int TOP = 0;
+	// Remote notes are repainted at most once per interval, however many arrive.
+	public static final int REMOTE_REPAINT_INTERVAL_MS = 16;
 
 	private ArrayList<Key> _keys = new ArrayList<>();
+	private final KeyboardLayout _layout;
 	private Receiver _receiver;
 	private PianoMouseListener _mouseListener;
+	private PianoKeyListener _keyListener;
+	// One channel per server route, since the band's notes arrive by route.
+	private final NoteStateSet _remoteNotes = new NoteStateSet(ChannelAllocator.ROUTE_MASK + 1);
+	private final long[] _changedPitches = new long[NoteStateSet.NUM_PITCHES / Long.SIZE];
+	private final javax.swing.Timer _remoteRepaintTimer = new javax.swing.Timer(REMOTE_REPAINT_INTERVAL_MS,
+			e -> repaintRemoteNotes());
 
 	/**
 	 * Returns the list of keys in the piano.
@@ -54,175 +64,111 @@ public class Piano extends JPanel {
 		return _receiver;
 	}
 
-	// DO NOT MODIFY THIS METHOD.
 	/**
 	 * @param receiver the MIDI receiver to use in the piano.
 	 */
 	public Piano(Receiver receiver) {
+		this(receiver, KeyboardLayout.DEFAULT);
+	}
+
+	/**
+	 * @param receiver the MIDI receiver to use in the piano.
+	 * @param layout   the keys to make.
+	 */
+	public Piano(Receiver receiver, KeyboardLayout layout) {
 		// Some Swing setup stuff; don't worry too much about it.
 		setFocusable(true);
 		setLayout(null);
-		setPreferredSize(new Dimension(WIDTH, HEIGHT));
+		setPreferredSize(new Dimension(layout.getWidth(), layout.getHeight()));
 
+		_layout = layout;
 		setReceiver(receiver);
-		_mouseListener = new PianoMouseListener(_keys);
+		_mouseListener = new PianoMouseListener(_keys, layout);
 		addMouseListener(_mouseListener);
 		addMouseMotionListener(_mouseListener);
 		makeKeys();
+		// Chords can be played from the computer keyboard while the piano has focus.
+		_keyListener = new PianoKeyListener(_keys, layout);
+		addKeyListener(_keyListener);
+		addFocusListener(_keyListener);
 	}
 
 	/**
-	 * Returns the PianoMouseListener associated with the piano.
+	 * Returns the layout of the piano's keys.
 	 * 
-	 * @return the PianoMouseListener associated with the piano.
+	 * @return the keyboard layout.
 	 */
-	public PianoMouseListener getMouseListener() {
-		return _mouseListener;
+	public KeyboardLayout getKeyboardLayout() {
+		return _layout;
 	}
 
 	/**
-	 * Creates a key for the piano
+	 * Returns the notes played by the other band members. A RemoteNoteListener
+	 * may update them from any thread; the piano picks up the changes on its
+	 * own timer while it is displayed.
 	 * 
-	 * @param upperLeftX the x-coordinate of the top-left corner of the key
-	 * @param upperWidth the width of the key at the top edge
-	 * @param lowerLeftX the x-coordinate of the top-left corner of the key
-	 * @param lowerWidth the width of the key at the bottom edge
-	 * @param height     the height of the key
-	 * @param color      the color of the key
-	 * @param pitch      the pitch of the key
-	 * 
-	 * @return the key
-	 */
-	private Key makeKey(int lowerLeftX, int lowerWidth, int upperLeftX, int upperWidth, int height, Color color,
-			int pitch) {
-		/*-
-		 * Example Key: left white key
-		 * upperLeftX -> ____					|
-		 *				 |  |					|
-		 *				 |  |___ <- upperRightX |
-		 *				 |	   |				|	
-		 *				 |	   |				|
-		 * lowerLeftX -> |_____| <- lowerRightX | <- height
-		 */
-
-		// Drawing from upper left to right and then down, left, up again.
-		final int[] xPoints = { upperLeftX, upperLeftX + upperWidth, upperLeftX + upperWidth, lowerLeftX + lowerWidth,
-				lowerLeftX + lowerWidth, lowerLeftX, lowerLeftX, upperLeftX, upperLeftX };
-
-		// If it's a black key, the height is the same as the black key height, so we
-		// can use this as a common abstraction
-		final int[] yPoints = { TOP, TOP, BLACK_KEY_HEIGHT, BLACK_KEY_HEIGHT, height, height, BLACK_KEY_HEIGHT,
-				BLACK_KEY_HEIGHT, TOP };
-
-		final Polygon polygon = new Polygon(xPoints, yPoints, xPoints.length);
-		return new Key(polygon, color, pitch, this);
-	}
-
-	/**
-	 * Creates a black key for the piano with bottom-left corner at (lowerLeftX,
-	 * BLACK_KEY_HEIGHT) and width and height specified by the constants
-	 * BLACK_KEY_WIDTH and BLACK_KEY_HEIGHT.
-	 *
-	 * @param lowerLeftX the x-coordinate of the bottom-left corner of the key
-	 * @param pitch      the pitch of the key
-	 * @return the black key
+	 * @return the remote notes.
 	 */
-	private Key makeBlackKey(int lowerLeftX, int pitch) {
-		final int upperLeftX = lowerLeftX;
-		final int upperWidth = BLACK_KEY_WIDTH;
-		final int lowerWidth = BLACK_KEY_WIDTH;
-		final int height = BLACK_KEY_HEIGHT;
-
-		return makeKey(lowerLeftX, lowerWidth, upperLeftX, upperWidth, height, Color.BLACK, pitch);
+	public NoteStateSet getRemoteNotes() {
+		return _remoteNotes;
 	}
 
+	@Override
 	/**
-	 * Creates a white key for the piano with bottom-left corner at (lowerLeftX,
-	 * WHITE_KEY_HEIGHT) and width and height specified by the constants
-	 * WHITE_KEY_WIDTH and WHITE_KEY_HEIGHT.
-	 *
-	 * @param lowerLeftX the x-coordinate of the bottom-left corner of the key
-	 * @param upperLeftX the x-coordinate of the top-left corner of the key
-	 * @param upperWidth the width of the key at the top edge
-	 * @param pitch      the pitch of the key
-	 * @return the white key
+	 * Starts repainting remote notes once the piano is displayed.
 	 */
-	private Key makeWhiteKey(int lowerLeftX, int upperLeftX, int upperWidth, int pitch) {
-		final int lowerWidth = WHITE_KEY_WIDTH;
-		final int height = WHITE_KEY_HEIGHT;
-
-		return makeKey(lowerLeftX, lowerWidth, upperLeftX, upperWidth, height, Color.WHITE, pitch);
+	public void addNotify() {
+		super.addNotify();
+		_remoteRepaintTimer.start();
 	}
 
+	@Override
 	/**
-	 * Creates a left white key for the piano with bottom-left corner at
-	 * (lowerLeftX, WHITE_KEY_HEIGHT)
-	 *
-	 * @param lowerLeftX the x-coordinate of the bottom-left corner of the key
-	 * @param pitch      the pitch of the key
-	 * @return
+	 * Stops repainting remote notes once the piano is no longer displayed.
 	 */
-	private Key makeLeftWhiteKey(int lowerLeftX, int pitch) {
-		final int upperLeftX = lowerLeftX;
-		final int upperWidth = WHITE_KEY_WIDTH - BLACK_KEY_WIDTH / 2;
-
-		return makeWhiteKey(lowerLeftX, upperLeftX, upperWidth, pitch);
+	public void removeNotify() {
+		_remoteRepaintTimer.stop();
+		super.removeNotify();
 	}
 
 	/**
-	 * Creates a right white key for the piano with bottom-left corner at
-	 * (lowerLeftX, WHITE_KEY_HEIGHT)
-	 *
-	 * @param lowerLeftX the x-coordinate of the bottom-left corner of the key
-	 * @param pitch      the pitch of the key
-	 * @return
+	 * Repaints the keys, on every manual, of the pitches whose remote state
+	 * changed since the last call. Must be called on the Swing event thread.
 	 */
-	private Key makeRightWhiteKey(int lowerLeftX, int pitch) {
-		int upperLeftX = lowerLeftX + BLACK_KEY_WIDTH / 2;
-		int upperWidth = WHITE_KEY_WIDTH - BLACK_KEY_WIDTH / 2;
-
-		return makeWhiteKey(lowerLeftX, upperLeftX, upperWidth, pitch);
+	void repaintRemoteNotes() {
+		if (!_remoteNotes.takeChanged(_changedPitches)) {
+			return;
+		}
+		final int keysPerManual = _layout.getKeysPerManual();
+		for (int word = 0; word < _changedPitches.length; word++) {
+			for (long bits = _changedPitches[word]; bits != 0; bits &= bits - 1) {
+				final int pitch = word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+				if (!_layout.contains(pitch)) {
+					continue;
+				}
+				for (int manual = 0; manual < _layout.getNumManuals(); manual++) {
+					_keys.get(manual * keysPerManual + pitch - _layout.getLowPitch()).repaint();
+				}
+			}
+		}
 	}
 
 	/**
-	 * Creates a middle white key for the piano with bottom-left corner at
-	 * (lowerLeftX, WHITE_KEY_HEIGHT)
-	 *
-	 * @param lowerLeftX the x-coordinate of the bottom-left corner of the key
-	 * @param pitch      the pitch of the key
-	 * @return
+	 * Returns the PianoMouseListener associated with the piano.
+	 * 
+	 * @return the PianoMouseListener associated with the piano.
 	 */
-	private Key makeMiddleWhiteKey(int lowerLeftX, int pitch) {
-		final int upperLeftX = lowerLeftX + BLACK_KEY_WIDTH / 2;
-		final int upperWidth = WHITE_KEY_WIDTH - BLACK_KEY_WIDTH;
-
-		return makeWhiteKey(lowerLeftX, upperLeftX, upperWidth, pitch);
+	public PianoMouseListener getMouseListener() {
+		return _mouseListener;
 	}
 
 	/**
-	 * Creates an octave for the piano
-	 *
-	 * @param leftX  the x-coordinate of the leftmost key of the octave
-	 * @param octave the octave number (starting at 0)
-	 * @return
+	 * Returns the PianoKeyListener associated with the piano.
+	 * 
+	 * @return the PianoKeyListener associated with the piano.
 	 */
-	private void makeOctave(int leftX, int octave) {
-		final int firstPitch = octave * NUM_KEYS_PER_OCTAVE + START_PITCH;
-		final Key[] keys = { // Declarative list of all the keys in an octave
-				makeLeftWhiteKey(leftX, firstPitch),
-				makeBlackKey(leftX + WHITE_KEY_WIDTH - BLACK_KEY_WIDTH / 2, firstPitch + 1),
-				makeMiddleWhiteKey(leftX + WHITE_KEY_WIDTH, firstPitch + 2),
-				makeBlackKey(leftX + 2 * WHITE_KEY_WIDTH - BLACK_KEY_WIDTH / 2, firstPitch + 3),
-				makeRightWhiteKey(leftX + WHITE_KEY_WIDTH * 2, firstPitch + 4),
-
-				makeLeftWhiteKey(leftX + WHITE_KEY_WIDTH * 3, firstPitch + 5),
-				makeBlackKey(leftX + 4 * WHITE_KEY_WIDTH - BLACK_KEY_WIDTH / 2, firstPitch + 6),
-				makeMiddleWhiteKey(leftX + WHITE_KEY_WIDTH * 4, firstPitch + 7),
-				makeBlackKey(leftX + WHITE_KEY_WIDTH * 5 - BLACK_KEY_WIDTH / 2, firstPitch + 8),
-				makeMiddleWhiteKey(leftX + WHITE_KEY_WIDTH * 5, firstPitch + 9),
-				makeBlackKey(leftX + WHITE_KEY_WIDTH * 6 - BLACK_KEY_WIDTH / 2, firstPitch + 10),
-				makeRightWhiteKey(leftX + WHITE_KEY_WIDTH * 6, firstPitch + 11), };
-		_keys.addAll(Arrays.asList(keys));
+	public PianoKeyListener getKeyListener() {
+		return _keyListener;
 	}
 
 	/**
@@ -230,22 +176,60 @@ public class Piano extends JPanel {
 	 * add them to the _keys array.
 	 */
 	private void makeKeys() {
-		for (int i = 0; i < NUM_OCTAVES; i++) {
-			makeOctave(WHITE_KEY_WIDTH * NUM_WHITE_KEYS_PER_OCTAVE * i, i);
-		}
+		_keys.addAll(_layout.makeKeys(this));
 	}
 
-	// DO NOT MODIFY THIS METHOD.
 	@Override
 	/**
-	 * Paints the piano and all its constituent keys.
+	 * Paints the keys of the piano that intersect the clip. Only the keys of
+	 * the white columns under the clip (and their black neighbours) are
+	 * visited, so repainting a single key costs the same on any layout. White
+	 * keys are painted before black keys, which cover the white keys' notches.
 	 * 
 	 * @param g the Graphics object to use for painting.
 	 */
 	public void paint(Graphics g) {
-		// Delegates to all the individual keys to draw themselves.
-		for (Key key : _keys) {
-			key.paint(g);
+		final Rectangle clip = g.getClipBounds();
+		if (clip == null) {
+			// Delegates to all the individual keys to draw themselves.
+			paintKeys(g, 0, _keys.size() - 1, false);
+			paintKeys(g, 0, _keys.size() - 1, true);
+			return;
+		}
+		final int keysPerManual = _layout.getKeysPerManual();
+		final int lastColumn = _layout.getNumWhiteKeys() - 1;
+		// Outlines reach one pixel past a key's right and bottom edges.
+		final int firstManual = Math.max(0, Math.floorDiv(clip.y - 1 - TOP, WHITE_KEY_HEIGHT));
+		final int lastManual = Math.min(_layout.getNumManuals() - 1,
+				Math.floorDiv(clip.y + clip.height - 1 - TOP, WHITE_KEY_HEIGHT));
+		final int firstColumn = Math.max(0, Math.floorDiv(clip.x - 1, WHITE_KEY_WIDTH));
+		final int endColumn = Math.min(lastColumn, Math.floorDiv(clip.x + clip.width - 1, WHITE_KEY_WIDTH));
+		if (firstColumn > lastColumn || endColumn < 0) {
+			return;
+		}
+		// Include the black keys on either side of the white columns.
+		final int first = Math.max(0, _layout.getKeyIndex(firstColumn) - 1);
+		final int last = Math.min(keysPerManual - 1, _layout.getKeyIndex(endColumn) + 1);
+		for (int manual = firstManual; manual <= lastManual; manual++) {
+			paintKeys(g, manual * keysPerManual + first, manual * keysPerManual + last, false);
+			paintKeys(g, manual * keysPerManual + first, manual * keysPerManual + last, true);
+		}
+	}
+
+	/**
+	 * Paints either the white or the black keys among a run of keys.
+	 *
+	 * @param g     the Graphics object to use for painting.
+	 * @param first the index of the first key of the run.
+	 * @param last  the index of the last key of the run.
+	 * @param black whether to paint the black keys rather than the white ones.
+	 */
+	private void paintKeys(Graphics g, int first, int last, boolean black) {
+		for (int i = first; i <= last; i++) {
+			final Key key = _keys.get(i);
+			if (KeyIndex.isBlack(key.getPitch()) == black) {
+				key.paint(g);
+			}
 		}
 	}
 }
\ No newline at end of file
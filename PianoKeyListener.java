@@ -0,0 +1,197 @@
+import java.awt.event.*;
+import java.util.*;
+
+/**
+ * Plays the piano from the computer keyboard, several keys at a time. Two
+ * rows of letters are laid out like piano keys, as in most music software:
+ *
+ * <pre>
+ *  2 3   5 6 7   9 0   =
+ * Q W E R T Y U I O P [ ]
+ *  S D   G H J   L ;
+ * Z X C V B N M , . /
+ * </pre>
+ *
+ * Z plays the base pitch and Q the pitch an octave higher, so the end of the
+ * lower row (, L . ; /) plays the same pitches as the start of the upper one
+ * (Q 2 W 3 E). A key code is looked up in a flat table, straight to its pitch,
+ * with no hit-testing; the key codes held are kept as a 256-bit set, so
+ * pressing a key already held (the operating system's auto-repeat) is ignored
+ * without allocating. Piano keys are pressed and released through their hold
+ * count (Key.press() and Key.release()), which the mouse shares: a note held by
+ * two computer keys, or by a computer key and the mouse, sounds until both let
+ * go. All of this runs on the Swing event thread, which is the only one that
+ * touches the state. When the piano loses focus, the keys it would no longer
+ * hear being released are released.
+ */
+public class PianoKeyListener extends KeyAdapter implements FocusListener {
+	// Key codes above this are not mapped.
+	private static final int NUM_KEY_CODES = 256;
+	private static final int NO_PITCH = -1;
+	private static final int[] LOWER_ROW = { KeyEvent.VK_Z, KeyEvent.VK_S, KeyEvent.VK_X, KeyEvent.VK_D,
+			KeyEvent.VK_C, KeyEvent.VK_V, KeyEvent.VK_G, KeyEvent.VK_B, KeyEvent.VK_H, KeyEvent.VK_N, KeyEvent.VK_J,
+			KeyEvent.VK_M, KeyEvent.VK_COMMA, KeyEvent.VK_L, KeyEvent.VK_PERIOD, KeyEvent.VK_SEMICOLON,
+			KeyEvent.VK_SLASH };
+	private static final int[] UPPER_ROW = { KeyEvent.VK_Q, KeyEvent.VK_2, KeyEvent.VK_W, KeyEvent.VK_3,
+			KeyEvent.VK_E, KeyEvent.VK_R, KeyEvent.VK_5, KeyEvent.VK_T, KeyEvent.VK_6, KeyEvent.VK_Y, KeyEvent.VK_7,
+			KeyEvent.VK_U, KeyEvent.VK_I, KeyEvent.VK_9, KeyEvent.VK_O, KeyEvent.VK_0, KeyEvent.VK_P,
+			KeyEvent.VK_OPEN_BRACKET, KeyEvent.VK_EQUALS, KeyEvent.VK_CLOSE_BRACKET };
+	private static final int MODIFIERS = InputEvent.CTRL_DOWN_MASK | InputEvent.ALT_DOWN_MASK
+			| InputEvent.META_DOWN_MASK;
+
+	private final ArrayList<Key> _keys;
+	private final KeyboardLayout _layout;
+	private final int[] _pitches = new int[NUM_KEY_CODES];
+	// Bit c of word c / 64 is set while key code c is held.
+	private final long[] _held = new long[NUM_KEY_CODES / Long.SIZE];
+
+	/**
+	 * @param keys   the list of keys in the piano.
+	 * @param layout the layout the keys are made from.
+	 */
+	public PianoKeyListener(ArrayList<Key> keys, KeyboardLayout layout) {
+		this(keys, layout, defaultBasePitch(layout));
+	}
+
+	/**
+	 * @param keys      the list of keys in the piano.
+	 * @param layout    the layout the keys are made from.
+	 * @param basePitch the pitch of the Z key.
+	 */
+	public PianoKeyListener(ArrayList<Key> keys, KeyboardLayout layout, int basePitch) {
+		_keys = keys;
+		_layout = layout;
+		Arrays.fill(_pitches, NO_PITCH);
+		for (int i = 0; i < LOWER_ROW.length; i++) {
+			map(LOWER_ROW[i], basePitch + i);
+		}
+		for (int i = 0; i < UPPER_ROW.length; i++) {
+			map(UPPER_ROW[i], basePitch + 12 + i);
+		}
+	}
+
+	/**
+	 * Returns the pitch for the Z key: Piano.START_PITCH if the layout has it,
+	 * otherwise the layout's lowest C.
+	 */
+	private static int defaultBasePitch(KeyboardLayout layout) {
+		if (layout.contains(Piano.START_PITCH)) {
+			return Piano.START_PITCH;
+		}
+		return (layout.getLowPitch() + 11) / 12 * 12;
+	}
+
+	private void map(int keyCode, int pitch) {
+		if (_layout.contains(pitch)) {
+			_pitches[keyCode] = pitch;
+		}
+	}
+
+	/**
+	 * Returns the pitch a key plays.
+	 *
+	 * @param keyCode the key code (KeyEvent.VK_...).
+	 * @return the pitch, or -1 if the key plays nothing.
+	 */
+	public int getPitch(int keyCode) {
+		return keyCode >= 0 && keyCode < NUM_KEY_CODES ? _pitches[keyCode] : NO_PITCH;
+	}
+
+	/**
+	 * Returns whether a mapped key is held down on the computer keyboard.
+	 *
+	 * @param keyCode the key code (KeyEvent.VK_...).
+	 * @return whether it is held.
+	 */
+	public boolean isHeld(int keyCode) {
+		return getPitch(keyCode) != NO_PITCH && (_held[keyCode >>> 6] & 1L << keyCode) != 0;
+	}
+
+	/**
+	 * Returns the number of mapped keys held down on the computer keyboard.
+	 *
+	 * @return the number of keys held.
+	 */
+	public int getHeldCount() {
+		int count = 0;
+		for (long bits : _held) {
+			count += Long.bitCount(bits);
+		}
+		return count;
+	}
+
+	/**
+	 * Presses or releases the key of the first manual with the specified
+	 * pitch.
+	 */
+	private void play(int pitch, boolean isOn) {
+		final Key key = _keys.get(pitch - _layout.getLowPitch());
+		if (isOn) {
+			key.press();
+		} else {
+			key.release();
+		}
+	}
+
+	@Override
+	/**
+	 * Plays the note of a mapped key, unless it is already held (auto-repeat)
+	 * or a shortcut modifier is down.
+	 *
+	 * @param e the KeyEvent.
+	 */
+	public void keyPressed(KeyEvent e) {
+		final int keyCode = e.getKeyCode();
+		final int pitch = getPitch(keyCode);
+		if (pitch == NO_PITCH || (e.getModifiersEx() & MODIFIERS) != 0) {
+			return;
+		}
+		final long bit = 1L << keyCode;
+		if ((_held[keyCode >>> 6] & bit) != 0) {
+			return;
+		}
+		_held[keyCode >>> 6] |= bit;
+		play(pitch, true);
+		e.consume();
+	}
+
+	@Override
+	/**
+	 * Releases the note of a mapped key that is held.
+	 *
+	 * @param e the KeyEvent.
+	 */
+	public void keyReleased(KeyEvent e) {
+		final int keyCode = e.getKeyCode();
+		final int pitch = getPitch(keyCode);
+		if (pitch == NO_PITCH) {
+			return;
+		}
+		final long bit = 1L << keyCode;
+		if ((_held[keyCode >>> 6] & bit) == 0) {
+			return;
+		}
+		_held[keyCode >>> 6] &= ~bit;
+		play(pitch, false);
+		e.consume();
+	}
+
+	@Override
+	public void focusGained(FocusEvent e) {
+	}
+
+	@Override
+	/**
+	 * Releases every held note, since their key releases will go elsewhere.
+	 *
+	 * @param e the FocusEvent.
+	 */
+	public void focusLost(FocusEvent e) {
+		for (int word = 0; word < _held.length; word++) {
+			for (long bits = _held[word]; bits != 0; bits &= bits - 1) {
+				play(_pitches[word * Long.SIZE + Long.numberOfTrailingZeros(bits)], false);
+			}
+			_held[word] = 0;
+		}
+	}
+}
@@ -9,64 +9,105 @@ import java.util.*;
 public class PianoMouseListener extends MouseAdapter {
 	// You are free to add more instance variables if you wish.
 	private ArrayList<Key> _keys;
+	private KeyboardLayout _layout;
 	private Key _onKey; // the key that is currently pressed
+	private KeyIndex _index; // built once the piano has made its keys
+	private static final EventLog.Event KEY_PRESSED = new EventLog.Event("keyPressed", EventLog.Level.DEBUG,
+			"pitch", "channel");
 
 	/**
 	 * @param keys the list of keys in the piano.
 	 */
 	public PianoMouseListener(ArrayList<Key> keys) {
+		this(keys, KeyboardLayout.DEFAULT);
+	}
+
+	/**
+	 * @param keys   the list of keys in the piano.
+	 * @param layout the layout the keys are made from.
+	 */
+	public PianoMouseListener(ArrayList<Key> keys, KeyboardLayout layout) {
 		_keys = keys;
+		_layout = layout;
+	}
+
+	/**
+	 * Records how long the event took to reach the listener. Events built
+	 * without a time (such as in tests) are skipped.
+	 *
+	 * @param e the mouse event.
+	 */
+	private static void recordInput(MouseEvent e) {
+		if (e.getWhen() > 0) {
+			LatencyMetrics.INPUT.record((System.currentTimeMillis() - e.getWhen()) * 1_000_000);
+		}
+	}
+
+	/**
+	 * Returns the key under the specified point, using a KeyIndex built from
+	 * the current keys.
+	 *
+	 * @param x the x-coordinate relative to the piano.
+	 * @param y the y-coordinate relative to the piano.
+	 * @return the key, or null if there is none.
+	 */
+	private Key keyAt(int x, int y) {
+		// The piano makes its keys after constructing the listener.
+		if (_index == null || _index.size() != _keys.size()) {
+			_index = new KeyIndex(_layout, _keys);
+		}
+		return _index.keyAt(x, y);
 	}
 
 	@Override
 	/**
 	 * This method is called by Swing whenever the user drags the mouse.
-	 * 
+	 *
 	 * @param e the MouseEvent containing the (x,y) location, relative to the
 	 *          upper-left-hand corner of the entire piano, of where the mouse is
 	 *          currently located.
 	 */
 	public void mouseDragged(MouseEvent e) {
-		for (Key k : _keys) {
-			if (k.getPolygon().contains(e.getX(), e.getY()) && k != _onKey) {
-				if (_onKey != null) {
-					_onKey.play(false);
-				}
-				_onKey = k;
-				_onKey.play(true);
+		recordInput(e);
+		final Key k = keyAt(e.getX(), e.getY());
+		if (k != null && k != _onKey) {
+			if (_onKey != null) {
+				_onKey.release();
 			}
+			_onKey = k;
+			_onKey.press();
 		}
 	}
 
 	@Override
 	/**
 	 * This method is called by Swing whenever the user presses the mouse.
-	 * 
+	 *
 	 * @param e the MouseEvent containing the (x,y) location, relative to the
 	 *          upper-left-hand corner of the entire piano, of where the mouse is
 	 *          currently located.
 	 */
 	public void mousePressed(MouseEvent e) {
-		for (Key key : _keys) {
-			if (key.getPolygon().contains(e.getX(), e.getY()) && key != _onKey) {
-				key.play(true); // Note that the key should eventually be turned off!
-				_onKey = key;
-				System.out.println("This key was pressed: " + key);
-			}
+		recordInput(e);
+		final Key key = keyAt(e.getX(), e.getY());
+		if (key != null && key != _onKey) {
+			key.press(); // Note that the key should eventually be released!
+			_onKey = key;
+			EventLog.log(KEY_PRESSED, key.getPitch(), key.getChannel(), 0);
 		}
 	}
 
 	@Override
 	/**
 	 * This method is called by Swing whenever the user releases the mouse.
-	 * 
+	 *
 	 * @param e the MouseEvent containing the (x,y) location, relative to the
 	 *          upper-left-hand corner of the entire piano, of where the mouse is
 	 *          currently located.
 	 */
 	public void mouseReleased(MouseEvent e) {
 		if (_onKey != null) {
-			_onKey.play(false);
+			_onKey.release();
 			_onKey = null;
 		}
 	}
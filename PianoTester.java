@@ -1,7 +1,9 @@
 import static org.junit.jupiter.api.Assertions.*;
 import javax.swing.*;
 import javax.sound.midi.*;
+import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.*;
 import org.junit.jupiter.api.*;
 
 /**
@@ -82,4 +84,143 @@ class PianoTester {
 		assertTrue(_receiver.isKeyOn(Piano.START_PITCH + 1));
 
 	}
+
+	private BufferedImage paint(Rectangle clip) {
+		final BufferedImage image = new BufferedImage(Piano.WIDTH + 1, Piano.HEIGHT + 1, BufferedImage.TYPE_INT_RGB);
+		final Graphics g = image.getGraphics();
+		if (clip != null) {
+			g.setClip(clip);
+		}
+		_piano.paint(g);
+		g.dispose();
+		return image;
+	}
+
+	@Test
+	void testKeyImagesMatchPolygons() {
+		// Blitting the cached images must give the same pixels as filling and
+		// stroking the polygons, in both states.
+		_mouseListener.mousePressed(makeMouseEvent(Piano.WHITE_KEY_WIDTH, 1));
+		final BufferedImage blitted = paint(null);
+		final BufferedImage drawn = new BufferedImage(blitted.getWidth(), blitted.getHeight(),
+				BufferedImage.TYPE_INT_RGB);
+		final Graphics g = drawn.getGraphics();
+		for (Key key : _piano.getKeys()) {
+			g.setColor(key.isOn() ? KeyImages.DOWN_COLOR
+					: KeyIndex.isBlack(key.getPitch()) ? Color.BLACK : Color.WHITE);
+			g.fillPolygon(key.getPolygon());
+			g.setColor(Color.BLACK);
+			g.drawPolygon(key.getPolygon());
+		}
+		g.dispose();
+		for (int x = 0; x < drawn.getWidth(); x++) {
+			for (int y = 0; y < drawn.getHeight(); y++) {
+				assertEquals(drawn.getRGB(x, y), blitted.getRGB(x, y), "at " + x + "," + y);
+			}
+		}
+	}
+
+	@Test
+	void testClippedPaintMatchesFullPaint() {
+		// Painting only the keys under a clip must produce the same pixels
+		// inside the clip as painting every key.
+		_mouseListener.mousePressed(makeMouseEvent(Piano.WHITE_KEY_WIDTH, 1));
+		final BufferedImage full = paint(null);
+		final int step = Piano.BLACK_KEY_WIDTH / 2;
+		for (int x = 0; x <= Piano.WIDTH; x += step) {
+			final Rectangle clip = new Rectangle(x, 0, step + 1, Piano.HEIGHT + 1);
+			final BufferedImage clipped = paint(clip);
+			for (int px = clip.x; px < Math.min(clip.x + clip.width, full.getWidth()); px++) {
+				for (int py = 0; py < full.getHeight(); py++) {
+					assertEquals(full.getRGB(px, py), clipped.getRGB(px, py), "at " + px + "," + py);
+				}
+			}
+		}
+	}
+
+	@Test
+	void testRemoteNotesLightKeys() {
+		// A note played elsewhere shows in the remote color, on any channel,
+		// until the local player presses the key or the note stops.
+		final int x = Piano.WHITE_KEY_WIDTH / 2;
+		final int y = Piano.WHITE_KEY_HEIGHT - 10;
+		_piano.getRemoteNotes().noteOn(5, Piano.START_PITCH);
+		assertEquals(KeyImages.REMOTE_COLOR.getRGB(), paint(null).getRGB(x, y));
+
+		_mouseListener.mousePressed(makeMouseEvent(x, y));
+		assertEquals(KeyImages.DOWN_COLOR.getRGB(), paint(null).getRGB(x, y));
+		_mouseListener.mouseReleased(makeMouseEvent(x, y));
+
+		_piano.getRemoteNotes().noteOff(5, Piano.START_PITCH);
+		assertEquals(Color.WHITE.getRGB(), paint(null).getRGB(x, y));
+	}
+
+	private KeyEvent makeKeyEvent(int id, int keyCode) {
+		return new KeyEvent(_piano, id, 0, 0, keyCode, KeyEvent.CHAR_UNDEFINED);
+	}
+
+	@Test
+	void testKeyboardChordIgnoresAutoRepeat() {
+		// C, E and G held together; the repeated press of E while it is held
+		// must not play it again.
+		final PianoKeyListener keyListener = _piano.getKeyListener();
+		keyListener.keyPressed(makeKeyEvent(KeyEvent.KEY_PRESSED, KeyEvent.VK_Z));
+		keyListener.keyPressed(makeKeyEvent(KeyEvent.KEY_PRESSED, KeyEvent.VK_C));
+		keyListener.keyPressed(makeKeyEvent(KeyEvent.KEY_PRESSED, KeyEvent.VK_B));
+		keyListener.keyPressed(makeKeyEvent(KeyEvent.KEY_PRESSED, KeyEvent.VK_C));
+		assertTrue(_receiver.isKeyOn(Piano.START_PITCH));
+		assertTrue(_receiver.isKeyOn(Piano.START_PITCH + 4));
+		assertTrue(_receiver.isKeyOn(Piano.START_PITCH + 7));
+		assertEquals(1, _receiver.getKeyOnCount(Piano.START_PITCH + 4));
+		assertEquals(3, keyListener.getHeldCount());
+
+		keyListener.keyReleased(makeKeyEvent(KeyEvent.KEY_RELEASED, KeyEvent.VK_C));
+		assertFalse(_receiver.isKeyOn(Piano.START_PITCH + 4));
+		assertTrue(_receiver.isKeyOn(Piano.START_PITCH));
+		// The upper row starts an octave above the lower one.
+		keyListener.keyPressed(makeKeyEvent(KeyEvent.KEY_PRESSED, KeyEvent.VK_Q));
+		assertTrue(_receiver.isKeyOn(Piano.START_PITCH + 12));
+	}
+
+	@Test
+	void testFocusLostReleasesKeyboardNotes() {
+		final PianoKeyListener keyListener = _piano.getKeyListener();
+		keyListener.keyPressed(makeKeyEvent(KeyEvent.KEY_PRESSED, KeyEvent.VK_Z));
+		keyListener.keyPressed(makeKeyEvent(KeyEvent.KEY_PRESSED, KeyEvent.VK_SLASH));
+		keyListener.focusLost(new FocusEvent(_piano, FocusEvent.FOCUS_LOST));
+		assertFalse(_receiver.isKeyOn(Piano.START_PITCH));
+		assertFalse(_receiver.isKeyOn(Piano.START_PITCH + 16));
+		assertEquals(0, keyListener.getHeldCount());
+		// The releases that follow are not played twice.
+		keyListener.keyReleased(makeKeyEvent(KeyEvent.KEY_RELEASED, KeyEvent.VK_Z));
+		assertEquals(1, _receiver.getKeyOffCount(Piano.START_PITCH));
+	}
+
+	@Test
+	void testKeysSharingAPitchHoldItTogether() {
+		// "," and Q both play an octave above Z.
+		final PianoKeyListener keyListener = _piano.getKeyListener();
+		keyListener.keyPressed(makeKeyEvent(KeyEvent.KEY_PRESSED, KeyEvent.VK_COMMA));
+		keyListener.keyPressed(makeKeyEvent(KeyEvent.KEY_PRESSED, KeyEvent.VK_Q));
+		assertEquals(1, _receiver.getKeyOnCount(Piano.START_PITCH + 12));
+		assertEquals(2, keyListener.getHeldCount());
+		keyListener.keyReleased(makeKeyEvent(KeyEvent.KEY_RELEASED, KeyEvent.VK_COMMA));
+		assertTrue(_receiver.isKeyOn(Piano.START_PITCH + 12), "Q still holds it");
+		keyListener.keyReleased(makeKeyEvent(KeyEvent.KEY_RELEASED, KeyEvent.VK_Q));
+		assertFalse(_receiver.isKeyOn(Piano.START_PITCH + 12));
+		assertEquals(1, _receiver.getKeyOffCount(Piano.START_PITCH + 12));
+	}
+
+	@Test
+	void testMouseAndKeyboardHoldAKeyTogether() {
+		final PianoKeyListener keyListener = _piano.getKeyListener();
+		keyListener.keyPressed(makeKeyEvent(KeyEvent.KEY_PRESSED, KeyEvent.VK_Z));
+		_mouseListener.mousePressed(makeMouseEvent(0, 1));
+		assertEquals(1, _receiver.getKeyOnCount(Piano.START_PITCH));
+		_mouseListener.mouseReleased(makeMouseEvent(0, 1));
+		assertTrue(_receiver.isKeyOn(Piano.START_PITCH), "Z still holds it");
+		keyListener.keyReleased(makeKeyEvent(KeyEvent.KEY_RELEASED, KeyEvent.VK_Z));
+		assertFalse(_receiver.isKeyOn(Piano.START_PITCH));
+		assertEquals(1, _receiver.getKeyOffCount(Piano.START_PITCH));
+	}
 }
@@ -0,0 +1,181 @@
+import java.util.*;
+
+/**
+ * Holds events waiting for their playout time, ordered by time and, for equal
+ * times, by arrival. A binary min-heap over primitive arrays, so scheduling an
+ * event does not allocate once the arrays have grown to the working size.
+ * Not thread-safe; used by the dispatch thread only.
+ */
+public class PlayoutScheduler {
+	/**
+	 * Receives the events whose time has come.
+	 */
+	public interface Player {
+		/**
+		 * Plays one event.
+		 *
+		 * @param route the route of the event.
+		 * @param event the event, packed with EventQueue.pack().
+		 */
+		void play(int route, int event);
+	}
+
+	private long[] _times;
+	private long[] _orders;
+	private int[] _routes;
+	private int[] _events;
+	private int _size;
+	private long _nextOrder;
+
+	/**
+	 * @param initialCapacity the number of events held before growing.
+	 */
+	public PlayoutScheduler(int initialCapacity) {
+		final int capacity = Math.max(2, initialCapacity);
+		_times = new long[capacity];
+		_orders = new long[capacity];
+		_routes = new int[capacity];
+		_events = new int[capacity];
+	}
+
+	/**
+	 * Schedules an event.
+	 *
+	 * @param time  the System.nanoTime() at which to play the event.
+	 * @param route the route of the event.
+	 * @param event the event, packed with EventQueue.pack().
+	 */
+	public void schedule(long time, int route, int event) {
+		if (_size == _times.length) {
+			final int capacity = _size * 2;
+			_times = Arrays.copyOf(_times, capacity);
+			_orders = Arrays.copyOf(_orders, capacity);
+			_routes = Arrays.copyOf(_routes, capacity);
+			_events = Arrays.copyOf(_events, capacity);
+		}
+		int i = _size++;
+		final long order = _nextOrder++;
+		// Sift up.
+		while (i > 0) {
+			final int parent = (i - 1) / 2;
+			if (!before(time, order, parent)) {
+				break;
+			}
+			move(parent, i);
+			i = parent;
+		}
+		set(i, time, order, route, event);
+	}
+
+	/**
+	 * Plays every event due at the specified time, in order.
+	 *
+	 * @param now    the current System.nanoTime().
+	 * @param player the receiver of the events.
+	 * @return the number of events played.
+	 */
+	public int releaseDue(long now, Player player) {
+		int released = 0;
+		while (_size > 0 && _times[0] - now <= 0) {
+			final int route = _routes[0];
+			final int event = _events[0];
+			removeFirst();
+			player.play(route, event);
+			released++;
+		}
+		return released;
+	}
+
+	/**
+	 * Returns the time of the earliest event.
+	 *
+	 * @return the System.nanoTime() of the next event, or Long.MAX_VALUE if
+	 *         there is none.
+	 */
+	public long nextTime() {
+		return _size > 0 ? _times[0] : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Discards the events of a route, whose client has gone.
+	 *
+	 * @param route the route.
+	 * @return the number of events discarded.
+	 */
+	public int removeRoute(int route) {
+		int kept = 0;
+		for (int i = 0; i < _size; i++) {
+			if (_routes[i] != route) {
+				set(kept++, _times[i], _orders[i], _routes[i], _events[i]);
+			}
+		}
+		final int removed = _size - kept;
+		_size = kept;
+		for (int i = _size / 2 - 1; i >= 0; i--) {
+			siftDown(i);
+		}
+		return removed;
+	}
+
+	/**
+	 * Returns the number of events waiting.
+	 *
+	 * @return the size.
+	 */
+	public int size() {
+		return _size;
+	}
+
+	private void removeFirst() {
+		_size--;
+		if (_size > 0) {
+			move(_size, 0);
+			siftDown(0);
+		}
+	}
+
+	private void siftDown(int i) {
+		final long time = _times[i];
+		final long order = _orders[i];
+		final int route = _routes[i];
+		final int event = _events[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= _size) {
+				break;
+			}
+			if (child + 1 < _size && before(_times[child + 1], _orders[child + 1], child)) {
+				child++;
+			}
+			if (!before(_times[child], _orders[child], time, order)) {
+				break;
+			}
+			move(child, i);
+			i = child;
+		}
+		set(i, time, order, route, event);
+	}
+
+	/**
+	 * Returns whether an event at (time, order) comes before the one at index j.
+	 */
+	private boolean before(long time, long order, int j) {
+		return before(time, order, _times[j], _orders[j]);
+	}
+
+	private static boolean before(long time, long order, long otherTime, long otherOrder) {
+		final long difference = time - otherTime;
+		return difference < 0 || difference == 0 && order < otherOrder;
+	}
+
+	private void move(int from, int to) {
+		set(to, _times[from], _orders[from], _routes[from], _events[from]);
+	}
+
+	private void set(int i, long time, long order, int route, int event) {
+		_times[i] = time;
+		_orders[i] = order;
+		_routes[i] = route;
+		_events[i] = event;
+	}
+}
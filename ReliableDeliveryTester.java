@@ -0,0 +1,219 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import java.net.*;
+import java.nio.*;
+import javax.sound.midi.*;
+
+/**
+ * Contains a set of unit tests for the reliable delivery of state changes
+ * (SequenceWindow, AckWindow, NetworkReceiver.setReliable() and the server's
+ * acknowledgements) and for the StuckNoteWatchdog.
+ */
+class ReliableDeliveryTester {
+	private static final long SECOND = 1_000_000_000L;
+	private static final int TIMEOUT_MS = 2000;
+
+	@Test
+	void testAckWindow() {
+		final AckWindow window = new AckWindow(16);
+		window.reset(2);
+		assertTrue(window.receive(2, 5));
+		assertTrue(window.receive(2, 6));
+		assertTrue(window.receive(2, 8));
+		assertFalse(window.receive(2, 6), "retransmission of a received packet");
+		assertTrue(window.receive(2, 7), "late but new packet");
+		assertEquals(8, window.getHighestSequence(2));
+		assertEquals(0b1111, window.getBitmap(2));
+		assertTrue(WireFormat.acknowledges(8, 0b1101, 5));
+		assertFalse(WireFormat.acknowledges(8, 0b1101, 7));
+		assertFalse(WireFormat.acknowledges(8, 0b1101, 9));
+		assertTrue(window.receive(2, 100));
+		assertFalse(window.receive(2, 8), "too old to tell");
+	}
+
+	@Test
+	void testSequenceWindow() {
+		final SequenceWindow window = new SequenceWindow(16);
+		assertEquals(SequenceWindow.NEWEST, window.record(0, Integer.MAX_VALUE));
+		assertEquals(SequenceWindow.NEWEST, window.record(0, Integer.MIN_VALUE + 1), "across the wrap");
+		assertEquals(SequenceWindow.REORDERED, window.record(0, Integer.MIN_VALUE));
+		assertEquals(SequenceWindow.SEEN, window.record(0, Integer.MIN_VALUE));
+		assertEquals(0b111, window.getBitmap(0));
+		assertEquals(SequenceWindow.TOO_OLD, window.record(0, Integer.MIN_VALUE + 1 - Long.SIZE));
+		assertEquals(SequenceWindow.NEWEST, window.check(0, Integer.MIN_VALUE + 2));
+		assertEquals(Integer.MIN_VALUE + 1, window.getHighestSequence(0), "check() records nothing");
+		assertEquals(SequenceWindow.NEWEST, window.record(1, 5), "routes are apart");
+		window.reset(0);
+		assertEquals(SequenceWindow.NEWEST, window.record(0, 3), "a reset route starts again");
+		assertEquals(1, window.getBitmap(0));
+	}
+
+	@Test
+	void testWatchdogReleasesStuckNotes() {
+		final StuckNoteWatchdog watchdog = new StuckNoteWatchdog(16, SECOND);
+		final int[] released = new int[2];
+		final StuckNoteWatchdog.Releaser releaser = (route, pitch) -> {
+			released[0] = route;
+			released[1] = pitch;
+		};
+		final long now = 10 * SECOND;
+		watchdog.noteOn(2, 60, now);
+		watchdog.noteOn(2, 62, now);
+		watchdog.noteOff(2, 62);
+		watchdog.noteOn(3, 64, now);
+		watchdog.clearRoute(3);
+		assertEquals(0, watchdog.sweep(now + SECOND / 2, releaser));
+		assertEquals(1, watchdog.sweep(now + 2 * SECOND, releaser));
+		assertArrayEquals(new int[] { 2, 60 }, released);
+		assertEquals(0, watchdog.sweep(now + 3 * SECOND, releaser));
+		assertEquals(0, watchdog.getHeldCount(2));
+		assertEquals(1, watchdog.getReleasedCount());
+	}
+
+	@Test
+	void testLostNoteOffIsRetransmitted() throws Exception {
+		try (DatagramSocket server = new DatagramSocket(0)) {
+			server.setSoTimeout(TIMEOUT_MS);
+			final NetworkReceiver receiver = new NetworkReceiver();
+			receiver.setAddress("127.0.0.1");
+			receiver.setPort(server.getLocalPort());
+			receiver.setProtocol(WireFormat.VERSION_2, 0);
+			receiver.setReliable(true);
+			receiver.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 93), -1);
+			receiver.send(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), -1);
+
+			final DatagramPacket packet = new DatagramPacket(new byte[WireFormat.MAX_PACKET_SIZE],
+					WireFormat.MAX_PACKET_SIZE);
+			server.receive(packet);
+			assertFalse(WireFormat.isReliable(ByteBuffer.wrap(packet.getData(), 0, packet.getLength())),
+					"note-ons are best-effort");
+			// Drop the note-off, then acknowledge its retransmission.
+			server.receive(packet);
+			final int sequence = WireFormat.sequence(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()));
+			packet.setLength(WireFormat.MAX_PACKET_SIZE);
+			server.receive(packet);
+			final ByteBuffer retransmitted = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+			assertTrue(WireFormat.isReliable(retransmitted));
+			assertEquals(sequence, WireFormat.sequence(retransmitted));
+			final ByteBuffer ack = ByteBuffer.allocate(WireFormat.ACK_PACKET_SIZE);
+			WireFormat.writeAck(ack, sequence, 1);
+			server.send(new DatagramPacket(ack.array(), ack.limit(), packet.getSocketAddress()));
+
+			final long deadline = System.nanoTime() + TIMEOUT_MS * 1_000_000L;
+			while (receiver.getUnacknowledgedCount() > 0 && System.nanoTime() < deadline) {
+				Thread.sleep(1);
+			}
+			assertEquals(0, receiver.getUnacknowledgedCount());
+			assertEquals(1, receiver.getRetransmitCount());
+			assertEquals(0, receiver.getGivenUpCount());
+			receiver.close();
+		}
+	}
+
+	/**
+	 * Sends a reliable note-off packet to the engine.
+	 */
+	private static void sendNoteOff(DatagramSocket client, ServerEngine engine, int sequence) throws Exception {
+		final ByteBuffer b = ByteBuffer.allocate(WireFormat.MAX_PACKET_SIZE);
+		WireFormat.beginV2(b, sequence, 0);
+		WireFormat.appendV2(b, ShortMessage.NOTE_OFF, 60, 0, -1);
+		WireFormat.finishV2(b, 1);
+		WireFormat.setReliable(b);
+		client.send(new DatagramPacket(b.array(), b.limit(), InetAddress.getLoopbackAddress(), engine.getPort()));
+	}
+
+	/**
+	 * Receives an acknowledgement, or returns null if none arrives in time.
+	 */
+	private static ByteBuffer receiveAck(DatagramSocket client) throws Exception {
+		final DatagramPacket reply = new DatagramPacket(new byte[WireFormat.MAX_PACKET_SIZE],
+				WireFormat.MAX_PACKET_SIZE);
+		try {
+			client.receive(reply);
+		} catch (SocketTimeoutException ste) {
+			return null;
+		}
+		final ByteBuffer ack = ByteBuffer.wrap(reply.getData(), 0, reply.getLength());
+		assertTrue(WireFormat.isAck(ack));
+		return ack;
+	}
+
+	@Test
+	void testServerPlaysRetransmissionOnce() throws Exception {
+		final LoadGenerator.CountingReceiver sink = new LoadGenerator.CountingReceiver();
+		final ServerEngine engine = new ServerEngine(0, sink, ServerEngine.DEFAULT_RING_CAPACITY);
+		engine.start();
+		try (DatagramSocket client = new DatagramSocket()) {
+			client.setSoTimeout(TIMEOUT_MS);
+			for (int i = 0; i < 2; i++) {
+				sendNoteOff(client, engine, 41);
+				final ByteBuffer ack = receiveAck(client);
+				assertNotNull(ack);
+				assertTrue(WireFormat.acknowledges(WireFormat.ackSequence(ack), WireFormat.ackBitmap(ack), 41));
+			}
+			// The acknowledgement leaves before the duplicate is counted.
+			final long deadline = System.nanoTime() + TIMEOUT_MS * 1_000_000L;
+			while (engine.getRetransmittedCount() == 0 && System.nanoTime() < deadline) {
+				Thread.sleep(1);
+			}
+			assertEquals(1, sink.getNoteOffCount());
+			assertEquals(1, engine.getRetransmittedCount());
+		} finally {
+			engine.close();
+		}
+	}
+
+	@Test
+	void testServerDoesNotAcknowledgePacketsTooOldToTell() throws Exception {
+		final LoadGenerator.CountingReceiver sink = new LoadGenerator.CountingReceiver();
+		final ServerEngine engine = new ServerEngine(0, sink, ServerEngine.DEFAULT_RING_CAPACITY);
+		engine.start();
+		try (DatagramSocket client = new DatagramSocket()) {
+			client.setSoTimeout(TIMEOUT_MS);
+			sendNoteOff(client, engine, 100);
+			assertNotNull(receiveAck(client));
+			// Beyond the 64 packets the window remembers: neither played nor
+			// acknowledged, so that the sender does not count it as delivered.
+			client.setSoTimeout(TIMEOUT_MS / 10);
+			sendNoteOff(client, engine, 100 - Long.SIZE);
+			assertNull(receiveAck(client));
+			assertEquals(1, sink.getNoteOffCount());
+			assertEquals(0, engine.getRetransmittedCount());
+		} finally {
+			engine.close();
+		}
+	}
+
+	@Test
+	void testServerPlaysReliablePacketsTheJitterBufferHasPassed() throws Exception {
+		final LoadGenerator.CountingReceiver sink = new LoadGenerator.CountingReceiver();
+		final ServerEngine engine = new ServerEngine(0, sink, ServerEngine.DEFAULT_RING_CAPACITY);
+		engine.setPlayout(0, SECOND / 100);
+		engine.start();
+		try (DatagramSocket client = new DatagramSocket()) {
+			client.setSoTimeout(TIMEOUT_MS);
+			final ByteBuffer b = ByteBuffer.allocate(WireFormat.MAX_PACKET_SIZE);
+			// An unreliable packet moves the jitter buffer's window ahead of
+			// the AckWindow's, which only sees reliable ones.
+			WireFormat.beginV2(b, 200, WireFormat.FLAG_TIMESTAMP, 0);
+			WireFormat.appendV2(b, ShortMessage.NOTE_ON, 60, 100, -1);
+			WireFormat.finishV2(b, 1);
+			client.send(new DatagramPacket(b.array(), b.limit(), InetAddress.getLoopbackAddress(), engine.getPort()));
+			WireFormat.beginV2(b, 100, WireFormat.FLAG_TIMESTAMP, 0);
+			WireFormat.appendV2(b, ShortMessage.NOTE_OFF, 60, 0, -1);
+			WireFormat.finishV2(b, 1);
+			WireFormat.setReliable(b);
+			client.send(new DatagramPacket(b.array(), b.limit(), InetAddress.getLoopbackAddress(), engine.getPort()));
+			final ByteBuffer ack = receiveAck(client);
+			assertNotNull(ack);
+			assertTrue(WireFormat.acknowledges(WireFormat.ackSequence(ack), WireFormat.ackBitmap(ack), 100));
+			final long deadline = System.nanoTime() + TIMEOUT_MS * 1_000_000L;
+			while (sink.getNoteOffCount() == 0 && System.nanoTime() < deadline) {
+				Thread.sleep(1);
+			}
+			assertEquals(1, sink.getNoteOffCount());
+		} finally {
+			engine.close();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import javax.sound.midi.*;
+
+/**
+ * Listens to the notes republished by a NoteBroadcaster and records them in a
+ * NoteStateSet, one channel per server route. Runs on its own daemon thread,
+ * so the Swing event thread only ever reads the set.
+ *
+ * The server republishes every client's notes, including this band member's
+ * own; addOwnClient() names the clients whose notes are left out, so that they
+ * only show as played locally.
+ */
+public class RemoteNoteListener implements Runnable, WireFormat.NoteSink {
+	private static final int ALL_NOTES_OFF = 123;
+
+	private final MulticastSocket _socket;
+	private final NoteStateSet _notes;
+	private final ByteBuffer _buffer = ByteBuffer.allocate(WireFormat.MAX_PACKET_SIZE);
+	private final DatagramPacket _packet = new DatagramPacket(_buffer.array(), _buffer.capacity());
+	private Thread _thread;
+	private volatile boolean _running = true;
+	private volatile long _receivedCount;
+	private volatile long _lostCount;
+	private volatile long[] _ownClients = new long[0]; // copied on write
+	private int _nextSequence = -1;
+
+	/**
+	 * Joins the group; start() begins listening.
+	 *
+	 * @param group the multicast group the server publishes to.
+	 * @param notes the set to record the notes in, with a channel per route
+	 *              (ChannelAllocator.ROUTE_MASK + 1).
+	 */
+	public RemoteNoteListener(InetAddress group, NoteStateSet notes) throws IOException {
+		_socket = new MulticastSocket(NoteBroadcaster.PORT);
+		_notes = notes;
+		if (group.isMulticastAddress()) {
+			_socket.joinGroup(new InetSocketAddress(group, NoteBroadcaster.PORT), null);
+		}
+	}
+
+	/**
+	 * Starts the listening thread.
+	 */
+	public void start() {
+		_thread = new Thread(this, "remote-note-listener");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	@Override
+	/**
+	 * Receives and decodes packets until close() is called.
+	 */
+	public void run() {
+		while (_running) {
+			try {
+				_packet.setData(_buffer.array(), 0, _buffer.capacity());
+				_socket.receive(_packet);
+			} catch (IOException ioe) {
+				if (_running) {
+					ioe.printStackTrace();
+				}
+				return;
+			}
+			_buffer.clear();
+			_buffer.limit(_packet.getLength());
+			if (!WireFormat.isNotes(_buffer)) {
+				continue;
+			}
+			final int sequence = WireFormat.sequence(_buffer);
+			if (_nextSequence != -1 && sequence != _nextSequence) {
+				_lostCount++;
+			}
+			_nextSequence = sequence + 1;
+			if (WireFormat.decodeNotes(_buffer, this) > 0) {
+				_receivedCount++;
+			}
+		}
+	}
+
+	/**
+	 * Leaves out the notes of a client from now on, typically the
+	 * NetworkReceiver this band member plays through.
+	 *
+	 * @param client the client's address and port as the server sees them.
+	 */
+	public synchronized void addOwnClient(InetSocketAddress client) {
+		final long[] ownClients = Arrays.copyOf(_ownClients, _ownClients.length + 1);
+		ownClients[ownClients.length - 1] = NoteBroadcaster.clientKey(client.getAddress(), client.getPort());
+		_ownClients = ownClients;
+	}
+
+	@Override
+	/**
+	 * Records one republished note, unless this band member played it.
+	 */
+	public void onNote(int route, int command, int data1, int data2, long client) {
+		for (long ownClient : _ownClients) {
+			if (client == ownClient) {
+				return;
+			}
+		}
+		if (command == ShortMessage.NOTE_ON && data2 > 0) {
+			_notes.noteOn(route, data1);
+		} else if (command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF) {
+			_notes.noteOff(route, data1);
+		} else if (command == ShortMessage.CONTROL_CHANGE && data1 == ALL_NOTES_OFF) {
+			_notes.allNotesOff(route);
+		}
+	}
+
+	/**
+	 * Stops listening; closing the socket leaves the group.
+	 */
+	public void close() {
+		_running = false;
+		_socket.close();
+	}
+
+	/**
+	 * Returns the number of packets received.
+	 *
+	 * @return the received count.
+	 */
+	public long getReceivedCount() {
+		return _receivedCount;
+	}
+
+	/**
+	 * Returns the number of gaps seen in the packet sequence numbers.
+	 *
+	 * @return the lost count.
+	 */
+	public long getLostCount() {
+		return _lostCount;
+	}
+}
@@ -0,0 +1,141 @@
+import java.util.*;
+import javax.sound.midi.*;
+
+/**
+ * A receiver that forwards every message to a set of targets, e.g. the local
+ * synthesizer for monitoring plus a remote server, and that can switch
+ * targets while keys are held. The Piano and ControlPanel keep sending to the
+ * same RoutingReceiver; switching replaces the targets atomically, so a
+ * message goes either to all the old targets or to all the new ones.
+ *
+ * Switching releases the notes held on a target being dropped, which would
+ * otherwise never hear their note-offs, and brings a target being added up to
+ * date with the instruments selected so far. The targets are not owned: they
+ * are neither opened nor closed here.
+ */
+public class RoutingReceiver implements Receiver {
+	private static final Receiver[] NO_TARGETS = new Receiver[0];
+
+	private volatile Receiver[] _targets;
+	private final NoteStateSet _held = new NoteStateSet();
+	// The last program selected on each channel, or -1.
+	private final int[] _programs = new int[NoteStateSet.NUM_CHANNELS];
+	private long _releasedCount;
+
+	/**
+	 * @param targets the receivers to forward to initially.
+	 */
+	public RoutingReceiver(Receiver... targets) {
+		_targets = targets.clone();
+		Arrays.fill(_programs, -1);
+	}
+
+	/**
+	 * Replaces the targets. Notes held on a target that is not kept are
+	 * turned off on it; a target that is added receives the selected
+	 * programs. Notes already held are not restarted on added targets, but
+	 * their note-offs will go there.
+	 *
+	 * @param targets the receivers to forward to from now on.
+	 */
+	public synchronized void setTargets(Receiver... targets) {
+		final Receiver[] old = _targets;
+		for (Receiver receiver : old) {
+			if (!contains(targets, receiver)) {
+				releaseHeldNotes(receiver);
+			}
+		}
+		for (Receiver receiver : targets) {
+			if (!contains(old, receiver)) {
+				for (int channel = 0; channel < _programs.length; channel++) {
+					if (_programs[channel] >= 0) {
+						receiver.send(MidiMessages.programChange(channel, _programs[channel]), -1);
+					}
+				}
+			}
+		}
+		_targets = targets.clone();
+	}
+
+	/**
+	 * Returns the receivers currently forwarded to.
+	 *
+	 * @return a copy of the targets.
+	 */
+	public Receiver[] getTargets() {
+		return _targets.clone();
+	}
+
+	private static boolean contains(Receiver[] receivers, Receiver receiver) {
+		for (Receiver r : receivers) {
+			if (r == receiver) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Sends a note-off to a receiver for each note held.
+	 */
+	private void releaseHeldNotes(Receiver receiver) {
+		for (int channel = 0; channel < NoteStateSet.NUM_CHANNELS; channel++) {
+			for (int pitch = 0; pitch < NoteStateSet.NUM_PITCHES; pitch++) {
+				if (_held.isOn(channel, pitch)) {
+					receiver.send(MidiMessages.note(false, channel, pitch), -1);
+					_releasedCount++;
+				}
+			}
+		}
+	}
+
+	@Override
+	/**
+	 * Records the message's effect on the held notes and selected programs,
+	 * then forwards it to every target.
+	 */
+	public synchronized void send(MidiMessage message, long timeStamp) {
+		if (message instanceof ShortMessage) {
+			final ShortMessage shortMessage = (ShortMessage) message;
+			final int channel = shortMessage.getChannel();
+			switch (shortMessage.getCommand()) {
+			case ShortMessage.NOTE_ON:
+				if (shortMessage.getData2() > 0) {
+					_held.noteOn(channel, shortMessage.getData1());
+				} else {
+					_held.noteOff(channel, shortMessage.getData1());
+				}
+				break;
+			case ShortMessage.NOTE_OFF:
+				_held.noteOff(channel, shortMessage.getData1());
+				break;
+			case ShortMessage.PROGRAM_CHANGE:
+				_programs[channel] = shortMessage.getData1();
+				break;
+			default:
+				break;
+			}
+		}
+		for (Receiver target : _targets) {
+			target.send(message, timeStamp);
+		}
+	}
+
+	@Override
+	/**
+	 * Releases the held notes on the targets and stops forwarding. The targets
+	 * themselves stay open.
+	 */
+	public void close() {
+		setTargets(NO_TARGETS);
+	}
+
+	/**
+	 * Returns the number of note-offs sent to targets being dropped.
+	 *
+	 * @return the released count.
+	 */
+	public synchronized long getReleasedCount() {
+		return _releasedCount;
+	}
+}
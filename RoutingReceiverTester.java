@@ -0,0 +1,90 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import java.io.*;
+import java.util.*;
+import javax.sound.midi.*;
+
+/**
+ * Contains a set of unit tests for the RoutingReceiver and EndpointPool
+ * classes.
+ */
+class RoutingReceiverTester {
+	/**
+	 * Records the programs it is switched to, on top of the notes.
+	 */
+	private static class ProgramReceiver extends TestReceiver {
+		private int _program = -1;
+
+		@Override
+		public void send (MidiMessage midiMessage, long timeStamp) {
+			final ShortMessage message = (ShortMessage) midiMessage;
+			if (message.getCommand() == ShortMessage.PROGRAM_CHANGE) {
+				_program = message.getData1();
+				return;
+			}
+			super.send(midiMessage, timeStamp);
+		}
+	}
+
+	@Test
+	void testSwitchReleasesHeldNotesOnOutgoingTarget() {
+		final TestReceiver local = new TestReceiver();
+		final TestReceiver remote = new TestReceiver();
+		final RoutingReceiver router = new RoutingReceiver(local);
+		router.send(MidiMessages.note(true, 0, 60), -1);
+		router.send(MidiMessages.note(true, 0, 64), -1);
+		router.send(MidiMessages.note(false, 0, 64), -1);
+		router.setTargets(remote);
+		// Only the note still held is released, and only on the old target.
+		assertEquals(1, local.getKeyOffCount(60));
+		assertEquals(1, local.getKeyOffCount(64));
+		assertFalse(local.isKeyOn(60));
+		assertEquals(1, router.getReleasedCount());
+		assertEquals(0, remote.getKeyOffCount(60));
+		router.send(MidiMessages.note(false, 0, 60), -1);
+		assertEquals(1, remote.getKeyOffCount(60));
+		assertEquals(1, local.getKeyOffCount(60));
+	}
+
+	@Test
+	void testFanOutAndProgramCatchUp() {
+		final ProgramReceiver local = new ProgramReceiver();
+		final ProgramReceiver remote = new ProgramReceiver();
+		final RoutingReceiver router = new RoutingReceiver(local);
+		router.send(MidiMessages.programChange(0, 40), -1);
+		assertEquals(40, local._program);
+		router.setTargets(local, remote);
+		// The added target is brought up to date; the kept one is not resent.
+		assertEquals(40, remote._program);
+		router.send(MidiMessages.note(true, 0, 67), -1);
+		assertTrue(local.isKeyOn(67));
+		assertTrue(remote.isKeyOn(67));
+		assertEquals(0, router.getReleasedCount());
+		router.close();
+		assertFalse(local.isKeyOn(67));
+		assertFalse(remote.isKeyOn(67));
+		assertEquals(0, router.getTargets().length);
+	}
+
+	@Test
+	void testEndpointPoolReusesAndEvicts() throws IOException {
+		final List<NetworkReceiver> created = new ArrayList<>();
+		final EndpointPool pool = new EndpointPool(2, host -> {
+			final NetworkReceiver receiver = new NetworkReceiver();
+			receiver.setAddress(host);
+			created.add(receiver);
+			return receiver;
+		});
+		final NetworkReceiver first = pool.get("127.0.0.1");
+		assertSame(first, pool.get("127.0.0.1"));
+		pool.get("127.0.0.2");
+		pool.get("127.0.0.3");
+		assertEquals(2, pool.size());
+		assertEquals(3, pool.getCreatedCount());
+		// The least recently used endpoint was closed, so it is created anew.
+		assertNotSame(first, pool.get("127.0.0.1"));
+		assertEquals(4, pool.getCreatedCount());
+		pool.close();
+		assertEquals(0, pool.size());
+	}
+}
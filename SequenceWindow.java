@@ -0,0 +1,102 @@
+/**
+ * Tracks, per route, which of the last 64 sequence numbers have arrived: the
+ * highest sequence number seen and a bitmap of the ones before it. Sequence
+ * numbers are compared by their int difference, so they may wrap around.
+ * Shared by the AckWindow, which acknowledges reliable packets, and the
+ * JitterBuffer, which drops duplicated ones. Not thread-safe; used by the
+ * dispatch thread only.
+ */
+public class SequenceWindow {
+	/** The packet is the first of the route, or newer than any before it. */
+	public static final int NEWEST = 0;
+	/** The packet is older than the newest, but had not arrived yet. */
+	public static final int REORDERED = 1;
+	/** The packet already arrived. */
+	public static final int SEEN = 2;
+	/** The packet is older than the window, so whether it arrived is unknown. */
+	public static final int TOO_OLD = 3;
+
+	private final boolean[] _started;
+	private final int[] _highestSequence;
+	private final long[] _seen; // bit i: highestSequence - i arrived
+
+	/**
+	 * @param numRoutes the number of routes.
+	 */
+	public SequenceWindow(int numRoutes) {
+		_started = new boolean[numRoutes];
+		_highestSequence = new int[numRoutes];
+		_seen = new long[numRoutes];
+	}
+
+	/**
+	 * Forgets the state of a route, which has just been given to a client.
+	 *
+	 * @param route the route.
+	 */
+	public void reset(int route) {
+		_started[route] = false;
+	}
+
+	/**
+	 * Returns how a packet compares to those recorded, without recording it.
+	 *
+	 * @param route    the route of the packet's source.
+	 * @param sequence the packet's sequence number.
+	 * @return NEWEST, REORDERED, SEEN or TOO_OLD.
+	 */
+	public int check(int route, int sequence) {
+		if (!_started[route]) {
+			return NEWEST;
+		}
+		final int ahead = sequence - _highestSequence[route];
+		if (ahead > 0) {
+			return NEWEST;
+		}
+		if (-ahead >= Long.SIZE) {
+			return TOO_OLD;
+		}
+		return (_seen[route] & 1L << -ahead) != 0 ? SEEN : REORDERED;
+	}
+
+	/**
+	 * Records the arrival of a packet. Packets that are SEEN or TOO_OLD leave
+	 * the window as it was.
+	 *
+	 * @param route    the route of the packet's source.
+	 * @param sequence the packet's sequence number.
+	 * @return NEWEST, REORDERED, SEEN or TOO_OLD, as check() would have.
+	 */
+	public int record(int route, int sequence) {
+		final int order = check(route, sequence);
+		if (order == NEWEST) {
+			final int ahead = sequence - _highestSequence[route];
+			_seen[route] = !_started[route] || ahead >= Long.SIZE ? 1 : _seen[route] << ahead | 1;
+			_highestSequence[route] = sequence;
+			_started[route] = true;
+		} else if (order == REORDERED) {
+			_seen[route] |= 1L << _highestSequence[route] - sequence;
+		}
+		return order;
+	}
+
+	/**
+	 * Returns the highest sequence number recorded on a route.
+	 *
+	 * @param route the route.
+	 * @return the sequence number.
+	 */
+	public int getHighestSequence(int route) {
+		return _highestSequence[route];
+	}
+
+	/**
+	 * Returns the sequence numbers recorded on a route.
+	 *
+	 * @param route the route.
+	 * @return the bitmap, bit i for sequence number getHighestSequence() - i.
+	 */
+	public long getBitmap(int route) {
+		return _seen[route];
+	}
+}
@@ -4,49 +4,193 @@ import java.nio.*;
 import java.net.*;
 import javax.sound.midi.*;
 
-// DO NOT MODIFY THIS CLASS.
 /**
  * Implements a server that can receive and produce audio
  * for MIDI events received over the computer network.
  */
 public class Server {
 	public static final int PORT = 4567;
-	private static final int MAX_CAPACITY = 256;
+	private static final long STATS_INTERVAL_MS = 10_000;
+	public static final long DEFAULT_MAX_PLAYOUT_MS = 100;
+	// The limits of "--limit": far above what a player's hands produce, far
+	// below a loop's.
+	public static final long DEFAULT_SOURCE_RATE = 500;
+	public static final long DEFAULT_SOURCE_BURST = 200;
+	public static final long DEFAULT_GLOBAL_RATE = 20_000;
 
+	/**
+	 * Starts the server. Options:
+	 * "--nio N" reads N DatagramChannels sharing the port instead of a single
+	 * DatagramSocket;
+	 * "--overflow" plays clients beyond the first 16 on a second synthesizer;
+	 * "--idle-timeout S" frees the channel of a client silent for S seconds;
+	 * "--synths N" spreads the channels over a pool of N synthesizers;
+	 * "--broadcast GROUP" republishes the played notes to a multicast group
+	 * (NoteBroadcaster.DEFAULT_GROUP is the one Band listens to);
+	 * "--log-level L" sets the EventLog level (DEBUG logs every packet);
+	 * "--playout MS" plays timestamped packets at least MS milliseconds behind
+	 * their sender to absorb network jitter, and "--playout-max MS" caps the
+	 * delay it adapts to (DEFAULT_MAX_PLAYOUT_MS by default);
+	 * "--playout-client HOST:PORT MS" sets the smallest delay of one client,
+	 * e.g. one on a known bad link (may be repeated; needs "--playout");
+	 * "--max-note S" releases notes held for longer than S seconds, in case
+	 * their note-off was lost (off by default, since a chord held on an organ
+	 * or a pad may rightly last minutes);
+	 * "--record DIR" records every event played into a new session directory,
+	 * for SessionReplay;
+	 * "--port P" listens on port P instead of PORT;
+	 * "--router HOST:PORT" serves as a node of a ClusterRouter, taking its
+	 * clients from the router and sending it heartbeats (PORT is the router's
+	 * control port, ClusterRouter.DEFAULT_CONTROL_PORT by default);
+	 * "--rate N" plays at most N events per second of each client, in bursts
+	 * of up to "--burst B" (DEFAULT_SOURCE_BURST by default), and
+	 * "--global-rate N" at most N events per second in all (in bursts of a
+	 * tenth of a second); events are not limited unless asked, and "--limit"
+	 * sets both rates to DEFAULT_SOURCE_RATE and DEFAULT_GLOBAL_RATE;
+	 * "--stream" also accepts clients over TCP, on the same port number (see
+	 * StreamServer).
+	 *
+	 * @param args the command-line arguments.
+	 */
 	public static void main(String[] args)
 			throws javax.sound.midi.InvalidMidiDataException, MidiUnavailableException, IOException {
-		final Receiver _receiver = MidiSystem.getReceiver();
-		final HashMap<String, Integer> channelMapping = new HashMap<>();
+		int channelCount = 0; // 0 selects the single DatagramSocket
+		boolean overflow = false;
+		long idleTimeoutSeconds = 0;
+		int synthesizerCount = 0; // 0 selects the default MIDI receiver
+		String broadcastGroup = null;
+		long playoutMs = -1; // -1 plays every event right away
+		long maxPlayoutMs = DEFAULT_MAX_PLAYOUT_MS;
+		final Map<InetSocketAddress, Long> clientPlayoutMs = new LinkedHashMap<>();
+		long maxNoteSeconds = 0; // 0 never releases notes
+		String recordDirectory = null;
+		int port = PORT;
+		InetSocketAddress router = null;
+		long sourceRate = 0; // 0 does not limit
+		long sourceBurst = DEFAULT_SOURCE_BURST;
+		long globalRate = 0;
+		boolean stream = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--nio") && i + 1 < args.length) {
+				channelCount = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--overflow")) {
+				overflow = true;
+			} else if (args[i].equals("--idle-timeout") && i + 1 < args.length) {
+				idleTimeoutSeconds = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--synths") && i + 1 < args.length) {
+				synthesizerCount = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--broadcast") && i + 1 < args.length) {
+				broadcastGroup = args[++i];
+			} else if (args[i].equals("--log-level") && i + 1 < args.length) {
+				EventLog.getDefault().setLevel(args[++i]);
+			} else if (args[i].equals("--playout") && i + 1 < args.length) {
+				playoutMs = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--playout-max") && i + 1 < args.length) {
+				maxPlayoutMs = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--playout-client") && i + 2 < args.length) {
+				clientPlayoutMs.put(ClusterRouter.parseAddress(args[i + 1]), Long.parseLong(args[i + 2]));
+				i += 2;
+			} else if (args[i].equals("--max-note") && i + 1 < args.length) {
+				maxNoteSeconds = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--record") && i + 1 < args.length) {
+				recordDirectory = args[++i];
+			} else if (args[i].equals("--port") && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--router") && i + 1 < args.length) {
+				router = ClusterRouter.parseAddress(args[++i]);
+			} else if (args[i].equals("--limit")) {
+				sourceRate = DEFAULT_SOURCE_RATE;
+				globalRate = DEFAULT_GLOBAL_RATE;
+			} else if (args[i].equals("--rate") && i + 1 < args.length) {
+				sourceRate = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--burst") && i + 1 < args.length) {
+				sourceBurst = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--global-rate") && i + 1 < args.length) {
+				globalRate = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--stream")) {
+				stream = true;
+			}
+		}
 
-		final DatagramSocket socket = new DatagramSocket(PORT);
+		final SynthesizerPool pool = synthesizerCount > 0 ? new SynthesizerPool(synthesizerCount) : null;
+		final Receiver synthesizerReceiver = pool != null ? pool : MidiSystem.getReceiver();
+		final NoteBroadcaster broadcaster = broadcastGroup != null
+				? new NoteBroadcaster(InetAddress.getByName(broadcastGroup))
+				: null;
+		final ServerEngine engine = channelCount > 0
+				? new ServerEngine(port, synthesizerReceiver, ServerEngine.DEFAULT_RING_CAPACITY, channelCount)
+				: new ServerEngine(port, synthesizerReceiver, ServerEngine.DEFAULT_RING_CAPACITY);
+		if (idleTimeoutSeconds > 0) {
+			engine.setIdleTimeout(idleTimeoutSeconds * 1_000_000_000L);
+		}
+		if (overflow) {
+			final Synthesizer synthesizer = MidiSystem.getSynthesizer();
+			synthesizer.open();
+			engine.setOverflowReceiver(synthesizer.getReceiver());
+		}
+		if (playoutMs >= 0) {
+			engine.setPlayout(playoutMs * 1_000_000, maxPlayoutMs * 1_000_000);
+			for (Map.Entry<InetSocketAddress, Long> client : clientPlayoutMs.entrySet()) {
+				engine.setPlayoutMinDelay(client.getKey().getAddress(), client.getKey().getPort(),
+						client.getValue() * 1_000_000);
+			}
+		}
+		engine.setMaxNoteDuration(maxNoteSeconds * 1_000_000_000L);
+		engine.setAdmissionLimits(sourceRate, sourceBurst, globalRate, Math.max(1, globalRate / 10));
+		if (broadcaster != null) {
+			engine.setBroadcaster(broadcaster);
+		}
+		if (recordDirectory != null) {
+			engine.setRecorder(new SessionRecorder(new File(recordDirectory), SessionRecorder.DEFAULT_SEGMENT_SIZE));
+		}
+		if (router != null) {
+			engine.setRouter(router);
+		}
+		if (stream) {
+			engine.openStreams(port);
+		}
+		engine.start();
+		LatencyMetrics.registerMBeans();
+		EventLog.registerMBean();
 		System.out.println("Receiving messages...");
-		while (true) {
-			// Receive message
-			final byte[] buffer = new byte[MAX_CAPACITY];
-			final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-			socket.receive(packet);
-			final String addressAndPort = "" + packet.getAddress() + ":" + packet.getPort();
-
-			// Extract request
-			final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-			final int command = byteBuffer.getInt();
-			final int channelIgnored = byteBuffer.getInt();  // Throw this away since we'll overwrite it anyhow
-			final int data1 = byteBuffer.getInt();
-			final int data2 = byteBuffer.getInt();
 
-			// Determine unique channel for this (address,port) tuple
-			final int channel;
-			if (channelMapping.containsKey(addressAndPort)) {
-				channel = channelMapping.get(addressAndPort);
-			} else {
-				channel = channelMapping.size();  // Assign an unused channel
-				channelMapping.put(addressAndPort, channel);
+		// Report queue statistics so the ring can be sized for the band.
+		long lastReceived = 0;
+		while (true) {
+			try {
+				Thread.sleep(STATS_INTERVAL_MS);
+			} catch (InterruptedException ie) {
+				engine.close();
+				return;
+			}
+			final long received = engine.getReceivedCount();
+			if (received != lastReceived || engine.getQueueDepth() > 0) {
+				System.out.println("received=" + received + " dispatched=" + engine.getDispatchedCount()
+						+ " queue=" + engine.getQueueDepth() + "/" + engine.getQueueCapacity()
+						+ " dropped=" + engine.getDropCount() + " invalid=" + engine.getInvalidCount()
+						+ " sources=" + engine.getActiveSourceCount() + " reassigned="
+						+ engine.getReassignedCount() + " retransmitted="
+						+ engine.getRetransmittedCount() + " stuckNotes=" + engine.getStuckNoteCount()
+						+ " rejected=" + engine.getRejectedCount() + " streams=" + engine.getStreamClientCount());
+				engine.dumpRejections(System.out);
+				lastReceived = received;
+				if (playoutMs >= 0) {
+					System.out.println("playout scheduled=" + engine.getScheduledCount() + " late="
+							+ engine.getLateCount() + " duplicates=" + engine.getDuplicateCount() + " maxDelayMs="
+							+ engine.getMaxPlayoutDelayNanos() / 1_000_000.0);
+					engine.dumpPlayoutDelays(System.out);
+				}
+				LatencyMetrics.dump(System.out);
+				if (broadcaster != null) {
+					System.out.println("published=" + broadcaster.getPublishedCount() + " publishErrors="
+							+ broadcaster.getSendErrorCount());
+				}
+				for (int i = 0; pool != null && i < pool.size(); i++) {
+					System.out.println("synth" + i + " voices=" + pool.getActiveVoices(i) + "/"
+							+ pool.getMaxPolyphony(i) + " sendMeanNs=" + pool.getMeanSendNanos(i)
+							+ " sendMaxNs=" + pool.getMaxSendNanos(i));
+				}
 			}
-
-			// Execute MIDI event
-			final ShortMessage message = new ShortMessage(command, channel, data1, data2);
-			_receiver.send(message, -1);
-			System.out.println("src=" + addressAndPort + " channel=" + channel);
 		}
 	}
 }
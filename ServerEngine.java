@@ -0,0 +1,638 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import javax.sound.midi.*;
+
+/**
+ * Implements the receive pipeline of the server. Receive threads do nothing
+ * but receive into preallocated slots of bounded PacketRings, and a separate
+ * dispatch thread decodes the packets and drives the MIDI receiver. When the
+ * dispatch stage falls behind, packets are dropped at the ring (and counted)
+ * rather than left to overflow the kernel's socket buffer.
+ *
+ * The engine either reads a single java.net.DatagramSocket, or several
+ * DatagramChannels with direct buffers bound to the same port with
+ * SO_REUSEPORT. In the latter case the kernel spreads clients across the
+ * channels by hashing their address, so each client's packets always arrive
+ * on the same channel and stay in order while the copying scales with cores.
+ *
+ * Acknowledgements of reliable packets leave through the same socket (or the
+ * first channel, which shares the port), so that clients see them come from
+ * the address they send to.
+ *
+ * With openStreams(), clients may also connect over TCP; a StreamServer reads
+ * them and publishes their packets into one more ring, where a full ring makes
+ * the readers wait instead of dropping.
+ *
+ * As a node of a cluster (see setRouter()), the engine accepts the clients'
+ * datagrams forwarded by a ClusterRouter, and sends the router a heartbeat
+ * every HEARTBEAT_INTERVAL_MS from its listening port.
+ */
+public class ServerEngine implements PacketDispatcher.AckSender {
+	public static final int DEFAULT_RING_CAPACITY = 1024;
+	public static final int MAX_CAPACITY = 256;
+	public static final long HEARTBEAT_INTERVAL_MS = 500;
+	private static final long CLOSE_TIMEOUT_MS = 1000;
+	// Room for a client datagram behind a forwarded frame header.
+	private static final int SLOT_CAPACITY = MAX_CAPACITY + WireFormat.MAX_FORWARD_HEADER_SIZE;
+	private static final EventLog.Event HEARTBEAT_FAILED = new EventLog.Event("heartbeatFailed",
+			EventLog.Level.WARN);
+	private static final int SOCKET_BUFFER_SIZE = 1 << 20;
+
+	private final DatagramSocket _socket;
+	private final DatagramChannel[] _channels;
+	private final PacketRing[] _rings;
+	private final PacketDispatcher _dispatcher;
+	private final Thread[] _receiveThreads;
+	private final Thread _dispatchThread;
+	private final DatagramPacket _ackPacket = new DatagramPacket(new byte[0], 0);
+	private volatile boolean _running = true;
+	private InetSocketAddress _router; // null unless a cluster node
+	private Thread _heartbeatThread;
+	private PacketRing _streamRing; // null unless streams are open
+	private StreamServer _streamServer;
+
+	/**
+	 * Creates an engine that reads a single DatagramSocket.
+	 *
+	 * @param port         the UDP port to listen on.
+	 * @param receiver     the MIDI receiver that plays the events.
+	 * @param ringCapacity the number of packets that may wait for dispatch.
+	 */
+	public ServerEngine(int port, Receiver receiver, int ringCapacity) throws SocketException {
+		this(openSocket(port), new DatagramChannel[0], receiver, ringCapacity);
+	}
+
+	/**
+	 * Creates an engine that reads the specified number of DatagramChannels,
+	 * each on its own thread.
+	 *
+	 * @param port         the UDP port to listen on.
+	 * @param receiver     the MIDI receiver that plays the events.
+	 * @param ringCapacity the number of packets that may wait for dispatch per
+	 *                     channel.
+	 * @param channelCount the number of channels to bind to the port.
+	 */
+	public ServerEngine(int port, Receiver receiver, int ringCapacity, int channelCount) throws IOException {
+		this(null, openChannels(port, channelCount), receiver, ringCapacity);
+	}
+
+	private ServerEngine(DatagramSocket socket, DatagramChannel[] channels, Receiver receiver, int ringCapacity) {
+		_socket = socket;
+		_channels = channels;
+		final int count = socket != null ? 1 : channels.length;
+		_rings = new PacketRing[count];
+		_receiveThreads = new Thread[count];
+		for (int i = 0; i < count; i++) {
+			final int index = i;
+			_rings[i] = new PacketRing(ringCapacity, SLOT_CAPACITY, socket == null);
+			_receiveThreads[i] = new Thread(() -> receiveLoop(index), "server-receive-" + i);
+		}
+		_dispatcher = new PacketDispatcher(_rings, receiver);
+		_dispatcher.setAckSender(this);
+		_dispatchThread = new Thread(_dispatcher, "server-dispatch");
+	}
+
+	/**
+	 * Opens the socket for the single-socket mode.
+	 *
+	 * @param port the UDP port to listen on.
+	 * @return the bound socket.
+	 */
+	private static DatagramSocket openSocket(int port) throws SocketException {
+		final DatagramSocket socket = new DatagramSocket(port);
+		socket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+		return socket;
+	}
+
+	/**
+	 * Opens blocking channels that share the port through SO_REUSEPORT.
+	 *
+	 * @param port  the UDP port to listen on.
+	 * @param count the number of channels.
+	 * @return the bound channels.
+	 */
+	private static DatagramChannel[] openChannels(int port, int count) throws IOException {
+		if (count < 1) {
+			throw new IllegalArgumentException("channel count must be positive: " + count);
+		}
+		final DatagramChannel[] channels = new DatagramChannel[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				final DatagramChannel channel = DatagramChannel.open();
+				channels[i] = channel;
+				if (count > 1) {
+					if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+						throw new IOException("SO_REUSEPORT is not supported; use a single channel");
+					}
+					channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+				channel.bind(new InetSocketAddress(port));
+			}
+		} catch (IOException ioe) {
+			for (DatagramChannel channel : channels) {
+				if (channel != null) {
+					channel.close();
+				}
+			}
+			throw ioe;
+		}
+		return channels;
+	}
+
+	/**
+	 * Sets the receiver that plays clients arriving once all 16 channels of the
+	 * primary receiver are taken. Must be called before start().
+	 *
+	 * @param overflow the overflow receiver.
+	 */
+	public void setOverflowReceiver(Receiver overflow) {
+		_dispatcher.setOverflowReceiver(overflow);
+	}
+
+	/**
+	 * Sets how long a client may stay silent before its channel is freed. Must
+	 * be called before start().
+	 *
+	 * @param idleTimeoutNanos the idle timeout in nanoseconds.
+	 */
+	public void setIdleTimeout(long idleTimeoutNanos) {
+		_dispatcher.setIdleTimeout(idleTimeoutNanos);
+	}
+
+	/**
+	 * Turns on playout mode: timestamped packets are played at a steady delay
+	 * behind their sender, between minDelayNanos and maxDelayNanos depending
+	 * on the jitter of each client's link. Must be called before start(), and
+	 * after setOverflowReceiver().
+	 *
+	 * @param minDelayNanos the smallest playout delay.
+	 * @param maxDelayNanos the largest playout delay.
+	 */
+	public void setPlayout(long minDelayNanos, long maxDelayNanos) {
+		_dispatcher.setPlayout(minDelayNanos, maxDelayNanos);
+	}
+
+	/**
+	 * Releases notes held for longer than the specified duration, in case
+	 * their note-off was lost. Must be called before start(), and after
+	 * setOverflowReceiver().
+	 *
+	 * @param maxNoteNanos the longest a note may be held, or 0 to never
+	 *                     release notes.
+	 */
+	public void setMaxNoteDuration(long maxNoteNanos) {
+		_dispatcher.setMaxNoteDuration(maxNoteNanos);
+	}
+
+	/**
+	 * Records every event played into a session, which the dispatch thread
+	 * closes once the engine is closed or another session is started. May be
+	 * called before start() or while the engine runs, in which case the
+	 * session starts with the program of each route.
+	 *
+	 * @param recorder the session recorder, or null to stop recording.
+	 */
+	public void setRecorder(SessionRecorder recorder) {
+		_dispatcher.setRecorder(recorder);
+	}
+
+	/**
+	 * Republishes the notes played to the band. The caller closes the
+	 * broadcaster after the engine. Must be called before start().
+	 *
+	 * @param broadcaster the note broadcaster.
+	 */
+	public void setBroadcaster(NoteBroadcaster broadcaster) {
+		_dispatcher.setBroadcaster(broadcaster);
+	}
+
+	/**
+	 * Sets the smallest playout delay of one client. Must be called after
+	 * setPlayout() and before start().
+	 *
+	 * @param address       the client's address.
+	 * @param port          the client's port.
+	 * @param minDelayNanos the smallest playout delay.
+	 */
+	public void setPlayoutMinDelay(InetAddress address, int port, long minDelayNanos) {
+		_dispatcher.setPlayoutMinDelay(ChannelAllocator.sourceKey(address, port), minDelayNanos);
+	}
+
+	/**
+	 * Limits the events played per second, of each client and of all clients
+	 * together, shedding duplicate note-ons first and never note-offs. Must be
+	 * called before start().
+	 *
+	 * @param sourceEventsPerSecond the sustained rate of each client, or 0 for
+	 *                              no limit.
+	 * @param sourceBurst           the events a client may send at once.
+	 * @param globalEventsPerSecond the sustained rate of all clients, or 0 for
+	 *                              no limit.
+	 * @param globalBurst           the events that may arrive at once.
+	 */
+	public void setAdmissionLimits(long sourceEventsPerSecond, long sourceBurst, long globalEventsPerSecond,
+			long globalBurst) {
+		_dispatcher.setAdmissionLimits(sourceEventsPerSecond, sourceBurst, globalEventsPerSecond, globalBurst);
+	}
+
+	/**
+	 * Also accepts clients that connect over TCP (see StreamServer), whose
+	 * packets are dispatched like datagrams. Must be called before start().
+	 *
+	 * @param port the TCP port to listen on, or 0 for any.
+	 */
+	public void openStreams(int port) throws IOException {
+		_streamRing = new PacketRing(_rings[0].capacity(), SLOT_CAPACITY, false);
+		_streamServer = new StreamServer(port, _streamRing, _dispatcher);
+		_dispatcher.addRing(_streamRing);
+	}
+
+	/**
+	 * Returns the TCP port stream clients connect to.
+	 *
+	 * @return the port, or -1 unless streams are open.
+	 */
+	public int getStreamPort() {
+		return _streamServer != null ? _streamServer.getPort() : -1;
+	}
+
+	/**
+	 * Returns the number of clients connected over TCP.
+	 *
+	 * @return the stream client count.
+	 */
+	public int getStreamClientCount() {
+		return _streamServer != null ? _streamServer.getClientCount() : 0;
+	}
+
+	/**
+	 * Makes the engine a node of a cluster: it accepts the datagrams the
+	 * router forwards, and announces itself to the router once started. Must
+	 * be called before start().
+	 *
+	 * @param router the address of the ClusterRouter.
+	 */
+	public void setRouter(InetSocketAddress router) {
+		_router = router;
+		_dispatcher.setForwardingAllowed(true);
+	}
+
+	/**
+	 * Returns the UDP port the engine listens on.
+	 *
+	 * @return the port.
+	 */
+	public int getPort() {
+		return _socket != null ? _socket.getLocalPort() : _channels[0].socket().getLocalPort();
+	}
+
+	/**
+	 * Starts the receive and dispatch threads.
+	 */
+	public void start() {
+		_dispatchThread.start();
+		for (Thread thread : _receiveThreads) {
+			thread.start();
+		}
+		if (_streamServer != null) {
+			_streamServer.start();
+		}
+		if (_router != null) {
+			_heartbeatThread = new Thread(this::heartbeatLoop, "server-heartbeat");
+			_heartbeatThread.setDaemon(true);
+			_heartbeatThread.start();
+		}
+	}
+
+	/**
+	 * Sends heartbeats to the router until the engine is closed.
+	 */
+	private void heartbeatLoop() {
+		while (_running) {
+			sendHeartbeat(false);
+			try {
+				Thread.sleep(HEARTBEAT_INTERVAL_MS);
+			} catch (InterruptedException ie) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sends a heartbeat to the router from the listening port, which is the
+	 * address the router forwards to.
+	 *
+	 * @param leaving whether the node is leaving the cluster.
+	 */
+	private void sendHeartbeat(boolean leaving) {
+		final ByteBuffer heartbeat = ByteBuffer.allocate(WireFormat.HEARTBEAT_PACKET_SIZE);
+		WireFormat.writeHeartbeat(heartbeat, leaving);
+		try {
+			if (_socket != null) {
+				_socket.send(new DatagramPacket(heartbeat.array(), heartbeat.remaining(), _router));
+			} else {
+				_channels[0].send(heartbeat, _router);
+			}
+		} catch (IOException ioe) {
+			EventLog.log(HEARTBEAT_FAILED, 0, 0, 0);
+		}
+	}
+
+	/**
+	 * Stops all threads and closes the sockets, waiting briefly for the
+	 * receive threads to exit.
+	 */
+	public void close() {
+		_running = false;
+		if (_heartbeatThread != null) {
+			// Lets the router move the clients without waiting for a timeout.
+			sendHeartbeat(true);
+			_heartbeatThread.interrupt();
+		}
+		if (_streamServer != null) {
+			_streamServer.close();
+		}
+		_dispatcher.stop();
+		if (_socket != null) {
+			_socket.close();
+		}
+		for (DatagramChannel channel : _channels) {
+			try {
+				channel.close();
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+		for (Thread thread : _receiveThreads) {
+			try {
+				thread.join(CLOSE_TIMEOUT_MS);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	/**
+	 * Sends an acknowledgement from the server's port.
+	 */
+	public void sendAck(ByteBuffer ack, InetAddress address, int port) throws IOException {
+		if (_socket != null) {
+			_ackPacket.setData(ack.array(), ack.position(), ack.remaining());
+			_ackPacket.setAddress(address);
+			_ackPacket.setPort(port);
+			_socket.send(_ackPacket);
+		} else {
+			_channels[0].send(ack, new InetSocketAddress(address, port));
+		}
+	}
+
+	/**
+	 * Receives packets into one ring until the engine or its socket is closed.
+	 * When the ring is full the packet is still read (into a scratch slot) so
+	 * that the socket keeps draining, and it is counted as dropped.
+	 *
+	 * @param index the index of the ring (and channel) to serve.
+	 */
+	private void receiveLoop(int index) {
+		final PacketRing ring = _rings[index];
+		final PacketSlot scratch = new PacketSlot(SLOT_CAPACITY, _socket == null);
+		while (_running) {
+			PacketSlot slot = ring.claim();
+			final boolean full = slot == null;
+			if (full) {
+				slot = scratch;
+			}
+			try {
+				if (_socket != null) {
+					slot.receive(_socket);
+				} else {
+					slot.receive(_channels[index]);
+				}
+			} catch (ClosedChannelException cce) {
+				// Closed by close(), or by an interrupt.
+				return;
+			} catch (IOException ioe) {
+				if (!_running || _socket != null && _socket.isClosed()) {
+					return;
+				}
+				ioe.printStackTrace();
+				continue;
+			}
+			if (full) {
+				ring.recordDrop();
+			} else {
+				ring.publish();
+				_dispatcher.signal();
+			}
+		}
+	}
+
+	/**
+	 * Returns whether any receive thread is still running.
+	 *
+	 * @return true until every receive thread has exited.
+	 */
+	public boolean isReceiving() {
+		for (Thread thread : _receiveThreads) {
+			if (thread.isAlive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of receive threads (one per socket or channel).
+	 *
+	 * @return the receive thread count.
+	 */
+	public int getReceiveThreadCount() {
+		return _rings.length;
+	}
+
+	/**
+	 * Returns the number of packets waiting to be dispatched.
+	 *
+	 * @return the queue depth.
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (PacketRing ring : _rings) {
+			depth += ring.size();
+		}
+		return _streamRing != null ? depth + _streamRing.size() : depth;
+	}
+
+	/**
+	 * Returns the maximum number of packets that may wait to be dispatched.
+	 *
+	 * @return the queue capacity.
+	 */
+	public int getQueueCapacity() {
+		return (_streamRing != null ? _rings.length + 1 : _rings.length) * _rings[0].capacity();
+	}
+
+	/**
+	 * Returns the number of datagrams dropped because the queue was full.
+	 * Stream packets are never dropped this way.
+	 *
+	 * @return the drop count.
+	 */
+	public long getDropCount() {
+		long drops = 0;
+		for (PacketRing ring : _rings) {
+			drops += ring.getDropCount();
+		}
+		return _streamRing != null ? drops + _streamRing.getDropCount() : drops;
+	}
+
+	/**
+	 * Returns the number of packets accepted into the queue.
+	 *
+	 * @return the received count.
+	 */
+	public long getReceivedCount() {
+		long received = 0;
+		for (PacketRing ring : _rings) {
+			received += ring.getPublishedCount();
+		}
+		return _streamRing != null ? received + _streamRing.getPublishedCount() : received;
+	}
+
+	/**
+	 * Returns the number of events forwarded to the MIDI receiver.
+	 *
+	 * @return the dispatched count.
+	 */
+	public long getDispatchedCount() {
+		return _dispatcher.getDispatchedCount();
+	}
+
+	/**
+	 * Returns the number of packets that could not be decoded.
+	 *
+	 * @return the invalid count.
+	 */
+	public long getInvalidCount() {
+		return _dispatcher.getInvalidCount();
+	}
+
+	/**
+	 * Returns the number of events rejected by admission control.
+	 *
+	 * @return the rejected count.
+	 */
+	public long getRejectedCount() {
+		return _dispatcher.getRejectedCount();
+	}
+
+	/**
+	 * Prints the events rejected from each current client, by reason.
+	 *
+	 * @param out the stream to print to.
+	 */
+	public void dumpRejections(PrintStream out) {
+		_dispatcher.dumpRejections(out);
+	}
+
+	/**
+	 * Returns the number of routes, i.e. of clients that can play at once.
+	 *
+	 * @return the route count.
+	 */
+	public int getRouteCount() {
+		return _dispatcher.getRouteCount();
+	}
+
+	/**
+	 * Returns the number of routes taken from a client that was still playing
+	 * (see ChannelAllocator.getReassignedCount()).
+	 *
+	 * @return the reassigned count.
+	 */
+	public long getReassignedCount() {
+		return _dispatcher.getReassignedCount();
+	}
+
+	/**
+	 * Prints the playout delay and jitter of each client in playout mode.
+	 *
+	 * @param out the stream to print to.
+	 */
+	public void dumpPlayoutDelays(PrintStream out) {
+		_dispatcher.dumpPlayoutDelays(out);
+	}
+
+	/**
+	 * Returns the number of channels currently assigned to a client.
+	 *
+	 * @return the active source count.
+	 */
+	public int getActiveSourceCount() {
+		return _dispatcher.getActiveSourceCount();
+	}
+
+	/**
+	 * Returns the number of events waiting for their playout time.
+	 *
+	 * @return the scheduled count.
+	 */
+	public int getScheduledCount() {
+		return _dispatcher.getScheduledCount();
+	}
+
+	/**
+	 * Returns the number of timestamped packets that arrived too late to keep
+	 * their playout time.
+	 *
+	 * @return the late count.
+	 */
+	public long getLateCount() {
+		return _dispatcher.getLateCount();
+	}
+
+	/**
+	 * Returns the number of duplicated packets dropped in playout mode.
+	 *
+	 * @return the duplicate count.
+	 */
+	public long getDuplicateCount() {
+		return _dispatcher.getDuplicateCount();
+	}
+
+	/**
+	 * Returns the number of retransmitted reliable packets dropped because
+	 * they had already been played.
+	 *
+	 * @return the retransmitted count.
+	 */
+	public long getRetransmittedCount() {
+		return _dispatcher.getRetransmittedCount();
+	}
+
+	/**
+	 * Returns the number of stuck notes released by the watchdog.
+	 *
+	 * @return the stuck note count.
+	 */
+	public long getStuckNoteCount() {
+		return _dispatcher.getStuckNoteCount();
+	}
+
+	/**
+	 * Returns the largest playout delay currently used by any route.
+	 *
+	 * @return the delay in nanoseconds, or 0 outside playout mode.
+	 */
+	public long getMaxPlayoutDelayNanos() {
+		long max = 0;
+		for (int route = 0; route < _dispatcher.getRouteCount(); route++) {
+			max = Math.max(max, _dispatcher.getPlayoutDelayNanos(route));
+		}
+		return max;
+	}
+}
@@ -0,0 +1,86 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import java.net.*;
+import java.util.function.*;
+import javax.sound.midi.*;
+
+/**
+ * Contains a set of unit tests for the ServerEngine class, sending to it
+ * through a NetworkReceiver.
+ */
+class ServerEngineTester {
+	private static final int TIMEOUT_MS = 2000;
+	private static final int NOTES = 50;
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		final long deadline = System.nanoTime() + TIMEOUT_MS * 1_000_000L;
+		while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Plays notes into the engine in the specified wire format, and checks
+	 * that every one arrives.
+	 */
+	private static void roundTrip(ServerEngine engine, int version, int windowMicros) throws Exception {
+		final NetworkReceiver receiver = new NetworkReceiver();
+		try {
+			receiver.setAddress("127.0.0.1");
+			receiver.setPort(engine.getPort());
+			receiver.setProtocol(version, windowMicros);
+			for (int i = 0; i < NOTES; i++) {
+				receiver.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60 + i % 12, 93), -1);
+				receiver.send(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60 + i % 12, 0), -1);
+			}
+		} finally {
+			receiver.close();
+		}
+		await(() -> engine.getDispatchedCount() == 2 * NOTES);
+		assertEquals(0, receiver.getSendErrorCount());
+		assertEquals(0, engine.getDropCount());
+		assertEquals(0, engine.getInvalidCount());
+		assertEquals(2 * NOTES, engine.getDispatchedCount());
+		assertEquals(1, engine.getActiveSourceCount());
+	}
+
+	@Test
+	void testSocketRoundTrip() throws Exception {
+		final ServerEngine engine = new ServerEngine(0, new LoadGenerator.CountingReceiver(),
+				ServerEngine.DEFAULT_RING_CAPACITY);
+		engine.start();
+		try {
+			roundTrip(engine, WireFormat.VERSION_1, 0);
+		} finally {
+			engine.close();
+		}
+		assertFalse(engine.isReceiving());
+	}
+
+	@Test
+	void testChannelsRoundTrip() throws Exception {
+		final ServerEngine engine = new ServerEngine(0, new LoadGenerator.CountingReceiver(),
+				ServerEngine.DEFAULT_RING_CAPACITY, 1);
+		engine.start();
+		try {
+			roundTrip(engine, WireFormat.VERSION_2, 500);
+		} finally {
+			engine.close();
+		}
+		assertFalse(engine.isReceiving());
+	}
+
+	@Test
+	void testCloseStopsReceivingAndFreesPort() throws Exception {
+		final ServerEngine engine = new ServerEngine(0, new LoadGenerator.CountingReceiver(),
+				ServerEngine.DEFAULT_RING_CAPACITY, 1);
+		final int port = engine.getPort();
+		engine.start();
+		assertTrue(engine.isReceiving());
+		engine.close();
+		assertFalse(engine.isReceiving(), "the receive threads exit once their channel is closed");
+		try (DatagramSocket socket = new DatagramSocket(port)) {
+			assertEquals(port, socket.getLocalPort());
+		}
+	}
+}
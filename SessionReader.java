@@ -0,0 +1,100 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Reads a session written by SessionRecorder, one memory-mapped segment at a
+ * time, and passes its records to a Visitor in order without allocating per
+ * record.
+ */
+public class SessionReader {
+	/**
+	 * Receives the records of a session.
+	 */
+	public interface Visitor {
+		/**
+		 * Called once per record, in recording order.
+		 *
+		 * @param nanos  the nanoseconds since the session start.
+		 * @param source the source key of the client.
+		 * @param route  the route of the client.
+		 * @param status the status byte as played (command | channel).
+		 * @param data1  the first data byte.
+		 * @param data2  the second data byte.
+		 */
+		void onRecord(long nanos, long source, int route, int status, int data1, int data2);
+	}
+
+	private final File _directory;
+
+	/**
+	 * @param directory the directory of the session.
+	 */
+	public SessionReader(File directory) {
+		_directory = directory;
+	}
+
+	/**
+	 * Returns when the session started.
+	 *
+	 * @return the start in milliseconds since the epoch.
+	 */
+	public long getStartEpochMillis() throws IOException {
+		try (FileChannel channel = FileChannel.open(SessionRecorder.segmentFile(_directory, 0).toPath())) {
+			final ByteBuffer header = ByteBuffer.allocate(SessionRecorder.HEADER_SIZE);
+			channel.read(header, 0);
+			checkHeader(header, 0);
+			return header.getLong(16);
+		}
+	}
+
+	/**
+	 * Reads every record of the session.
+	 *
+	 * @param visitor the receiver of the records.
+	 * @return the number of records read.
+	 */
+	public long read(Visitor visitor) throws IOException {
+		long count = 0;
+		for (int index = 0;; index++) {
+			final File file = SessionRecorder.segmentFile(_directory, index);
+			if (!file.exists()) {
+				if (index == 0) {
+					throw new FileNotFoundException("No session in " + _directory);
+				}
+				return count;
+			}
+			final MappedByteBuffer segment;
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			checkHeader(segment, index);
+			for (int position = SessionRecorder.HEADER_SIZE; position
+					+ SessionRecorder.RECORD_SIZE <= segment.limit(); position += SessionRecorder.RECORD_SIZE) {
+				final int status = segment.get(position + 17) & 0xFF;
+				if (status == 0) {
+					return count;
+				}
+				visitor.onRecord(segment.getLong(position), segment.getLong(position + 8),
+						segment.get(position + 16) & 0xFF, status, segment.get(position + 18) & 0xFF,
+						segment.get(position + 19) & 0xFF);
+				count++;
+			}
+		}
+	}
+
+	/**
+	 * Checks that a segment was written by a compatible SessionRecorder.
+	 *
+	 * @param header the buffer holding the segment header.
+	 * @param index  the expected segment index.
+	 */
+	private void checkHeader(ByteBuffer header, int index) throws IOException {
+		if (header.limit() < SessionRecorder.HEADER_SIZE || header.getInt(0) != SessionRecorder.MAGIC
+				|| header.getShort(4) != SessionRecorder.FORMAT_VERSION
+				|| header.getShort(6) != SessionRecorder.RECORD_SIZE || header.getInt(8) != index) {
+			throw new IOException("Not a session segment: " + SessionRecorder.segmentFile(_directory, index));
+		}
+	}
+}
@@ -0,0 +1,180 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Records every event the server plays into memory-mapped segment files, so
+ * that performances can be replayed or mixed later (see SessionReplay).
+ * Recording an event is a handful of absolute puts into the mapped buffer:
+ * it neither allocates nor makes a system call, and the operating system
+ * writes the pages back in the background.
+ *
+ * A session is a directory of segments named session-00000.rec,
+ * session-00001.rec and so on, each at most segmentSize bytes:
+ *
+ * <pre>
+ * header (HEADER_SIZE bytes)
+ * bytes 0-3   MAGIC
+ * bytes 4-5   FORMAT_VERSION
+ * bytes 6-7   RECORD_SIZE
+ * bytes 8-11  segment index
+ * bytes 12-15 reserved
+ * bytes 16-23 session start, in milliseconds since the epoch
+ * bytes 24-31 session start, in System.nanoTime() of the recording server
+ * records (RECORD_SIZE bytes each)
+ * bytes 0-7   nanoseconds since the session start
+ * bytes 8-15  source key of the client (see ChannelAllocator.sourceKey())
+ * byte 16     route
+ * byte 17     status byte as played (command | channel)
+ * bytes 18-19 data1, data2
+ * bytes 20-23 reserved
+ * </pre>
+ *
+ * A status byte of 0 marks the end of the session, so a segment left at its
+ * mapped size by a crash still reads correctly. Not thread-safe; used by the
+ * dispatch thread only.
+ */
+public class SessionRecorder implements Closeable {
+	public static final int MAGIC = 0x424E4452; // "BNDR"
+	public static final int FORMAT_VERSION = 1;
+	public static final int HEADER_SIZE = 32;
+	public static final int RECORD_SIZE = 24;
+	public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+	private static final EventLog.Event RECORDING_FAILED = new EventLog.Event("recordingFailed",
+			EventLog.Level.ERROR, "segment");
+
+	private final File _directory;
+	private final long _segmentSize;
+	private final long _startEpochMillis = System.currentTimeMillis();
+	private final long _startNanos = System.nanoTime();
+	private FileChannel _channel;
+	private MappedByteBuffer _segment; // null once recording failed or closed
+	private int _segmentIndex = -1;
+	private int _position;
+	private long _recordCount;
+
+	/**
+	 * Starts recording a session into an empty or new directory.
+	 *
+	 * @param directory   the directory of the session.
+	 * @param segmentSize the size of each segment file.
+	 */
+	public SessionRecorder(File directory, long segmentSize) throws IOException {
+		if (segmentSize < HEADER_SIZE + RECORD_SIZE || segmentSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Bad segment size: " + segmentSize);
+		}
+		Files.createDirectories(directory.toPath());
+		_directory = directory;
+		_segmentSize = segmentSize;
+		roll();
+	}
+
+	/**
+	 * Returns the file of a segment.
+	 *
+	 * @param directory the directory of the session.
+	 * @param index     the index of the segment.
+	 * @return the segment file.
+	 */
+	public static File segmentFile(File directory, int index) {
+		return new File(directory, String.format("session-%05d.rec", index));
+	}
+
+	/**
+	 * Closes the current segment, if any, and maps the next one.
+	 */
+	private void roll() throws IOException {
+		if (_channel != null) {
+			_channel.close();
+		}
+		_segmentIndex++;
+		_channel = FileChannel.open(segmentFile(_directory, _segmentIndex).toPath(), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		_segment = _channel.map(FileChannel.MapMode.READ_WRITE, 0, _segmentSize);
+		_segment.putInt(0, MAGIC);
+		_segment.putShort(4, (short) FORMAT_VERSION);
+		_segment.putShort(6, (short) RECORD_SIZE);
+		_segment.putInt(8, _segmentIndex);
+		_segment.putLong(16, _startEpochMillis);
+		_segment.putLong(24, _startNanos);
+		_position = HEADER_SIZE;
+	}
+
+	/**
+	 * Records one event. The status byte is written last, so a reader never
+	 * sees a partial record.
+	 *
+	 * @param nanos  the System.nanoTime() at which the event was played.
+	 * @param source the source key of the client.
+	 * @param route  the route of the client.
+	 * @param status the status byte as played (command | channel).
+	 * @param data1  the first data byte.
+	 * @param data2  the second data byte.
+	 */
+	public void record(long nanos, long source, int route, int status, int data1, int data2) {
+		if (_segment == null) {
+			return;
+		}
+		if (_position + RECORD_SIZE > _segmentSize) {
+			try {
+				roll();
+			} catch (IOException ioe) {
+				EventLog.log(RECORDING_FAILED, _segmentIndex, 0, 0);
+				_segment = null;
+				return;
+			}
+		}
+		final MappedByteBuffer segment = _segment;
+		final int position = _position;
+		segment.putLong(position, nanos - _startNanos);
+		segment.putLong(position + 8, source);
+		segment.put(position + 16, (byte) route);
+		segment.put(position + 18, (byte) data1);
+		segment.put(position + 19, (byte) data2);
+		segment.put(position + 17, (byte) status);
+		_position = position + RECORD_SIZE;
+		_recordCount++;
+	}
+
+	@Override
+	/**
+	 * Writes the current segment to disk and trims it to the records it
+	 * holds.
+	 */
+	public void close() throws IOException {
+		if (_channel == null) {
+			return;
+		}
+		if (_segment != null) {
+			_segment.force();
+			_segment = null;
+		}
+		try {
+			_channel.truncate(_position);
+		} catch (IOException ioe) {
+			// Some systems cannot truncate a mapped file; the end marker still
+			// ends the session.
+		}
+		_channel.close();
+		_channel = null;
+	}
+
+	/**
+	 * Returns the number of events recorded.
+	 *
+	 * @return the record count.
+	 */
+	public long getRecordCount() {
+		return _recordCount;
+	}
+
+	/**
+	 * Returns the number of segment files written so far.
+	 *
+	 * @return the segment count.
+	 */
+	public int getSegmentCount() {
+		return _segmentIndex + 1;
+	}
+}
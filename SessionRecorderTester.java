@@ -0,0 +1,146 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+import javax.sound.midi.*;
+
+/**
+ * Contains a set of unit tests for the SessionRecorder, SessionReader and
+ * SessionReplay classes.
+ */
+class SessionRecorderTester {
+	private static final long MS = 1_000_000;
+	// Room for 4 records per segment, so that 10 records span 3 segments.
+	private static final long SEGMENT_SIZE = SessionRecorder.HEADER_SIZE + 4 * SessionRecorder.RECORD_SIZE;
+	private static final int NUM_EVENTS = 10;
+	private static final int TIMEOUT_MS = 2000;
+
+	@TempDir
+	Path _directory;
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		final long deadline = System.nanoTime() + TIMEOUT_MS * MS;
+		while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Records NUM_EVENTS alternating note-ons and note-offs, 10 ms apart, on
+	 * route 17 (channel 1 of the overflow synthesizer).
+	 */
+	private void recordSession() throws IOException {
+		final SessionRecorder recorder = new SessionRecorder(_directory.toFile(), SEGMENT_SIZE);
+		final long start = System.nanoTime();
+		for (int i = 0; i < NUM_EVENTS; i++) {
+			final int command = i % 2 == 0 ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF;
+			recorder.record(start + i * 10 * MS, 12345, 17, command | 1, 60 + i / 2, i % 2 == 0 ? 93 : 0);
+		}
+		assertEquals(NUM_EVENTS, recorder.getRecordCount());
+		assertEquals(3, recorder.getSegmentCount());
+		recorder.close();
+	}
+
+	@Test
+	void testRecordingReadsBackAcrossSegments() throws IOException {
+		recordSession();
+		final List<int[]> records = new ArrayList<>();
+		final long[] lastNanos = { -1 };
+		final long count = new SessionReader(_directory.toFile()).read((nanos, source, route, status, data1, data2) -> {
+			assertTrue(nanos > lastNanos[0], "records in order");
+			lastNanos[0] = nanos;
+			assertEquals(12345, source);
+			records.add(new int[] { route, status, data1, data2 });
+		});
+		assertEquals(NUM_EVENTS, count);
+		assertArrayEquals(new int[] { 17, ShortMessage.NOTE_ON | 1, 60, 93 }, records.get(0));
+		assertArrayEquals(new int[] { 17, ShortMessage.NOTE_OFF | 1, 64, 0 }, records.get(NUM_EVENTS - 1));
+		assertTrue(Math.abs(new SessionReader(_directory.toFile()).getStartEpochMillis()
+				- System.currentTimeMillis()) < 60_000);
+	}
+
+	@Test
+	void testReplayKeepsPace() throws IOException {
+		recordSession();
+		assertEquals(2, SessionReplay.countReceivers(new SessionReader(_directory.toFile())));
+		final TestReceiver primary = new TestReceiver();
+		final List<MidiMessage> messages = new ArrayList<>();
+		final TestReceiver receiver = new TestReceiver() {
+			@Override
+			public void send(MidiMessage message, long timeStamp) {
+				super.send(message, timeStamp);
+				messages.add(message);
+			}
+		};
+		final long start = System.nanoTime();
+		final long played = SessionReplay.replay(new SessionReader(_directory.toFile()),
+				new Receiver[] { primary, receiver }, 2);
+		final long elapsed = System.nanoTime() - start;
+		assertEquals(NUM_EVENTS, played);
+		assertEquals(0, primary.getKeyOnCount(60), "route 17 plays on the overflow receiver");
+		assertEquals(1, receiver.getKeyOnCount(60));
+		assertEquals(1, receiver.getKeyOffCount(64));
+		// Each message is still what was sent, so a receiver may keep it.
+		assertArrayEquals(new byte[] { (byte) (ShortMessage.NOTE_ON | 1), 60, 93 }, messages.get(0).getMessage());
+		assertArrayEquals(new byte[] { (byte) (ShortMessage.NOTE_OFF | 1), 64, 0 },
+				messages.get(NUM_EVENTS - 1).getMessage());
+
+		// Without a receiver for the overflow routes, they are not played.
+		assertEquals(0, SessionReplay.replay(new SessionReader(_directory.toFile()), new Receiver[] { primary }, 1000));
+		// 90 ms of recording at twice the speed.
+		assertTrue(elapsed >= 45 * MS, "replayed too fast: " + elapsed);
+	}
+
+	@Test
+	void testExportToMidiFile() throws Exception {
+		recordSession();
+		final File file = _directory.resolve("session.mid").toFile();
+		SessionReplay.exportMidiFile(new SessionReader(_directory.toFile()), file);
+		final Sequence sequence = MidiSystem.getSequence(file);
+		assertEquals(1, sequence.getTracks().length);
+		final Track track = sequence.getTracks()[0];
+		// The port, the events and the end of track.
+		assertEquals(NUM_EVENTS + 2, track.size());
+		final MetaMessage port = (MetaMessage) track.get(0).getMessage();
+		assertEquals(SessionReplay.MIDI_PORT, port.getType());
+		assertArrayEquals(new byte[] { 1 }, port.getData(), "route 17 is on the overflow synthesizer");
+		final ShortMessage first = (ShortMessage) track.get(1).getMessage();
+		assertEquals(ShortMessage.NOTE_ON, first.getCommand());
+		assertEquals(1, first.getChannel());
+		// The file starts with the first event; 10 ms later is 9.6 ticks at 120
+		// beats per minute and 480 ticks per beat.
+		assertEquals(0, track.get(1).getTick());
+		assertEquals(10, track.get(2).getTick());
+	}
+
+	@Test
+	void testRecordingStartsWithThePrograms() throws Exception {
+		final LoadGenerator.CountingReceiver sink = new LoadGenerator.CountingReceiver();
+		final ServerEngine engine = new ServerEngine(0, sink, ServerEngine.DEFAULT_RING_CAPACITY);
+		engine.start();
+		final NetworkReceiver client = new NetworkReceiver();
+		try {
+			client.setAddress("127.0.0.1");
+			client.setPort(engine.getPort());
+			client.send(new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, 19, 0), -1);
+			await(() -> sink.getOtherCount() == 2); // the route's All Notes Off and the program
+			engine.setRecorder(new SessionRecorder(_directory.toFile(), SEGMENT_SIZE));
+			client.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 93), -1);
+			await(() -> sink.getNoteOnCount() == 1);
+		} finally {
+			client.close();
+			engine.close();
+		}
+		final List<int[]> records = new ArrayList<>();
+		new SessionReader(_directory.toFile()).read((nanos, source, route, status, data1, data2) -> {
+			records.add(new int[] { route, status, data1, data2 });
+		});
+		assertEquals(2, records.size());
+		assertArrayEquals(new int[] { 0, ShortMessage.PROGRAM_CHANGE, 19, 0 }, records.get(0));
+		assertArrayEquals(new int[] { 0, ShortMessage.NOTE_ON, 60, 93 }, records.get(1));
+	}
+
+}
@@ -0,0 +1,178 @@
+import java.io.*;
+import java.util.concurrent.locks.*;
+import javax.sound.midi.*;
+
+/**
+ * Plays a session recorded by the server (see SessionRecorder) back into MIDI
+ * receivers, or exports it to a Standard MIDI File for mixing.
+ *
+ * The server plays routes 0-15 on the channels of its primary synthesizer
+ * and routes 16-31 on those of its overflow synthesizer, so routes 0 and 16
+ * share channel 0. A replay therefore plays each synthesizer's routes into a
+ * receiver of their own, and an export puts each route on a track of its own
+ * whose MIDI port (meta event MIDI_PORT) names the synthesizer.
+ *
+ * Options:
+ * "--speed X" replays X times faster than recorded (default 1);
+ * "--export FILE" writes a type 1 Standard MIDI File, with one track per
+ * route, instead of playing.
+ *
+ * Run with: java SessionReplay DIRECTORY [--speed 2] [--export band.mid]
+ */
+public class SessionReplay {
+	public static final int TICKS_PER_QUARTER_NOTE = 480;
+	// The default tempo of a MIDI file: 120 beats per minute.
+	private static final long MICROS_PER_QUARTER_NOTE = 500_000;
+	/** The meta event type giving the MIDI port of a track's events. */
+	public static final int MIDI_PORT = 0x21;
+
+	/**
+	 * Streams the records of a session into receivers at their recorded pace,
+	 * divided by speed. Each message is sent with timestamp -1 when it is due,
+	 * starting with the first record right away, as a message of its own, so
+	 * that a receiver may keep it. Routes 0-15 play into the first receiver,
+	 * routes 16-31 into the second, and so on; the records of routes without
+	 * a receiver are skipped.
+	 *
+	 * @param reader    the session.
+	 * @param receivers the receivers to play into, one per server synthesizer.
+	 * @param speed     how many times faster than recorded to play.
+	 * @return the number of messages played.
+	 */
+	public static long replay(SessionReader reader, Receiver[] receivers, double speed) throws IOException {
+		if (!(speed > 0)) {
+			throw new IllegalArgumentException("Speed must be positive: " + speed);
+		}
+		final long[] firstNanos = { -1 };
+		final long[] played = { 0 };
+		final long start = System.nanoTime();
+		reader.read((nanos, source, route, status, data1, data2) -> {
+			final int receiver = route / ChannelAllocator.NUM_CHANNELS;
+			if (receiver >= receivers.length) {
+				return;
+			}
+			if (firstNanos[0] < 0) {
+				firstNanos[0] = nanos;
+			}
+			final long due = start + (long) ((nanos - firstNanos[0]) / speed);
+			for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+				LockSupport.parkNanos(wait);
+			}
+			ShortMessage message = MidiMessages.cached(status & 0xF0, status & 0x0F, data1, data2);
+			if (message == null) {
+				try {
+					message = new ShortMessage(status & 0xF0, status & 0x0F, data1, data2);
+				} catch (InvalidMidiDataException imde) {
+					return;
+				}
+			}
+			receivers[receiver].send(message, -1);
+			played[0]++;
+		});
+		return played[0];
+	}
+
+	/**
+	 * Returns the number of synthesizers a session was played on, which is
+	 * the number of receivers replay() needs to play all of it.
+	 *
+	 * @param reader the session.
+	 * @return the number of synthesizers, at least 1.
+	 */
+	public static int countReceivers(SessionReader reader) throws IOException {
+		final int[] highestRoute = { 0 };
+		reader.read((nanos, source, route, status, data1, data2) -> {
+			highestRoute[0] = Math.max(highestRoute[0], route);
+		});
+		return highestRoute[0] / ChannelAllocator.NUM_CHANNELS + 1;
+	}
+
+	/**
+	 * Converts a session into a sequence with one track per route, at the
+	 * default tempo of 120 beats per minute, starting with the first record.
+	 * Each track starts with a MIDI_PORT meta event holding the route's
+	 * synthesizer (route / 16), since routes of different synthesizers share
+	 * channels.
+	 *
+	 * @param reader the session.
+	 * @return the sequence.
+	 */
+	public static Sequence toSequence(SessionReader reader) throws IOException {
+		final Sequence sequence;
+		try {
+			sequence = new Sequence(Sequence.PPQ, TICKS_PER_QUARTER_NOTE);
+		} catch (InvalidMidiDataException imde) {
+			throw new IllegalStateException(imde);
+		}
+		final Track[] tracks = new Track[ChannelAllocator.ROUTE_MASK + 1];
+		final long[] firstNanos = { -1 };
+		reader.read((nanos, source, route, status, data1, data2) -> {
+			if (tracks[route] == null) {
+				tracks[route] = sequence.createTrack();
+				try {
+					tracks[route].add(new MidiEvent(new MetaMessage(MIDI_PORT,
+							new byte[] { (byte) (route / ChannelAllocator.NUM_CHANNELS) }, 1), 0));
+				} catch (InvalidMidiDataException imde) {
+					throw new IllegalStateException(imde); // a one-byte port is always valid
+				}
+			}
+			if (firstNanos[0] < 0) {
+				firstNanos[0] = nanos;
+			}
+			final long micros = (nanos - firstNanos[0]) / 1000;
+			final long tick = (micros * TICKS_PER_QUARTER_NOTE + MICROS_PER_QUARTER_NOTE / 2)
+					/ MICROS_PER_QUARTER_NOTE;
+			try {
+				tracks[route].add(new MidiEvent(new ShortMessage(status & 0xF0, status & 0x0F, data1, data2), tick));
+			} catch (InvalidMidiDataException imde) {
+				// Skip the record; the recorder only writes messages that played.
+			}
+		});
+		return sequence;
+	}
+
+	/**
+	 * Writes a session to a type 1 Standard MIDI File.
+	 *
+	 * @param reader the session.
+	 * @param file   the MIDI file to write.
+	 */
+	public static void exportMidiFile(SessionReader reader, File file) throws IOException {
+		MidiSystem.write(toSequence(reader), 1, file);
+	}
+
+	public static void main(String[] args) throws IOException, MidiUnavailableException {
+		if (args.length < 1) {
+			System.err.println("Usage: java SessionReplay DIRECTORY [--speed X] [--export FILE]");
+			System.exit(2);
+		}
+		final SessionReader reader = new SessionReader(new File(args[0]));
+		double speed = 1;
+		File export = null;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("--speed") && i + 1 < args.length) {
+				speed = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--export") && i + 1 < args.length) {
+				export = new File(args[++i]);
+			}
+		}
+		if (export != null) {
+			exportMidiFile(reader, export);
+			System.out.println("Exported " + export);
+			return;
+		}
+		// The overflow routes play on synthesizers of their own, as on the server.
+		final Receiver[] receivers = new Receiver[countReceivers(reader)];
+		receivers[0] = MidiSystem.getReceiver();
+		for (int i = 1; i < receivers.length; i++) {
+			final Synthesizer synthesizer = MidiSystem.getSynthesizer();
+			synthesizer.open();
+			receivers[i] = synthesizer.getReceiver();
+		}
+		final long played = replay(reader, receivers, speed);
+		System.out.println("Played " + played + " messages");
+		for (Receiver receiver : receivers) {
+			receiver.close();
+		}
+	}
+}
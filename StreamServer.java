@@ -0,0 +1,284 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Accepts clients that send their packets over a TCP stream instead of as
+ * datagrams, for networks that lose or block datagrams (see
+ * NetworkReceiver.setStream() and the framing in WireFormat). Each client is
+ * read by its own virtual thread (a daemon platform thread before Java 21),
+ * which publishes the packets into a PacketRing drained by the server's
+ * PacketDispatcher; from there they take the same path, channel assignment
+ * and admission control as datagrams, the client being known by the address
+ * and port of its connection.
+ *
+ * An idle client costs a parked virtual thread and a read buffer of a few
+ * hundred bytes, so thousands of them are cheap; one that never sends takes
+ * no channel. When a client that played disconnects, its departure is
+ * published behind its last packet, and the dispatcher silences its channel
+ * right away (if the client still has one), instead of its notes lingering
+ * until the idle timeout frees the channel.
+ *
+ * The readers share the ring, so publishing takes a lock (one that parks a
+ * virtual thread rather than pinning its carrier), held only to copy the
+ * packet into its slot. When the ring is full, the reader waits for the
+ * dispatcher to free a slot rather than dropping the packet, so it stops
+ * reading the socket and TCP slows the client down.
+ */
+public class StreamServer {
+	// Room for a few frames per read, so that a burst costs one system call.
+	private static final int READ_BUFFER_SIZE = 2 * (WireFormat.STREAM_LENGTH_SIZE + WireFormat.MAX_PACKET_SIZE);
+	// How long a reader waits for a slot before looking again; the dispatcher
+	// frees slots without signalling the readers.
+	private static final long FULL_WAIT_NANOS = 100_000;
+	// How long the accept thread waits after a failure, at first and at most
+	// (e.g. out of file descriptors until clients leave).
+	private static final long MIN_ACCEPT_BACKOFF_MS = 10;
+	private static final long MAX_ACCEPT_BACKOFF_MS = 1000;
+	private static final EventLog.Event CLIENT_CONNECTED = new EventLog.Event("streamConnected",
+			EventLog.Level.INFO, (line, source, clients, unused) -> ChannelAllocator
+					.formatSource(line.append(" source="), source).append(" clients=").append(clients));
+	private static final EventLog.Event CLIENT_DISCONNECTED = new EventLog.Event("streamDisconnected",
+			EventLog.Level.INFO, (line, source, clients, unused) -> ChannelAllocator
+					.formatSource(line.append(" source="), source).append(" clients=").append(clients));
+	private static final EventLog.Event INVALID_FRAME = new EventLog.Event("invalidFrame", EventLog.Level.WARN,
+			(line, source, length, unused) -> ChannelAllocator.formatSource(line.append(" source="), source)
+					.append(" length=").append(length));
+	private static final EventLog.Event ACCEPT_FAILED = new EventLog.Event("streamAcceptFailed",
+			EventLog.Level.WARN, "backoffMillis");
+
+	private final ServerSocket _serverSocket;
+	private final PacketRing _ring;
+	private final PacketDispatcher _dispatcher;
+	private final Lock _publishLock = new ReentrantLock();
+	private final Set<Socket> _clients = ConcurrentHashMap.newKeySet();
+	private final AtomicLong _connectedCount = new AtomicLong();
+	private Thread _acceptThread;
+	private volatile boolean _running = true;
+
+	/**
+	 * @param port       the TCP port to listen on, or 0 for any.
+	 * @param ring       the ring to publish packets into, drained by the
+	 *                   dispatcher.
+	 * @param dispatcher the dispatcher to signal when a packet is published.
+	 */
+	public StreamServer(int port, PacketRing ring, PacketDispatcher dispatcher) throws IOException {
+		_serverSocket = new ServerSocket(port);
+		_ring = ring;
+		_dispatcher = dispatcher;
+	}
+
+	/**
+	 * Returns the TCP port the server listens on.
+	 *
+	 * @return the port.
+	 */
+	public int getPort() {
+		return _serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Starts accepting clients.
+	 */
+	public void start() {
+		_acceptThread = new Thread(this::acceptLoop, "stream-accept");
+		_acceptThread.setDaemon(true);
+		_acceptThread.start();
+	}
+
+	/**
+	 * Stops accepting clients and disconnects the connected ones.
+	 */
+	public void close() {
+		_running = false;
+		try {
+			_serverSocket.close();
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+		for (Socket client : _clients) {
+			try {
+				client.close();
+			} catch (IOException ioe) {
+				// Already gone.
+			}
+		}
+	}
+
+	/**
+	 * Accepts clients until the server is closed, starting a reader for each.
+	 * After a failure to accept, waits before trying again, longer after each
+	 * failure in a row, so that a failure that persists (such as running out
+	 * of file descriptors) does not spin.
+	 */
+	private void acceptLoop() {
+		long backoffMs = 0;
+		while (_running) {
+			final Socket client;
+			try {
+				client = _serverSocket.accept();
+			} catch (IOException ioe) {
+				if (!_running || _serverSocket.isClosed()) {
+					return;
+				}
+				backoffMs = Math.min(MAX_ACCEPT_BACKOFF_MS, Math.max(MIN_ACCEPT_BACKOFF_MS, 2 * backoffMs));
+				EventLog.log(ACCEPT_FAILED, backoffMs, 0, 0);
+				try {
+					Thread.sleep(backoffMs);
+				} catch (InterruptedException ie) {
+					return;
+				}
+				continue;
+			}
+			backoffMs = 0;
+			try {
+				client.setTcpNoDelay(true);
+			} catch (IOException ioe) {
+				// Reset before it could be read.
+				try {
+					client.close();
+				} catch (IOException closeFailure) {
+					// Already gone.
+				}
+				continue;
+			}
+			_clients.add(client);
+			_connectedCount.incrementAndGet();
+			VirtualThreads.start("stream-client-" + client.getPort(), () -> readLoop(client));
+		}
+	}
+
+	/**
+	 * Reads a client's frames until it disconnects or sends an invalid frame,
+	 * then releases its notes.
+	 *
+	 * @param client the client's connection.
+	 */
+	private void readLoop(Socket client) {
+		final InetAddress address = client.getInetAddress();
+		final int port = client.getPort();
+		final long source = ChannelAllocator.sourceKey(address, port);
+		EventLog.log(CLIENT_CONNECTED, source, _clients.size(), 0);
+		final byte[] buffer = new byte[READ_BUFFER_SIZE];
+		int filled = 0;
+		boolean played = false;
+		try (InputStream in = client.getInputStream()) {
+			while (true) {
+				final int read = in.read(buffer, filled, buffer.length - filled);
+				if (read < 0) {
+					break;
+				}
+				final long now = System.nanoTime();
+				filled += read;
+				// Publishes the complete frames, and keeps the partial one.
+				int start = 0;
+				while (filled - start >= WireFormat.STREAM_LENGTH_SIZE) {
+					final int length = (buffer[start] & 0xFF) << 8 | buffer[start + 1] & 0xFF;
+					if (length == 0 || length > WireFormat.MAX_PACKET_SIZE) {
+						EventLog.log(INVALID_FRAME, source, length, 0);
+						return;
+					}
+					if (filled - start < WireFormat.STREAM_LENGTH_SIZE + length) {
+						break;
+					}
+					publish(buffer, start + WireFormat.STREAM_LENGTH_SIZE, length, address, port, now);
+					played = true;
+					start += WireFormat.STREAM_LENGTH_SIZE + length;
+				}
+				System.arraycopy(buffer, start, buffer, 0, filled - start);
+				filled -= start;
+			}
+		} catch (IOException ioe) {
+			// Reset by the client, or closed by close().
+		} finally {
+			_clients.remove(client);
+			try {
+				client.close();
+			} catch (IOException ioe) {
+				// Already gone.
+			}
+			if (played) {
+				publishRelease(address, port);
+			}
+			EventLog.log(CLIENT_DISCONNECTED, source, _clients.size(), 0);
+		}
+	}
+
+	/**
+	 * Copies a packet into the ring for the dispatcher, waiting for a free
+	 * slot if the ring is full.
+	 */
+	private void publish(byte[] data, int offset, int length, InetAddress address, int port, long now) {
+		_publishLock.lock();
+		try {
+			final PacketSlot slot = awaitSlot();
+			if (slot == null) {
+				return;
+			}
+			slot.fill(data, offset, length, address, port, now);
+			_ring.publish();
+		} finally {
+			_publishLock.unlock();
+		}
+		_dispatcher.signal();
+	}
+
+	/**
+	 * Publishes the departure of a client, so that the dispatcher releases
+	 * its notes once it has played its packets.
+	 */
+	private void publishRelease(InetAddress address, int port) {
+		_publishLock.lock();
+		try {
+			final PacketSlot slot = awaitSlot();
+			if (slot == null) {
+				return;
+			}
+			slot.fillRelease(address, port, System.nanoTime());
+			_ring.publish();
+		} finally {
+			_publishLock.unlock();
+		}
+		_dispatcher.signal();
+	}
+
+	/**
+	 * Claims a slot, waiting while the ring is full. Called with the publish
+	 * lock held, so the other readers wait too.
+	 *
+	 * @return the slot, or null if the server was closed while waiting.
+	 */
+	private PacketSlot awaitSlot() {
+		PacketSlot slot = _ring.claim();
+		while (slot == null) {
+			if (!_running) {
+				return null;
+			}
+			_dispatcher.signal();
+			LockSupport.parkNanos(FULL_WAIT_NANOS);
+			slot = _ring.claim();
+		}
+		return slot;
+	}
+
+	/**
+	 * Returns the number of clients currently connected.
+	 *
+	 * @return the client count.
+	 */
+	public int getClientCount() {
+		return _clients.size();
+	}
+
+	/**
+	 * Returns the number of clients that ever connected.
+	 *
+	 * @return the connected count.
+	 */
+	public long getConnectedCount() {
+		return _connectedCount.get();
+	}
+}
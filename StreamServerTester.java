@@ -0,0 +1,171 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import javax.sound.midi.*;
+
+/**
+ * Contains a set of unit tests for the stream transport: the StreamServer and
+ * NetworkReceiver.setStream().
+ */
+class StreamServerTester {
+	private static final int TIMEOUT_MS = 2000;
+	private static final int IDLE_CLIENTS = 200;
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		final long deadline = System.nanoTime() + TIMEOUT_MS * 1_000_000L;
+		while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Returns a version 2 packet of one note, behind its stream length.
+	 */
+	private static byte[] frame(int command, int pitch) {
+		final ByteBuffer b = ByteBuffer.allocate(WireFormat.STREAM_LENGTH_SIZE + WireFormat.MAX_PACKET_SIZE);
+		b.position(WireFormat.STREAM_LENGTH_SIZE);
+		final ByteBuffer packet = b.slice();
+		WireFormat.beginV2(packet, 0, 0);
+		WireFormat.appendV2(packet, command, pitch, 93, -1);
+		WireFormat.finishV2(packet, 1);
+		b.putShort(0, (short) packet.limit());
+		final byte[] frame = new byte[WireFormat.STREAM_LENGTH_SIZE + packet.limit()];
+		b.get(0, frame);
+		return frame;
+	}
+
+	/**
+	 * Plays notes from a stream client, then disconnects it and checks that
+	 * its channel is released, with or without playout.
+	 */
+	private static void playAndRelease(boolean playout) throws Exception {
+		final LoadGenerator.CountingReceiver sink = new LoadGenerator.CountingReceiver();
+		final ServerEngine engine = new ServerEngine(0, sink, ServerEngine.DEFAULT_RING_CAPACITY);
+		if (playout) {
+			engine.setPlayout(5_000_000, 20_000_000);
+		}
+		engine.openStreams(0);
+		engine.start();
+		try {
+			final NetworkReceiver receiver = new NetworkReceiver();
+			receiver.setAddress("127.0.0.1");
+			receiver.setPort(engine.getStreamPort());
+			receiver.setProtocol(WireFormat.VERSION_2, 0);
+			receiver.setReliable(true);
+			receiver.setTimestamps(playout);
+			receiver.setStream(true);
+			for (int i = 0; i < 100; i++) {
+				receiver.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60 + i % 12, 93), -1);
+				receiver.send(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60 + i % 12, 0), -1);
+			}
+			await(() -> sink.getNoteOffCount() == 100);
+			assertEquals(100, sink.getNoteOnCount());
+			assertEquals(100, sink.getNoteOffCount());
+			assertEquals(1, engine.getActiveSourceCount());
+			assertEquals(1, engine.getStreamClientCount());
+			assertEquals(0, receiver.getUnacknowledgedCount(), "nothing to retransmit over a stream");
+			assertEquals(0, receiver.getSendErrorCount());
+
+			// One All Notes Off when the channel was assigned, one on leaving.
+			final long others = sink.getOtherCount();
+			receiver.close();
+			await(() -> sink.getOtherCount() > others);
+			assertEquals(others + 1, sink.getOtherCount());
+			assertEquals(0, engine.getStreamClientCount());
+			assertEquals(200, engine.getDispatchedCount(), "the release is not one of the client's events");
+			assertEquals(0, engine.getDropCount());
+		} finally {
+			engine.close();
+		}
+	}
+
+	@Test
+	void testStreamClientIsPlayedAndReleased() throws Exception {
+		playAndRelease(false);
+	}
+
+	@Test
+	void testStreamClientIsReleasedUnderPlayout() throws Exception {
+		playAndRelease(true);
+	}
+
+	@Test
+	void testFullRingSlowsTheClientDown() throws Exception {
+		// A synthesizer slower than the client, behind a small ring.
+		final LoadGenerator.CountingReceiver sink = new LoadGenerator.CountingReceiver() {
+			@Override
+			public void send(MidiMessage message, long timeStamp) {
+				super.send(message, timeStamp);
+				LockSupport.parkNanos(200_000);
+			}
+		};
+		final ServerEngine engine = new ServerEngine(0, sink, 4);
+		engine.openStreams(0);
+		engine.start();
+		try (Socket client = new Socket(InetAddress.getLoopbackAddress(), engine.getStreamPort())) {
+			final OutputStream out = client.getOutputStream();
+			final int notes = 500;
+			for (int i = 0; i < notes; i++) {
+				out.write(frame(ShortMessage.NOTE_ON, 60 + i % 12));
+			}
+			out.flush();
+			await(() -> sink.getNoteOnCount() == notes);
+			assertEquals(notes, sink.getNoteOnCount(), "the reader waits for the dispatcher");
+			assertEquals(0, engine.getDropCount());
+		} finally {
+			engine.close();
+		}
+	}
+
+	@Test
+	void testFramesSplitAndJoinedAndIdleClients() throws Exception {
+		final LoadGenerator.CountingReceiver sink = new LoadGenerator.CountingReceiver();
+		final ServerEngine engine = new ServerEngine(0, sink, ServerEngine.DEFAULT_RING_CAPACITY);
+		engine.openStreams(0);
+		engine.start();
+		final Socket[] idle = new Socket[IDLE_CLIENTS];
+		try {
+			for (int i = 0; i < IDLE_CLIENTS; i++) {
+				idle[i] = new Socket(InetAddress.getLoopbackAddress(), engine.getStreamPort());
+			}
+			try (Socket client = new Socket(InetAddress.getLoopbackAddress(), engine.getStreamPort())) {
+				client.setTcpNoDelay(true);
+				final OutputStream out = client.getOutputStream();
+				// A frame a byte at a time, then two frames in one write.
+				for (byte b : frame(ShortMessage.NOTE_ON, 60)) {
+					out.write(b);
+					out.flush();
+				}
+				final byte[] on = frame(ShortMessage.NOTE_ON, 64);
+				final byte[] off = frame(ShortMessage.NOTE_OFF, 60);
+				final byte[] both = new byte[on.length + off.length];
+				System.arraycopy(on, 0, both, 0, on.length);
+				System.arraycopy(off, 0, both, on.length, off.length);
+				out.write(both);
+				await(() -> sink.getNoteOffCount() == 1);
+				assertEquals(2, sink.getNoteOnCount());
+				assertEquals(1, sink.getNoteOffCount());
+				assertEquals(IDLE_CLIENTS + 1, engine.getStreamClientCount());
+				assertEquals(1, engine.getActiveSourceCount(), "idle clients take no channel");
+
+				// A frame too long for a packet ends the connection.
+				out.write(new byte[] { (byte) 0xFF, (byte) 0xFF });
+				await(() -> engine.getStreamClientCount() == IDLE_CLIENTS);
+				assertEquals(IDLE_CLIENTS, engine.getStreamClientCount());
+				client.setSoTimeout(TIMEOUT_MS);
+				assertEquals(-1, client.getInputStream().read());
+			}
+		} finally {
+			for (Socket socket : idle) {
+				if (socket != null) {
+					socket.close();
+				}
+			}
+			engine.close();
+		}
+	}
+}
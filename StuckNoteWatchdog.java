@@ -0,0 +1,125 @@
+import java.util.*;
+
+/**
+ * Remembers since when each note of each route has been held, so that notes
+ * whose note-off never arrived can be released once they have been held for
+ * longer than a maximum duration. Keys held down by the player longer than
+ * that are released too, so the maximum should be well above any real note.
+ * Not thread-safe; used by the dispatch thread only.
+ */
+public class StuckNoteWatchdog {
+	/**
+	 * Releases the notes found stuck.
+	 */
+	public interface Releaser {
+		/**
+		 * Releases one note.
+		 *
+		 * @param route the route of the note.
+		 * @param pitch the pitch of the note.
+		 */
+		void release(int route, int pitch);
+	}
+
+	private static final int NUM_PITCHES = 128;
+	private static final long OFF = 0;
+
+	private final long _maxNoteNanos;
+	private final long[] _onNanos; // route * NUM_PITCHES + pitch, OFF if not held
+	private final int[] _heldCount;
+	private long _releasedCount;
+
+	/**
+	 * @param numRoutes    the number of routes.
+	 * @param maxNoteNanos the longest a note may be held.
+	 */
+	public StuckNoteWatchdog(int numRoutes, long maxNoteNanos) {
+		_maxNoteNanos = maxNoteNanos;
+		_onNanos = new long[numRoutes * NUM_PITCHES];
+		_heldCount = new int[numRoutes];
+	}
+
+	/**
+	 * Records a note-on.
+	 *
+	 * @param route the route of the note.
+	 * @param pitch the pitch of the note.
+	 * @param now   the current System.nanoTime().
+	 */
+	public void noteOn(int route, int pitch, long now) {
+		final int index = route * NUM_PITCHES + pitch;
+		if (_onNanos[index] == OFF) {
+			_heldCount[route]++;
+		}
+		// A note played again restarts its time; OFF is never a valid start.
+		_onNanos[index] = now == OFF ? 1 : now;
+	}
+
+	/**
+	 * Records a note-off.
+	 *
+	 * @param route the route of the note.
+	 * @param pitch the pitch of the note.
+	 */
+	public void noteOff(int route, int pitch) {
+		final int index = route * NUM_PITCHES + pitch;
+		if (_onNanos[index] != OFF) {
+			_onNanos[index] = OFF;
+			_heldCount[route]--;
+		}
+	}
+
+	/**
+	 * Forgets every note of a route, which was just silenced.
+	 *
+	 * @param route the route.
+	 */
+	public void clearRoute(int route) {
+		if (_heldCount[route] > 0) {
+			Arrays.fill(_onNanos, route * NUM_PITCHES, (route + 1) * NUM_PITCHES, OFF);
+			_heldCount[route] = 0;
+		}
+	}
+
+	/**
+	 * Releases every note held for longer than the maximum.
+	 *
+	 * @param now      the current System.nanoTime().
+	 * @param releaser the receiver of the stuck notes.
+	 * @return the number of notes released.
+	 */
+	public int sweep(long now, Releaser releaser) {
+		int released = 0;
+		for (int route = 0; route < _heldCount.length; route++) {
+			for (int pitch = 0; pitch < NUM_PITCHES && _heldCount[route] > 0; pitch++) {
+				final long on = _onNanos[route * NUM_PITCHES + pitch];
+				if (on != OFF && now - on > _maxNoteNanos) {
+					noteOff(route, pitch);
+					releaser.release(route, pitch);
+					released++;
+				}
+			}
+		}
+		_releasedCount += released;
+		return released;
+	}
+
+	/**
+	 * Returns the number of notes currently held on a route.
+	 *
+	 * @param route the route.
+	 * @return the held count.
+	 */
+	public int getHeldCount(int route) {
+		return _heldCount[route];
+	}
+
+	/**
+	 * Returns the number of stuck notes released so far.
+	 *
+	 * @return the released count.
+	 */
+	public long getReleasedCount() {
+		return _releasedCount;
+	}
+}
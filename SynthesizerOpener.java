@@ -0,0 +1,42 @@
+import javax.sound.midi.*;
+
+/**
+ * Opens the default synthesizer once, for both the DeferredReceiver that plays
+ * through it and the InstrumentCatalog that lists its instruments. Opening it
+ * loads its soundbank, which is the slow part of a cold start; whichever thread
+ * asks first loads it, and the other waits for it rather than loading it again.
+ */
+public class SynthesizerOpener implements DeferredReceiver.Opener {
+	private Synthesizer _synthesizer;
+	private MidiUnavailableException _failure;
+
+	/**
+	 * Returns the default synthesizer, opening it on the first call.
+	 *
+	 * @return the open synthesizer.
+	 */
+	public synchronized Synthesizer getSynthesizer() throws MidiUnavailableException {
+		if (_failure != null) {
+			throw _failure;
+		}
+		if (_synthesizer == null) {
+			try {
+				final Synthesizer synthesizer = MidiSystem.getSynthesizer();
+				synthesizer.open();
+				_synthesizer = synthesizer;
+			} catch (MidiUnavailableException mue) {
+				_failure = mue;
+				throw mue;
+			}
+		}
+		return _synthesizer;
+	}
+
+	@Override
+	/**
+	 * Opens the synthesizer, if need be, and returns a receiver for it.
+	 */
+	public Receiver open() throws MidiUnavailableException {
+		return getSynthesizer().getReceiver();
+	}
+}
@@ -0,0 +1,352 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.sound.midi.*;
+
+/**
+ * Implements a MIDI receiver that spreads the 16 channels over several
+ * synthesizers, so that a full band is not limited by the polyphony and the
+ * rendering thread of a single software synthesizer.
+ *
+ * A channel is bound to the least loaded synthesizer when it starts a note
+ * while silent; it stays on that synthesizer for as long as any of its notes
+ * is held, so note-offs always reach the synthesizer that started the note.
+ * When it moves, its program, controllers and pitch bend are replayed to the
+ * new synthesizer first, so that it plays on with the same sound.
+ * The load of a synthesizer is the larger of the notes held on it and the
+ * active voices (including release tails) last sampled from
+ * Synthesizer.getVoiceStatus() by a background monitor.
+ */
+public class SynthesizerPool implements Receiver {
+	private static final int NUM_CHANNELS = 16;
+	private static final int NUM_PITCHES = 128;
+	private static final int UNASSIGNED = -1;
+	private static final long MONITOR_INTERVAL_MS = 100;
+	// Only move a channel if another synthesizer is at least this much lighter.
+	private static final int REBALANCE_THRESHOLD = 8;
+	private static final int ALL_NOTES_OFF = 123;
+	private static final int ALL_SOUND_OFF = 120;
+	private static final int RESET_ALL_CONTROLLERS = 121;
+	private static final int DATA_ENTRY_MSB = 6;
+	private static final int DATA_ENTRY_LSB = 38;
+	private static final int DATA_INCREMENT = 96;
+	private static final int DATA_DECREMENT = 97;
+	// Controllers from here on are channel mode messages, not settings.
+	private static final int NUM_CONTROLLERS = ALL_SOUND_OFF;
+	private static final int UNSET = -1;
+
+	private final Synthesizer[] _synthesizers;
+	private final Receiver[] _receivers;
+	private final int[] _synthesizerByChannel = new int[NUM_CHANNELS];
+	private final int[] _programByChannel = new int[NUM_CHANNELS];
+	// The last value of each controller and pitch bend, or UNSET.
+	private final int[] _controllerValues = new int[NUM_CHANNELS * NUM_CONTROLLERS];
+	private final int[] _pitchBendByChannel = new int[NUM_CHANNELS];
+	private final int[] _heldByChannel = new int[NUM_CHANNELS];
+	private final long[] _heldPitches = new long[NUM_CHANNELS * NUM_PITCHES / Long.SIZE];
+	private final int[] _heldBySynthesizer;
+	private final AtomicIntegerArray _sampledVoices;
+	private final AtomicLongArray _sendCount;
+	private final AtomicLongArray _sendNanos;
+	private final AtomicLongArray _maxSendNanos;
+	private final ShortMessage _replay = new ShortMessage();
+	private final Thread _monitor;
+	private volatile boolean _closed;
+
+	/**
+	 * Opens the specified number of synthesizers.
+	 *
+	 * @param count the number of synthesizers in the pool.
+	 */
+	public SynthesizerPool(int count) throws MidiUnavailableException {
+		this(openSynthesizers(count));
+	}
+
+	/**
+	 * @param synthesizers the open synthesizers to spread the channels over.
+	 */
+	public SynthesizerPool(Synthesizer[] synthesizers) throws MidiUnavailableException {
+		_synthesizers = synthesizers;
+		_receivers = new Receiver[synthesizers.length];
+		for (int i = 0; i < synthesizers.length; i++) {
+			_receivers[i] = synthesizers[i].getReceiver();
+		}
+		_heldBySynthesizer = new int[synthesizers.length];
+		_sampledVoices = new AtomicIntegerArray(synthesizers.length);
+		_sendCount = new AtomicLongArray(synthesizers.length);
+		_sendNanos = new AtomicLongArray(synthesizers.length);
+		_maxSendNanos = new AtomicLongArray(synthesizers.length);
+		Arrays.fill(_synthesizerByChannel, UNASSIGNED);
+		Arrays.fill(_controllerValues, UNSET);
+		Arrays.fill(_pitchBendByChannel, UNSET);
+		_monitor = new Thread(this::monitorLoop, "synthesizer-pool-monitor");
+		_monitor.setDaemon(true);
+		_monitor.start();
+	}
+
+	private static Synthesizer[] openSynthesizers(int count) throws MidiUnavailableException {
+		final Synthesizer[] synthesizers = new Synthesizer[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				// Every call returns a new, independent synthesizer instance.
+				synthesizers[i] = MidiSystem.getSynthesizer();
+				synthesizers[i].open();
+			}
+		} catch (MidiUnavailableException mue) {
+			for (Synthesizer synthesizer : synthesizers) {
+				if (synthesizer != null) {
+					synthesizer.close();
+				}
+			}
+			throw mue;
+		}
+		return synthesizers;
+	}
+
+	@Override
+	/**
+	 * Forwards the message to the synthesizer its channel is bound to, binding
+	 * the channel first if it is starting a note while silent.
+	 */
+	public synchronized void send(MidiMessage midiMessage, long timeStamp) {
+		if (!(midiMessage instanceof ShortMessage)) {
+			for (int i = 0; i < _receivers.length; i++) {
+				forward(i, midiMessage, timeStamp);
+			}
+			return;
+		}
+		final ShortMessage message = (ShortMessage) midiMessage;
+		final int command = message.getCommand();
+		final int channel = message.getChannel();
+		final int pitch = message.getData1();
+		final boolean noteOn = command == ShortMessage.NOTE_ON && message.getData2() > 0;
+		final boolean noteOff = command == ShortMessage.NOTE_OFF || command == ShortMessage.NOTE_ON && !noteOn;
+
+		// Remembered so that they can follow the channel to another
+		// synthesizer.
+		if (command == ShortMessage.PROGRAM_CHANGE) {
+			_programByChannel[channel] = pitch;
+		} else if (command == ShortMessage.PITCH_BEND) {
+			_pitchBendByChannel[channel] = pitch | message.getData2() << 7;
+		} else if (command == ShortMessage.CONTROL_CHANGE) {
+			if (pitch == RESET_ALL_CONTROLLERS) {
+				Arrays.fill(_controllerValues, channel * NUM_CONTROLLERS, (channel + 1) * NUM_CONTROLLERS, UNSET);
+				_pitchBendByChannel[channel] = UNSET;
+				// Also clears what the synthesizers the channel has left
+				// still hold, since unset values are not replayed.
+				for (int i = 0; i < _receivers.length; i++) {
+					forward(i, message, timeStamp);
+				}
+				return;
+			}
+			if (isSetting(pitch)) {
+				_controllerValues[channel * NUM_CONTROLLERS + pitch] = message.getData2();
+			}
+		}
+		if (noteOn && _heldByChannel[channel] == 0) {
+			bind(channel);
+		}
+		final int synthesizer = _synthesizerByChannel[channel];
+		if (synthesizer == UNASSIGNED) {
+			if (!noteOff) {
+				// Controllers and program changes of a channel that has not
+				// played yet apply wherever it may end up.
+				for (int i = 0; i < _receivers.length; i++) {
+					forward(i, message, timeStamp);
+				}
+			}
+			return;
+		}
+		if (noteOn) {
+			setHeld(channel, pitch, synthesizer, true);
+		} else if (noteOff) {
+			setHeld(channel, pitch, synthesizer, false);
+		} else if (command == ShortMessage.CONTROL_CHANGE && (pitch == ALL_NOTES_OFF || pitch == ALL_SOUND_OFF)) {
+			releaseChannel(channel, synthesizer);
+		}
+		forward(synthesizer, message, timeStamp);
+	}
+
+	/**
+	 * Binds a silent channel to the least loaded synthesizer, unless its
+	 * current synthesizer is within REBALANCE_THRESHOLD of it.
+	 *
+	 * @param channel the channel about to start a note.
+	 */
+	private void bind(int channel) {
+		int lightest = 0;
+		for (int i = 1; i < _receivers.length; i++) {
+			if (load(i) < load(lightest)) {
+				lightest = i;
+			}
+		}
+		final int current = _synthesizerByChannel[channel];
+		if (current == lightest || current != UNASSIGNED && load(current) - load(lightest) < REBALANCE_THRESHOLD) {
+			return;
+		}
+		_synthesizerByChannel[channel] = lightest;
+		try {
+			// Controllers first, so that a bank select precedes the program.
+			for (int controller = 0; controller < NUM_CONTROLLERS; controller++) {
+				final int value = _controllerValues[channel * NUM_CONTROLLERS + controller];
+				if (value != UNSET) {
+					_replay.setMessage(ShortMessage.CONTROL_CHANGE, channel, controller, value);
+					forward(lightest, _replay, -1);
+				}
+			}
+			_replay.setMessage(ShortMessage.PROGRAM_CHANGE, channel, _programByChannel[channel], 0);
+			forward(lightest, _replay, -1);
+			final int pitchBend = _pitchBendByChannel[channel];
+			if (pitchBend != UNSET) {
+				_replay.setMessage(ShortMessage.PITCH_BEND, channel, pitchBend & 0x7F, pitchBend >>> 7);
+				forward(lightest, _replay, -1);
+			}
+		} catch (InvalidMidiDataException imde) {
+			// Cannot happen for values that were accepted before.
+		}
+	}
+
+	/**
+	 * Returns whether a controller holds a value worth replaying. Data entry
+	 * and increments act on the parameter selected at the time, so replaying
+	 * them could change another one.
+	 */
+	private static boolean isSetting(int controller) {
+		return controller < NUM_CONTROLLERS && controller != DATA_ENTRY_MSB && controller != DATA_ENTRY_LSB
+				&& controller != DATA_INCREMENT && controller != DATA_DECREMENT;
+	}
+
+	private int load(int synthesizer) {
+		return Math.max(_heldBySynthesizer[synthesizer], _sampledVoices.get(synthesizer));
+	}
+
+	private void setHeld(int channel, int pitch, int synthesizer, boolean held) {
+		final int note = channel * NUM_PITCHES + pitch;
+		final long bit = 1L << note;
+		final boolean wasHeld = (_heldPitches[note >>> 6] & bit) != 0;
+		if (held == wasHeld) {
+			return;
+		}
+		_heldPitches[note >>> 6] ^= bit;
+		final int delta = held ? 1 : -1;
+		_heldByChannel[channel] += delta;
+		_heldBySynthesizer[synthesizer] += delta;
+	}
+
+	private void releaseChannel(int channel, int synthesizer) {
+		final int first = channel * NUM_PITCHES / Long.SIZE;
+		for (int i = first; i < first + NUM_PITCHES / Long.SIZE; i++) {
+			_heldPitches[i] = 0;
+		}
+		_heldBySynthesizer[synthesizer] -= _heldByChannel[channel];
+		_heldByChannel[channel] = 0;
+	}
+
+	/**
+	 * Sends a message to one synthesizer and records how long it took.
+	 */
+	private void forward(int synthesizer, MidiMessage message, long timeStamp) {
+		final long start = System.nanoTime();
+		_receivers[synthesizer].send(message, timeStamp);
+		final long elapsed = System.nanoTime() - start;
+		_sendCount.lazySet(synthesizer, _sendCount.get(synthesizer) + 1);
+		_sendNanos.lazySet(synthesizer, _sendNanos.get(synthesizer) + elapsed);
+		if (elapsed > _maxSendNanos.get(synthesizer)) {
+			_maxSendNanos.lazySet(synthesizer, elapsed);
+		}
+	}
+
+	/**
+	 * Samples the active voices of every synthesizer until the pool is closed.
+	 */
+	private void monitorLoop() {
+		while (!_closed) {
+			for (int i = 0; i < _synthesizers.length; i++) {
+				int active = 0;
+				for (VoiceStatus voice : _synthesizers[i].getVoiceStatus()) {
+					if (voice.active) {
+						active++;
+					}
+				}
+				_sampledVoices.set(i, active);
+			}
+			try {
+				Thread.sleep(MONITOR_INTERVAL_MS);
+			} catch (InterruptedException ie) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	/**
+	 * Closes every synthesizer of the pool.
+	 */
+	public void close() {
+		_closed = true;
+		_monitor.interrupt();
+		for (int i = 0; i < _synthesizers.length; i++) {
+			_receivers[i].close();
+			_synthesizers[i].close();
+		}
+	}
+
+	/**
+	 * Returns the number of synthesizers in the pool.
+	 *
+	 * @return the pool size.
+	 */
+	public int size() {
+		return _synthesizers.length;
+	}
+
+	/**
+	 * Returns the number of voices last seen active on a synthesizer.
+	 *
+	 * @param synthesizer the index of the synthesizer.
+	 * @return the active voice count.
+	 */
+	public int getActiveVoices(int synthesizer) {
+		return _sampledVoices.get(synthesizer);
+	}
+
+	/**
+	 * Returns the maximum number of voices a synthesizer can play at once.
+	 *
+	 * @param synthesizer the index of the synthesizer.
+	 * @return the polyphony limit.
+	 */
+	public int getMaxPolyphony(int synthesizer) {
+		return _synthesizers[synthesizer].getMaxPolyphony();
+	}
+
+	/**
+	 * Returns the mean time spent handing a message to a synthesizer.
+	 *
+	 * @param synthesizer the index of the synthesizer.
+	 * @return the mean send latency in nanoseconds.
+	 */
+	public long getMeanSendNanos(int synthesizer) {
+		final long count = _sendCount.get(synthesizer);
+		return count == 0 ? 0 : _sendNanos.get(synthesizer) / count;
+	}
+
+	/**
+	 * Returns the longest time spent handing a message to a synthesizer.
+	 *
+	 * @param synthesizer the index of the synthesizer.
+	 * @return the maximum send latency in nanoseconds.
+	 */
+	public long getMaxSendNanos(int synthesizer) {
+		return _maxSendNanos.get(synthesizer);
+	}
+
+	/**
+	 * Returns the index of the synthesizer a channel is bound to.
+	 *
+	 * @param channel the MIDI channel.
+	 * @return the synthesizer index, or -1 if the channel has not played yet.
+	 */
+	public synchronized int getSynthesizer(int channel) {
+		return _synthesizerByChannel[channel];
+	}
+}
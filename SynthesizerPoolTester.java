@@ -0,0 +1,292 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import java.util.*;
+import javax.sound.midi.*;
+
+/**
+ * Contains a set of unit tests for the SynthesizerPool, run against fake
+ * synthesizers that record the messages they receive.
+ */
+class SynthesizerPoolTester {
+	private static final int SUSTAIN = 64;
+	private static final int VOLUME = 7;
+	private static final int ALL_NOTES_OFF = 123;
+	// SynthesizerPool.REBALANCE_THRESHOLD
+	private static final int REBALANCE_THRESHOLD = 8;
+
+	/**
+	 * A synthesizer that plays nothing and keeps copies of the short messages
+	 * sent to it.
+	 */
+	private static class FakeSynthesizer implements Synthesizer, Receiver {
+		final List<ShortMessage> _messages = new ArrayList<>();
+
+		@Override
+		public void send(MidiMessage message, long timeStamp) {
+			_messages.add((ShortMessage) message.clone());
+		}
+
+		/**
+		 * Returns the messages received on a channel, oldest first.
+		 */
+		List<ShortMessage> getMessages(int channel) {
+			final List<ShortMessage> messages = new ArrayList<>();
+			for (ShortMessage message : _messages) {
+				if (message.getChannel() == channel) {
+					messages.add(message);
+				}
+			}
+			return messages;
+		}
+
+		/**
+		 * Returns whether a message was received.
+		 */
+		boolean received(int command, int channel, int data1, int data2) {
+			for (ShortMessage message : _messages) {
+				if (message.getCommand() == command && message.getChannel() == channel
+						&& message.getData1() == data1 && message.getData2() == data2) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public Receiver getReceiver() {
+			return this;
+		}
+
+		@Override
+		public VoiceStatus[] getVoiceStatus() {
+			return new VoiceStatus[0];
+		}
+
+		@Override
+		public int getMaxPolyphony() {
+			return 64;
+		}
+
+		@Override
+		public long getLatency() {
+			return 0;
+		}
+
+		@Override
+		public MidiChannel[] getChannels() {
+			return new MidiChannel[0];
+		}
+
+		@Override
+		public boolean isSoundbankSupported(Soundbank soundbank) {
+			return false;
+		}
+
+		@Override
+		public boolean loadInstrument(Instrument instrument) {
+			return false;
+		}
+
+		@Override
+		public void unloadInstrument(Instrument instrument) {
+		}
+
+		@Override
+		public boolean remapInstrument(Instrument from, Instrument to) {
+			return false;
+		}
+
+		@Override
+		public Soundbank getDefaultSoundbank() {
+			return null;
+		}
+
+		@Override
+		public Instrument[] getAvailableInstruments() {
+			return new Instrument[0];
+		}
+
+		@Override
+		public Instrument[] getLoadedInstruments() {
+			return new Instrument[0];
+		}
+
+		@Override
+		public boolean loadAllInstruments(Soundbank soundbank) {
+			return false;
+		}
+
+		@Override
+		public void unloadAllInstruments(Soundbank soundbank) {
+		}
+
+		@Override
+		public boolean loadInstruments(Soundbank soundbank, Patch[] patchList) {
+			return false;
+		}
+
+		@Override
+		public void unloadInstruments(Soundbank soundbank, Patch[] patchList) {
+		}
+
+		@Override
+		public MidiDevice.Info getDeviceInfo() {
+			return null;
+		}
+
+		@Override
+		public void open() {
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public long getMicrosecondPosition() {
+			return -1;
+		}
+
+		@Override
+		public int getMaxReceivers() {
+			return -1;
+		}
+
+		@Override
+		public int getMaxTransmitters() {
+			return 0;
+		}
+
+		@Override
+		public List<Receiver> getReceivers() {
+			return Collections.singletonList(this);
+		}
+
+		@Override
+		public Transmitter getTransmitter() throws MidiUnavailableException {
+			throw new MidiUnavailableException();
+		}
+
+		@Override
+		public List<Transmitter> getTransmitters() {
+			return Collections.emptyList();
+		}
+	}
+
+	private FakeSynthesizer[] _synthesizers;
+	private SynthesizerPool _pool;
+
+	@BeforeEach
+	void setUp() throws MidiUnavailableException {
+		_synthesizers = new FakeSynthesizer[] { new FakeSynthesizer(), new FakeSynthesizer() };
+		_pool = new SynthesizerPool(_synthesizers);
+	}
+
+	@AfterEach
+	void tearDown() {
+		_pool.close();
+	}
+
+	private void send(int command, int channel, int data1, int data2) throws InvalidMidiDataException {
+		_pool.send(new ShortMessage(command, channel, data1, data2), -1);
+	}
+
+	/**
+	 * Holds the specified number of notes on a channel, from middle C up.
+	 */
+	private void hold(int channel, int count) throws InvalidMidiDataException {
+		for (int i = 0; i < count; i++) {
+			send(ShortMessage.NOTE_ON, channel, 60 + i, 100);
+		}
+	}
+
+	/**
+	 * Releases notes held with hold().
+	 */
+	private void release(int channel, int count) throws InvalidMidiDataException {
+		for (int i = 0; i < count; i++) {
+			send(ShortMessage.NOTE_OFF, channel, 60 + i, 0);
+		}
+	}
+
+	@Test
+	void testFirstNoteOnBindsToLeastLoaded() throws InvalidMidiDataException {
+		assertEquals(-1, _pool.getSynthesizer(0));
+		hold(0, 1);
+		assertEquals(0, _pool.getSynthesizer(0));
+		hold(1, 1);
+		assertEquals(1, _pool.getSynthesizer(1), "the first synthesizer holds a note");
+		hold(2, 3);
+		hold(3, 1);
+		assertEquals(0, _pool.getSynthesizer(2));
+		assertEquals(1, _pool.getSynthesizer(3));
+	}
+
+	@Test
+	void testChannelStaysBoundWhileNotesAreHeld() throws InvalidMidiDataException {
+		hold(0, 2 * REBALANCE_THRESHOLD);
+		assertEquals(0, _pool.getSynthesizer(0));
+		// Far heavier than the other synthesizer, but still holding notes.
+		send(ShortMessage.NOTE_ON, 0, 100, 100);
+		assertEquals(0, _pool.getSynthesizer(0));
+		release(0, 2 * REBALANCE_THRESHOLD);
+		send(ShortMessage.NOTE_OFF, 0, 100, 0);
+		for (int i = 0; i < 2 * REBALANCE_THRESHOLD; i++) {
+			assertTrue(_synthesizers[0].received(ShortMessage.NOTE_OFF, 0, 60 + i, 0));
+		}
+		assertTrue(_synthesizers[0].received(ShortMessage.NOTE_OFF, 0, 100, 0));
+		assertTrue(_synthesizers[1].getMessages(0).isEmpty());
+	}
+
+	@Test
+	void testRebindNeedsThresholdAndCarriesState() throws InvalidMidiDataException {
+		hold(0, 1);
+		send(ShortMessage.PROGRAM_CHANGE, 0, 41, 0);
+		send(ShortMessage.CONTROL_CHANGE, 0, VOLUME, 90);
+		send(ShortMessage.CONTROL_CHANGE, 0, SUSTAIN, 127);
+		send(ShortMessage.PITCH_BEND, 0, 0x10, 0x50);
+		release(0, 1);
+		assertEquals(0, _pool.getSynthesizer(0));
+		assertTrue(_synthesizers[1].getMessages(0).isEmpty());
+
+		// Channel 1 joins channel 0's synthesizer, one note short of moving it.
+		hold(1, REBALANCE_THRESHOLD - 1);
+		assertEquals(0, _pool.getSynthesizer(1));
+		hold(0, 1);
+		assertEquals(0, _pool.getSynthesizer(0), "within the threshold");
+		release(0, 1);
+
+		send(ShortMessage.NOTE_ON, 1, 100, 100);
+		send(ShortMessage.NOTE_ON, 0, 72, 100);
+		assertEquals(1, _pool.getSynthesizer(0), "the threshold is reached");
+		final List<ShortMessage> replayed = _synthesizers[1].getMessages(0);
+		assertEquals(5, replayed.size());
+		assertTrue(_synthesizers[1].received(ShortMessage.CONTROL_CHANGE, 0, VOLUME, 90));
+		assertTrue(_synthesizers[1].received(ShortMessage.CONTROL_CHANGE, 0, SUSTAIN, 127));
+		assertTrue(_synthesizers[1].received(ShortMessage.PROGRAM_CHANGE, 0, 41, 0));
+		assertTrue(_synthesizers[1].received(ShortMessage.PITCH_BEND, 0, 0x10, 0x50));
+		final ShortMessage noteOn = replayed.get(replayed.size() - 1);
+		assertEquals(ShortMessage.NOTE_ON, noteOn.getCommand(), "the state arrives before the note");
+		assertEquals(72, noteOn.getData1());
+	}
+
+	@Test
+	void testAllNotesOffClearsHeldCounts() throws InvalidMidiDataException {
+		hold(0, 2 * REBALANCE_THRESHOLD);
+		send(ShortMessage.CONTROL_CHANGE, 0, ALL_NOTES_OFF, 0);
+		assertTrue(_synthesizers[0].received(ShortMessage.CONTROL_CHANGE, 0, ALL_NOTES_OFF, 0));
+		// Channel 0 holds nothing any more, so its synthesizer is as light as
+		// the other and the next channel goes to the first of them.
+		hold(1, 1);
+		assertEquals(0, _pool.getSynthesizer(1));
+		// And channel 0 is silent, so its next note may move it.
+		hold(1, REBALANCE_THRESHOLD);
+		hold(0, 1);
+		assertEquals(1, _pool.getSynthesizer(0));
+	}
+}
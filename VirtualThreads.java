@@ -0,0 +1,65 @@
+import java.lang.reflect.*;
+
+/**
+ * Starts tasks on virtual threads when the running JVM has them (Java 21),
+ * and on daemon platform threads otherwise. Looked up reflectively so the
+ * code still compiles and runs on Java 17.
+ */
+public class VirtualThreads {
+	private static final Method OF_VIRTUAL;
+	private static final Method NAME;
+	private static final Method START;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method start = null;
+		try {
+			final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class);
+			start = builder.getMethod("start", Runnable.class);
+			// Preview builds throw here unless previews are enabled.
+			ofVirtual.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		START = start;
+	}
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * Returns whether tasks run on virtual threads.
+	 *
+	 * @return true if the JVM supports virtual threads.
+	 */
+	public static boolean isAvailable() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Starts a task on a new virtual thread, or on a new daemon platform thread
+	 * if virtual threads are not available.
+	 *
+	 * @param name the name of the thread.
+	 * @param task the task to run.
+	 * @return the started thread.
+	 */
+	public static Thread start(String name, Runnable task) {
+		if (OF_VIRTUAL != null) {
+			try {
+				return (Thread) START.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), name), task);
+			} catch (ReflectiveOperationException e) {
+				// Fall through to a platform thread.
+			}
+		}
+		final Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+}
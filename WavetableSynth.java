@@ -0,0 +1,157 @@
+/**
+ * A small wavetable synthesizer for rendering sessions offline. Unlike the
+ * Java Sound synthesizer, it keeps no state between calls: the samples of a
+ * note depend only on the note and on their absolute position, so any span of
+ * a note can be rendered on its own, on any thread, and come out exactly as
+ * it would within a render of the whole note. OfflineRenderer relies on this
+ * to render a session in parallel with the same result as a single thread.
+ *
+ * Each General MIDI family of programs plays one of a few single-cycle
+ * waveforms, read with linear interpolation and shaped by a linear ADSR
+ * envelope. StrictMath builds the tables, so they are the same on every JVM.
+ */
+public class WavetableSynth {
+	public static final int TABLE_SIZE = 2048;
+	private static final int PROGRAMS_PER_FAMILY = 8;
+	private static final double ATTACK_SECONDS = 0.005;
+	private static final double DECAY_SECONDS = 0.1;
+	private static final double SUSTAIN_LEVEL = 0.6;
+	private static final double RELEASE_SECONDS = 0.25;
+	// Leaves headroom for several notes on several routes at full velocity.
+	private static final double NOTE_GAIN = 0.15;
+
+	private static final int SINE = 0;
+	private static final int SQUARE = 1;
+	private static final int SAW = 2;
+	private static final int ORGAN = 3;
+	// Tables one sample longer than a cycle, so interpolation needs no wrap.
+	private static final float[][] TABLES = { table(SINE), table(SQUARE), table(SAW), table(ORGAN) };
+	// The table of each family of 8 programs: piano, chromatic percussion,
+	// organ, guitar, bass, strings, ensemble, brass, reed, pipe, lead, pad,
+	// effects, ethnic, percussive, sound effects.
+	private static final int[] FAMILY_TABLES = { SAW, SINE, ORGAN, SAW, SINE, SAW, SAW, SQUARE, SQUARE, SINE,
+			SQUARE, SINE, SAW, SAW, SINE, SQUARE };
+
+	private final int _sampleRate;
+	private final long _attack;
+	private final long _decay;
+	private final long _release;
+
+	/**
+	 * Builds one cycle of a waveform from its harmonics, normalized to a peak
+	 * of 1.
+	 */
+	private static float[] table(int waveform) {
+		final double[] cycle = new double[TABLE_SIZE];
+		for (int harmonic = 1; harmonic <= 16; harmonic++) {
+			final double amplitude;
+			switch (waveform) {
+			case SQUARE:
+				amplitude = harmonic % 2 == 1 ? 1.0 / harmonic : 0;
+				break;
+			case SAW:
+				amplitude = 1.0 / harmonic;
+				break;
+			case ORGAN:
+				// Drawbars at the octaves.
+				amplitude = Integer.bitCount(harmonic) == 1 ? 1.0 / Math.sqrt(harmonic) : 0;
+				break;
+			default:
+				amplitude = harmonic == 1 ? 1 : 0;
+				break;
+			}
+			if (amplitude == 0) {
+				continue;
+			}
+			for (int i = 0; i < TABLE_SIZE; i++) {
+				cycle[i] += amplitude * StrictMath.sin(2 * StrictMath.PI * harmonic * i / TABLE_SIZE);
+			}
+		}
+		double peak = 0;
+		for (double sample : cycle) {
+			peak = Math.max(peak, Math.abs(sample));
+		}
+		final float[] table = new float[TABLE_SIZE + 1];
+		for (int i = 0; i < TABLE_SIZE; i++) {
+			table[i] = (float) (cycle[i] / peak);
+		}
+		table[TABLE_SIZE] = table[0];
+		return table;
+	}
+
+	/**
+	 * @param sampleRate the number of samples per second.
+	 */
+	public WavetableSynth(int sampleRate) {
+		_sampleRate = sampleRate;
+		_attack = Math.max(1, Math.round(ATTACK_SECONDS * sampleRate));
+		_decay = Math.max(1, Math.round(DECAY_SECONDS * sampleRate));
+		_release = Math.max(1, Math.round(RELEASE_SECONDS * sampleRate));
+	}
+
+	/**
+	 * Returns the number of samples a note sounds for after its note-off.
+	 *
+	 * @return the release length in samples.
+	 */
+	public long getReleaseSamples() {
+		return _release;
+	}
+
+	/**
+	 * Returns the envelope level at a sample of a note.
+	 *
+	 * @param t      the samples since the note-on.
+	 * @param length the samples between the note-on and the note-off.
+	 */
+	private double envelope(long t, long length) {
+		if (t >= length) {
+			return sustained(length) * (1 - (double) (t - length) / _release);
+		}
+		return sustained(t);
+	}
+
+	/**
+	 * Returns the envelope level at a sample of a note that is still held.
+	 */
+	private double sustained(long t) {
+		if (t < _attack) {
+			return (double) t / _attack;
+		}
+		if (t < _attack + _decay) {
+			return 1 - (1 - SUSTAIN_LEVEL) * (t - _attack) / _decay;
+		}
+		return SUSTAIN_LEVEL;
+	}
+
+	/**
+	 * Adds the part of a note that falls within a buffer to the buffer.
+	 *
+	 * @param program  the program (instrument) of the note's channel.
+	 * @param pitch    the pitch.
+	 * @param velocity the velocity of the note-on.
+	 * @param on       the sample of the note-on.
+	 * @param off      the sample of the note-off; the note fades out over
+	 *                 getReleaseSamples() after it.
+	 * @param buffer   the buffer to add to.
+	 * @param first    the sample that buffer[0] holds.
+	 */
+	public void render(int program, int pitch, int velocity, long on, long off, float[] buffer, long first) {
+		final float[] table = TABLES[FAMILY_TABLES[(program & 0x7F) / PROGRAMS_PER_FAMILY]];
+		final double cyclesPerSample = 440 * StrictMath.pow(2, (pitch - 69) / 12.0) / _sampleRate;
+		final double gain = NOTE_GAIN * velocity / 127;
+		final long length = off - on;
+		final long from = Math.max(on, first);
+		final long to = Math.min(off + _release, first + buffer.length);
+		for (long sample = from; sample < to; sample++) {
+			final long t = sample - on;
+			// From the absolute position, so that spans render independently.
+			final double cycles = t * cyclesPerSample;
+			final double position = (cycles - Math.floor(cycles)) * TABLE_SIZE;
+			final int index = (int) position;
+			final double fraction = position - index;
+			final double value = table[index] + (table[index + 1] - table[index]) * fraction;
+			buffer[(int) (sample - first)] += (float) (value * gain * envelope(t, length));
+		}
+	}
+}
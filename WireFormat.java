@@ -0,0 +1,647 @@
+import java.net.*;
+import java.nio.*;
+
+/**
+ * Defines the datagram formats spoken between NetworkReceiver and Server.
+ *
+ * Version 1 packets carry a single event as four big-endian ints: command,
+ * channel, data1 and data2 (16 bytes). Since the command is always below 256,
+ * the first byte of a version 1 packet is always 0.
+ *
+ * Version 2 packets batch several events:
+ *
+ * <pre>
+ * byte 0     version (2)
+ * byte 1     flags (FLAG_DELTAS, FLAG_TIMESTAMP, FLAG_RELIABLE)
+ * bytes 2-3  event count (unsigned short)
+ * bytes 4-7  sequence number (int)
+ * bytes 8-11 if FLAG_TIMESTAMP is set, the sender's monotonic clock, in
+ *            microseconds truncated to an int, when the first event was sent
+ * events     status byte (command | channel), data1, data2 and, if
+ *            FLAG_DELTAS is set, an unsigned short holding the microseconds
+ *            elapsed since the previous event in the packet
+ * </pre>
+ *
+ * Timestamps wrap around every 71 minutes; only differences between them are
+ * meaningful.
+ *
+ * Deltas only matter to a server in playout mode, which spaces the events of
+ * a packet by them. Otherwise the server plays a packet's events back to back
+ * as it decodes them and ignores the deltas: a batch spans at most
+ * NetworkReceiver.MAX_WINDOW_MICROS, too little to hear, and waiting them out
+ * would hold up every other client on the dispatch thread.
+ *
+ * The server acknowledges version 2 packets with FLAG_RELIABLE, sent back to
+ * the client's address and port:
+ *
+ * <pre>
+ * byte 0     ACK (3)
+ * bytes 1-3  zero
+ * bytes 4-7  the highest reliable sequence number received from the client
+ * bytes 8-15 a bitmap in which bit i is set if reliable packet (highest - i)
+ *            was received
+ * </pre>
+ *
+ * so that one acknowledgement also repeats the ones before it, and a lost
+ * acknowledgement costs nothing as long as another follows.
+ *
+ * In a cluster (see ClusterRouter), the router wraps each client datagram in
+ * a forwarded frame, so that the server node can tell the clients apart, and
+ * the node wraps its acknowledgements the same way for the router to pass
+ * back:
+ *
+ * <pre>
+ * byte 0     FORWARDED (4)
+ * byte 1     the length of the client's address: 4 (IPv4) or 16 (IPv6)
+ * bytes 2-3  the client's port (unsigned short)
+ * bytes 4-   the client's address
+ * then       the datagram, as sent by the client or the server
+ * </pre>
+ *
+ * Server nodes announce themselves to the router with heartbeats sent from
+ * their listening port:
+ *
+ * <pre>
+ * byte 0     HEARTBEAT (5)
+ * byte 1     1 if the node is leaving the cluster, 0 otherwise
+ * bytes 2-3  zero
+ * </pre>
+ *
+ * A server that republishes the notes it plays (see NoteBroadcaster) sends
+ * notes packets, in which every note names the route that played it and the
+ * client that sent it:
+ *
+ * <pre>
+ * byte 0     NOTES (6)
+ * byte 1     zero
+ * bytes 2-3  event count (unsigned short)
+ * bytes 4-7  sequence number (int)
+ * events     route, status byte (command | channel), data1, data2, an
+ *            unsigned short holding the microseconds elapsed since the
+ *            previous event in the packet, and the client's key (see
+ *            NoteBroadcaster.clientKey()) as a long
+ * </pre>
+ *
+ * Over a stream (see NetworkReceiver.setStream() and StreamServer), the same
+ * version 1 and 2 packets follow one another, each behind its length as an
+ * unsigned big-endian short of STREAM_LENGTH_SIZE bytes. The stream delivers
+ * every packet in order, so packets sent over it are never reliable.
+ */
+public class WireFormat {
+	public static final int VERSION_1 = 1;
+	public static final int VERSION_2 = 2;
+	public static final int FLAG_DELTAS = 0x01;
+	public static final int FLAG_TIMESTAMP = 0x02;
+	public static final int FLAG_RELIABLE = 0x04;
+	public static final int ACK = 3;
+	public static final int ACK_PACKET_SIZE = 16;
+	public static final int FORWARDED = 4;
+	public static final int MAX_FORWARD_HEADER_SIZE = 4 + 16;
+	public static final int HEARTBEAT = 5;
+	public static final int HEARTBEAT_PACKET_SIZE = 4;
+	public static final int NOTES = 6;
+	public static final int NOTES_HEADER_SIZE = 8;
+	public static final int MAX_PACKET_SIZE = ServerEngine.MAX_CAPACITY;
+	public static final int STREAM_LENGTH_SIZE = 2;
+	public static final int V1_PACKET_SIZE = 4 * Integer.BYTES;
+	public static final int V2_HEADER_SIZE = 8;
+	public static final int V2_TIMESTAMP_SIZE = 4;
+	public static final int V2_EVENT_SIZE = 3;
+	public static final int V2_DELTA_SIZE = 2;
+	public static final int MAX_DELTA_MICROS = 0xFFFF;
+	public static final int MAX_EVENTS = (MAX_PACKET_SIZE - V2_HEADER_SIZE - V2_TIMESTAMP_SIZE)
+			/ (V2_EVENT_SIZE + V2_DELTA_SIZE);
+	public static final int NOTES_EVENT_SIZE = 1 + V2_EVENT_SIZE + V2_DELTA_SIZE + Long.BYTES;
+	public static final int MAX_NOTES = (MAX_PACKET_SIZE - NOTES_HEADER_SIZE) / NOTES_EVENT_SIZE;
+
+	/**
+	 * Receives the events decoded from a packet.
+	 */
+	public interface EventSink {
+		/**
+		 * Called once per decoded event, in packet order.
+		 *
+		 * @param command     the MIDI command (e.g. ShortMessage.NOTE_ON).
+		 * @param channel     the MIDI channel chosen by the sender.
+		 * @param data1       the first data byte.
+		 * @param data2       the second data byte.
+		 * @param deltaMicros the microseconds since the previous event in the
+		 *                    packet, or 0 if the packet carries no deltas.
+		 */
+		void onEvent(int command, int channel, int data1, int data2, int deltaMicros);
+	}
+
+	/**
+	 * Receives the notes decoded from a notes packet.
+	 */
+	public interface NoteSink {
+		/**
+		 * Called once per decoded note, in packet order.
+		 *
+		 * @param route   the route that played the note.
+		 * @param command the MIDI command (e.g. ShortMessage.NOTE_ON).
+		 * @param data1   the first data byte.
+		 * @param data2   the second data byte.
+		 * @param client  the key of the client that sent the note.
+		 */
+		void onNote(int route, int command, int data1, int data2, long client);
+	}
+
+	/**
+	 * Writes a version 1 packet into the buffer, starting at position 0, and
+	 * flips it for sending.
+	 *
+	 * @param b       the buffer to write into.
+	 * @param command the MIDI command.
+	 * @param channel the MIDI channel.
+	 * @param data1   the first data byte.
+	 * @param data2   the second data byte.
+	 */
+	public static void writeV1(ByteBuffer b, int command, int channel, int data1, int data2) {
+		b.clear();
+		b.putInt(command);
+		b.putInt(channel);
+		b.putInt(data1);
+		b.putInt(data2);
+		b.flip();
+	}
+
+	/**
+	 * Starts a version 2 packet at position 0 of the buffer.
+	 *
+	 * @param b        the buffer to write into.
+	 * @param sequence the sequence number of the packet.
+	 * @param flags    the packet flags.
+	 */
+	public static void beginV2(ByteBuffer b, int sequence, int flags) {
+		beginV2(b, sequence, flags & ~FLAG_TIMESTAMP, 0);
+	}
+
+	/**
+	 * Starts a version 2 packet at position 0 of the buffer, stamped with the
+	 * sender's clock if FLAG_TIMESTAMP is set.
+	 *
+	 * @param b               the buffer to write into.
+	 * @param sequence        the sequence number of the packet.
+	 * @param flags           the packet flags.
+	 * @param timestampMicros the sender's clock in microseconds.
+	 */
+	public static void beginV2(ByteBuffer b, int sequence, int flags, int timestampMicros) {
+		b.clear();
+		b.put((byte) VERSION_2);
+		b.put((byte) flags);
+		b.putShort((short) 0);
+		b.putInt(sequence);
+		if ((flags & FLAG_TIMESTAMP) != 0) {
+			b.putInt(timestampMicros);
+		}
+	}
+
+	/**
+	 * Appends one event to a version 2 packet started with beginV2().
+	 *
+	 * @param b           the buffer to write into.
+	 * @param status      the MIDI status byte (command | channel).
+	 * @param data1       the first data byte.
+	 * @param data2       the second data byte.
+	 * @param deltaMicros the microseconds since the previous event, or -1 if
+	 *                    the packet carries no deltas.
+	 */
+	public static void appendV2(ByteBuffer b, int status, int data1, int data2, int deltaMicros) {
+		b.put((byte) status);
+		b.put((byte) data1);
+		b.put((byte) data2);
+		if (deltaMicros >= 0) {
+			b.putShort((short) Math.min(deltaMicros, MAX_DELTA_MICROS));
+		}
+	}
+
+	/**
+	 * Completes a version 2 packet by storing its event count, and flips the
+	 * buffer for sending.
+	 *
+	 * @param b     the buffer holding the packet.
+	 * @param count the number of events appended.
+	 */
+	public static void finishV2(ByteBuffer b, int count) {
+		b.putShort(2, (short) count);
+		b.flip();
+	}
+
+	/**
+	 * Returns the version of the packet held between the buffer's position and
+	 * limit, or 0 if it is not a recognized packet.
+	 *
+	 * @param b the buffer holding the packet.
+	 * @return the packet version, or 0.
+	 */
+	public static int version(ByteBuffer b) {
+		final int start = b.position();
+		final int length = b.remaining();
+		if (length == V1_PACKET_SIZE && b.get(start) == 0) {
+			return VERSION_1;
+		}
+		if (length >= V2_HEADER_SIZE && b.get(start) == VERSION_2) {
+			return VERSION_2;
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the sequence number of a version 2 packet.
+	 *
+	 * @param b the buffer holding the packet.
+	 * @return the sequence number.
+	 */
+	public static int sequence(ByteBuffer b) {
+		return b.getInt(b.position() + 4);
+	}
+
+	/**
+	 * Returns whether a version 2 packet carries the sender's timestamp.
+	 *
+	 * @param b the buffer holding the packet.
+	 * @return true if FLAG_TIMESTAMP is set.
+	 */
+	public static boolean hasTimestamp(ByteBuffer b) {
+		return (b.get(b.position() + 1) & FLAG_TIMESTAMP) != 0 && b.remaining() >= V2_HEADER_SIZE + V2_TIMESTAMP_SIZE;
+	}
+
+	/**
+	 * Returns whether a version 2 packet asks to be acknowledged.
+	 *
+	 * @param b the buffer holding the packet.
+	 * @return true if FLAG_RELIABLE is set.
+	 */
+	public static boolean isReliable(ByteBuffer b) {
+		return (b.get(b.position() + 1) & FLAG_RELIABLE) != 0;
+	}
+
+	/**
+	 * Marks the version 2 packet held in a flipped buffer as reliable.
+	 *
+	 * @param b the buffer holding the packet.
+	 */
+	public static void setReliable(ByteBuffer b) {
+		b.put(1, (byte) (b.get(1) | FLAG_RELIABLE));
+	}
+
+	/**
+	 * Writes an acknowledgement into the buffer, starting at position 0, and
+	 * flips it for sending.
+	 *
+	 * @param b        the buffer to write into.
+	 * @param sequence the highest reliable sequence number received.
+	 * @param bitmap   the reliable packets received, bit i for sequence - i.
+	 */
+	public static void writeAck(ByteBuffer b, int sequence, long bitmap) {
+		b.clear();
+		putAck(b, sequence, bitmap);
+		b.flip();
+	}
+
+	/**
+	 * Appends an acknowledgement at the buffer's position, e.g. after a
+	 * forwarded frame header.
+	 *
+	 * @param b        the buffer to write into.
+	 * @param sequence the highest reliable sequence number received.
+	 * @param bitmap   the reliable packets received, bit i for sequence - i.
+	 */
+	public static void putAck(ByteBuffer b, int sequence, long bitmap) {
+		b.putInt(ACK << 24);
+		b.putInt(sequence);
+		b.putLong(bitmap);
+	}
+
+	/**
+	 * Returns whether the data held between the buffer's position and limit is
+	 * an acknowledgement.
+	 *
+	 * @param b the buffer holding the packet.
+	 * @return true for an acknowledgement.
+	 */
+	public static boolean isAck(ByteBuffer b) {
+		return b.remaining() == ACK_PACKET_SIZE && b.get(b.position()) == ACK;
+	}
+
+	/**
+	 * Returns the highest sequence number of an acknowledgement.
+	 *
+	 * @param b the buffer holding the acknowledgement.
+	 * @return the sequence number.
+	 */
+	public static int ackSequence(ByteBuffer b) {
+		return b.getInt(b.position() + 4);
+	}
+
+	/**
+	 * Returns the bitmap of an acknowledgement.
+	 *
+	 * @param b the buffer holding the acknowledgement.
+	 * @return the bitmap, bit i for sequence number ackSequence() - i.
+	 */
+	public static long ackBitmap(ByteBuffer b) {
+		return b.getLong(b.position() + 8);
+	}
+
+	/**
+	 * Returns whether an acknowledgement covers a sequence number.
+	 *
+	 * @param ackSequence the highest sequence number of the acknowledgement.
+	 * @param ackBitmap   the bitmap of the acknowledgement.
+	 * @param sequence    the sequence number of a reliable packet.
+	 * @return true if the packet was received.
+	 */
+	public static boolean acknowledges(int ackSequence, long ackBitmap, int sequence) {
+		final int behind = ackSequence - sequence;
+		return behind >= 0 && behind < Long.SIZE && (ackBitmap & 1L << behind) != 0;
+	}
+
+	/**
+	 * Returns the size of the forwarded frame header for a client.
+	 *
+	 * @param address the client's address.
+	 * @return the header size in bytes.
+	 */
+	public static int forwardHeaderSize(InetAddress address) {
+		return address instanceof Inet4Address ? 8 : MAX_FORWARD_HEADER_SIZE;
+	}
+
+	/**
+	 * Writes a forwarded frame header at an index of the buffer, leaving its
+	 * position and limit alone. Allocates nothing for IPv4 clients.
+	 *
+	 * @param b       the buffer to write into.
+	 * @param index   where the header starts.
+	 * @param address the client's address.
+	 * @param port    the client's port.
+	 */
+	public static void putForwardHeader(ByteBuffer b, int index, InetAddress address, int port) {
+		b.put(index, (byte) FORWARDED);
+		b.putShort(index + 2, (short) port);
+		if (address instanceof Inet4Address) {
+			b.put(index + 1, (byte) 4);
+			// The hash code of an IPv4 address is the address.
+			b.putInt(index + 4, address.hashCode());
+		} else {
+			final byte[] bytes = address.getAddress();
+			b.put(index + 1, (byte) bytes.length);
+			for (int i = 0; i < bytes.length; i++) {
+				b.put(index + 4 + i, bytes[i]);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the data held between the buffer's position and limit is
+	 * a forwarded frame.
+	 *
+	 * @param b the buffer holding the packet.
+	 * @return true for a forwarded frame.
+	 */
+	public static boolean isForwarded(ByteBuffer b) {
+		if (b.remaining() < 8 || b.get(b.position()) != FORWARDED) {
+			return false;
+		}
+		final int addressLength = b.get(b.position() + 1);
+		return (addressLength == 4 || addressLength == 16) && b.remaining() >= 4 + addressLength;
+	}
+
+	/**
+	 * Returns the size of the header of a forwarded frame.
+	 *
+	 * @param b the buffer holding the frame.
+	 * @return the header size in bytes; the client's datagram follows.
+	 */
+	public static int forwardHeaderSize(ByteBuffer b) {
+		return 4 + b.get(b.position() + 1);
+	}
+
+	/**
+	 * Returns the client's port in a forwarded frame.
+	 *
+	 * @param b the buffer holding the frame.
+	 * @return the port.
+	 */
+	public static int forwardedPort(ByteBuffer b) {
+		return b.getShort(b.position() + 2) & 0xFFFF;
+	}
+
+	/**
+	 * Returns the source key of the client of a forwarded frame: the key
+	 * ChannelAllocator.sourceKey() gives the client's address and port.
+	 *
+	 * @param b the buffer holding the frame.
+	 * @return the source key.
+	 */
+	public static long forwardedSourceKey(ByteBuffer b) {
+		final int start = b.position();
+		final int port = forwardedPort(b);
+		if (b.get(start + 1) == 4) {
+			return (b.getInt(start + 4) & 0xFFFFFFFFL) << 16 | port;
+		}
+		return ChannelAllocator.sourceKey(b.getLong(start + 4), b.getLong(start + 12), port);
+	}
+
+	/**
+	 * Writes a heartbeat into the buffer, starting at position 0, and flips it
+	 * for sending.
+	 *
+	 * @param b       the buffer to write into.
+	 * @param leaving whether the node is leaving the cluster.
+	 */
+	public static void writeHeartbeat(ByteBuffer b, boolean leaving) {
+		b.clear();
+		b.putInt(HEARTBEAT << 24 | (leaving ? 1 : 0) << 16);
+		b.flip();
+	}
+
+	/**
+	 * Returns whether the data held between the buffer's position and limit is
+	 * a heartbeat.
+	 *
+	 * @param b the buffer holding the packet.
+	 * @return true for a heartbeat.
+	 */
+	public static boolean isHeartbeat(ByteBuffer b) {
+		return b.remaining() == HEARTBEAT_PACKET_SIZE && b.get(b.position()) == HEARTBEAT;
+	}
+
+	/**
+	 * Returns whether a heartbeat announces that the node is leaving.
+	 *
+	 * @param b the buffer holding the heartbeat.
+	 * @return true if the node is leaving the cluster.
+	 */
+	public static boolean isLeaving(ByteBuffer b) {
+		return b.get(b.position() + 1) == 1;
+	}
+
+	/**
+	 * Starts a notes packet at position 0 of the buffer.
+	 *
+	 * @param b        the buffer to write into.
+	 * @param sequence the sequence number of the packet.
+	 */
+	public static void beginNotes(ByteBuffer b, int sequence) {
+		b.clear();
+		b.put((byte) NOTES);
+		b.put((byte) 0);
+		b.putShort((short) 0);
+		b.putInt(sequence);
+	}
+
+	/**
+	 * Appends one note to a notes packet started with beginNotes(). Complete
+	 * the packet with finishV2().
+	 *
+	 * @param b           the buffer to write into.
+	 * @param route       the route that played the note.
+	 * @param status      the MIDI status byte (command | channel).
+	 * @param data1       the first data byte.
+	 * @param data2       the second data byte.
+	 * @param deltaMicros the microseconds since the previous note.
+	 * @param client      the key of the client that sent the note.
+	 */
+	public static void appendNote(ByteBuffer b, int route, int status, int data1, int data2, int deltaMicros,
+			long client) {
+		b.put((byte) route);
+		appendV2(b, status, data1, data2, Math.max(0, deltaMicros));
+		b.putLong(client);
+	}
+
+	/**
+	 * Returns whether the data held between the buffer's position and limit is
+	 * a notes packet.
+	 *
+	 * @param b the buffer holding the packet.
+	 * @return true for a notes packet.
+	 */
+	public static boolean isNotes(ByteBuffer b) {
+		return b.remaining() >= NOTES_HEADER_SIZE && b.get(b.position()) == NOTES;
+	}
+
+	/**
+	 * Decodes the notes packet held between the buffer's position and limit
+	 * and passes each note to the sink. The buffer's position is not changed.
+	 *
+	 * @param b    the buffer holding the packet.
+	 * @param sink the receiver of the decoded notes.
+	 * @return the number of notes decoded, or -1 if the packet is malformed.
+	 */
+	public static int decodeNotes(ByteBuffer b, NoteSink sink) {
+		final int start = b.position();
+		if (!isNotes(b)) {
+			return -1;
+		}
+		final int count = b.getShort(start + 2) & 0xFFFF;
+		if (b.remaining() != NOTES_HEADER_SIZE + count * NOTES_EVENT_SIZE) {
+			return -1;
+		}
+		for (int offset = start + NOTES_HEADER_SIZE; offset < b.limit(); offset += NOTES_EVENT_SIZE) {
+			sink.onNote(b.get(offset) & 0xFF, b.get(offset + 1) & 0xF0, b.get(offset + 2) & 0xFF,
+					b.get(offset + 3) & 0xFF, b.getLong(offset + 1 + V2_EVENT_SIZE + V2_DELTA_SIZE));
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the sender's timestamp of a version 2 packet with FLAG_TIMESTAMP.
+	 *
+	 * @param b the buffer holding the packet.
+	 * @return the timestamp in microseconds.
+	 */
+	public static int timestamp(ByteBuffer b) {
+		return b.getInt(b.position() + V2_HEADER_SIZE);
+	}
+
+	/**
+	 * Checks the packet held between the buffer's position and limit without
+	 * decoding it: its length must match its events, and each event must be a
+	 * channel message with 7-bit data bytes. The buffer's position is not
+	 * changed.
+	 *
+	 * @param b the buffer holding the packet.
+	 * @return the number of events of the packet, or -1 if it is malformed.
+	 */
+	public static int validate(ByteBuffer b) {
+		final int start = b.position();
+		switch (version(b)) {
+		case VERSION_1:
+			final int command = b.getInt(start);
+			final int channel = b.getInt(start + 4);
+			return isChannelMessage(command, b.getInt(start + 8), b.getInt(start + 12)) && (channel & ~0x0F) == 0
+					? 1
+					: -1;
+		case VERSION_2:
+			final boolean deltas = (b.get(start + 1) & FLAG_DELTAS) != 0;
+			final int headerSize = (b.get(start + 1) & FLAG_TIMESTAMP) != 0 ? V2_HEADER_SIZE + V2_TIMESTAMP_SIZE
+					: V2_HEADER_SIZE;
+			final int count = b.getShort(start + 2) & 0xFFFF;
+			final int eventSize = deltas ? V2_EVENT_SIZE + V2_DELTA_SIZE : V2_EVENT_SIZE;
+			if (b.remaining() != headerSize + count * eventSize) {
+				return -1;
+			}
+			for (int offset = start + headerSize; offset < b.limit(); offset += eventSize) {
+				if (!isChannelMessage(b.get(offset) & 0xF0, b.get(offset + 1), b.get(offset + 2))) {
+					return -1;
+				}
+			}
+			return count;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns whether an event is a channel message: a command from NOTE_OFF
+	 * to PITCH_BEND, with 7-bit data bytes.
+	 *
+	 * @param command the MIDI command.
+	 * @param data1   the first data byte.
+	 * @param data2   the second data byte.
+	 * @return true for a channel message.
+	 */
+	public static boolean isChannelMessage(int command, int data1, int data2) {
+		return command >= 0x80 && command <= 0xE0 && (command & 0x0F) == 0 && (data1 & ~0x7F) == 0
+				&& (data2 & ~0x7F) == 0;
+	}
+
+	/**
+	 * Decodes the packet held between the buffer's position and limit and
+	 * passes each event to the sink. The buffer's position is not changed.
+	 *
+	 * @param b    the buffer holding the packet.
+	 * @param sink the receiver of the decoded events.
+	 * @return the number of events decoded, or -1 if the packet is malformed.
+	 */
+	public static int decode(ByteBuffer b, EventSink sink) {
+		final int start = b.position();
+		switch (version(b)) {
+		case VERSION_1:
+			sink.onEvent(b.getInt(start), b.getInt(start + 4), b.getInt(start + 8), b.getInt(start + 12), 0);
+			return 1;
+		case VERSION_2:
+			final boolean deltas = (b.get(start + 1) & FLAG_DELTAS) != 0;
+			final int headerSize = (b.get(start + 1) & FLAG_TIMESTAMP) != 0 ? V2_HEADER_SIZE + V2_TIMESTAMP_SIZE
+					: V2_HEADER_SIZE;
+			final int count = b.getShort(start + 2) & 0xFFFF;
+			final int eventSize = deltas ? V2_EVENT_SIZE + V2_DELTA_SIZE : V2_EVENT_SIZE;
+			if (b.remaining() != headerSize + count * eventSize) {
+				return -1;
+			}
+			int offset = start + headerSize;
+			for (int i = 0; i < count; i++) {
+				final int status = b.get(offset) & 0xFF;
+				final int deltaMicros = deltas ? b.getShort(offset + 3) & 0xFFFF : 0;
+				sink.onEvent(status & 0xF0, status & 0x0F, b.get(offset + 1) & 0xFF, b.get(offset + 2) & 0xFF,
+						deltaMicros);
+				offset += eventSize;
+			}
+			return count;
+		default:
+			return -1;
+		}
+	}
+}
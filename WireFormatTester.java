@@ -0,0 +1,190 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import javax.sound.midi.*;
+
+/**
+ * Contains a set of unit tests for the WireFormat class.
+ */
+class WireFormatTester {
+	/**
+	 * Collects decoded events as strings.
+	 */
+	private static class Events implements WireFormat.EventSink {
+		private final List<String> _events = new ArrayList<>();
+
+		@Override
+		public void onEvent(int command, int channel, int data1, int data2, int deltaMicros) {
+			_events.add(command + "/" + channel + "/" + data1 + "/" + data2 + "+" + deltaMicros);
+		}
+	}
+
+	private static List<String> decode(ByteBuffer b, int expectedCount) {
+		final Events events = new Events();
+		final int position = b.position();
+		assertEquals(expectedCount, WireFormat.decode(b, events));
+		assertEquals(position, b.position(), "decoding leaves the position alone");
+		return events._events;
+	}
+
+	@Test
+	void testVersion1RoundTrip() {
+		final ByteBuffer b = ByteBuffer.allocate(WireFormat.MAX_PACKET_SIZE);
+		WireFormat.writeV1(b, ShortMessage.NOTE_ON, 9, 60, 93);
+		assertEquals(WireFormat.V1_PACKET_SIZE, b.remaining());
+		assertEquals(WireFormat.VERSION_1, WireFormat.version(b));
+		assertEquals(List.of("144/9/60/93+0"), decode(b, 1));
+	}
+
+	@Test
+	void testVersion2RoundTrip() {
+		final ByteBuffer b = ByteBuffer.allocate(WireFormat.MAX_PACKET_SIZE);
+		WireFormat.beginV2(b, 7, 0);
+		WireFormat.appendV2(b, ShortMessage.NOTE_ON | 1, 60, 93, -1);
+		WireFormat.appendV2(b, ShortMessage.NOTE_OFF | 1, 60, 0, -1);
+		WireFormat.finishV2(b, 2);
+		assertEquals(WireFormat.V2_HEADER_SIZE + 2 * WireFormat.V2_EVENT_SIZE, b.remaining());
+		assertEquals(WireFormat.VERSION_2, WireFormat.version(b));
+		assertEquals(7, WireFormat.sequence(b));
+		assertFalse(WireFormat.hasTimestamp(b));
+		assertFalse(WireFormat.isReliable(b));
+		assertEquals(List.of("144/1/60/93+0", "128/1/60/0+0"), decode(b, 2));
+	}
+
+	@Test
+	void testVersion2Flags() {
+		final ByteBuffer b = ByteBuffer.allocate(WireFormat.MAX_PACKET_SIZE);
+		WireFormat.beginV2(b, -1, WireFormat.FLAG_DELTAS | WireFormat.FLAG_TIMESTAMP, -123_456);
+		WireFormat.appendV2(b, ShortMessage.NOTE_ON, 60, 93, 0);
+		WireFormat.appendV2(b, ShortMessage.NOTE_ON, 64, 93, 1500);
+		WireFormat.appendV2(b, ShortMessage.NOTE_ON, 67, 93, 100_000);
+		WireFormat.finishV2(b, 3);
+		assertEquals(WireFormat.V2_HEADER_SIZE + WireFormat.V2_TIMESTAMP_SIZE
+				+ 3 * (WireFormat.V2_EVENT_SIZE + WireFormat.V2_DELTA_SIZE), b.remaining());
+		assertEquals(-1, WireFormat.sequence(b));
+		assertTrue(WireFormat.hasTimestamp(b));
+		assertEquals(-123_456, WireFormat.timestamp(b));
+		assertFalse(WireFormat.isReliable(b));
+		WireFormat.setReliable(b);
+		assertTrue(WireFormat.isReliable(b));
+		assertTrue(WireFormat.hasTimestamp(b), "setting a flag keeps the others");
+		// Deltas beyond an unsigned short are capped.
+		assertEquals(List.of("144/0/60/93+0", "144/0/64/93+1500", "144/0/67/93+" + WireFormat.MAX_DELTA_MICROS),
+				decode(b, 3));
+
+		// beginV2() without a clock drops the timestamp flag.
+		WireFormat.beginV2(b, 1, WireFormat.FLAG_TIMESTAMP);
+		WireFormat.finishV2(b, 0);
+		assertFalse(WireFormat.hasTimestamp(b));
+		assertEquals(WireFormat.V2_HEADER_SIZE, b.remaining());
+	}
+
+	@Test
+	void testDecodeAtOffset() {
+		final ByteBuffer b = ByteBuffer.allocate(WireFormat.MAX_PACKET_SIZE);
+		WireFormat.writeV1(b, ShortMessage.NOTE_ON, 0, 60, 93);
+		final ByteBuffer shifted = ByteBuffer.allocate(WireFormat.MAX_PACKET_SIZE + 8);
+		shifted.position(8);
+		shifted.put(b);
+		shifted.flip();
+		shifted.position(8);
+		assertEquals(WireFormat.VERSION_1, WireFormat.version(shifted));
+		assertEquals(List.of("144/0/60/93+0"), decode(shifted, 1));
+	}
+
+	@Test
+	void testMalformedPackets() {
+		final ByteBuffer b = ByteBuffer.allocate(WireFormat.MAX_PACKET_SIZE);
+		// Version 1 packets are exactly 16 bytes, starting with 0.
+		WireFormat.writeV1(b, ShortMessage.NOTE_ON, 0, 60, 93);
+		b.limit(WireFormat.V1_PACKET_SIZE - 1);
+		assertEquals(0, WireFormat.version(b));
+		assertEquals(-1, WireFormat.decode(b, new Events()));
+		b.limit(WireFormat.V1_PACKET_SIZE + 1);
+		assertEquals(0, WireFormat.version(b));
+
+		// A version 2 header is 8 bytes, and its count must match its length.
+		WireFormat.beginV2(b, 1, WireFormat.FLAG_DELTAS);
+		WireFormat.appendV2(b, ShortMessage.NOTE_ON, 60, 93, 0);
+		WireFormat.appendV2(b, ShortMessage.NOTE_OFF, 60, 0, 10);
+		WireFormat.finishV2(b, 2);
+		final int length = b.limit();
+		b.limit(WireFormat.V2_HEADER_SIZE - 1);
+		assertEquals(0, WireFormat.version(b));
+		b.limit(length - 1);
+		assertEquals(WireFormat.VERSION_2, WireFormat.version(b));
+		assertEquals(-1, WireFormat.decode(b, new Events()), "truncated");
+		b.limit(length + 1);
+		assertEquals(-1, WireFormat.decode(b, new Events()), "oversized");
+		b.limit(length);
+		b.putShort(2, (short) 3);
+		assertEquals(-1, WireFormat.decode(b, new Events()), "count beyond the events");
+		b.putShort(2, (short) 0xFFFF);
+		assertEquals(-1, WireFormat.decode(b, new Events()));
+
+		// A timestamp flag without room for the timestamp.
+		WireFormat.beginV2(b, 1, 0);
+		WireFormat.finishV2(b, 0);
+		b.put(1, (byte) WireFormat.FLAG_TIMESTAMP);
+		assertFalse(WireFormat.hasTimestamp(b));
+		assertEquals(-1, WireFormat.decode(b, new Events()));
+
+		b.clear();
+		b.limit(0);
+		assertEquals(0, WireFormat.version(b));
+	}
+
+	@Test
+	void testMaxEventsFitInAPacket() {
+		final ByteBuffer b = ByteBuffer.allocate(WireFormat.MAX_PACKET_SIZE);
+		WireFormat.beginV2(b, 1, WireFormat.FLAG_DELTAS | WireFormat.FLAG_TIMESTAMP, 0);
+		for (int i = 0; i < WireFormat.MAX_EVENTS; i++) {
+			WireFormat.appendV2(b, ShortMessage.NOTE_ON, i, 93, i);
+		}
+		WireFormat.finishV2(b, WireFormat.MAX_EVENTS);
+		assertTrue(b.remaining() <= WireFormat.MAX_PACKET_SIZE);
+		assertEquals(WireFormat.MAX_EVENTS, decode(b, WireFormat.MAX_EVENTS).size());
+	}
+
+	@Test
+	void testNotesRoundTrip() throws Exception {
+		final ByteBuffer b = ByteBuffer.allocate(WireFormat.MAX_PACKET_SIZE);
+		final long client = NoteBroadcaster.clientKey(InetAddress.getByName("10.0.0.7"), 5000);
+		assertEquals(ChannelAllocator.sourceKey(InetAddress.getByName("10.0.0.7"), 5000), client,
+				"IPv4 clients are keyed like their source");
+		WireFormat.beginNotes(b, 3);
+		WireFormat.appendNote(b, 17, ShortMessage.NOTE_ON | 1, 60, 93, 0, client);
+		WireFormat.appendNote(b, 255, ShortMessage.NOTE_OFF | 15, 60, 0, 100, -1);
+		WireFormat.finishV2(b, 2);
+		assertEquals(WireFormat.NOTES_HEADER_SIZE + 2 * WireFormat.NOTES_EVENT_SIZE, b.remaining());
+		assertTrue(WireFormat.isNotes(b));
+		assertEquals(0, WireFormat.version(b), "not played as a version 2 packet");
+		assertEquals(3, WireFormat.sequence(b));
+		final List<String> notes = new ArrayList<>();
+		assertEquals(2, WireFormat.decodeNotes(b,
+				(route, command, data1, data2, key) -> notes.add(route + "/" + command + "/" + data1 + "/" + data2
+						+ "@" + key)));
+		assertEquals(List.of("17/144/60/93@" + client, "255/128/60/0@-1"), notes);
+		b.limit(b.limit() - 1);
+		assertEquals(-1, WireFormat.decodeNotes(b, (route, command, data1, data2, key) -> fail()));
+	}
+
+	@Test
+	void testAcknowledgements() {
+		final ByteBuffer b = ByteBuffer.allocate(WireFormat.ACK_PACKET_SIZE);
+		WireFormat.writeAck(b, 100, 0b1011L);
+		assertTrue(WireFormat.isAck(b));
+		assertEquals(0, WireFormat.version(b));
+		assertEquals(100, WireFormat.ackSequence(b));
+		assertEquals(0b1011L, WireFormat.ackBitmap(b));
+		assertTrue(WireFormat.acknowledges(100, 0b1011L, 100));
+		assertTrue(WireFormat.acknowledges(100, 0b1011L, 99));
+		assertFalse(WireFormat.acknowledges(100, 0b1011L, 98));
+		assertTrue(WireFormat.acknowledges(100, 0b1011L, 97));
+		assertFalse(WireFormat.acknowledges(100, -1L, 101), "ahead of the acknowledgement");
+		assertFalse(WireFormat.acknowledges(100, -1L, 100 - Long.SIZE), "behind the bitmap");
+		assertTrue(WireFormat.acknowledges(Integer.MIN_VALUE, 0b10L, Integer.MAX_VALUE), "across the wrap");
+	}
+}